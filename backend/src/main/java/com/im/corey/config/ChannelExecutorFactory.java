@@ -0,0 +1,150 @@
+package com.im.corey.config;
+
+import com.im.corey.dto.ErrorFrame;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageHandler;
+import org.springframework.messaging.handler.invocation.AbstractMethodMessageHandler;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.messaging.simp.SimpMessageType;
+import org.springframework.messaging.support.MessageHandlingRunnable;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.stereotype.Component;
+
+import java.security.Principal;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * STOMP客户端通道线程池工厂
+ * 线程池使用有界队列，并按通道记录排队等待时间、执行耗时、队列深度、活跃线程数和拒绝次数。
+ * 两个通道都按会话保序处理，同一会话的帧不会因多线程而乱序。
+ * 队列已满时：入站的应用消息被拒绝并向客户端发送SERVER_BUSY错误帧，出站的消息帧被丢弃；
+ * 连接、订阅、断开等生命周期帧排入会话分段的有界溢出容量，不在提交线程上执行，溢出容量也用完时才丢弃
+ */
+@Component
+public class ChannelExecutorFactory {
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Autowired
+    private OutboundFrameSender outboundFrameSender;
+
+    @Value("${im.websocket.lifecycle-overflow-capacity:1024}")
+    private int lifecycleOverflowCapacity;
+
+    /**
+     * 创建通道线程池，线程池由Spring负责初始化和关闭
+     *
+     * @param channel 通道名称，用作线程名前缀和指标标签
+     * @param inbound 是否为客户端入站通道
+     */
+    public ThreadPoolTaskExecutor create(String channel, boolean inbound, int corePoolSize, int maxPoolSize,
+                                         int queueCapacity, int keepAliveSeconds) {
+        Tags tags = Tags.of("channel", channel);
+        Timer queueWaitTimer = Timer.builder("im.websocket.channel.queue.wait").tags(tags).register(meterRegistry);
+        Timer executionTimer = Timer.builder("im.websocket.channel.execution").tags(tags).register(meterRegistry);
+        Counter rejectedCounter = meterRegistry.counter("im.websocket.channel.rejected", tags);
+
+        SessionOrderedTaskExecutor executor = new SessionOrderedTaskExecutor();
+        executor.setThreadNamePrefix(channel + "-");
+        executor.setCorePoolSize(corePoolSize);
+        executor.setMaxPoolSize(Math.max(corePoolSize, maxPoolSize));
+        executor.setQueueCapacity(queueCapacity);
+        executor.setKeepAliveSeconds(keepAliveSeconds);
+        executor.setLifecycleOverflowCapacity(lifecycleOverflowCapacity);
+        executor.setTaskDecorator(task -> new InstrumentedTask(task, queueWaitTimer, executionTimer));
+        executor.setRejectedExecutionHandler(rejectionHandler(channel, inbound, rejectedCounter));
+
+        Gauge.builder("im.websocket.channel.queue.depth", executor, ThreadPoolTaskExecutor::getQueueSize)
+                .tags(tags).register(meterRegistry);
+        Gauge.builder("im.websocket.channel.active.threads", executor, ThreadPoolTaskExecutor::getActiveCount)
+                .tags(tags).register(meterRegistry);
+        return executor;
+    }
+
+    private RejectedExecutionHandler rejectionHandler(String channel, boolean inbound, Counter rejectedCounter) {
+        return (task, pool) -> {
+            Message<?> message = task instanceof MessageHandlingRunnable
+                    ? ((MessageHandlingRunnable) task).getMessage() : null;
+            if (pool.isShutdown()) {
+                return;
+            }
+            rejectedCounter.increment();
+            if (message == null
+                    || SimpMessageHeaderAccessor.getMessageType(message.getHeaders()) != SimpMessageType.MESSAGE) {
+                // 溢出容量也已用完，不在提交线程（容器I/O线程）上执行，以免阻塞并越过该会话之前的帧
+                System.err.println("通道 " + channel + " 队列和溢出容量已满，丢弃会话 "
+                        + (message != null ? SimpMessageHeaderAccessor.getSessionId(message.getHeaders()) : null)
+                        + " 的生命周期帧");
+                return;
+            }
+            if (!inbound) {
+                System.err.println("通道 " + channel + " 队列已满，丢弃发往会话 "
+                        + SimpMessageHeaderAccessor.getSessionId(message.getHeaders()) + " 的消息");
+            } else if (((MessageHandlingRunnable) task).getMessageHandler() instanceof AbstractMethodMessageHandler) {
+                // 一条入站消息会分发给多个处理器，只在交给@MessageMapping处理时通知客户端一次
+                notifyBusy(message);
+            }
+        };
+    }
+
+    private void notifyBusy(Message<?> message) {
+        Principal user = SimpMessageHeaderAccessor.getUser(message.getHeaders());
+        if (user == null) {
+            System.err.println("入站通道队列已满，丢弃未认证会话的消息");
+            return;
+        }
+        try {
+            outboundFrameSender.sendToUser(user.getName(), "/queue/errors",
+                    new ErrorFrame("服务器繁忙，请稍后重试", "SERVER_BUSY"));
+        } catch (Exception e) {
+            System.err.println("发送服务器繁忙通知失败，用户ID: " + user.getName() + "，原因: " + e.getMessage());
+        }
+    }
+
+    /**
+     * 记录排队等待和执行耗时的任务包装，保留原任务携带的消息供拒绝策略使用
+     */
+    private static class InstrumentedTask implements MessageHandlingRunnable {
+        private final Runnable delegate;
+        private final Timer queueWaitTimer;
+        private final Timer executionTimer;
+        private final long submittedAt = System.nanoTime();
+
+        private InstrumentedTask(Runnable delegate, Timer queueWaitTimer, Timer executionTimer) {
+            this.delegate = delegate;
+            this.queueWaitTimer = queueWaitTimer;
+            this.executionTimer = executionTimer;
+        }
+
+        @Override
+        public void run() {
+            long start = System.nanoTime();
+            queueWaitTimer.record(start - submittedAt, TimeUnit.NANOSECONDS);
+            try {
+                delegate.run();
+            } finally {
+                executionTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            }
+        }
+
+        @Override
+        public Message<?> getMessage() {
+            return delegate instanceof MessageHandlingRunnable ? ((MessageHandlingRunnable) delegate).getMessage() : null;
+        }
+
+        @Override
+        public MessageHandler getMessageHandler() {
+            return delegate instanceof MessageHandlingRunnable
+                    ? ((MessageHandlingRunnable) delegate).getMessageHandler() : null;
+        }
+    }
+}
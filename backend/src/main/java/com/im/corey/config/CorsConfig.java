@@ -30,6 +30,7 @@ public class CorsConfig {
         // 允许暴露的响应头
         config.addExposedHeader("Authorization");
         config.addExposedHeader("Content-Type");
+        config.addExposedHeader("X-Total-Count");
         
         // 预检请求缓存时间
         config.setMaxAge(3600L);
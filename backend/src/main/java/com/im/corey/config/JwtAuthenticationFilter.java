@@ -42,24 +42,20 @@ public class JwtAuthenticationFilter extends OncePerRequestFilter {
         // 检查Authorization头是否存在且以Bearer开头
         if (authorizationHeader != null && authorizationHeader.startsWith("Bearer ")) {
             token = authorizationHeader.substring(7);
-            try {
-                userId = jwtUtil.getUserIdFromToken(token);
-            } catch (Exception e) {
-                logger.error("JWT Token解析失败", e);
+            // 校验签名和过期时间，同一token的校验结果会被缓存
+            userId = jwtUtil.resolveUserId(token);
+            if (userId == null) {
+                logger.debug("JWT Token无效或已过期");
             }
         }
 
         // 如果token有效且当前SecurityContext中没有认证信息
         if (userId != null && SecurityContextHolder.getContext().getAuthentication() == null) {
             UserDetails userDetails = this.userDetailsService.loadUserByUsername(userId);
-            
-            // 验证token是否有效
-            if (jwtUtil.validateToken(token, Long.valueOf(userId))) {
-                UsernamePasswordAuthenticationToken authentication = new UsernamePasswordAuthenticationToken(
-                        userDetails, null, userDetails.getAuthorities());
-                authentication.setDetails(new WebAuthenticationDetailsSource().buildDetails(request));
-                SecurityContextHolder.getContext().setAuthentication(authentication);
-            }
+            UsernamePasswordAuthenticationToken authentication = new UsernamePasswordAuthenticationToken(
+                    userDetails, null, userDetails.getAuthorities());
+            authentication.setDetails(new WebAuthenticationDetailsSource().buildDetails(request));
+            SecurityContextHolder.getContext().setAuthentication(authentication);
         }
         
         filterChain.doFilter(request, response);
@@ -0,0 +1,323 @@
+package com.im.corey.config;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.BeanDescription;
+import com.fasterxml.jackson.databind.JsonSerializer;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.introspect.BeanPropertyDefinition;
+import com.fasterxml.jackson.databind.module.SimpleModule;
+import com.fasterxml.jackson.dataformat.cbor.databind.CBORMapper;
+import com.im.corey.dto.ChatMessageFrame;
+import com.im.corey.dto.EncodedChatMessage;
+import com.im.corey.dto.ErrorFrame;
+import com.im.corey.dto.HeartbeatAckFrame;
+import com.im.corey.dto.OutboundFrame;
+import com.im.corey.dto.PresenceDeltaDTO;
+import com.im.corey.dto.ReadReceiptFrame;
+import com.im.corey.dto.UnreadCountFrame;
+import com.im.corey.model.Message;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.messaging.MessageHeaders;
+import org.springframework.messaging.converter.AbstractMessageConverter;
+import org.springframework.messaging.converter.MessageConversionException;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.messaging.support.MessageHeaderAccessor;
+import org.springframework.stereotype.Component;
+import org.springframework.util.MimeType;
+import org.springframework.util.MimeTypeUtils;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 出站帧的STOMP消息转换器
+ * 只处理OutboundFrame类型，按消息头中的content-type在序列化时选择格式：
+ * 默认写出JSON，content-type为application/octet-stream;format=cbor时直接写出CBOR，不经过JSON中间结果。
+ * 每种帧类型使用预先构建的ObjectWriter序列化；
+ * 已编码的聊天消息直接写出字节，发送确认只在原字节末尾拼接附加字段，不再重新序列化。
+ * 写出JSON时在消息头中携带原始帧，代理把同一条消息扇出给协商了CBOR的会话时，由出站拦截器从原始帧序列化CBOR，
+ * 同一条消息只序列化一次；集群模式下原始帧无法经过外部代理，另在STOMP头中列出帧的时间字段，供接收节点转码
+ */
+@Component
+public class OutboundFrameMessageConverter extends AbstractMessageConverter {
+
+    /**
+     * CBOR负载的content-type，octet-stream才会以二进制WebSocket帧发送
+     */
+    public static final MimeType CBOR_CONTENT_TYPE = new MimeType(MimeTypeUtils.APPLICATION_OCTET_STREAM,
+            Collections.singletonMap("format", "cbor"));
+
+    /**
+     * 携带原始帧的消息头，只在本节点内传递
+     */
+    public static final String SOURCE_FRAME_HEADER = "imSourceFrame";
+
+    /**
+     * 列出帧中LocalDateTime字段名的STOMP头（逗号分隔），随消息经过外部代理
+     */
+    public static final String DATETIME_FIELDS_HEADER = "datetime-fields";
+
+    private static final byte[] CLIENT_MESSAGE_ID_FIELD = ",\"clientMessageId\":".getBytes(StandardCharsets.UTF_8);
+
+    private static final byte[] STATUS_FIELD = ",\"status\":\"".getBytes(StandardCharsets.UTF_8);
+
+    private static final byte[] STATUS_END = "\"}".getBytes(StandardCharsets.UTF_8);
+
+    /**
+     * CBOR不定长映射的结束标记
+     */
+    private static final byte CBOR_BREAK = (byte) 0xFF;
+
+    private final ObjectMapper objectMapper;
+
+    private final ObjectMapper cborMapper;
+
+    private final Map<Class<?>, ObjectWriter> writers = new ConcurrentHashMap<>();
+
+    private final Map<Class<?>, ObjectWriter> cborWriters = new ConcurrentHashMap<>();
+
+    /**
+     * 帧类型 -> 其LocalDateTime字段名，逗号分隔，没有时为空串
+     */
+    private final Map<Class<?>, String> dateTimeFields = new ConcurrentHashMap<>();
+
+    @Value("${im.cluster.enabled:false}")
+    private boolean clusterEnabled;
+
+    @Autowired
+    public OutboundFrameMessageConverter(ObjectMapper objectMapper) {
+        super(MimeTypeUtils.APPLICATION_JSON, CBOR_CONTENT_TYPE);
+        this.objectMapper = objectMapper;
+        this.cborMapper = createCborMapper();
+        // 预先为已知帧类型构建序列化器，避免在首条消息时才解析类型信息
+        for (Class<?> type : new Class<?>[]{ChatMessageFrame.class, UnreadCountFrame.class, ReadReceiptFrame.class,
+                HeartbeatAckFrame.class, ErrorFrame.class, PresenceDeltaDTO.class}) {
+            writers.put(type, objectMapper.writerFor(type));
+            cborWriters.put(type, cborMapper.writerFor(type));
+        }
+    }
+
+    /**
+     * CBOR使用二进制的数字和时间：LocalDateTime写为毫秒时间戳（服务器时区），其余字段与JSON同名同结构
+     */
+    private static ObjectMapper createCborMapper() {
+        SimpleModule timeModule = new SimpleModule("cbor-time");
+        timeModule.addSerializer(LocalDateTime.class, new JsonSerializer<LocalDateTime>() {
+            @Override
+            public void serialize(LocalDateTime value, JsonGenerator gen, SerializerProvider serializers)
+                    throws IOException {
+                gen.writeNumber(toEpochMilli(value));
+            }
+        });
+        return CBORMapper.builder().addModule(timeModule).build();
+    }
+
+    /**
+     * CBOR中时间字段的取值：服务器时区下的毫秒时间戳
+     */
+    public static long toEpochMilli(LocalDateTime value) {
+        return value.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    public static boolean isCbor(MimeType contentType) {
+        return contentType != null && CBOR_CONTENT_TYPE.equalsTypeAndSubtype(contentType)
+                && CBOR_CONTENT_TYPE.getParameter("format").equals(contentType.getParameter("format"));
+    }
+
+    /**
+     * 包装待投递的消息，编码推迟到按会话确定格式时进行，结果可同时用于接收者投递和发送者确认
+     */
+    public EncodedChatMessage encode(Message message) {
+        return new EncodedChatMessage(new ChatMessageFrame(message));
+    }
+
+    /**
+     * 出站拦截器使用：从SOURCE_FRAME_HEADER携带的原始帧序列化CBOR，同一条消息的多个会话共用结果；
+     * 消息头不是本转换器写入的原始帧时返回null
+     */
+    public byte[] toCbor(Object sourceFrame) {
+        if (!(sourceFrame instanceof SourceFrame)) {
+            return null;
+        }
+        SourceFrame source = (SourceFrame) sourceFrame;
+        byte[] cbor = source.cbor;
+        if (cbor == null) {
+            cbor = serialize(source.frame, true);
+            source.cbor = cbor;
+        }
+        return cbor;
+    }
+
+    /**
+     * 在消息头中附上原始帧；SimpMessagingTemplate发送时消息头仍可修改，
+     * 调用方传入不可修改的消息头时不附加，该消息发给CBOR会话时改为流式转码
+     */
+    private void attachSourceFrame(Object payload, MessageHeaders headers) {
+        SimpMessageHeaderAccessor accessor = headers != null
+                ? MessageHeaderAccessor.getAccessor(headers, SimpMessageHeaderAccessor.class)
+                : null;
+        if (accessor == null || !accessor.isMutable()) {
+            return;
+        }
+        accessor.setHeader(SOURCE_FRAME_HEADER, new SourceFrame(payload));
+        String fields = clusterEnabled ? dateTimeFields(payload) : "";
+        if (!fields.isEmpty()) {
+            accessor.setNativeHeader(DATETIME_FIELDS_HEADER, fields);
+        }
+    }
+
+    private String dateTimeFields(Object payload) {
+        Class<?> type = payload instanceof EncodedChatMessage ? ChatMessageFrame.class : payload.getClass();
+        return dateTimeFields.computeIfAbsent(type, frameType -> {
+            BeanDescription description = objectMapper.getSerializationConfig()
+                    .introspect(objectMapper.constructType(frameType));
+            StringBuilder fields = new StringBuilder();
+            for (BeanPropertyDefinition property : description.findProperties()) {
+                if (property.getRawPrimaryType() == LocalDateTime.class) {
+                    fields.append(fields.length() > 0 ? "," : "").append(property.getName());
+                }
+            }
+            return fields.toString();
+        });
+    }
+
+    @Override
+    protected boolean supports(Class<?> clazz) {
+        return OutboundFrame.class.isAssignableFrom(clazz);
+    }
+
+    @Override
+    protected boolean canConvertFrom(org.springframework.messaging.Message<?> message, Class<?> targetClass) {
+        // 只负责出站方向，入站消息仍交给默认转换器
+        return false;
+    }
+
+    @Override
+    protected Object convertToInternal(Object payload, MessageHeaders headers, Object conversionHint) {
+        boolean cbor = isCbor(getMimeType(headers));
+        if (!cbor) {
+            attachSourceFrame(payload, headers);
+        }
+        return serialize(payload, cbor);
+    }
+
+    private byte[] serialize(Object payload, boolean cbor) {
+        if (payload instanceof EncodedChatMessage) {
+            return toBytes((EncodedChatMessage) payload, cbor);
+        }
+        return write(payload, cbor);
+    }
+
+    private byte[] write(Object frame, boolean cbor) {
+        ObjectWriter writer = cbor
+                ? cborWriters.computeIfAbsent(frame.getClass(), cborMapper::writerFor)
+                : writers.computeIfAbsent(frame.getClass(), objectMapper::writerFor);
+        try {
+            return writer.writeValueAsBytes(frame);
+        } catch (JsonProcessingException e) {
+            throw new MessageConversionException("出站帧序列化失败: " + e.getMessage(), e);
+        }
+    }
+
+    private byte[] toBytes(EncodedChatMessage encoded, boolean cbor) {
+        EncodedChatMessage.Bodies bodies = encoded.getBodies();
+        byte[] body = bodies.get(cbor);
+        if (body == null) {
+            body = write(encoded.getFrame(), cbor);
+            bodies.set(cbor, body);
+        }
+        if (encoded.getStatus() == null) {
+            return body;
+        }
+        return cbor ? appendCborStatus(body, encoded) : appendJsonStatus(body, encoded);
+    }
+
+    private static byte[] appendJsonStatus(byte[] body, EncodedChatMessage encoded) {
+        // 去掉原对象的结尾'}'，追加clientMessageId和status后重新闭合
+        byte[] clientMessageId = encoded.getClientMessageId() != null
+                ? Long.toString(encoded.getClientMessageId()).getBytes(StandardCharsets.US_ASCII)
+                : null;
+        byte[] status = encoded.getStatus().getBytes(StandardCharsets.UTF_8);
+        int length = body.length - 1 + STATUS_FIELD.length + status.length + STATUS_END.length;
+        if (clientMessageId != null) {
+            length += CLIENT_MESSAGE_ID_FIELD.length + clientMessageId.length;
+        }
+        byte[] result = new byte[length];
+        int offset = copy(body, 0, body.length - 1, result, 0);
+        if (clientMessageId != null) {
+            offset = copy(CLIENT_MESSAGE_ID_FIELD, 0, CLIENT_MESSAGE_ID_FIELD.length, result, offset);
+            offset = copy(clientMessageId, 0, clientMessageId.length, result, offset);
+        }
+        offset = copy(STATUS_FIELD, 0, STATUS_FIELD.length, result, offset);
+        offset = copy(status, 0, status.length, result, offset);
+        copy(STATUS_END, 0, STATUS_END.length, result, offset);
+        return result;
+    }
+
+    private byte[] appendCborStatus(byte[] body, EncodedChatMessage encoded) {
+        Map<String, Object> extra = new LinkedHashMap<>();
+        if (encoded.getClientMessageId() != null) {
+            extra.put("clientMessageId", encoded.getClientMessageId());
+        }
+        extra.put("status", encoded.getStatus());
+        byte[] fields = write(extra, true);
+        int pairsLength = cborMapPairsLength(fields);
+        if (body.length == 0 || body[body.length - 1] != CBOR_BREAK || pairsLength < 0) {
+            // 无法按字节拼接时退回整体序列化
+            @SuppressWarnings("unchecked")
+            Map<String, Object> merged = cborMapper.convertValue(encoded.getFrame(), LinkedHashMap.class);
+            merged.putAll(extra);
+            return write(merged, true);
+        }
+        // 去掉原不定长映射的结束标记，拼接附加字段的键值对后重新闭合
+        byte[] result = new byte[body.length + pairsLength];
+        int offset = copy(body, 0, body.length - 1, result, 0);
+        offset = copy(fields, 1, pairsLength, result, offset);
+        result[offset] = CBOR_BREAK;
+        return result;
+    }
+
+    /**
+     * 返回CBOR映射去掉1字节头部（及不定长映射的结束标记）后键值对部分的长度，不是小映射时返回-1
+     */
+    private static int cborMapPairsLength(byte[] map) {
+        if (map.length == 0) {
+            return -1;
+        }
+        if (map[0] == (byte) 0xBF) {
+            return map[map.length - 1] == CBOR_BREAK ? map.length - 2 : -1;
+        }
+        // 主类型5（映射）且长度直接编码在头部字节中
+        if ((map[0] & 0xE0) == 0xA0 && (map[0] & 0x1F) < 24) {
+            return map.length - 1;
+        }
+        return -1;
+    }
+
+    private static int copy(byte[] source, int from, int length, byte[] target, int offset) {
+        System.arraycopy(source, from, target, offset, length);
+        return offset + length;
+    }
+
+    /**
+     * 一条消息的原始帧及其按需生成的CBOR
+     */
+    private static final class SourceFrame {
+        private final Object frame;
+        private volatile byte[] cbor;
+
+        private SourceFrame(Object frame) {
+            this.frame = frame;
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package com.im.corey.config;
+
+import com.im.corey.dto.OutboundFrame;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.messaging.simp.SimpMessageType;
+import org.springframework.messaging.simp.SimpMessagingTemplate;
+import org.springframework.messaging.simp.user.SimpSession;
+import org.springframework.messaging.simp.user.SimpUser;
+import org.springframework.messaging.simp.user.SimpUserRegistry;
+import org.springframework.stereotype.Component;
+import org.springframework.util.MimeType;
+import org.springframework.util.MimeTypeUtils;
+
+import java.util.Set;
+
+/**
+ * 向用户发送出站帧，按会话协商的负载格式选择序列化方式
+ * 用户没有协商CBOR的会话时与convertAndSendToUser相同；
+ * 否则逐个会话发送，CBOR会话直接序列化为CBOR，不产生JSON中间结果
+ */
+@Component
+public class OutboundFrameSender {
+
+    /**
+     * 消息模板依赖通道本身，延迟注入以避免循环依赖
+     */
+    @Lazy
+    @Autowired
+    private SimpMessagingTemplate messagingTemplate;
+
+    @Lazy
+    @Autowired
+    private SimpUserRegistry userRegistry;
+
+    @Autowired
+    private PayloadFormatInterceptor payloadFormatInterceptor;
+
+    public void sendToUser(String user, String destination, OutboundFrame frame) {
+        Set<String> cborSessions = payloadFormatInterceptor.getCborSessions(user);
+        SimpUser simpUser = cborSessions.isEmpty() ? null : userRegistry.getUser(user);
+        if (simpUser == null) {
+            messagingTemplate.convertAndSendToUser(user, destination, frame);
+            return;
+        }
+        for (SimpSession session : simpUser.getSessions()) {
+            boolean cbor = cborSessions.contains(session.getId());
+            sendToSession(user, session.getId(), destination, frame,
+                    cbor ? OutboundFrameMessageConverter.CBOR_CONTENT_TYPE : MimeTypeUtils.APPLICATION_JSON);
+        }
+    }
+
+    private void sendToSession(String user, String sessionId, String destination, OutboundFrame frame,
+                               MimeType contentType) {
+        SimpMessageHeaderAccessor accessor = SimpMessageHeaderAccessor.create(SimpMessageType.MESSAGE);
+        accessor.setSessionId(sessionId);
+        accessor.setContentType(contentType);
+        accessor.setLeaveMutable(true);
+        messagingTemplate.convertAndSendToUser(user, destination, frame, accessor.getMessageHeaders());
+    }
+}
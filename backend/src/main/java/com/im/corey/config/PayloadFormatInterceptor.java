@@ -0,0 +1,212 @@
+package com.im.corey.config;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationListener;
+import org.springframework.http.server.ServerHttpRequest;
+import org.springframework.http.server.ServerHttpResponse;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageChannel;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.messaging.simp.SimpMessageType;
+import org.springframework.messaging.simp.stomp.StompCommand;
+import org.springframework.messaging.simp.stomp.StompHeaderAccessor;
+import org.springframework.messaging.support.ChannelInterceptor;
+import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.messaging.support.MessageHeaderAccessor;
+import org.springframework.stereotype.Component;
+import org.springframework.util.MimeType;
+import org.springframework.util.MimeTypeUtils;
+import org.springframework.util.StringUtils;
+import org.springframework.web.socket.WebSocketHandler;
+import org.springframework.web.socket.messaging.SessionDisconnectEvent;
+import org.springframework.web.socket.server.HandshakeInterceptor;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * STOMP负载格式协商
+ * 客户端在CONNECT帧中携带payload-format: cbor即可为该会话启用CBOR负载：
+ * 发给单个用户的帧由OutboundFrameSender按会话直接序列化为CBOR，content-type为application/octet-stream;format=cbor；
+ * 出站拦截器只处理仍为JSON的帧（主题广播、集群中其他节点转发的帧）：本节点写出的帧从消息头携带的原始帧序列化，
+ * 经过外部代理的帧流式转码，并按datetime-fields头把时间字段换成毫秒时间戳，两条路径得到相同结构的CBOR；
+ * 入站时客户端可以以application/cbor发送负载。
+ * SockJS只能传输文本帧，通过SockJS连接的会话始终使用JSON
+ */
+@Component
+public class PayloadFormatInterceptor implements ChannelInterceptor, ApplicationListener<SessionDisconnectEvent> {
+
+    public static final String PAYLOAD_FORMAT_HEADER = "payload-format";
+
+    public static final String FORMAT_CBOR = "cbor";
+
+    /**
+     * 入站CBOR负载的content-type
+     */
+    public static final MimeType APPLICATION_CBOR = new MimeType("application", "cbor");
+
+    private static final String SOCKJS_SESSION_ATTRIBUTE = "sockJsTransport";
+
+    @Value("${im.websocket.cbor-enabled:true}")
+    private boolean cborEnabled;
+
+    @Autowired
+    private OutboundFrameMessageConverter outboundFrameMessageConverter;
+
+    private final Set<String> cborSessions = ConcurrentHashMap.newKeySet();
+
+    /**
+     * 用户名 -> 该用户在本节点协商了CBOR的会话
+     */
+    private final Map<String, Set<String>> cborSessionsByUser = new ConcurrentHashMap<>();
+
+    private final JsonFactory jsonFactory = new JsonFactory();
+
+    private final CBORFactory cborFactory = new CBORFactory();
+
+    /**
+     * 标记通过SockJS端点建立的会话
+     */
+    public static HandshakeInterceptor sockJsMarker() {
+        return new HandshakeInterceptor() {
+            @Override
+            public boolean beforeHandshake(ServerHttpRequest request, ServerHttpResponse response,
+                                           WebSocketHandler wsHandler, Map<String, Object> attributes) {
+                attributes.put(SOCKJS_SESSION_ATTRIBUTE, Boolean.TRUE);
+                return true;
+            }
+
+            @Override
+            public void afterHandshake(ServerHttpRequest request, ServerHttpResponse response,
+                                       WebSocketHandler wsHandler, Exception exception) {
+            }
+        };
+    }
+
+    /**
+     * 入站：在CONNECT时记录会话协商的负载格式
+     */
+    public ChannelInterceptor inbound() {
+        return new ChannelInterceptor() {
+            @Override
+            public Message<?> preSend(Message<?> message, MessageChannel channel) {
+                StompHeaderAccessor accessor = MessageHeaderAccessor.getAccessor(message, StompHeaderAccessor.class);
+                if (cborEnabled && accessor != null && StompCommand.CONNECT.equals(accessor.getCommand())
+                        && FORMAT_CBOR.equalsIgnoreCase(accessor.getFirstNativeHeader(PAYLOAD_FORMAT_HEADER))) {
+                    Map<String, Object> attributes = accessor.getSessionAttributes();
+                    if (attributes == null || !Boolean.TRUE.equals(attributes.get(SOCKJS_SESSION_ATTRIBUTE))) {
+                        cborSessions.add(accessor.getSessionId());
+                        if (accessor.getUser() != null) {
+                            String sessionId = accessor.getSessionId();
+                            // 在compute内添加，避免与断开时移除空集合的操作交错
+                            cborSessionsByUser.compute(accessor.getUser().getName(), (name, sessions) -> {
+                                Set<String> result = sessions != null ? sessions : ConcurrentHashMap.newKeySet();
+                                result.add(sessionId);
+                                return result;
+                            });
+                        }
+                    }
+                }
+                return message;
+            }
+        };
+    }
+
+    /**
+     * 返回用户在本节点协商了CBOR的会话ID，没有时返回空集合
+     */
+    public Set<String> getCborSessions(String userName) {
+        Set<String> sessions = cborSessionsByUser.get(userName);
+        return sessions != null ? sessions : Collections.emptySet();
+    }
+
+    /**
+     * 出站：协商了CBOR的会话收到JSON负载时改为CBOR，
+     * 携带原始帧的消息直接从原始对象写出CBOR，其余（经过外部代理的帧）流式转码
+     */
+    @Override
+    public Message<?> preSend(Message<?> message, MessageChannel channel) {
+        if (cborSessions.isEmpty()
+                || SimpMessageHeaderAccessor.getMessageType(message.getHeaders()) != SimpMessageType.MESSAGE
+                || !(message.getPayload() instanceof byte[])) {
+            return message;
+        }
+        String sessionId = SimpMessageHeaderAccessor.getSessionId(message.getHeaders());
+        if (sessionId == null || !cborSessions.contains(sessionId)) {
+            return message;
+        }
+        StompHeaderAccessor accessor = StompHeaderAccessor.wrap(message);
+        MimeType contentType = accessor.getContentType();
+        if (contentType == null || !MimeTypeUtils.APPLICATION_JSON.isCompatibleWith(contentType)) {
+            return message;
+        }
+        byte[] json = (byte[]) message.getPayload();
+        byte[] cbor = outboundFrameMessageConverter.toCbor(
+                message.getHeaders().get(OutboundFrameMessageConverter.SOURCE_FRAME_HEADER));
+        if (cbor == null) {
+            try {
+                cbor = transcode(json,
+                        accessor.getFirstNativeHeader(OutboundFrameMessageConverter.DATETIME_FIELDS_HEADER));
+            } catch (IOException | DateTimeParseException e) {
+                System.err.println("CBOR转码失败，会话 " + sessionId + " 本条消息仍以JSON发送: " + e.getMessage());
+                return message;
+            }
+        }
+        if (accessor.getCommand() == null || StompCommand.SEND.equals(accessor.getCommand())) {
+            accessor.updateStompCommandAsServerMessage();
+        }
+        accessor.setContentType(OutboundFrameMessageConverter.CBOR_CONTENT_TYPE);
+        return MessageBuilder.createMessage(cbor, accessor.getMessageHeaders());
+    }
+
+    @Override
+    public void onApplicationEvent(SessionDisconnectEvent event) {
+        if (!cborSessions.remove(event.getSessionId()) || event.getUser() == null) {
+            return;
+        }
+        cborSessionsByUser.computeIfPresent(event.getUser().getName(), (name, sessions) -> {
+            sessions.remove(event.getSessionId());
+            return sessions.isEmpty() ? null : sessions;
+        });
+    }
+
+    /**
+     * 逐个事件把JSON复制为CBOR，dateTimeFields中的顶层字段由ISO时间字符串换成毫秒时间戳，与直接序列化的CBOR一致
+     */
+    private byte[] transcode(byte[] json, String dateTimeFields) throws IOException {
+        Set<String> fields = StringUtils.hasText(dateTimeFields)
+                ? StringUtils.commaDelimitedListToSet(dateTimeFields)
+                : Collections.emptySet();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(json.length);
+        try (JsonParser parser = jsonFactory.createParser(json);
+             JsonGenerator generator = cborFactory.createGenerator(out)) {
+            int depth = 0;
+            JsonToken token;
+            while ((token = parser.nextToken()) != null) {
+                if (token == JsonToken.VALUE_STRING && depth == 1 && fields.contains(parser.getCurrentName())) {
+                    generator.writeNumber(OutboundFrameMessageConverter.toEpochMilli(LocalDateTime.parse(parser.getText())));
+                    continue;
+                }
+                if (token.isStructStart()) {
+                    depth++;
+                } else if (token.isStructEnd()) {
+                    depth--;
+                }
+                generator.copyCurrentEvent(parser);
+            }
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,81 @@
+package com.im.corey.config;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.im.corey.service.RateLimitService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * REST写接口限流过滤器
+ * 发送消息和标记已读接口与STOMP共用按用户的令牌桶，超出速率时返回429，
+ * 响应体与STOMP错误帧一致，包含message和errorCode（RATE_LIMITED）
+ */
+@Component
+public class RateLimitFilter extends OncePerRequestFilter {
+
+    private static final String MESSAGES_PATH = "/api/messages";
+
+    private static final String READ_PATH_PREFIX = "/api/messages/read/";
+
+    @Autowired
+    private RateLimitService rateLimitService;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain filterChain)
+            throws ServletException, IOException {
+        RateLimitService.Action action = actionFor(request);
+        Long userId = action != null ? currentUserId() : null;
+        if (userId != null && !rateLimitService.tryAcquire(userId, action)) {
+            response.setStatus(HttpStatus.TOO_MANY_REQUESTS.value());
+            response.setHeader("Retry-After", "1");
+            response.setContentType(MediaType.APPLICATION_JSON_VALUE);
+            response.setCharacterEncoding(StandardCharsets.UTF_8.name());
+            Map<String, String> body = new LinkedHashMap<>();
+            body.put("message", "操作过于频繁，请稍后重试");
+            body.put("errorCode", "RATE_LIMITED");
+            objectMapper.writeValue(response.getOutputStream(), body);
+            return;
+        }
+        filterChain.doFilter(request, response);
+    }
+
+    private RateLimitService.Action actionFor(HttpServletRequest request) {
+        String path = request.getRequestURI().substring(request.getContextPath().length());
+        if ("POST".equals(request.getMethod()) && MESSAGES_PATH.equals(path)) {
+            return RateLimitService.Action.SEND_MESSAGE;
+        }
+        if ("PUT".equals(request.getMethod()) && path.startsWith(READ_PATH_PREFIX)) {
+            return RateLimitService.Action.MARK_READ;
+        }
+        return null;
+    }
+
+    private Long currentUserId() {
+        Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
+        if (authentication == null || !authentication.isAuthenticated()) {
+            return null;
+        }
+        try {
+            return Long.valueOf(authentication.getName());
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
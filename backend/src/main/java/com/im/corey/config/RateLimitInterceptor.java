@@ -0,0 +1,55 @@
+package com.im.corey.config;
+
+import com.im.corey.dto.ErrorFrame;
+import com.im.corey.service.RateLimitService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageChannel;
+import org.springframework.messaging.simp.stomp.StompCommand;
+import org.springframework.messaging.simp.stomp.StompHeaderAccessor;
+import org.springframework.messaging.support.ChannelInterceptor;
+import org.springframework.messaging.support.MessageHeaderAccessor;
+import org.springframework.stereotype.Component;
+
+import java.security.Principal;
+
+/**
+ * STOMP入站限流拦截器
+ * 对发往/app的SEND帧按用户限流，超出速率的帧直接丢弃，并向客户端发送RATE_LIMITED错误帧
+ */
+@Component
+public class RateLimitInterceptor implements ChannelInterceptor {
+
+    private static final String APP_PREFIX = "/app/";
+
+    @Autowired
+    private RateLimitService rateLimitService;
+
+    @Autowired
+    private OutboundFrameSender outboundFrameSender;
+
+    @Override
+    public Message<?> preSend(Message<?> message, MessageChannel channel) {
+        StompHeaderAccessor accessor = MessageHeaderAccessor.getAccessor(message, StompHeaderAccessor.class);
+        if (accessor == null || !StompCommand.SEND.equals(accessor.getCommand())) {
+            return message;
+        }
+        String destination = accessor.getDestination();
+        Principal user = accessor.getUser();
+        if (destination == null || !destination.startsWith(APP_PREFIX) || user == null) {
+            return message;
+        }
+        Long userId;
+        try {
+            userId = Long.valueOf(user.getName());
+        } catch (NumberFormatException e) {
+            return message;
+        }
+        if (rateLimitService.tryAcquire(userId, rateLimitService.forDestination(destination))) {
+            return message;
+        }
+        outboundFrameSender.sendToUser(user.getName(), "/queue/errors",
+                new ErrorFrame("操作过于频繁，请稍后重试", "RATE_LIMITED"));
+        return null;
+    }
+}
@@ -24,6 +24,9 @@ public class SecurityConfig {
     @Autowired
     private CorsFilter corsFilter;
 
+    @Autowired
+    private RateLimitFilter rateLimitFilter;
+
     @Bean
     public SecurityFilterChain filterChain(HttpSecurity http) throws Exception {
         http
@@ -34,13 +37,15 @@ public class SecurityConfig {
             .authorizeRequests()
                 .antMatchers("/api/open/**").permitAll()
                 .antMatchers("/ws/**").permitAll()
+                .antMatchers("/ws-native").permitAll()
                 .requestMatchers(request -> "OPTIONS".equals(request.getMethod())).permitAll() // 允许所有OPTIONS请求
                 .anyRequest().authenticated()
             .and()
             .headers().frameOptions().disable()
             .and()
             .addFilterBefore(corsFilter, UsernamePasswordAuthenticationFilter.class) // CORS过滤器优先
-            .addFilterBefore(jwtAuthenticationFilter, UsernamePasswordAuthenticationFilter.class);
+            .addFilterBefore(jwtAuthenticationFilter, UsernamePasswordAuthenticationFilter.class)
+            .addFilterAfter(rateLimitFilter, UsernamePasswordAuthenticationFilter.class); // 认证之后按用户限流
         
         return http.build();
     }
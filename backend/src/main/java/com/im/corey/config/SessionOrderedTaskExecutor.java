@@ -0,0 +1,95 @@
+package com.im.corey.config;
+
+import com.im.corey.util.KeyedOrderedExecutor;
+import org.springframework.core.task.TaskDecorator;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.messaging.simp.SimpMessageType;
+import org.springframework.messaging.support.MessageHandlingRunnable;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * 按会话保序的通道线程池
+ * 同一个WebSocket会话的帧总是由同一个分段线程依次处理，保证客户端发送顺序不会在多线程处理时被打乱；
+ * 不同会话分散到各分段并行处理，不带会话ID的任务随机分配到分段。
+ * 分段即全部工作线程：分段数取最大线程数，前核心线程数个分段常驻，其余分段线程空闲超过存活时间后退出，
+ * 底层的普通线程池不再接收任务，因此不会额外创建线程。
+ * 连接、订阅、断开等生命周期帧不能丢失，分段队列已满时使用有界的溢出容量，仍在该会话的分段上按顺序执行
+ */
+public class SessionOrderedTaskExecutor extends ThreadPoolTaskExecutor {
+
+    private TaskDecorator taskDecorator;
+
+    private KeyedOrderedExecutor sessionStripes;
+
+    private int lifecycleOverflowCapacity;
+
+    /**
+     * 生命周期帧可额外占用的队列容量（所有分段之和）
+     */
+    public void setLifecycleOverflowCapacity(int lifecycleOverflowCapacity) {
+        this.lifecycleOverflowCapacity = lifecycleOverflowCapacity;
+    }
+
+    @Override
+    public void setTaskDecorator(TaskDecorator taskDecorator) {
+        super.setTaskDecorator(taskDecorator);
+        this.taskDecorator = taskDecorator;
+    }
+
+    @Override
+    protected ExecutorService initializeExecutor(ThreadFactory threadFactory,
+                                                 RejectedExecutionHandler rejectedExecutionHandler) {
+        // 分段数取最大线程数，队列总容量与普通线程池相同
+        sessionStripes = new KeyedOrderedExecutor(getThreadNamePrefix() + "session-", getMaxPoolSize(),
+                getQueueCapacity(), lifecycleOverflowCapacity, rejectedExecutionHandler);
+        sessionStripes.allowIdleTimeout(getCorePoolSize(), getKeepAliveSeconds());
+        return super.initializeExecutor(threadFactory, rejectedExecutionHandler);
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        Message<?> message = task instanceof MessageHandlingRunnable
+                ? ((MessageHandlingRunnable) task).getMessage() : null;
+        if (sessionStripes == null) {
+            super.execute(task);
+            return;
+        }
+        String sessionId = message != null ? SimpMessageHeaderAccessor.getSessionId(message.getHeaders()) : null;
+        Object key = sessionId != null ? sessionId : task;
+        Runnable decorated = taskDecorator != null ? taskDecorator.decorate(task) : task;
+        if (message == null
+                || SimpMessageHeaderAccessor.getMessageType(message.getHeaders()) == SimpMessageType.MESSAGE) {
+            sessionStripes.execute(key, decorated);
+        } else {
+            sessionStripes.executeEssential(key, decorated);
+        }
+    }
+
+    @Override
+    public int getQueueSize() {
+        return super.getQueueSize() + (sessionStripes != null ? sessionStripes.getQueueSize() : 0);
+    }
+
+    @Override
+    public int getPoolSize() {
+        return super.getPoolSize() + (sessionStripes != null ? sessionStripes.getPoolSize() : 0);
+    }
+
+    @Override
+    public int getActiveCount() {
+        return super.getActiveCount() + (sessionStripes != null ? sessionStripes.getActiveCount() : 0);
+    }
+
+    @Override
+    public void shutdown() {
+        if (sessionStripes != null) {
+            sessionStripes.shutdown();
+        }
+        super.shutdown();
+    }
+}
@@ -41,14 +41,16 @@ public class WebSocketAuthenticationInterceptor implements ChannelInterceptor {
 
             if (token != null) {
                 try {
-                    String userId = jwtUtil.getUserIdFromToken(token);
-                    UserDetails userDetails = userDetailsService.loadUserByUsername(userId);
-                    if (jwtUtil.validateToken(token, Long.valueOf(userId))) {
-                        UsernamePasswordAuthenticationToken authentication =
-                                new UsernamePasswordAuthenticationToken(userDetails, null, userDetails.getAuthorities());
-                        SecurityContextHolder.getContext().setAuthentication(authentication);
-                        accessor.setUser(authentication);
+                    String userId = jwtUtil.resolveUserId(token);
+                    if (userId == null) {
+                        // token无效或已过期，拒绝连接
+                        return null;
                     }
+                    UserDetails userDetails = userDetailsService.loadUserByUsername(userId);
+                    UsernamePasswordAuthenticationToken authentication =
+                            new UsernamePasswordAuthenticationToken(userDetails, null, userDetails.getAuthorities());
+                    SecurityContextHolder.getContext().setAuthentication(authentication);
+                    accessor.setUser(authentication);
                 } catch (Exception e) {
                     // JWT验证失败，拒绝连接
                     return null;
@@ -1,12 +1,23 @@
 package com.im.corey.config;
 
+import com.fasterxml.jackson.dataformat.cbor.databind.CBORMapper;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.messaging.converter.MappingJackson2MessageConverter;
+import org.springframework.messaging.converter.MessageConverter;
 import org.springframework.messaging.simp.config.ChannelRegistration;
 import org.springframework.messaging.simp.config.MessageBrokerRegistry;
+import org.springframework.messaging.simp.config.StompBrokerRelayRegistration;
+import org.springframework.util.StringUtils;
 import org.springframework.web.socket.config.annotation.EnableWebSocketMessageBroker;
 import org.springframework.web.socket.config.annotation.StompEndpointRegistry;
 import org.springframework.web.socket.config.annotation.WebSocketMessageBrokerConfigurer;
+import org.springframework.web.socket.config.annotation.WebSocketTransportRegistration;
+import org.springframework.web.socket.server.standard.ServletServerContainerFactoryBean;
+
+import java.util.List;
 
 @Configuration
 @EnableWebSocketMessageBroker
@@ -15,14 +26,106 @@ public class WebSocketConfig implements WebSocketMessageBrokerConfigurer {
     @Autowired
     private WebSocketAuthenticationInterceptor webSocketAuthenticationInterceptor;
 
+    @Autowired
+    private OutboundFrameMessageConverter outboundFrameMessageConverter;
+
+    @Autowired
+    private PayloadFormatInterceptor payloadFormatInterceptor;
+
+    @Autowired
+    private ChannelExecutorFactory channelExecutorFactory;
+
+    @Autowired
+    private RateLimitInterceptor rateLimitInterceptor;
+
+    @Value("${im.websocket.inbound-channel.core-pool-size:16}")
+    private int inboundCorePoolSize;
+
+    @Value("${im.websocket.inbound-channel.max-pool-size:16}")
+    private int inboundMaxPoolSize;
+
+    @Value("${im.websocket.inbound-channel.queue-capacity:10000}")
+    private int inboundQueueCapacity;
+
+    @Value("${im.websocket.outbound-channel.core-pool-size:16}")
+    private int outboundCorePoolSize;
+
+    @Value("${im.websocket.outbound-channel.max-pool-size:16}")
+    private int outboundMaxPoolSize;
+
+    @Value("${im.websocket.outbound-channel.queue-capacity:10000}")
+    private int outboundQueueCapacity;
+
+    @Value("${im.websocket.channel-keep-alive-seconds:60}")
+    private int channelKeepAliveSeconds;
+
+    @Value("${im.websocket.message-size-limit:65536}")
+    private int messageSizeLimit;
+
+    @Value("${im.websocket.send-time-limit-ms:10000}")
+    private int sendTimeLimitMs;
+
+    @Value("${im.websocket.send-buffer-size-limit:524288}")
+    private int sendBufferSizeLimit;
+
+    @Value("${im.websocket.max-text-message-buffer-size:65536}")
+    private int maxTextMessageBufferSize;
+
+    @Value("${im.websocket.max-binary-message-buffer-size:65536}")
+    private int maxBinaryMessageBufferSize;
+
+    @Value("${im.cluster.enabled:false}")
+    private boolean clusterEnabled;
+
+    @Value("${im.cluster.relay.host:localhost}")
+    private String relayHost;
+
+    @Value("${im.cluster.relay.port:61613}")
+    private int relayPort;
+
+    @Value("${im.cluster.relay.client-login:guest}")
+    private String relayClientLogin;
+
+    @Value("${im.cluster.relay.client-passcode:guest}")
+    private String relayClientPasscode;
+
+    @Value("${im.cluster.relay.system-login:guest}")
+    private String relaySystemLogin;
+
+    @Value("${im.cluster.relay.system-passcode:guest}")
+    private String relaySystemPasscode;
+
+    @Value("${im.cluster.relay.virtual-host:}")
+    private String relayVirtualHost;
+
     @Override
     public void configureMessageBroker(MessageBrokerRegistry config) {
-        // 启用简单代理，消息代理的前缀为/topic和/queue
-        config.enableSimpleBroker("/topic", "/queue");
+        if (clusterEnabled) {
+            // 集群模式：通过外部STOMP代理中继，所有节点共享同一个代理
+            StompBrokerRelayRegistration relay = config.enableStompBrokerRelay("/topic", "/queue")
+                    .setRelayHost(relayHost)
+                    .setRelayPort(relayPort)
+                    .setClientLogin(relayClientLogin)
+                    .setClientPasscode(relayClientPasscode)
+                    .setSystemLogin(relaySystemLogin)
+                    .setSystemPasscode(relaySystemPasscode)
+                    // 本节点无法解析的用户目的地广播给其他节点，由用户所在的节点投递
+                    .setUserDestinationBroadcast("/topic/unresolved-user-destination")
+                    // 各节点定期广播本地在线会话，用于跨节点解析用户目的地
+                    .setUserRegistryBroadcast("/topic/simp-user-registry");
+            if (StringUtils.hasText(relayVirtualHost)) {
+                relay.setVirtualHost(relayVirtualHost);
+            }
+        } else {
+            // 启用简单代理，消息代理的前缀为/topic和/queue
+            config.enableSimpleBroker("/topic", "/queue");
+        }
         // 客户端发送消息的前缀
         config.setApplicationDestinationPrefixes("/app");
         // 用户专用队列前缀
         config.setUserDestinationPrefix("/user");
+        // 出站通道为多线程，保证发往同一会话的消息按发布顺序送达
+        config.setPreservePublishOrder(true);
     }
 
     @Override
@@ -30,11 +133,57 @@ public class WebSocketConfig implements WebSocketMessageBrokerConfigurer {
         // 注册STOMP端点
         registry.addEndpoint("/ws")
                 .setAllowedOriginPatterns("*")
+                .addInterceptors(PayloadFormatInterceptor.sockJsMarker())
                 .withSockJS();
+        // 原生WebSocket端点，不经过SockJS的分帧和降级传输，支持CBOR二进制负载；
+        // 客户端请求permessage-deflate时由容器（Tomcat）在升级过程中协商压缩
+        registry.addEndpoint("/ws-native")
+                .setAllowedOriginPatterns("*");
+    }
+
+    @Override
+    public void configureWebSocketTransport(WebSocketTransportRegistration registration) {
+        registration.setMessageSizeLimit(messageSizeLimit)
+                .setSendTimeLimit(sendTimeLimitMs)
+                .setSendBufferSizeLimit(sendBufferSizeLimit);
+    }
+
+    /**
+     * 容器层的WebSocket消息缓冲区大小
+     */
+    @Bean
+    public ServletServerContainerFactoryBean webSocketContainer() {
+        ServletServerContainerFactoryBean container = new ServletServerContainerFactoryBean();
+        container.setMaxTextMessageBufferSize(maxTextMessageBufferSize);
+        container.setMaxBinaryMessageBufferSize(maxBinaryMessageBufferSize);
+        return container;
     }
 
     @Override
     public void configureClientInboundChannel(ChannelRegistration registration) {
-        registration.interceptors(webSocketAuthenticationInterceptor);
+        registration.taskExecutor(channelExecutorFactory.create("client-inbound", true,
+                inboundCorePoolSize, inboundMaxPoolSize, inboundQueueCapacity, channelKeepAliveSeconds));
+        registration.interceptors(webSocketAuthenticationInterceptor, rateLimitInterceptor,
+                payloadFormatInterceptor.inbound());
+    }
+
+    @Override
+    public void configureClientOutboundChannel(ChannelRegistration registration) {
+        registration.taskExecutor(channelExecutorFactory.create("client-outbound", false,
+                outboundCorePoolSize, outboundMaxPoolSize, outboundQueueCapacity, channelKeepAliveSeconds));
+        registration.interceptors(payloadFormatInterceptor);
+    }
+
+    @Override
+    public boolean configureMessageConverters(List<MessageConverter> messageConverters) {
+        // 出站帧优先使用专用转换器，其余负载仍由默认转换器处理
+        messageConverters.add(outboundFrameMessageConverter);
+        // 协商了CBOR的客户端以application/cbor发送的入站负载，只匹配明确声明该类型的消息
+        MappingJackson2MessageConverter cborConverter =
+                new MappingJackson2MessageConverter(PayloadFormatInterceptor.APPLICATION_CBOR);
+        cborConverter.setObjectMapper(new CBORMapper());
+        cborConverter.setStrictContentTypeMatch(true);
+        messageConverters.add(cborConverter);
+        return true;
     }
 }
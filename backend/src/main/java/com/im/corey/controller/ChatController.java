@@ -1,40 +1,41 @@
 package com.im.corey.controller;
 
+import com.im.corey.config.OutboundFrameMessageConverter;
+import com.im.corey.config.OutboundFrameSender;
+import com.im.corey.dto.EncodedChatMessage;
+import com.im.corey.dto.ErrorFrame;
+import com.im.corey.dto.HeartbeatAckFrame;
+import com.im.corey.dto.ReadReceiptFrame;
+import com.im.corey.dto.UnreadCountFrame;
 import com.im.corey.model.Message;
+import com.im.corey.service.ConversationDispatcher;
+import com.im.corey.service.DuplicateMessageException;
+import com.im.corey.service.PresenceRegistry;
 import com.im.corey.service.UserService;
 import com.im.corey.service.MessageService;
 import com.im.corey.model.User;
 
 import java.util.Objects;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
 
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.messaging.handler.annotation.MessageMapping;
 import org.springframework.messaging.handler.annotation.Payload;
-import org.springframework.messaging.simp.SimpMessagingTemplate;
 import org.springframework.messaging.simp.stomp.StompHeaderAccessor;
 import org.springframework.stereotype.Controller;
 
-import java.time.LocalDateTime;
 import java.util.Map;
-import java.util.HashMap;
-import java.util.List;
 
-import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.scheduling.annotation.EnableScheduling;
 import com.im.corey.util.WebSocketUtils;
 
 @Controller
 @EnableScheduling
 public class ChatController {
-    // 存储用户最后心跳时间的Map
-    private final ConcurrentHashMap<Long, Long> lastHeartbeatTimes = new ConcurrentHashMap<>();
-
-    // 心跳超时时间（毫秒）
-    private static final long HEARTBEAT_TIMEOUT = 120000; // 2分钟
 
     @Autowired
-    private SimpMessagingTemplate messagingTemplate;
+    private OutboundFrameSender outboundFrameSender;
 
     @Autowired
     private UserService userService;
@@ -42,6 +43,15 @@ public class ChatController {
     @Autowired
     private MessageService messageService;
 
+    @Autowired
+    private PresenceRegistry presenceRegistry;
+
+    @Autowired
+    private OutboundFrameMessageConverter outboundFrameMessageConverter;
+
+    @Autowired
+    private ConversationDispatcher conversationDispatcher;
+
     @MessageMapping("/chat.sendMessage")
     public void sendMessage(@Payload Map<String, Object> messagePayload, StompHeaderAccessor headerAccessor) {
         // 从认证信息中获取发送者ID
@@ -66,6 +76,8 @@ public class ChatController {
             if (messagePayload.get("id") != null) {
                 try {
                     clientMessageId = Long.valueOf(messagePayload.get("id").toString());
+                    // 客户端重发时使用相同的ID，服务端据此去重
+                    message.setClientMessageId(clientMessageId);
                 } catch (NumberFormatException e) {
                     System.err.println("无效的客户端消息ID格式: " + messagePayload.get("id"));
                 }
@@ -83,60 +95,101 @@ public class ChatController {
                 message.setType(Message.MessageType.TEXT);
             }
 
-            // 保存消息
-            message = messageService.saveMessage(message);
-
-            // 创建发送给接收者的消息对象
-            Map<String, Object> receiverMessage = new HashMap<>();
-            receiverMessage.put("id", message.getId());
-            receiverMessage.put("senderId", message.getSenderId());
-            receiverMessage.put("receiverId", message.getReceiverId());
-            receiverMessage.put("content", message.getContent());
-            receiverMessage.put("type", message.getType().toString());
-            receiverMessage.put("sentTime", message.getSentTime());
-            receiverMessage.put("isRead", message.getIsRead());
-
-            // 发送消息给接收者
-            messagingTemplate.convertAndSendToUser(
-                    message.getReceiverId().toString(),
-                    "/queue/messages",
-                    receiverMessage
-            );
-
-            // 创建发送给发送者的确认消息对象
-            Map<String, Object> confirmationMessage = new HashMap<>(receiverMessage);
-            // 如果有客户端消息ID，添加到确认消息中
-            if (clientMessageId != null) {
-                confirmationMessage.put("clientMessageId", clientMessageId);
-            }
-            confirmationMessage.put("status", "DELIVERED");
-
-            // 发送确认消息给发送者
-            messagingTemplate.convertAndSendToUser(
-                    message.getSenderId().toString(),
-                    "/queue/messages",
-                    confirmationMessage
-            );
-
-            // 通知接收者更新未读消息数量
-            long unreadCount = messageService.getUnreadMessageCountBetweenUsers(message.getSenderId(), message.getReceiverId());
-            sendUnreadCountUpdate(message.getReceiverId(), message.getSenderId(), unreadCount);
-
-            // 通知发送者更新未读消息数量
-            Map<String, Object> unreadCountUpdate = new HashMap<>();
-            unreadCountUpdate.put("senderId", message.getReceiverId());
-            unreadCountUpdate.put("unreadCount", 0);
-            messagingTemplate.convertAndSendToUser(
-                    message.getSenderId().toString(),
-                    "/queue/unread-count",
-                    unreadCountUpdate
-            );
+            // 同一会话内的消息按到达顺序依次提交持久化，不同会话并行处理
+            final Long confirmClientMessageId = clientMessageId;
+            conversationDispatcher.execute(senderId, message.getReceiverId(),
+                    () -> persistAndDeliver(message, confirmClientMessageId));
+        } catch (RejectedExecutionException e) {
+            // 会话处理队列已满，提示客户端稍后重试
+            sendErrorMessage("服务器繁忙，请稍后重试", "SERVER_BUSY", headerAccessor);
         } catch (Exception e) {
             // 发送错误信息给前端
             sendErrorMessage("消息发送失败: " + e.getMessage(), "SEND_ERROR", headerAccessor);
         }
     }
 
+    /**
+     * 提交到异步批量持久化队列，批次提交后再投递消息和发送确认
+     */
+    private void persistAndDeliver(Message message, Long clientMessageId) {
+        Long senderId = message.getSenderId();
+        try {
+            messageService.saveMessageAsync(message).whenComplete((saved, ex) -> {
+                if (ex != null) {
+                    Throwable cause = ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() : ex;
+                    if (cause instanceof DuplicateMessageException) {
+                        // 重发的消息已经保存并投递过，只向发送者补发原消息的确认
+                        confirmDuplicate(((DuplicateMessageException) cause).getOriginal(), clientMessageId);
+                    } else {
+                        sendErrorMessage("消息发送失败: " + cause.getMessage(), "SEND_ERROR", senderId);
+                    }
+                } else {
+                    deliverOnConversation(saved, clientMessageId);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // 持久化队列已满，提示客户端稍后重试
+            sendErrorMessage("服务器繁忙，请稍后重试", "SERVER_BUSY", senderId);
+        } catch (Exception e) {
+            sendErrorMessage("消息发送失败: " + e.getMessage(), "SEND_ERROR", senderId);
+        }
+    }
+
+    /**
+     * 持久化回调运行在唯一的批量写入线程上，投递转回会话分段执行，不占用写入线程
+     */
+    private void deliverOnConversation(Message saved, Long clientMessageId) {
+        try {
+            conversationDispatcher.executeEssential(saved.getSenderId(), saved.getReceiverId(), () -> {
+                try {
+                    deliverMessage(saved, clientMessageId);
+                } catch (Exception e) {
+                    System.err.println("消息投递失败，消息ID: " + saved.getId() + "，原因: " + e.getMessage());
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // 消息已保存，接收者可通过增量同步拉取，发送者重发时按客户端消息ID补发确认
+            System.err.println("会话处理队列已满，消息ID: " + saved.getId() + " 未能实时投递");
+        }
+    }
+
+    /**
+     * 消息持久化完成后，投递给接收者并向发送者发送确认
+     */
+    private void deliverMessage(Message message, Long clientMessageId) {
+        // 消息只编码一次，接收者投递和发送者确认共用同一份字节
+        EncodedChatMessage encoded = outboundFrameMessageConverter.encode(message);
+
+        // 发送消息给接收者
+        outboundFrameSender.sendToUser(
+                message.getReceiverId().toString(),
+                "/queue/messages",
+                encoded
+        );
+
+        // 发送确认消息给发送者，附带客户端消息ID和送达状态
+        outboundFrameSender.sendToUser(
+                message.getSenderId().toString(),
+                "/queue/messages",
+                encoded.deliveredConfirmation(clientMessageId)
+        );
+
+        // 通知接收者更新未读消息数量
+        long unreadCount = messageService.getUnreadMessageCountBetweenUsers(message.getSenderId(), message.getReceiverId());
+        sendUnreadCountUpdate(message.getReceiverId(), message.getSenderId(), unreadCount);
+
+        // 通知发送者更新未读消息数量
+        sendUnreadCountUpdate(message.getSenderId(), message.getReceiverId(), 0L);
+    }
+
+    private void confirmDuplicate(Message original, Long clientMessageId) {
+        outboundFrameSender.sendToUser(
+                original.getSenderId().toString(),
+                "/queue/messages",
+                outboundFrameMessageConverter.encode(original).deliveredConfirmation(clientMessageId)
+        );
+    }
+
     /**
      * 处理客户端心跳请求
      */
@@ -146,65 +199,19 @@ public class ChatController {
         Long userId = WebSocketUtils.extractUserId(headerAccessor);
 
         if (userId != null) {
-            // 更新用户的最后心跳时间
-            lastHeartbeatTimes.put(userId, System.currentTimeMillis());
+            // 只在内存中更新用户的最后心跳时间，若会话此前已超时则重新上线
+            presenceRegistry.touch(userId, headerAccessor.getSessionId());
 
             // 发送心跳响应
-            Map<String, Object> response = new HashMap<>();
-            response.put("type", "HEARTBEAT_ACK");
-            response.put("timestamp", System.currentTimeMillis());
-
             // 使用专门的心跳队列
-            messagingTemplate.convertAndSendToUser(
+            outboundFrameSender.sendToUser(
                     userId.toString(),
                     "/queue/heartbeat",
-                    response
+                    new HeartbeatAckFrame(System.currentTimeMillis())
             );
-
-            // 静默更新用户在线状态，但不发送通知
-            // 这样可以确保用户在心跳期间保持在线状态
-            userService.setUserOnline(userId, true);
-        }
-    }
-
-    /**
-     * 检查心跳超时的用户
-     * 每分钟执行一次
-     */
-    @Scheduled(fixedRate = 60000)
-    public void checkHeartbeats() {
-        long currentTime = System.currentTimeMillis();
-
-        // 检查每个用户的最后心跳时间
-        lastHeartbeatTimes.forEach((userId, lastHeartbeat) -> {
-            if (currentTime - lastHeartbeat > HEARTBEAT_TIMEOUT) {
-                // 用户心跳超时，标记为离线
-                userService.setUserOnline(userId, false);
-                // 从心跳Map中移除
-                lastHeartbeatTimes.remove(userId);
-                // 通知其他用户状态变更
-                notifyOnlineUsers();
-            }
-        });
-    }
-    
-    /**
-     * 处理用户断开连接
-     * 这个方法会在WebSocket会话关闭时被调用
-     */
-    public void handleDisconnect(Long userId) {
-        if (userId != null) {
-            // 从心跳Map中移除用户
-            lastHeartbeatTimes.remove(userId);
-            // 标记用户为离线
-            userService.setUserOnline(userId, false);
-            // 通知其他用户状态变更
-            notifyOnlineUsers();
-            System.out.println("用户 " + userId + " 已断开连接并标记为离线");
         }
     }
 
-
     @MessageMapping("/chat.addUser")
     public void addUser(StompHeaderAccessor headerAccessor) {
         // 仅从认证对象中提取用户ID，确保用户已通过认证
@@ -216,17 +223,11 @@ public class ChatController {
             return;
         }
 
-        // 记录用户的心跳时间
-        lastHeartbeatTimes.put(userId, System.currentTimeMillis());
-
         // 将经过认证的用户ID存储到会话中
         Objects.requireNonNull(headerAccessor.getSessionAttributes()).put("userId", userId);
 
-        // 更新用户在线状态
-        userService.setUserOnline(userId, true);
-        
-        // 通知所有用户在线状态变更
-        notifyOnlineUsers();
+        // 登记在线会话，用户由离线变为在线时会通过状态增量广播通知所有用户
+        presenceRegistry.connect(userId, headerAccessor.getSessionId());
     }
 
     /**
@@ -242,10 +243,25 @@ public class ChatController {
             return;
         }
 
+        Long senderId;
         try {
             // 获取发送者ID
-            Long senderId = Long.valueOf(payload.get("senderId").toString());
+            senderId = Long.valueOf(payload.get("senderId").toString());
+        } catch (Exception e) {
+            sendErrorMessage("标记消息为已读失败: " + e.getMessage(), "MARK_READ_ERROR", headerAccessor);
+            return;
+        }
+
+        try {
+            // 与该会话中的消息发送按顺序执行
+            conversationDispatcher.execute(currentUserId, senderId, () -> markConversationAsRead(senderId, currentUserId));
+        } catch (RejectedExecutionException e) {
+            sendErrorMessage("服务器繁忙，请稍后重试", "SERVER_BUSY", headerAccessor);
+        }
+    }
 
+    private void markConversationAsRead(Long senderId, Long currentUserId) {
+        try {
             // 将该发送者发送给当前用户的所有未读消息标记为已读
             messageService.markAllMessagesAsRead(senderId, currentUserId);
 
@@ -259,15 +275,10 @@ public class ChatController {
             User sender = userService.getUserById(senderId);
             if (sender != null && Boolean.TRUE.equals(sender.getShowReadStatus())) {
                 // 向发送者发送已读回执
-                Map<String, Object> readReceipt = new HashMap<>();
-                readReceipt.put("type", "READ_RECEIPT");
-                readReceipt.put("readerId", currentUserId);
-                readReceipt.put("timestamp", System.currentTimeMillis());
-
-                messagingTemplate.convertAndSendToUser(
+                outboundFrameSender.sendToUser(
                         senderId.toString(),
                         "/queue/read-receipts",
-                        readReceipt
+                        new ReadReceiptFrame(currentUserId, System.currentTimeMillis())
                 );
 
                 System.out.println("用户 " + currentUserId + " 已将来自用户 " + senderId + " 的所有消息标记为已读，并发送已读回执");
@@ -276,43 +287,32 @@ public class ChatController {
             }
         } catch (Exception e) {
             // 发送错误信息给前端
-            sendErrorMessage("标记消息为已读失败: " + e.getMessage(), "MARK_READ_ERROR", headerAccessor);
+            sendErrorMessage("标记消息为已读失败: " + e.getMessage(), "MARK_READ_ERROR", currentUserId);
         }
     }
 
     public void sendUnreadCountUpdate(Long userId, Long senderId, Long unreadCount) {
         // 通知用户更新未读消息数量
-        Map<String, Object> unreadCountUpdate = new HashMap<>();
-        unreadCountUpdate.put("senderId", senderId);
-        unreadCountUpdate.put("unreadCount", unreadCount);
-        messagingTemplate.convertAndSendToUser(
+        outboundFrameSender.sendToUser(
                 userId.toString(),
                 "/queue/unread-count",
-                unreadCountUpdate
+                new UnreadCountFrame(senderId, unreadCount)
         );
     }
 
     // 发送错误信息给客户端
     private void sendErrorMessage(String message, String errorCode, StompHeaderAccessor headerAccessor) {
-        Map<String, Object> errorResponse = new HashMap<>();
-        errorResponse.put("type", "ERROR");
-        errorResponse.put("message", message);
-        errorResponse.put("errorCode", errorCode);
-
         // 获取用户ID
-        Long userId = WebSocketUtils.extractUserId(headerAccessor);
+        sendErrorMessage(message, errorCode, WebSocketUtils.extractUserId(headerAccessor));
+    }
+
+    private void sendErrorMessage(String message, String errorCode, Long userId) {
         // 即使userId为空，也尝试发送错误信息
         if (userId != null) {
-            messagingTemplate.convertAndSendToUser(userId.toString(), "/queue/errors", errorResponse);
+            outboundFrameSender.sendToUser(userId.toString(), "/queue/errors", new ErrorFrame(message, errorCode));
         } else {
             // 如果userId为空，记录错误日志
             System.err.println("无法发送错误信息给用户，因为userId为空。错误信息: " + message);
         }
     }
-
-    public void notifyOnlineUsers() {
-        // 通知所有用户在线状态
-        List<User> onlineUsers = userService.getOnlineUsers();
-        messagingTemplate.convertAndSend("/topic/online-users", onlineUsers);
-    }
 }
\ No newline at end of file
@@ -0,0 +1,31 @@
+package com.im.corey.controller;
+
+import com.im.corey.dto.ConversationPageDTO;
+import com.im.corey.service.ConversationService;
+import com.im.corey.util.SecurityUtil;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+
+@RestController
+@RequestMapping("/api/conversations")
+public class ConversationController {
+
+    @Autowired
+    private ConversationService conversationService;
+
+    /**
+     * 当前用户的最近会话列表，按最近活动倒序
+     * 每个会话带最新消息预览和未读数，hasMore为true时以nextCursor作为before继续翻页
+     */
+    @GetMapping
+    public ResponseEntity<ConversationPageDTO> getConversations(
+            @RequestParam(required = false) Long before,
+            @RequestParam(required = false) Integer size) {
+        Long currentUserId = SecurityUtil.getCurrentUserId();
+        if (currentUserId == null) {
+            return ResponseEntity.status(401).build(); // 未授权
+        }
+        return ResponseEntity.ok(conversationService.getConversations(currentUserId, before, size));
+    }
+}
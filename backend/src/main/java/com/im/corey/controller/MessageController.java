@@ -1,12 +1,16 @@
 package com.im.corey.controller;
 
+import com.im.corey.dto.MessagePageDTO;
 import com.im.corey.model.Message;
 import com.im.corey.service.MessageService;
+import com.im.corey.util.SecurityUtil;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 
 import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
 
 @RestController
 @RequestMapping("/api/messages")
@@ -17,8 +21,13 @@ public class MessageController {
 
     @PostMapping
     public ResponseEntity<Message> sendMessage(@RequestBody Message message) {
-        Message savedMessage = messageService.saveMessage(message);
-        return ResponseEntity.ok(savedMessage);
+        try {
+            Message savedMessage = messageService.saveMessage(message);
+            return ResponseEntity.ok(savedMessage);
+        } catch (RejectedExecutionException e) {
+            // 持久化队列已满，数据库写入繁忙
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).build();
+        }
     }
 
     @GetMapping("/between/{senderId}/{receiverId}")
@@ -29,6 +38,59 @@ public class MessageController {
         return ResponseEntity.ok(messages);
     }
 
+    /**
+     * 按游标分页获取两个用户之间的消息
+     * 不带before/after时返回最新一页，before向前翻历史，after拉取更新的消息
+     */
+    @GetMapping("/between/{senderId}/{receiverId}/page")
+    public ResponseEntity<MessagePageDTO> getMessagePageBetweenUsers(
+            @PathVariable Long senderId,
+            @PathVariable Long receiverId,
+            @RequestParam(required = false) Long before,
+            @RequestParam(required = false) Long after,
+            @RequestParam(required = false) Integer size) {
+        if (before != null && after != null) {
+            return ResponseEntity.badRequest().build();
+        }
+        MessagePageDTO page = messageService.getMessagesBetweenUsers(senderId, receiverId, before, after, size);
+        return ResponseEntity.ok(page);
+    }
+
+    /**
+     * 重连后的增量同步，返回当前用户在所有会话中ID大于after的消息
+     * hasMore为true时以nextCursor作为after继续请求，直到拉取完毕
+     */
+    @GetMapping("/sync")
+    public ResponseEntity<MessagePageDTO> syncMessages(
+            @RequestParam(required = false) Long after,
+            @RequestParam(required = false) Integer size) {
+        Long currentUserId = SecurityUtil.getCurrentUserId();
+        if (currentUserId == null) {
+            return ResponseEntity.status(401).build(); // 未授权
+        }
+        return ResponseEntity.ok(messageService.syncMessages(currentUserId, after, size));
+    }
+
+    /**
+     * 在当前用户参与的会话中搜索消息内容，结果按ID倒序排列
+     * hasMore为true时以nextCursor作为before继续请求下一页
+     */
+    @GetMapping("/search")
+    public ResponseEntity<MessagePageDTO> searchMessages(
+            @RequestParam String q,
+            @RequestParam(required = false) Long peerId,
+            @RequestParam(required = false) Long before,
+            @RequestParam(required = false) Integer size) {
+        Long currentUserId = SecurityUtil.getCurrentUserId();
+        if (currentUserId == null) {
+            return ResponseEntity.status(401).build(); // 未授权
+        }
+        if (q.trim().isEmpty()) {
+            return ResponseEntity.badRequest().build();
+        }
+        return ResponseEntity.ok(messageService.searchMessages(currentUserId, q, peerId, before, size));
+    }
+
     @GetMapping("/unread/{userId}")
     public ResponseEntity<List<Message>> getUnreadMessages(@PathVariable Long userId) {
         List<Message> unreadMessages = messageService.getUnreadMessages(userId);
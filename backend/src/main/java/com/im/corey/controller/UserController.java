@@ -2,9 +2,14 @@ package com.im.corey.controller;
 
 import com.im.corey.dto.*;
 import com.im.corey.model.User;
+import com.im.corey.service.PresenceFeedService;
 import com.im.corey.service.UserService;
 import com.im.corey.util.SecurityUtil;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Pageable;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
@@ -20,19 +25,43 @@ public class UserController {
     @Autowired
     private UserService userService;
 
+    @Autowired
+    private PresenceFeedService presenceFeedService;
+
+    @Value("${im.user-list.default-size:100}")
+    private int userListDefaultSize;
+
+    @Value("${im.user-list.max-size:500}")
+    private int userListMaxSize;
+
     @GetMapping
     public ResponseEntity<List<User>> getAllUsers() {
         return ResponseEntity.ok(userService.getAllUsers());
     }
 
+    /**
+     * 获取用户列表及未读消息数，总数通过X-Total-Count响应头返回
+     * 不带page和size时返回全部用户，兼容未分页的客户端；带任一参数时按页返回
+     */
     @GetMapping("/with-unread-count")
-    public ResponseEntity<List<UserWithUnreadCountDTO>> getAllUsersWithUnreadCount() {
+    public ResponseEntity<List<UserWithUnreadCountDTO>> getAllUsersWithUnreadCount(
+            @RequestParam(required = false) Integer page,
+            @RequestParam(required = false) Integer size,
+            @RequestParam(defaultValue = "false") boolean unreadOnly) {
         Long currentUserId = SecurityUtil.getCurrentUserId();
         if (currentUserId == null) {
             return ResponseEntity.status(401).build(); // 未授权
         }
-        List<UserWithUnreadCountDTO> usersWithUnreadCount = userService.getAllUsersWithUnreadCount(currentUserId);
-        return ResponseEntity.ok(usersWithUnreadCount);
+        Pageable pageable = Pageable.unpaged();
+        if (page != null || size != null) {
+            int pageSize = size == null || size <= 0 ? userListDefaultSize : Math.min(size, userListMaxSize);
+            pageable = PageRequest.of(page != null ? Math.max(page, 0) : 0, pageSize);
+        }
+        Page<UserWithUnreadCountDTO> usersWithUnreadCount =
+                userService.getAllUsersWithUnreadCount(currentUserId, pageable, unreadOnly);
+        return ResponseEntity.ok()
+                .header("X-Total-Count", String.valueOf(usersWithUnreadCount.getTotalElements()))
+                .body(usersWithUnreadCount.getContent());
     }
 
     @GetMapping("/{id}")
@@ -57,6 +86,14 @@ public class UserController {
         return ResponseEntity.ok(userService.getOnlineUsers());
     }
 
+    /**
+     * 在线状态快照，客户端在首次订阅或发现增量版本不连续时调用
+     */
+    @GetMapping("/online/snapshot")
+    public ResponseEntity<PresenceSnapshotDTO> getOnlineSnapshot() {
+        return ResponseEntity.ok(presenceFeedService.snapshot());
+    }
+
     @PutMapping("/{id}/offline")
     public ResponseEntity<Void> setUserOffline(@PathVariable Long id) {
         // 验证当前用户是否有权限设置该用户离线
@@ -65,7 +102,7 @@ public class UserController {
             return ResponseEntity.status(HttpStatus.FORBIDDEN).build();
         }
         
-        userService.setUserOnline(id, false);
+        userService.setUserOffline(id);
         return ResponseEntity.ok().build();
     }
 
@@ -0,0 +1,30 @@
+package com.im.corey.dto;
+
+import com.im.corey.model.Message;
+import lombok.Getter;
+
+import java.time.LocalDateTime;
+
+/**
+ * 推送到/queue/messages的聊天消息帧
+ */
+@Getter
+public class ChatMessageFrame implements OutboundFrame {
+    private final Long id;
+    private final Long senderId;
+    private final Long receiverId;
+    private final String content;
+    private final String type;
+    private final LocalDateTime sentTime;
+    private final Boolean isRead;
+
+    public ChatMessageFrame(Message message) {
+        this.id = message.getId();
+        this.senderId = message.getSenderId();
+        this.receiverId = message.getReceiverId();
+        this.content = message.getContent();
+        this.type = message.getType().toString();
+        this.sentTime = message.getSentTime();
+        this.isRead = message.getIsRead();
+    }
+}
@@ -0,0 +1,19 @@
+package com.im.corey.dto;
+
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * 集群模式下节点广播的本节点已提交水位：该节点分配的、不超过watermark的消息ID都已提交或已放弃
+ */
+@Data
+@NoArgsConstructor
+public class CommitWatermarkReport {
+    private int nodeId;
+    private long watermark;
+
+    public CommitWatermarkReport(int nodeId, long watermark) {
+        this.nodeId = nodeId;
+        this.watermark = watermark;
+    }
+}
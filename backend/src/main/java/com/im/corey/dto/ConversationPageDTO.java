@@ -0,0 +1,33 @@
+package com.im.corey.dto;
+
+import com.im.corey.model.Conversation;
+import lombok.Data;
+
+import java.util.List;
+
+/**
+ * 基于游标分页的最近会话列表
+ */
+@Data
+public class ConversationPageDTO {
+    /**
+     * 按最近活动倒序排列的会话
+     */
+    private List<Conversation> conversations;
+
+    /**
+     * 是否还有更早的会话
+     */
+    private boolean hasMore;
+
+    /**
+     * 继续翻页时使用的游标，即本页最后一个会话的最新消息ID
+     */
+    private Long nextCursor;
+
+    public ConversationPageDTO(List<Conversation> conversations, boolean hasMore, Long nextCursor) {
+        this.conversations = conversations;
+        this.hasMore = hasMore;
+        this.nextCursor = nextCursor;
+    }
+}
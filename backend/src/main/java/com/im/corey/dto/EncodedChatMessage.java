@@ -0,0 +1,63 @@
+package com.im.corey.dto;
+
+import lombok.Getter;
+
+/**
+ * 按需编码的聊天消息帧
+ * 同一条消息投递给接收者和发送确认时共用同一份编码结果，JSON和CBOR各自只在首次需要时编码一次，
+ * 确认帧只在编码结果末尾追加clientMessageId和status
+ */
+@Getter
+public class EncodedChatMessage implements OutboundFrame {
+
+    public static final String STATUS_DELIVERED = "DELIVERED";
+
+    private final ChatMessageFrame frame;
+
+    private final Long clientMessageId;
+
+    /**
+     * 为null时表示普通投递帧，否则为发送确认帧
+     */
+    private final String status;
+
+    private final Bodies bodies;
+
+    public EncodedChatMessage(ChatMessageFrame frame) {
+        this(frame, null, null, new Bodies());
+    }
+
+    private EncodedChatMessage(ChatMessageFrame frame, Long clientMessageId, String status, Bodies bodies) {
+        this.frame = frame;
+        this.clientMessageId = clientMessageId;
+        this.status = status;
+        this.bodies = bodies;
+    }
+
+    /**
+     * 基于同一份编码结果创建发给发送者的送达确认帧
+     */
+    public EncodedChatMessage deliveredConfirmation(Long clientMessageId) {
+        return new EncodedChatMessage(frame, clientMessageId, STATUS_DELIVERED, bodies);
+    }
+
+    /**
+     * ChatMessageFrame各格式的编码结果，由OutboundFrameMessageConverter写入，调用方不得修改数组内容
+     */
+    public static final class Bodies {
+        private volatile byte[] json;
+        private volatile byte[] cbor;
+
+        public byte[] get(boolean cbor) {
+            return cbor ? this.cbor : json;
+        }
+
+        public void set(boolean cbor, byte[] body) {
+            if (cbor) {
+                this.cbor = body;
+            } else {
+                json = body;
+            }
+        }
+    }
+}
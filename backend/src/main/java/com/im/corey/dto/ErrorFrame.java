@@ -0,0 +1,18 @@
+package com.im.corey.dto;
+
+import lombok.Getter;
+
+/**
+ * 推送到/queue/errors的错误帧
+ */
+@Getter
+public class ErrorFrame implements OutboundFrame {
+    private final String type = "ERROR";
+    private final String message;
+    private final String errorCode;
+
+    public ErrorFrame(String message, String errorCode) {
+        this.message = message;
+        this.errorCode = errorCode;
+    }
+}
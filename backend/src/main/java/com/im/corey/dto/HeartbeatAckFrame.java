@@ -0,0 +1,16 @@
+package com.im.corey.dto;
+
+import lombok.Getter;
+
+/**
+ * 推送到/queue/heartbeat的心跳响应帧
+ */
+@Getter
+public class HeartbeatAckFrame implements OutboundFrame {
+    private final String type = "HEARTBEAT_ACK";
+    private final long timestamp;
+
+    public HeartbeatAckFrame(long timestamp) {
+        this.timestamp = timestamp;
+    }
+}
@@ -0,0 +1,33 @@
+package com.im.corey.dto;
+
+import com.im.corey.model.Message;
+import lombok.Data;
+
+import java.util.List;
+
+/**
+ * 基于游标分页的消息列表
+ */
+@Data
+public class MessagePageDTO {
+    /**
+     * 按消息ID升序排列的消息（搜索结果为倒序）
+     */
+    private List<Message> messages;
+
+    /**
+     * 沿当前方向是否还有更多消息
+     */
+    private boolean hasMore;
+
+    /**
+     * 沿当前方向继续翻页时使用的游标（向前翻页为本页最早的消息ID，向后翻页为本页最新的消息ID，搜索为本页最早的消息ID）
+     */
+    private Long nextCursor;
+
+    public MessagePageDTO(List<Message> messages, boolean hasMore, Long nextCursor) {
+        this.messages = messages;
+        this.hasMore = hasMore;
+        this.nextCursor = nextCursor;
+    }
+}
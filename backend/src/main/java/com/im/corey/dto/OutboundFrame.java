@@ -0,0 +1,8 @@
+package com.im.corey.dto;
+
+/**
+ * 服务端通过STOMP推送给客户端的帧
+ * 实现该接口的类型由OutboundFrameMessageConverter使用预先构建的序列化器写出
+ */
+public interface OutboundFrame {
+}
@@ -0,0 +1,31 @@
+package com.im.corey.dto;
+
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.Collection;
+
+/**
+ * 在线状态增量
+ * 通过/topic/online-users广播，version单调递增，客户端发现版本不连续时应通过快照接口重新同步
+ */
+@Data
+@NoArgsConstructor
+public class PresenceDeltaDTO implements OutboundFrame {
+    private String type = "PRESENCE_DELTA";
+    private long version;
+    /**
+     * 本次变为在线的用户ID
+     */
+    private Collection<Long> online;
+    /**
+     * 本次变为离线的用户ID
+     */
+    private Collection<Long> offline;
+
+    public PresenceDeltaDTO(long version, Collection<Long> online, Collection<Long> offline) {
+        this.version = version;
+        this.online = online;
+        this.offline = offline;
+    }
+}
@@ -0,0 +1,27 @@
+package com.im.corey.dto;
+
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.Collection;
+import java.util.Collections;
+
+/**
+ * 集群模式下节点上报给汇总节点的本地在线状态
+ * full为true时online是该节点当前全部在线用户，否则online和offline是上次上报之后的变化
+ */
+@Data
+@NoArgsConstructor
+public class PresenceNodeReport {
+    private int nodeId;
+    private boolean full;
+    private Collection<Long> online = Collections.emptyList();
+    private Collection<Long> offline = Collections.emptyList();
+
+    public PresenceNodeReport(int nodeId, boolean full, Collection<Long> online, Collection<Long> offline) {
+        this.nodeId = nodeId;
+        this.full = full;
+        this.online = online;
+        this.offline = offline;
+    }
+}
@@ -0,0 +1,21 @@
+package com.im.corey.dto;
+
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.Collection;
+
+/**
+ * 在线状态快照，version与增量广播的版本号对应
+ */
+@Data
+@NoArgsConstructor
+public class PresenceSnapshotDTO {
+    private long version;
+    private Collection<Long> onlineUserIds;
+
+    public PresenceSnapshotDTO(long version, Collection<Long> onlineUserIds) {
+        this.version = version;
+        this.onlineUserIds = onlineUserIds;
+    }
+}
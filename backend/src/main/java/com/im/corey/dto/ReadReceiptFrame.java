@@ -0,0 +1,18 @@
+package com.im.corey.dto;
+
+import lombok.Getter;
+
+/**
+ * 推送到/queue/read-receipts的已读回执帧
+ */
+@Getter
+public class ReadReceiptFrame implements OutboundFrame {
+    private final String type = "READ_RECEIPT";
+    private final Long readerId;
+    private final long timestamp;
+
+    public ReadReceiptFrame(Long readerId, long timestamp) {
+        this.readerId = readerId;
+        this.timestamp = timestamp;
+    }
+}
@@ -0,0 +1,20 @@
+package com.im.corey.dto;
+
+import lombok.Getter;
+
+/**
+ * 推送到/queue/unread-count的未读数更新帧
+ */
+@Getter
+public class UnreadCountFrame implements OutboundFrame {
+    /**
+     * 会话对方的用户ID
+     */
+    private final Long senderId;
+    private final long unreadCount;
+
+    public UnreadCountFrame(Long senderId, long unreadCount) {
+        this.senderId = senderId;
+        this.unreadCount = unreadCount;
+    }
+}
@@ -0,0 +1,22 @@
+package com.im.corey.dto;
+
+import lombok.Data;
+
+import java.time.LocalDateTime;
+
+/**
+ * 用户列表中展示的用户信息，不包含密码等敏感字段
+ */
+@Data
+public class UserProfileDTO {
+    private Long id;
+    private String username;
+    private String email;
+    private String nickname;
+    private String avatar;
+    private Boolean isOnline;
+    private Boolean showReadStatus;
+    private LocalDateTime lastLoginTime;
+    private LocalDateTime createdTime;
+    private LocalDateTime updatedTime;
+}
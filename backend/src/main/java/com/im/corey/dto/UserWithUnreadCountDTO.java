@@ -1,15 +1,14 @@
 package com.im.corey.dto;
 
-import com.im.corey.model.User;
 import lombok.Data;
 
 @Data
 public class UserWithUnreadCountDTO {
-    private User user;
+    private UserProfileDTO user;
     private Long unreadCount;
     
-    public UserWithUnreadCountDTO(User user, Long unreadCount) {
+    public UserWithUnreadCountDTO(UserProfileDTO user, Long unreadCount) {
         this.user = user;
         this.unreadCount = unreadCount;
     }
-}
\ No newline at end of file
+}
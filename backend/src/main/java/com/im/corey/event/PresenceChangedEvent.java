@@ -0,0 +1,28 @@
+package com.im.corey.event;
+
+import lombok.Getter;
+
+import java.util.Collection;
+import java.util.Collections;
+
+/**
+ * 用户在线状态发生真实转换（离线→在线或在线→离线）时发布的事件
+ */
+@Getter
+public class PresenceChangedEvent {
+
+    /**
+     * 状态发生转换的用户ID
+     */
+    private final Collection<Long> userIds;
+
+    /**
+     * 转换后的状态，true表示上线
+     */
+    private final boolean online;
+
+    public PresenceChangedEvent(Collection<Long> userIds, boolean online) {
+        this.userIds = Collections.unmodifiableCollection(userIds);
+        this.online = online;
+    }
+}
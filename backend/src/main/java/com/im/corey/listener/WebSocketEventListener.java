@@ -1,10 +1,9 @@
 package com.im.corey.listener;
 
-import com.im.corey.service.UserService;
+import com.im.corey.service.PresenceRegistry;
 import com.im.corey.util.WebSocketUtils;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.event.EventListener;
-import org.springframework.messaging.simp.SimpMessagingTemplate;
 import org.springframework.messaging.simp.stomp.StompHeaderAccessor;
 import org.springframework.stereotype.Component;
 import org.springframework.web.socket.messaging.SessionConnectedEvent;
@@ -14,10 +13,7 @@ import org.springframework.web.socket.messaging.SessionDisconnectEvent;
 public class WebSocketEventListener {
 
     @Autowired
-    private UserService userService;
-
-    @Autowired
-    private SimpMessagingTemplate messagingTemplate;
+    private PresenceRegistry presenceRegistry;
 
     @EventListener
     public void handleWebSocketConnectListener(SessionConnectedEvent event) {
@@ -32,13 +28,10 @@ public class WebSocketEventListener {
         Long userId = WebSocketUtils.extractUserId(headerAccessor);
 
         if (userId != null) {
-            // 将用户标记为离线
-            userService.setUserOnline(userId, false);
-
-            // 通知其他用户状态变更
-            messagingTemplate.convertAndSend("/topic/online-users", userService.getOnlineUsers());
-
-            System.out.println("用户 " + userId + " 已断开连接并标记为离线");
+            // 移除该会话，用户的最后一个会话断开时才标记为离线，并由状态增量广播通知其他用户
+            if (presenceRegistry.disconnect(userId, event.getSessionId())) {
+                System.out.println("用户 " + userId + " 已断开连接并标记为离线");
+            }
         }
     }
 }
\ No newline at end of file
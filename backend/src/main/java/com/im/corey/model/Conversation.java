@@ -0,0 +1,81 @@
+package com.im.corey.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import javax.persistence.*;
+import java.io.Serializable;
+import java.time.LocalDateTime;
+
+/**
+ * 会话摘要，每个用户与每个聊天对象各一行
+ * 随消息写入和标记已读在同一事务中更新，最近会话列表直接按该表分页，无需扫描消息表
+ */
+@Data
+@Entity
+@Table(name = "conversations", indexes = {
+        @Index(name = "idx_owner_last_message", columnList = "owner_id, last_message_id")
+})
+@IdClass(Conversation.ConversationId.class)
+public class Conversation {
+
+    /**
+     * 会话所属用户ID
+     */
+    @Id
+    @Column(name = "owner_id")
+    private Long ownerId;
+
+    /**
+     * 会话对方ID
+     */
+    @Id
+    @Column(name = "peer_id")
+    private Long peerId;
+
+    /**
+     * 会话中最新一条消息的ID，消息ID按时间递增，同时作为最近活动排序的依据
+     */
+    @Column(name = "last_message_id", nullable = false)
+    private Long lastMessageId;
+
+    /**
+     * 最新一条消息的发送者ID
+     */
+    @Column(name = "last_sender_id", nullable = false)
+    private Long lastSenderId;
+
+    /**
+     * 最新一条消息的内容预览
+     */
+    @Column(name = "last_message_preview", length = 100)
+    private String lastMessagePreview;
+
+    /**
+     * 最新一条消息的类型
+     */
+    @Enumerated(EnumType.STRING)
+    @Column(name = "last_message_type", length = 20)
+    private Message.MessageType lastMessageType;
+
+    /**
+     * 最近活动时间，即最新一条消息的发送时间
+     */
+    @Column(name = "last_activity_time")
+    private LocalDateTime lastActivityTime;
+
+    /**
+     * 对方发来的未读消息数
+     */
+    @Column(name = "unread_count", nullable = false)
+    private Integer unreadCount = 0;
+
+    @Data
+    @NoArgsConstructor
+    @AllArgsConstructor
+    public static class ConversationId implements Serializable {
+        private Long ownerId;
+        private Long peerId;
+    }
+}
@@ -11,15 +11,22 @@ import java.time.LocalDateTime;
 @Data
 @Entity
 @TableName("messages")
-@Table(name = "messages")
+@Table(name = "messages", indexes = {
+        @Index(name = "idx_sender_receiver_id", columnList = "sender_id, receiver_id, id"),
+        @Index(name = "idx_receiver_unread_sender", columnList = "receiver_id, is_read, sender_id, id"),
+        @Index(name = "idx_receiver_id", columnList = "receiver_id, id"),
+        @Index(name = "idx_sender_id", columnList = "sender_id, id"),
+        @Index(name = "idx_sent_time", columnList = "sent_time")
+}, uniqueConstraints = {
+        @UniqueConstraint(name = "uk_sender_client_message", columnNames = {"sender_id", "client_message_id"})
+})
 public class Message {
     
     /**
-     * 消息ID
+     * 消息ID，由SnowflakeIdGenerator在保存前分配
      */
     @Id
-    @TableId(type = IdType.AUTO)
-    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    @TableId(type = IdType.INPUT)
     private Long id;
     
     /**
@@ -44,6 +51,7 @@ public class Message {
      * 消息类型
      */
     @Enumerated(EnumType.STRING)
+    @Column(length = 20)
     private MessageType type = MessageType.TEXT;
     
     /**
@@ -57,6 +65,12 @@ public class Message {
      */
     @Column(name = "sent_time")
     private LocalDateTime sentTime;
+
+    /**
+     * 客户端生成的消息ID，同一发送者内唯一，用于识别重发的消息
+     */
+    @Column(name = "client_message_id")
+    private Long clientMessageId;
     
     public enum MessageType {
         TEXT, IMAGE, FILE, VOICE, VIDEO
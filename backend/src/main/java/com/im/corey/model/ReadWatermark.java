@@ -0,0 +1,54 @@
+package com.im.corey.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import javax.persistence.*;
+import java.io.Serializable;
+import java.time.LocalDateTime;
+
+/**
+ * 会话已读水位
+ * 记录读者在与某个用户的会话中已读到的最后一条消息ID，ID不大于水位的消息均视为已读
+ */
+@Data
+@Entity
+@Table(name = "read_watermarks")
+@IdClass(ReadWatermark.ReadWatermarkId.class)
+public class ReadWatermark {
+
+    /**
+     * 读者ID（消息接收者）
+     */
+    @Id
+    @Column(name = "reader_id")
+    private Long readerId;
+
+    /**
+     * 会话对方ID（消息发送者）
+     */
+    @Id
+    @Column(name = "peer_id")
+    private Long peerId;
+
+    /**
+     * 已读到的最后一条消息ID
+     */
+    @Column(name = "last_read_message_id", nullable = false)
+    private Long lastReadMessageId;
+
+    /**
+     * 更新时间
+     */
+    @Column(name = "updated_time")
+    private LocalDateTime updatedTime;
+
+    @Data
+    @NoArgsConstructor
+    @AllArgsConstructor
+    public static class ReadWatermarkId implements Serializable {
+        private Long readerId;
+        private Long peerId;
+    }
+}
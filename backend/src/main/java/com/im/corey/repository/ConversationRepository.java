@@ -0,0 +1,42 @@
+package com.im.corey.repository;
+
+import com.im.corey.model.Conversation;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+
+import java.util.List;
+
+@Repository
+public interface ConversationRepository extends JpaRepository<Conversation, Conversation.ConversationId> {
+
+    /**
+     * 用户最新消息ID小于游标的会话，按最近活动倒序，由(owner_id, last_message_id)索引直接定位
+     */
+    @Query("SELECT c FROM Conversation c WHERE c.ownerId = :ownerId AND c.lastMessageId < :beforeId ORDER BY c.lastMessageId DESC")
+    List<Conversation> findByOwnerBefore(@Param("ownerId") Long ownerId, @Param("beforeId") Long beforeId, Pageable pageable);
+
+    /**
+     * 会话已读到指定消息后重新计算未读数：只统计ID大于该消息的未读消息，
+     * 标记已读与新消息写入并发时不会丢失后到的未读数。
+     * 子查询对扫描到的消息加共享锁，可能与消息批量写入互相等待，批量写入被回滚时由MessagePersistenceService整批重试
+     */
+    @Modifying
+    @Query(value = "UPDATE conversations c SET c.unread_count = (" +
+            "SELECT COUNT(*) FROM messages m WHERE m.sender_id = c.peer_id AND m.receiver_id = c.owner_id " +
+            "AND m.id > :readMessageId AND m.is_read = false) " +
+            "WHERE c.owner_id = :ownerId AND c.peer_id = :peerId", nativeQuery = true)
+    int resetUnread(@Param("ownerId") Long ownerId, @Param("peerId") Long peerId,
+                    @Param("readMessageId") Long readMessageId);
+
+    /**
+     * 单条消息变为已读或被删除时未读数减一
+     */
+    @Modifying
+    @Query(value = "UPDATE conversations SET unread_count = GREATEST(unread_count - 1, 0) " +
+            "WHERE owner_id = :ownerId AND peer_id = :peerId", nativeQuery = true)
+    int decrementUnread(@Param("ownerId") Long ownerId, @Param("peerId") Long peerId);
+}
@@ -1,26 +1,93 @@
 package com.im.corey.repository;
 
 import com.im.corey.model.Message;
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
 import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
+import java.time.LocalDateTime;
 import java.util.List;
 
 @Repository
 public interface MessageRepository extends JpaRepository<Message, Long> {
     
-    List<Message> findByReceiverIdAndIsReadFalse(Long receiverId);
-    
-    List<Message> findBySenderIdAndReceiverIdAndIsReadFalse(Long senderId, Long receiverId);
+    /**
+     * 接收者的未读消息：未单独标记已读，且ID高于该会话的已读水位
+     */
+    @Query("SELECT m FROM Message m WHERE m.receiverId = :receiverId AND m.isRead = false AND NOT EXISTS " +
+            "(SELECT w FROM ReadWatermark w WHERE w.readerId = m.receiverId AND w.peerId = m.senderId AND w.lastReadMessageId >= m.id)")
+    List<Message> findUnreadByReceiverId(@Param("receiverId") Long receiverId);
     
     List<Message> findByReceiverIdOrSenderIdOrderBySentTimeDesc(Long receiverId, Long senderId);
-    
-    long countByReceiverIdAndIsReadFalse(Long receiverId);
-    
-    long countBySenderIdAndReceiverIdAndIsReadFalse(Long senderId, Long receiverId);
+
+    /**
+     * 单方向会话中最新一条消息的ID
+     */
+    @Query("SELECT MAX(m.id) FROM Message m WHERE m.senderId = :senderId AND m.receiverId = :receiverId")
+    Long findLatestMessageId(@Param("senderId") Long senderId, @Param("receiverId") Long receiverId);
+
+    /**
+     * 单方向会话中ID在(afterId, maxId]之间且未单独标记已读的消息数，
+     * 用于全部已读时从未读计数中扣除水位推进所覆盖的消息
+     */
+    @Query("SELECT COUNT(m) FROM Message m WHERE m.receiverId = :receiverId AND m.isRead = false " +
+            "AND m.senderId = :senderId AND m.id > :afterId AND m.id <= :maxId")
+    long countUnreadInRange(@Param("senderId") Long senderId, @Param("receiverId") Long receiverId,
+                            @Param("afterId") Long afterId, @Param("maxId") Long maxId);
+
+    /**
+     * 按(接收者, 发送者)分组统计未读消息数，用于启动时重建未读计数索引
+     */
+    @Query("SELECT m.receiverId, m.senderId, COUNT(m) FROM Message m WHERE m.isRead = false AND NOT EXISTS " +
+            "(SELECT w FROM ReadWatermark w WHERE w.readerId = m.receiverId AND w.peerId = m.senderId AND w.lastReadMessageId >= m.id) " +
+            "GROUP BY m.receiverId, m.senderId")
+    List<Object[]> countUnreadGroupedByReceiverAndSender();
     
     @Query("SELECT m FROM Message m WHERE (m.senderId = :senderId AND m.receiverId = :receiverId) OR (m.senderId = :receiverId AND m.receiverId = :senderId) ORDER BY m.sentTime ASC")
     List<Message> findMessagesBetweenUsers(@Param("senderId") Long senderId, @Param("receiverId") Long receiverId);
+
+    /**
+     * 单方向会话中ID小于游标的消息，按ID倒序，由(sender_id, receiver_id, id)索引直接定位
+     */
+    @Query("SELECT m FROM Message m WHERE m.senderId = :senderId AND m.receiverId = :receiverId AND m.id < :beforeId ORDER BY m.id DESC")
+    List<Message> findDirectionalBefore(@Param("senderId") Long senderId, @Param("receiverId") Long receiverId,
+                                        @Param("beforeId") Long beforeId, Pageable pageable);
+
+    /**
+     * 单方向会话中ID在(afterId, maxId]之间的消息，按ID正序，由(sender_id, receiver_id, id)索引直接定位
+     */
+    @Query("SELECT m FROM Message m WHERE m.senderId = :senderId AND m.receiverId = :receiverId "
+            + "AND m.id > :afterId AND m.id <= :maxId ORDER BY m.id ASC")
+    List<Message> findDirectionalAfter(@Param("senderId") Long senderId, @Param("receiverId") Long receiverId,
+                                       @Param("afterId") Long afterId, @Param("maxId") Long maxId, Pageable pageable);
+
+    /**
+     * 用户收到的ID在(afterId, maxId]之间的消息，按ID正序，由(receiver_id, id)索引直接定位
+     */
+    @Query("SELECT m FROM Message m WHERE m.receiverId = :userId AND m.id > :afterId AND m.id <= :maxId ORDER BY m.id ASC")
+    List<Message> findReceivedAfter(@Param("userId") Long userId, @Param("afterId") Long afterId,
+                                    @Param("maxId") Long maxId, Pageable pageable);
+
+    /**
+     * 用户发出的ID在(afterId, maxId]之间的消息，按ID正序，由(sender_id, id)索引直接定位
+     * 发给自己的消息已包含在收到的消息中，这里排除以免重复
+     */
+    @Query("SELECT m FROM Message m WHERE m.senderId = :userId AND m.receiverId <> :userId "
+            + "AND m.id > :afterId AND m.id <= :maxId ORDER BY m.id ASC")
+    List<Message> findSentAfter(@Param("userId") Long userId, @Param("afterId") Long afterId,
+                                @Param("maxId") Long maxId, Pageable pageable);
+
+    /**
+     * 发送时间早于指定时间的最大消息ID，作为归档的ID上界
+     */
+    @Query("SELECT MAX(m.id) FROM Message m WHERE m.sentTime < :cutoff")
+    Long findMaxIdSentBefore(@Param("cutoff") LocalDateTime cutoff);
+
+    /**
+     * 按主键范围顺序扫描ID在(afterId, maxId]之间的消息，用于归档
+     */
+    @Query("SELECT m FROM Message m WHERE m.id > :afterId AND m.id <= :maxId ORDER BY m.id ASC")
+    List<Message> findRange(@Param("afterId") Long afterId, @Param("maxId") Long maxId, Pageable pageable);
 }
@@ -0,0 +1,37 @@
+package com.im.corey.repository;
+
+import com.im.corey.model.ReadWatermark;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+
+@Repository
+public interface ReadWatermarkRepository extends JpaRepository<ReadWatermark, ReadWatermark.ReadWatermarkId> {
+
+    /**
+     * 推进已读水位，单行插入或更新，水位只增不减
+     */
+    @Modifying
+    @Query(value = "INSERT INTO read_watermarks (reader_id, peer_id, last_read_message_id, updated_time) " +
+            "VALUES (:readerId, :peerId, :messageId, NOW()) " +
+            "ON DUPLICATE KEY UPDATE last_read_message_id = GREATEST(last_read_message_id, VALUES(last_read_message_id)), " +
+            "updated_time = VALUES(updated_time)", nativeQuery = true)
+    int advance(@Param("readerId") Long readerId, @Param("peerId") Long peerId, @Param("messageId") Long messageId);
+
+    /**
+     * 水位行不存在时以0插入，保证随后的加锁读取总能锁住这一行
+     */
+    @Modifying
+    @Query(value = "INSERT IGNORE INTO read_watermarks (reader_id, peer_id, last_read_message_id, updated_time) " +
+            "VALUES (:readerId, :peerId, 0, NOW())", nativeQuery = true)
+    int ensureExists(@Param("readerId") Long readerId, @Param("peerId") Long peerId);
+
+    /**
+     * 加行锁读取当前水位，同一会话的并发全部已读在此串行，直到事务提交
+     */
+    @Query(value = "SELECT last_read_message_id FROM read_watermarks " +
+            "WHERE reader_id = :readerId AND peer_id = :peerId FOR UPDATE", nativeQuery = true)
+    Long lockWatermark(@Param("readerId") Long readerId, @Param("peerId") Long peerId);
+}
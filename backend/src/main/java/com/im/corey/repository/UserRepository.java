@@ -1,17 +1,44 @@
 package com.im.corey.repository;
 
 import com.im.corey.model.User;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
-import java.util.List;
-
 @Repository
 public interface UserRepository extends JpaRepository<User, Long> {
     
     User findByUsername(String username);
     
     User findByEmail(String email);
-    
-    List<User> findByIsOnlineTrue();
+
+    /**
+     * 一次查询获取除当前用户外的用户列表及每个用户发给当前用户的未读消息数
+     * 未读数由按发送者分组的聚合子查询得出，未读判定与已读水位一致；只投影列表需要的列
+     * 返回列依次为：id, username, email, nickname, avatar, show_read_status, last_login_time, created_time, updated_time, unread_count
+     */
+    @Query(value = "SELECT u.id, u.username, u.email, u.nickname, u.avatar, u.show_read_status, u.last_login_time, " +
+            "u.created_time, u.updated_time, " +
+            "COALESCE(c.unread_count, 0) AS unread_count " +
+            "FROM users u LEFT JOIN (" +
+            "  SELECT m.sender_id, COUNT(*) AS unread_count FROM messages m " +
+            "  LEFT JOIN read_watermarks w ON w.reader_id = m.receiver_id AND w.peer_id = m.sender_id " +
+            "  WHERE m.receiver_id = :userId AND m.is_read = false AND m.id > COALESCE(w.last_read_message_id, 0) " +
+            "  GROUP BY m.sender_id" +
+            ") c ON c.sender_id = u.id " +
+            "WHERE u.id <> :userId AND (:unreadOnly = false OR c.unread_count > 0) " +
+            "ORDER BY u.id",
+            countQuery = "SELECT COUNT(*) FROM users u LEFT JOIN (" +
+                    "  SELECT m.sender_id, COUNT(*) AS unread_count FROM messages m " +
+                    "  LEFT JOIN read_watermarks w ON w.reader_id = m.receiver_id AND w.peer_id = m.sender_id " +
+                    "  WHERE m.receiver_id = :userId AND m.is_read = false AND m.id > COALESCE(w.last_read_message_id, 0) " +
+                    "  GROUP BY m.sender_id" +
+                    ") c ON c.sender_id = u.id " +
+                    "WHERE u.id <> :userId AND (:unreadOnly = false OR c.unread_count > 0)",
+            nativeQuery = true)
+    Page<Object[]> findUsersWithUnreadCount(@Param("userId") Long userId, @Param("unreadOnly") boolean unreadOnly,
+                                            Pageable pageable);
 }
@@ -0,0 +1,83 @@
+package com.im.corey.service;
+
+import com.im.corey.util.KeyedOrderedExecutor;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 按会话保序的消息处理阶段
+ * 同一对用户之间（不区分方向）的发送、标记已读等操作按提交顺序依次执行，
+ * 不同会话之间并行执行，既避免同一会话内的消息乱序持久化或投递，又不把吞吐量限制在单线程
+ */
+@Service
+public class ConversationDispatcher {
+
+    @Value("${im.message.dispatch.threads:8}")
+    private int threads;
+
+    @Value("${im.message.dispatch.queue-capacity:10000}")
+    private int queueCapacity;
+
+    @Value("${im.message.dispatch.overflow-capacity:10000}")
+    private int overflowCapacity;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    private KeyedOrderedExecutor executor;
+
+    @PostConstruct
+    public void start() {
+        executor = new KeyedOrderedExecutor("conversation-dispatch-", threads, queueCapacity, overflowCapacity,
+                new ThreadPoolExecutor.AbortPolicy());
+        Gauge.builder("im.message.dispatch.queue.depth", executor, KeyedOrderedExecutor::getQueueSize)
+                .register(meterRegistry);
+    }
+
+    @PreDestroy
+    public void stop() throws InterruptedException {
+        executor.shutdown();
+        executor.awaitTermination(10, TimeUnit.SECONDS);
+    }
+
+    /**
+     * 在两个用户的会话上排队执行任务
+     *
+     * @throws RejectedExecutionException 会话所在分段的队列已满
+     */
+    public void execute(Long userId, Long peerId, Runnable task) {
+        long low = Math.min(userId, peerId);
+        long high = Math.max(userId, peerId);
+        executor.execute(low, high, guarded(low, high, task));
+    }
+
+    /**
+     * 排队执行不能因队列已满而放弃的任务（如已持久化消息的投递），队列满时占用溢出容量
+     *
+     * @throws RejectedExecutionException 溢出容量也已用完
+     */
+    public void executeEssential(Long userId, Long peerId, Runnable task) {
+        long low = Math.min(userId, peerId);
+        long high = Math.max(userId, peerId);
+        executor.executeEssential(low, high, guarded(low, high, task));
+    }
+
+    private static Runnable guarded(long low, long high, Runnable task) {
+        return () -> {
+            try {
+                task.run();
+            } catch (Exception e) {
+                System.err.println("会话任务执行失败，会话: " + low + "-" + high + "，原因: " + e.getMessage());
+            }
+        };
+    }
+}
@@ -0,0 +1,125 @@
+package com.im.corey.service;
+
+import com.im.corey.dto.ConversationPageDTO;
+import com.im.corey.model.Conversation;
+import com.im.corey.model.Message;
+import com.im.corey.repository.ConversationRepository;
+import com.im.corey.repository.MessageRepository;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * 会话摘要服务
+ * 新消息的摘要更新由MessagePersistenceService在批量写入事务中完成，这里负责查询以及已读、删除时的维护；
+ * 维护方法都在调用方的事务中执行
+ */
+@Service
+public class ConversationService {
+
+    /**
+     * 会话摘要中保留的消息预览长度
+     */
+    public static final int PREVIEW_LENGTH = 100;
+
+    @Autowired
+    private ConversationRepository conversationRepository;
+
+    @Autowired
+    private MessageRepository messageRepository;
+
+    @Value("${im.conversation.page.default-size:20}")
+    private int defaultPageSize;
+
+    @Value("${im.conversation.page.max-size:100}")
+    private int maxPageSize;
+
+    /**
+     * 按最近活动倒序分页获取用户的会话
+     *
+     * @param ownerId 当前用户ID
+     * @param before 只返回最新消息ID小于该值的会话，为空时返回第一页
+     * @param size 页大小，超过上限时按上限处理
+     */
+    public ConversationPageDTO getConversations(Long ownerId, Long before, Integer size) {
+        int pageSize = size == null || size <= 0 ? defaultPageSize : Math.min(size, maxPageSize);
+        List<Conversation> rows = conversationRepository.findByOwnerBefore(
+                ownerId, before != null ? before : Long.MAX_VALUE, PageRequest.of(0, pageSize + 1));
+        boolean hasMore = rows.size() > pageSize;
+        List<Conversation> page = new ArrayList<>(hasMore ? rows.subList(0, pageSize) : rows);
+        Long nextCursor = page.isEmpty() ? before : page.get(page.size() - 1).getLastMessageId();
+        return new ConversationPageDTO(page, hasMore, nextCursor);
+    }
+
+    /**
+     * 读者已读到会话中的指定消息，重新计算其会话的未读数
+     */
+    public void onConversationRead(Long readerId, Long peerId, Long readMessageId) {
+        conversationRepository.resetUnread(readerId, peerId, readMessageId);
+    }
+
+    /**
+     * 单条未读消息被标记为已读
+     */
+    public void onMessageRead(Message message) {
+        conversationRepository.decrementUnread(message.getReceiverId(), message.getSenderId());
+    }
+
+    /**
+     * 消息被删除：未读时扣减接收者的未读数；删除的是会话最新消息时，双方的摘要回退到剩余的最新消息
+     */
+    public void onMessageDeleted(Message message, boolean unread) {
+        if (unread) {
+            conversationRepository.decrementUnread(message.getReceiverId(), message.getSenderId());
+        }
+        refreshLastMessage(message.getSenderId(), message.getReceiverId(), message.getId());
+        if (!message.getSenderId().equals(message.getReceiverId())) {
+            refreshLastMessage(message.getReceiverId(), message.getSenderId(), message.getId());
+        }
+    }
+
+    private void refreshLastMessage(Long ownerId, Long peerId, Long deletedMessageId) {
+        Optional<Conversation> optional = conversationRepository.findById(new Conversation.ConversationId(ownerId, peerId));
+        if (!optional.isPresent() || !deletedMessageId.equals(optional.get().getLastMessageId())) {
+            return;
+        }
+        Conversation conversation = optional.get();
+        PageRequest latest = PageRequest.of(0, 1);
+        List<Message> candidates = new ArrayList<>(2);
+        candidates.addAll(messageRepository.findDirectionalBefore(ownerId, peerId, Long.MAX_VALUE, latest));
+        candidates.addAll(messageRepository.findDirectionalBefore(peerId, ownerId, Long.MAX_VALUE, latest));
+        Message last = null;
+        for (Message candidate : candidates) {
+            if (last == null || candidate.getId() > last.getId()) {
+                last = candidate;
+            }
+        }
+        if (last == null) {
+            conversationRepository.delete(conversation);
+            return;
+        }
+        conversation.setLastMessageId(last.getId());
+        conversation.setLastSenderId(last.getSenderId());
+        conversation.setLastMessagePreview(preview(last.getContent()));
+        conversation.setLastMessageType(last.getType());
+        conversation.setLastActivityTime(last.getSentTime());
+        conversationRepository.save(conversation);
+    }
+
+    /**
+     * 截取消息内容作为会话预览
+     */
+    public static String preview(String content) {
+        if (content == null || content.length() <= PREVIEW_LENGTH) {
+            return content;
+        }
+        // 不在代理对中间截断
+        int end = Character.isHighSurrogate(content.charAt(PREVIEW_LENGTH - 1)) ? PREVIEW_LENGTH - 1 : PREVIEW_LENGTH;
+        return content.substring(0, end);
+    }
+}
@@ -17,6 +17,7 @@ public class CustomUserDetailsService implements UserDetailsService {
 
     @Override
     public UserDetails loadUserByUsername(String userId) throws UsernameNotFoundException {
+        // 经由用户缓存读取，稳定状态下认证路径不访问数据库
         User user = userService.getUserById(Long.valueOf(userId));
         if (user == null) {
             throw new UsernameNotFoundException("User not found with id: " + userId);
@@ -0,0 +1,20 @@
+package com.im.corey.service;
+
+import com.im.corey.model.Message;
+
+/**
+ * 同一发送者以相同的客户端消息ID重复发送时抛出，携带首次发送时保存的消息
+ */
+public class DuplicateMessageException extends RuntimeException {
+
+    private final Message original;
+
+    public DuplicateMessageException(Message original) {
+        super("重复的客户端消息ID: " + original.getClientMessageId());
+        this.original = original;
+    }
+
+    public Message getOriginal() {
+        return original;
+    }
+}
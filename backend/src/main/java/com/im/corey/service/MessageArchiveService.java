@@ -0,0 +1,147 @@
+package com.im.corey.service;
+
+import com.im.corey.model.Message;
+import com.im.corey.model.ReadWatermark;
+import com.im.corey.repository.MessageRepository;
+import com.im.corey.repository.ReadWatermarkRepository;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 冷消息归档任务
+ * 定期把发送时间早于保留期的消息按会话追加到MessageArchiveStore的段文件，再从messages表删除，
+ * 使热表及其索引只保留近期消息。
+ * 每个会话只归档ID连续的前缀部分：遇到仍未读的消息时，该会话本轮不再继续归档，
+ * 因此归档的消息都是已读的，未读数不受影响，且会话中所有热数据的ID都大于已归档的最大ID
+ */
+@Service
+public class MessageArchiveService {
+
+    @Value("${im.archive.enabled:false}")
+    private boolean enabled;
+
+    @Value("${im.archive.task-enabled:true}")
+    private boolean taskEnabled;
+
+    @Value("${im.archive.age-days:180}")
+    private int ageDays;
+
+    @Value("${im.archive.batch-size:1000}")
+    private int batchSize;
+
+    @Autowired
+    private MessageRepository messageRepository;
+
+    @Autowired
+    private ReadWatermarkRepository readWatermarkRepository;
+
+    @Autowired
+    private MessageArchiveStore messageArchiveStore;
+
+    private final AtomicBoolean running = new AtomicBoolean();
+
+    @Scheduled(fixedDelayString = "${im.archive.interval-ms:3600000}",
+            initialDelayString = "${im.archive.initial-delay-ms:60000}")
+    public void archive() {
+        if (!enabled || !taskEnabled || !running.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            long start = System.currentTimeMillis();
+            int archived = archiveOnce();
+            if (archived > 0) {
+                System.out.println("消息归档完成，归档消息数: " + archived + "，耗时: "
+                        + (System.currentTimeMillis() - start) + "ms");
+            }
+        } catch (Exception e) {
+            System.err.println("消息归档失败: " + e.getMessage());
+        } finally {
+            running.set(false);
+        }
+    }
+
+    /**
+     * 执行一轮归档：按主键顺序分批扫描保留期之前的消息
+     *
+     * @return 本轮归档的消息数
+     */
+    private int archiveOnce() throws Exception {
+        Long maxId = messageRepository.findMaxIdSentBefore(LocalDateTime.now().minusDays(ageDays));
+        if (maxId == null) {
+            return 0;
+        }
+        // 本轮遇到未读消息的会话，后续批次跳过
+        Set<String> blocked = new HashSet<>();
+        Map<ReadWatermark.ReadWatermarkId, Long> watermarks = new HashMap<>();
+        long cursor = 0L;
+        int archived = 0;
+        while (true) {
+            List<Message> batch = messageRepository.findRange(cursor, maxId, PageRequest.of(0, batchSize));
+            if (batch.isEmpty()) {
+                break;
+            }
+            cursor = batch.get(batch.size() - 1).getId();
+
+            Map<String, List<Message>> byConversation = new LinkedHashMap<>();
+            for (Message message : batch) {
+                String key = Math.min(message.getSenderId(), message.getReceiverId()) + ":"
+                        + Math.max(message.getSenderId(), message.getReceiverId());
+                if (blocked.contains(key)) {
+                    continue;
+                }
+                if (!isRead(message, watermarks)) {
+                    blocked.add(key);
+                    continue;
+                }
+                byConversation.computeIfAbsent(key, k -> new ArrayList<>()).add(message);
+            }
+
+            List<Long> toDelete = new ArrayList<>();
+            for (List<Message> messages : byConversation.values()) {
+                Message first = messages.get(0);
+                long lastArchivedId = messageArchiveStore.lastArchivedId(first.getSenderId(), first.getReceiverId());
+                // 上一轮已写入段文件但未及删除的消息只需删除
+                List<Message> fresh = new ArrayList<>(messages.size());
+                for (Message message : messages) {
+                    if (message.getId() > lastArchivedId) {
+                        fresh.add(message);
+                    }
+                    toDelete.add(message.getId());
+                }
+                messageArchiveStore.append(first.getSenderId(), first.getReceiverId(), fresh);
+                archived += fresh.size();
+            }
+            if (!toDelete.isEmpty()) {
+                messageRepository.deleteAllByIdInBatch(toDelete);
+            }
+            if (batch.size() < batchSize) {
+                break;
+            }
+        }
+        return archived;
+    }
+
+    private boolean isRead(Message message, Map<ReadWatermark.ReadWatermarkId, Long> watermarks) {
+        if (Boolean.TRUE.equals(message.getIsRead())) {
+            return true;
+        }
+        ReadWatermark.ReadWatermarkId key = new ReadWatermark.ReadWatermarkId(message.getReceiverId(), message.getSenderId());
+        Long watermark = watermarks.computeIfAbsent(key, id -> readWatermarkRepository.findById(id)
+                .map(ReadWatermark::getLastReadMessageId)
+                .orElse(0L));
+        return message.getId() <= watermark;
+    }
+}
@@ -0,0 +1,465 @@
+package com.im.corey.service;
+
+import com.im.corey.model.Message;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * 冷消息归档存储
+ * 每个会话（无序用户对）对应一个只追加的段文件和一个稀疏索引文件：
+ * 段文件由若干压缩块组成，每块保存ID连续递增的一批消息；索引文件为每块记录一条定长条目
+ * （首条ID、末条ID、块偏移、块长度、消息数），读取时在内存中二分查找索引，只解压需要的块。
+ * 段文件通过内存映射读取，追加后发布新的快照，读取方始终使用一致的快照，读写之间不加锁。
+ * 集群部署时段文件由其他节点追加，每次查找会比较索引文件长度，变化后重新加载快照
+ */
+@Component
+public class MessageArchiveStore {
+
+    private static final String SEGMENT_SUFFIX = ".seg";
+
+    private static final String INDEX_SUFFIX = ".idx";
+
+    /**
+     * 索引条目长度：firstId(8) + lastId(8) + offset(8) + length(4) + count(4)
+     */
+    private static final int INDEX_ENTRY_BYTES = 32;
+
+    private static final long NO_VALUE = Long.MIN_VALUE;
+
+    /**
+     * 没有归档数据的会话共用的空快照，不进入缓存
+     */
+    private static final Segment EMPTY = new Segment(null, new long[0], new long[0], new long[0], new int[0], 0, 0);
+
+    @Value("${im.archive.enabled:false}")
+    private boolean enabled;
+
+    @Value("${im.archive.directory:data/archive}")
+    private String directory;
+
+    @Value("${im.archive.block-size:64}")
+    private int blockSize;
+
+    private Path root;
+
+    /**
+     * 已加载的非空会话段快照，键为 较小用户ID:较大用户ID
+     */
+    private final ConcurrentHashMap<String, Segment> segments = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    public void init() {
+        // 目录在首次归档时才创建，未启用归档时不会在磁盘上留下任何文件
+        root = Paths.get(directory).toAbsolutePath();
+    }
+
+    /**
+     * 会话中已归档的最大消息ID，没有归档或未启用归档时返回0
+     */
+    public long lastArchivedId(Long userId, Long peerId) {
+        if (!enabled) {
+            return 0L;
+        }
+        return segment(userId, peerId).lastId();
+    }
+
+    /**
+     * 追加一批已按ID升序排列的消息，只能由单个归档线程调用
+     * 数据块和索引条目依次落盘后才发布新快照，中途失败时段文件末尾的残留字节不会被索引引用
+     *
+     * @param messages 同一会话中ID大于已归档最大ID的消息
+     */
+    public void append(Long userId, Long peerId, List<Message> messages) throws IOException {
+        if (messages.isEmpty()) {
+            return;
+        }
+        Segment current = segment(userId, peerId);
+        if (messages.get(0).getId() <= current.lastId()) {
+            throw new IllegalArgumentException("归档消息ID必须大于会话已归档的最大ID: " + current.lastId());
+        }
+        Path segmentPath = path(userId, peerId, SEGMENT_SUFFIX);
+        Files.createDirectories(segmentPath.getParent());
+
+        int blocks = (messages.size() + blockSize - 1) / blockSize;
+        ByteBuffer index = ByteBuffer.allocate(blocks * INDEX_ENTRY_BYTES);
+        long[] firstIds = Arrays.copyOf(current.firstIds, current.firstIds.length + blocks);
+        long[] lastIds = Arrays.copyOf(current.lastIds, current.lastIds.length + blocks);
+        long[] offsets = Arrays.copyOf(current.offsets, current.offsets.length + blocks);
+        int[] lengths = Arrays.copyOf(current.lengths, current.lengths.length + blocks);
+        long dataLength;
+        long indexLength;
+        try (FileChannel channel = FileChannel.open(segmentPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            // 从文件实际末尾追加，跳过上次失败残留的未索引字节
+            long position = channel.size();
+            int slot = current.firstIds.length;
+            for (int from = 0; from < messages.size(); from += blockSize) {
+                List<Message> chunk = messages.subList(from, Math.min(messages.size(), from + blockSize));
+                byte[] block = encodeBlock(chunk);
+                ByteBuffer buffer = ByteBuffer.wrap(block);
+                while (buffer.hasRemaining()) {
+                    position += channel.write(buffer, position);
+                }
+                long firstId = chunk.get(0).getId();
+                long lastId = chunk.get(chunk.size() - 1).getId();
+                long offset = position - block.length;
+                index.putLong(firstId).putLong(lastId).putLong(offset).putInt(block.length).putInt(chunk.size());
+                firstIds[slot] = firstId;
+                lastIds[slot] = lastId;
+                offsets[slot] = offset;
+                lengths[slot] = block.length;
+                slot++;
+            }
+            channel.force(false);
+            dataLength = position;
+        }
+        index.flip();
+        try (FileChannel channel = FileChannel.open(path(userId, peerId, INDEX_SUFFIX),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            // 截掉上次失败残留的不完整条目，保证条目始终按定长对齐
+            long position = (long) current.firstIds.length * INDEX_ENTRY_BYTES;
+            channel.truncate(position);
+            while (index.hasRemaining()) {
+                position += channel.write(index, position);
+            }
+            channel.force(false);
+            indexLength = position;
+        }
+        segments.put(key(userId, peerId),
+                new Segment(segmentPath, firstIds, lastIds, offsets, lengths, dataLength, indexLength));
+    }
+
+    /**
+     * 读取ID小于before的归档消息，按ID倒序，最多limit条
+     */
+    public List<Message> readBefore(Long userId, Long peerId, long before, int limit) {
+        if (!enabled) {
+            return new ArrayList<>();
+        }
+        Segment segment = segment(userId, peerId);
+        List<Message> result = new ArrayList<>(Math.min(limit, 64));
+        // 最后一个首条ID小于before的块
+        int block = upperBound(segment.firstIds, before - 1) - 1;
+        for (; block >= 0 && result.size() < limit; block--) {
+            List<Message> messages = segment.readBlock(block);
+            for (int i = messages.size() - 1; i >= 0 && result.size() < limit; i--) {
+                if (messages.get(i).getId() < before) {
+                    result.add(messages.get(i));
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 读取ID大于after的归档消息，按ID升序，最多limit条
+     */
+    public List<Message> readAfter(Long userId, Long peerId, long after, int limit) {
+        if (!enabled) {
+            return new ArrayList<>();
+        }
+        Segment segment = segment(userId, peerId);
+        List<Message> result = new ArrayList<>(Math.min(limit, 64));
+        // 第一个末条ID大于after的块
+        int block = upperBound(segment.lastIds, after);
+        for (; block < segment.lastIds.length && result.size() < limit; block++) {
+            for (Message message : segment.readBlock(block)) {
+                if (message.getId() > after && result.size() < limit) {
+                    result.add(message);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 有序数组中第一个大于value的位置
+     */
+    private static int upperBound(long[] values, long value) {
+        int low = 0;
+        int high = values.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (values[mid] <= value) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * 取会话段快照：索引文件长度与缓存的快照一致时直接复用，否则重新加载；
+     * 没有归档数据的会话返回空快照且不缓存，缓存大小只随已归档的会话数增长
+     */
+    private Segment segment(Long userId, Long peerId) {
+        String key = key(userId, peerId);
+        Path indexPath = path(userId, peerId, INDEX_SUFFIX);
+        long indexLength = indexLength(indexPath);
+        Segment cached = segments.get(key);
+        if (cached != null && cached.indexLength == indexLength) {
+            return cached;
+        }
+        if (indexLength < 0) {
+            segments.remove(key);
+            return EMPTY;
+        }
+        Segment loaded = load(userId, peerId);
+        if (loaded.lastIds.length == 0) {
+            segments.remove(key);
+            return EMPTY;
+        }
+        segments.put(key, loaded);
+        return loaded;
+    }
+
+    /**
+     * 索引文件长度，文件不存在时返回-1
+     */
+    private static long indexLength(Path indexPath) {
+        try {
+            return Files.size(indexPath);
+        } catch (NoSuchFileException e) {
+            return -1L;
+        } catch (IOException e) {
+            throw new UncheckedIOException("读取归档索引失败: " + indexPath, e);
+        }
+    }
+
+    /**
+     * 从磁盘加载索引，丢弃不完整或指向段文件之外的尾部条目
+     */
+    private Segment load(Long userId, Long peerId) {
+        Path segmentPath = path(userId, peerId, SEGMENT_SUFFIX);
+        Path indexPath = path(userId, peerId, INDEX_SUFFIX);
+        try {
+            if (!Files.exists(segmentPath) || !Files.exists(indexPath)) {
+                return EMPTY;
+            }
+            // 先读索引再取段文件长度：追加方先写段文件再写索引，索引引用的块此时一定已经落盘
+            byte[] indexBytes = Files.readAllBytes(indexPath);
+            long dataLength = Files.size(segmentPath);
+            ByteBuffer index = ByteBuffer.wrap(indexBytes);
+            int count = index.remaining() / INDEX_ENTRY_BYTES;
+            long[] firstIds = new long[count];
+            long[] lastIds = new long[count];
+            long[] offsets = new long[count];
+            int[] lengths = new int[count];
+            int valid = 0;
+            for (int i = 0; i < count; i++) {
+                long firstId = index.getLong();
+                long lastId = index.getLong();
+                long offset = index.getLong();
+                int length = index.getInt();
+                index.getInt();
+                if (offset + length > dataLength) {
+                    break;
+                }
+                firstIds[valid] = firstId;
+                lastIds[valid] = lastId;
+                offsets[valid] = offset;
+                lengths[valid] = length;
+                valid++;
+            }
+            return new Segment(segmentPath, Arrays.copyOf(firstIds, valid), Arrays.copyOf(lastIds, valid),
+                    Arrays.copyOf(offsets, valid), Arrays.copyOf(lengths, valid), dataLength, indexBytes.length);
+        } catch (IOException e) {
+            throw new UncheckedIOException("加载归档索引失败: " + indexPath, e);
+        }
+    }
+
+    private static String key(Long userId, Long peerId) {
+        return Math.min(userId, peerId) + ":" + Math.max(userId, peerId);
+    }
+
+    /**
+     * 段文件路径：按较小用户ID分散到256个子目录，避免单个目录下文件过多
+     */
+    private Path path(Long userId, Long peerId, String suffix) {
+        long low = Math.min(userId, peerId);
+        long high = Math.max(userId, peerId);
+        return root.resolve(Long.toString(low & 0xFF)).resolve(low + "_" + high + suffix);
+    }
+
+    /**
+     * 块格式：[原始长度int][Deflate压缩的消息记录]
+     */
+    private static byte[] encodeBlock(List<Message> messages) throws IOException {
+        ByteArrayOutputStream raw = new ByteArrayOutputStream(messages.size() * 128);
+        DataOutputStream out = new DataOutputStream(raw);
+        for (Message message : messages) {
+            out.writeLong(message.getId());
+            out.writeLong(message.getSenderId());
+            out.writeLong(message.getReceiverId());
+            out.writeLong(message.getSentTime() != null ? Timestamp.valueOf(message.getSentTime()).getTime() : NO_VALUE);
+            out.writeUTF(message.getType() != null ? message.getType().name() : Message.MessageType.TEXT.name());
+            out.writeLong(message.getClientMessageId() != null ? message.getClientMessageId() : NO_VALUE);
+            byte[] content = message.getContent() != null ? message.getContent().getBytes(StandardCharsets.UTF_8) : null;
+            out.writeInt(content != null ? content.length : -1);
+            if (content != null) {
+                out.write(content);
+            }
+        }
+        out.flush();
+        byte[] input = raw.toByteArray();
+
+        Deflater deflater = new Deflater();
+        ByteArrayOutputStream block = new ByteArrayOutputStream(input.length / 2 + 16);
+        try {
+            deflater.setInput(input);
+            deflater.finish();
+            new DataOutputStream(block).writeInt(input.length);
+            byte[] buffer = new byte[8192];
+            while (!deflater.finished()) {
+                int n = deflater.deflate(buffer);
+                block.write(buffer, 0, n);
+            }
+        } finally {
+            deflater.end();
+        }
+        return block.toByteArray();
+    }
+
+    private static List<Message> decodeBlock(ByteBuffer block) {
+        int rawLength = block.getInt();
+        byte[] compressed = new byte[block.remaining()];
+        block.get(compressed);
+        byte[] raw = new byte[rawLength];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed);
+            int read = 0;
+            while (read < rawLength) {
+                int n = inflater.inflate(raw, read, rawLength - read);
+                if (n == 0 && (inflater.finished() || inflater.needsInput())) {
+                    break;
+                }
+                read += n;
+            }
+            if (read != rawLength) {
+                throw new IllegalStateException("归档块已损坏");
+            }
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("归档块已损坏", e);
+        } finally {
+            inflater.end();
+        }
+
+        ByteBuffer in = ByteBuffer.wrap(raw);
+        List<Message> messages = new ArrayList<>();
+        while (in.hasRemaining()) {
+            Message message = new Message();
+            message.setId(in.getLong());
+            message.setSenderId(in.getLong());
+            message.setReceiverId(in.getLong());
+            long sentTime = in.getLong();
+            message.setSentTime(sentTime != NO_VALUE ? new Timestamp(sentTime).toLocalDateTime() : null);
+            byte[] type = new byte[in.getShort() & 0xFFFF];
+            in.get(type);
+            message.setType(Message.MessageType.valueOf(new String(type, StandardCharsets.UTF_8)));
+            long clientMessageId = in.getLong();
+            message.setClientMessageId(clientMessageId != NO_VALUE ? clientMessageId : null);
+            int contentLength = in.getInt();
+            if (contentLength >= 0) {
+                byte[] content = new byte[contentLength];
+                in.get(content);
+                message.setContent(new String(content, StandardCharsets.UTF_8));
+            }
+            // 只有已读的消息才会被归档
+            message.setIsRead(true);
+            messages.add(message);
+        }
+        return messages;
+    }
+
+    /**
+     * 会话段的不可变快照
+     */
+    private static final class Segment {
+        private final Path path;
+        private final long[] firstIds;
+        private final long[] lastIds;
+        private final long[] offsets;
+        private final int[] lengths;
+        private final long dataLength;
+        /**
+         * 加载快照时索引文件的长度，用于发现其他节点的追加
+         */
+        private final long indexLength;
+        /**
+         * 首次读取时才映射段文件
+         */
+        private volatile MappedByteBuffer mapped;
+
+        private Segment(Path path, long[] firstIds, long[] lastIds, long[] offsets, int[] lengths, long dataLength,
+                        long indexLength) {
+            this.path = path;
+            this.firstIds = firstIds;
+            this.lastIds = lastIds;
+            this.offsets = offsets;
+            this.lengths = lengths;
+            this.dataLength = dataLength;
+            this.indexLength = indexLength;
+        }
+
+        private long lastId() {
+            return lastIds.length == 0 ? 0L : lastIds[lastIds.length - 1];
+        }
+
+        private List<Message> readBlock(int block) {
+            if (dataLength > Integer.MAX_VALUE) {
+                // 超过单个映射上限的段文件按块映射
+                try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                    return decodeBlock(channel.map(FileChannel.MapMode.READ_ONLY, offsets[block], lengths[block]));
+                } catch (IOException e) {
+                    throw new UncheckedIOException("映射归档段文件失败: " + path, e);
+                }
+            }
+            ByteBuffer view = map().duplicate();
+            view.position((int) offsets[block]);
+            view.limit((int) (offsets[block] + lengths[block]));
+            return decodeBlock(view.slice());
+        }
+
+        private MappedByteBuffer map() {
+            MappedByteBuffer buffer = mapped;
+            if (buffer == null) {
+                synchronized (this) {
+                    buffer = mapped;
+                    if (buffer == null) {
+                        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, dataLength);
+                        } catch (IOException e) {
+                            throw new UncheckedIOException("映射归档段文件失败: " + path, e);
+                        }
+                        mapped = buffer;
+                    }
+                }
+            }
+            return buffer;
+        }
+    }
+}
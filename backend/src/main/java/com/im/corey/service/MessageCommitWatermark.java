@@ -0,0 +1,183 @@
+package com.im.corey.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.im.corey.dto.CommitWatermarkReport;
+import com.im.corey.util.SnowflakeIdGenerator;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationContext;
+import org.springframework.messaging.MessageHandler;
+import org.springframework.messaging.simp.SimpMessagingTemplate;
+import org.springframework.messaging.simp.stomp.StompBrokerRelayMessageHandler;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * 消息的已提交水位
+ * 消息ID在入队前分配，同一批次之外的消息可能以与ID不同的顺序提交，集群中各节点的写入更是互不等待；
+ * 按ID游标读取新消息（增量同步、会话向后翻页）时若返回了较大的ID，游标就会越过仍在写入的较小ID，这些消息再也读不到。
+ * 本类登记本节点已分配但尚未提交的ID，水位取最小的未提交ID与此后可能分配的最小ID中较小者减一，
+ * 不超过水位的消息ID都已提交或已放弃，按ID游标读取时只返回不超过水位的消息。
+ * 集群模式下各节点定期在/topic/commit-watermarks上广播本节点的水位，全局水位取各节点水位的最小值；
+ * 尚未上报的节点（如刚启动）可能持有更早的未提交ID，全局水位同时不超过3个上报间隔之前的时间对应的ID，
+ * 超过3个上报间隔没有上报的节点不再参与计算
+ */
+@Component
+public class MessageCommitWatermark {
+
+    static final String WATERMARK_TOPIC = "/topic/commit-watermarks";
+
+    private static final String RELAY_BEAN_NAME = "stompBrokerRelayMessageHandler";
+
+    @Value("${im.cluster.enabled:false}")
+    private boolean clusterEnabled;
+
+    @Value("${im.message.commit-watermark.report-interval-ms:200}")
+    private long reportIntervalMs;
+
+    @Value("${im.id.node-id:0}")
+    private int nodeId;
+
+    @Autowired
+    private SnowflakeIdGenerator idGenerator;
+
+    @Autowired
+    private SimpMessagingTemplate messagingTemplate;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Autowired
+    private ApplicationContext applicationContext;
+
+    /**
+     * 已分配但尚未提交或放弃的消息ID
+     */
+    private final ConcurrentSkipListSet<Long> inFlight = new ConcurrentSkipListSet<>();
+
+    /**
+     * 分配ID时持有读锁，计算水位时持有写锁，保证计算时没有已生成但尚未登记的ID
+     */
+    private final ReentrantReadWriteLock assignLock = new ReentrantReadWriteLock();
+
+    /**
+     * 节点号 -> 该节点最近一次上报的水位
+     */
+    private final Map<Integer, NodeWatermark> nodes = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    public void init() {
+        if (!clusterEnabled) {
+            return;
+        }
+        Object relay = applicationContext.getBean(RELAY_BEAN_NAME);
+        if (relay instanceof StompBrokerRelayMessageHandler) {
+            subscribe((StompBrokerRelayMessageHandler) relay);
+        }
+    }
+
+    /**
+     * 在代理中继的系统会话上订阅各节点的水位广播，须在中继启动前调用
+     */
+    public void subscribe(StompBrokerRelayMessageHandler relay) {
+        Map<String, MessageHandler> subscriptions = new HashMap<>();
+        if (relay.getSystemSubscriptions() != null) {
+            subscriptions.putAll(relay.getSystemSubscriptions());
+        }
+        subscriptions.put(WATERMARK_TOPIC, message -> {
+            try {
+                onReport(objectMapper.readValue((byte[]) message.getPayload(), CommitWatermarkReport.class));
+            } catch (IOException | ClassCastException e) {
+                System.err.println("无法解析消息提交水位: " + e.getMessage());
+            }
+        });
+        relay.setSystemSubscriptions(subscriptions);
+    }
+
+    /**
+     * 分配消息ID并登记为未提交，消息提交或放弃后须调用release
+     */
+    public long assign() {
+        assignLock.readLock().lock();
+        try {
+            long id = idGenerator.nextId();
+            inFlight.add(id);
+            return id;
+        } finally {
+            assignLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 消息已提交，或确定不会写入
+     */
+    public void release(long id) {
+        inFlight.remove(id);
+    }
+
+    /**
+     * 本节点的水位：本节点分配的、不超过该值的ID都已提交或已放弃
+     */
+    public long localWatermark() {
+        assignLock.writeLock().lock();
+        try {
+            Long lowest = inFlight.ceiling(Long.MIN_VALUE);
+            long bound = idGenerator.lowestNextId();
+            return (lowest != null ? Math.min(lowest, bound) : bound) - 1;
+        } finally {
+            assignLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 按ID游标读取新消息时可以返回的最大ID
+     */
+    public long committedWatermark() {
+        long watermark = localWatermark();
+        if (!clusterEnabled) {
+            return watermark;
+        }
+        long deadline = System.currentTimeMillis() - 3 * reportIntervalMs;
+        watermark = Math.min(watermark, SnowflakeIdGenerator.minIdAt(deadline) - 1);
+        for (Map.Entry<Integer, NodeWatermark> entry : nodes.entrySet()) {
+            NodeWatermark node = entry.getValue();
+            if (entry.getKey() != nodeId && node.receivedAtMillis >= deadline) {
+                watermark = Math.min(watermark, node.watermark);
+            }
+        }
+        return watermark;
+    }
+
+    /**
+     * 集群模式下定期广播本节点的水位
+     */
+    @Scheduled(fixedRateString = "${im.message.commit-watermark.report-interval-ms:200}")
+    public void report() {
+        if (!clusterEnabled) {
+            return;
+        }
+        messagingTemplate.convertAndSend(WATERMARK_TOPIC, new CommitWatermarkReport(nodeId, localWatermark()));
+    }
+
+    void onReport(CommitWatermarkReport report) {
+        nodes.put(report.getNodeId(), new NodeWatermark(report.getWatermark(), System.currentTimeMillis()));
+    }
+
+    private static class NodeWatermark {
+        private final long watermark;
+        private final long receivedAtMillis;
+
+        private NodeWatermark(long watermark, long receivedAtMillis) {
+            this.watermark = watermark;
+            this.receivedAtMillis = receivedAtMillis;
+        }
+    }
+}
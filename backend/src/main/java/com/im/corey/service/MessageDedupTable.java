@@ -0,0 +1,114 @@
+package com.im.corey.service;
+
+import com.im.corey.model.Message;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.Iterator;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 按(发送者ID, 客户端消息ID)去重的内存表
+ * 记录时间窗口内每条消息的保存结果，客户端重发时直接复用首次发送的结果；
+ * 条目超出窗口或容量时淘汰，淘汰后的重发由数据库唯一约束兜底识别
+ */
+@Component
+public class MessageDedupTable {
+
+    @Value("${im.message.dedup.window-seconds:300}")
+    private long windowSeconds;
+
+    @Value("${im.message.dedup.max-size:100000}")
+    private int maxSize;
+
+    private final ConcurrentHashMap<Key, Entry> entries = new ConcurrentHashMap<>();
+
+    /**
+     * 登记一次发送
+     *
+     * @return 窗口内已有相同键的发送时返回其结果，否则登记future并返回null
+     */
+    public CompletableFuture<Message> putIfAbsent(Long senderId, Long clientMessageId, CompletableFuture<Message> future) {
+        long now = System.currentTimeMillis();
+        Key key = new Key(senderId, clientMessageId);
+        Entry fresh = new Entry(future, now + windowSeconds * 1000);
+        while (true) {
+            Entry existing = entries.putIfAbsent(key, fresh);
+            if (existing == null) {
+                if (entries.size() > maxSize) {
+                    evict(now);
+                }
+                return null;
+            }
+            if (existing.expiresAt > now) {
+                return existing.future;
+            }
+            if (entries.replace(key, existing, fresh)) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * 发送失败时移除登记，允许客户端重试
+     */
+    public void remove(Long senderId, Long clientMessageId, CompletableFuture<Message> future) {
+        Key key = new Key(senderId, clientMessageId);
+        Entry entry = entries.get(key);
+        if (entry != null && entry.future == future) {
+            entries.remove(key, entry);
+        }
+    }
+
+    /**
+     * 先清理已过期的条目，仍然超出容量时再淘汰任意一部分
+     */
+    private void evict(long now) {
+        entries.values().removeIf(entry -> entry.expiresAt <= now);
+        Iterator<Key> iterator = entries.keySet().iterator();
+        int toRemove = entries.size() - maxSize * 3 / 4;
+        while (toRemove-- > 0 && iterator.hasNext()) {
+            iterator.next();
+            iterator.remove();
+        }
+    }
+
+    private static final class Key {
+        private final long senderId;
+        private final long clientMessageId;
+
+        private Key(long senderId, long clientMessageId) {
+            this.senderId = senderId;
+            this.clientMessageId = clientMessageId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return senderId == other.senderId && clientMessageId == other.clientMessageId;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(senderId, clientMessageId);
+        }
+    }
+
+    private static class Entry {
+        private final CompletableFuture<Message> future;
+        private final long expiresAt;
+
+        private Entry(CompletableFuture<Message> future, long expiresAt) {
+            this.future = future;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
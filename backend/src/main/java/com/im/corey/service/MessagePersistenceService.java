@@ -0,0 +1,457 @@
+package com.im.corey.service;
+
+import com.im.corey.model.Conversation;
+import com.im.corey.model.Message;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.CannotAcquireLockException;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.dao.DeadlockLoserDataAccessException;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 消息异步批量持久化服务
+ * 入站消息先进入有界队列，由单独的写线程按批量大小或时间窗口合并成一次JDBC批量插入，
+ * 消息ID在入队前已由应用分配，只有批次事务提交后才会完成对应的Future。
+ * 带客户端消息ID的消息写入前会先按唯一键查重，已存在的消息不再写入，其Future以DuplicateMessageException完成。
+ * 收发双方的会话摘要在同一事务中更新，接收者的内存未读计数在提交前计入、提交失败时撤销。
+ * 批次事务与全部已读（按子查询重算会话未读数时对消息加共享锁）互相等待锁时，被数据库选为回滚方的批次整批重写
+ */
+@Service
+public class MessagePersistenceService {
+
+    private static final String INSERT_SQL = "INSERT INTO messages "
+            + "(id, sender_id, receiver_id, content, type, is_read, sent_time, client_message_id) VALUES (?, ?, ?, ?, ?, ?, ?, ?)";
+
+    private static final String FIND_BY_CLIENT_ID_SQL = "SELECT id, sender_id, receiver_id, content, type, is_read, "
+            + "sent_time, client_message_id FROM messages WHERE (sender_id, client_message_id) IN ";
+
+    /**
+     * 会话摘要的插入或更新：只有更新的消息才替换摘要，未读数累加
+     * MySQL按书写顺序执行赋值，last_message_id必须最后更新，前面的条件才能与旧值比较
+     */
+    private static final String UPSERT_CONVERSATION_SQL = "INSERT INTO conversations "
+            + "(owner_id, peer_id, last_message_id, last_sender_id, last_message_preview, last_message_type, "
+            + "last_activity_time, unread_count) VALUES (?, ?, ?, ?, ?, ?, ?, ?) "
+            + "ON DUPLICATE KEY UPDATE "
+            + "last_sender_id = IF(VALUES(last_message_id) > last_message_id, VALUES(last_sender_id), last_sender_id), "
+            + "last_message_preview = IF(VALUES(last_message_id) > last_message_id, VALUES(last_message_preview), last_message_preview), "
+            + "last_message_type = IF(VALUES(last_message_id) > last_message_id, VALUES(last_message_type), last_message_type), "
+            + "last_activity_time = IF(VALUES(last_message_id) > last_message_id, VALUES(last_activity_time), last_activity_time), "
+            + "unread_count = unread_count + VALUES(unread_count), "
+            + "last_message_id = GREATEST(last_message_id, VALUES(last_message_id))";
+
+    @Value("${im.message.persistence.queue-capacity:10000}")
+    private int queueCapacity;
+
+    @Value("${im.message.persistence.batch-size:200}")
+    private int batchSize;
+
+    @Value("${im.message.persistence.flush-interval-ms:20}")
+    private long flushIntervalMs;
+
+    @Value("${im.message.persistence.offer-timeout-ms:100}")
+    private long offerTimeoutMs;
+
+    @Value("${im.message.persistence.lock-retries:3}")
+    private int lockRetries;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    @Autowired
+    private UnreadCounterStore unreadCounterStore;
+
+    private TransactionTemplate transactionTemplate;
+
+    private BlockingQueue<PendingMessage> queue;
+
+    private Thread writerThread;
+
+    private volatile boolean running;
+
+    @PostConstruct
+    public void start() {
+        transactionTemplate = new TransactionTemplate(transactionManager);
+        queue = new ArrayBlockingQueue<>(queueCapacity);
+        running = true;
+        writerThread = new Thread(this::writeLoop, "message-writer");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    @PreDestroy
+    public void stop() throws InterruptedException {
+        // 停止接收新消息，写线程会把队列中剩余的消息刷完再退出
+        running = false;
+        writerThread.join(TimeUnit.SECONDS.toMillis(10));
+        // 与停止同时入队、写线程退出后才到达的消息不会再被写入，直接以失败完成
+        if (!writerThread.isAlive()) {
+            List<PendingMessage> late = new ArrayList<>();
+            queue.drainTo(late);
+            if (!late.isEmpty()) {
+                fail(late, new RejectedExecutionException("消息持久化服务已停止"));
+            }
+        }
+    }
+
+    /**
+     * 提交一条待持久化的消息
+     * 队列已满时最多等待offerTimeoutMs，仍无法入队则抛出RejectedExecutionException，
+     * 由调用方向客户端反馈数据库繁忙
+     *
+     * @param message 待保存的消息
+     * @return 批次提交后完成的Future
+     */
+    public CompletableFuture<Message> submit(Message message) {
+        if (!running) {
+            throw new RejectedExecutionException("消息持久化服务已停止");
+        }
+        PendingMessage pending = new PendingMessage(message);
+        boolean accepted;
+        try {
+            accepted = queue.offer(pending, offerTimeoutMs, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            accepted = false;
+        }
+        if (!accepted) {
+            throw new RejectedExecutionException("消息持久化队列已满，数据库写入繁忙");
+        }
+        return pending.future;
+    }
+
+    /**
+     * 当前排队等待写入的消息数量
+     */
+    public int getQueueSize() {
+        return queue.size();
+    }
+
+    private void writeLoop() {
+        List<PendingMessage> batch = new ArrayList<>(batchSize);
+        boolean interrupted = false;
+        while (running) {
+            try {
+                collect(batch);
+            } catch (InterruptedException e) {
+                // 中断视为停止信号，已收集的消息照常写入，剩余消息在下面不阻塞地排空
+                interrupted = true;
+                running = false;
+            }
+            flushQuietly(batch);
+        }
+        // 已停止接收新消息：按批排空队列，不再阻塞等待，也不在排空前恢复中断标记，
+        // 否则获取数据库连接等阻塞调用会立即失败
+        while (queue.drainTo(batch, batchSize) > 0) {
+            flushQuietly(batch);
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 阻塞等待第一条消息，再在时间窗口内继续收集，直到凑满一个批次
+     */
+    private void collect(List<PendingMessage> batch) throws InterruptedException {
+        PendingMessage first = queue.poll(flushIntervalMs, TimeUnit.MILLISECONDS);
+        if (first == null) {
+            return;
+        }
+        batch.add(first);
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(flushIntervalMs);
+        while (batch.size() < batchSize) {
+            if (queue.drainTo(batch, batchSize - batch.size()) > 0) {
+                continue;
+            }
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                break;
+            }
+            PendingMessage next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+            if (next == null) {
+                break;
+            }
+            batch.add(next);
+        }
+    }
+
+    /**
+     * 写入并清空批次，任何异常都以失败完成批次中尚未完成的Future，保证发送方不会一直等待
+     */
+    private void flushQuietly(List<PendingMessage> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        try {
+            flush(batch);
+        } catch (RuntimeException e) {
+            System.err.println("消息批量写入线程异常: " + e.getMessage());
+            fail(batch, e);
+        } finally {
+            batch.clear();
+        }
+    }
+
+    private void flush(List<PendingMessage> batch) {
+        flush(batch, 0);
+    }
+
+    private void flush(List<PendingMessage> batch, int attempt) {
+        List<Message> counted = new ArrayList<>();
+        try {
+            transactionTemplate.execute(status -> jdbcTemplate.execute((ConnectionCallback<Void>) connection -> {
+                List<PendingMessage> toInsert = resolveDuplicates(connection, batch);
+                insert(connection, toInsert);
+                upsertConversations(connection, toInsert);
+                // 未读计数在提交前计入：提交前的标记已读看不到这些消息，不会扣除；
+                // 提交后的标记已读扣除的是已经计入的数，不会先扣到0再被迟到的递增补成多余的未读
+                countUnread(toInsert, counted);
+                return null;
+            }));
+        } catch (DataIntegrityViolationException e) {
+            uncountUnread(counted);
+            if (batch.size() > 1) {
+                // 批次中有违反约束的消息（如并发重发命中唯一约束），逐条重写以隔离出问题的消息
+                for (PendingMessage pending : batch) {
+                    pending.duplicateOf = null;
+                    flush(Collections.singletonList(pending));
+                }
+                return;
+            }
+            fail(batch, e);
+            return;
+        } catch (DeadlockLoserDataAccessException | CannotAcquireLockException e) {
+            uncountUnread(counted);
+            if (attempt < lockRetries) {
+                // 事务已整体回滚，没有消息写入，查重结果也随之作废，整批重写
+                System.err.println("消息批量写入遇到锁冲突，第 " + (attempt + 1) + " 次重试: " + e.getMessage());
+                for (PendingMessage pending : batch) {
+                    pending.duplicateOf = null;
+                }
+                flush(batch, attempt + 1);
+                return;
+            }
+            fail(batch, e);
+            return;
+        } catch (Exception e) {
+            uncountUnread(counted);
+            fail(batch, e);
+            return;
+        }
+        // 事务已提交，通知各消息的等待方
+        for (PendingMessage pending : batch) {
+            if (pending.duplicateOf != null) {
+                pending.future.completeExceptionally(new DuplicateMessageException(pending.duplicateOf));
+            } else {
+                pending.future.complete(pending.message);
+            }
+        }
+    }
+
+    private void countUnread(List<PendingMessage> inserted, List<Message> counted) {
+        for (PendingMessage pending : inserted) {
+            Message message = pending.message;
+            try {
+                unreadCounterStore.increment(message.getReceiverId(), message.getSenderId());
+                counted.add(message);
+            } catch (RuntimeException e) {
+                // 内存计数的失败不能回滚已经写入的消息，计数在下次启动重建时恢复
+                System.err.println("更新未读计数失败，消息ID: " + message.getId() + "，原因: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * 事务未提交，撤销本批次已计入的未读数
+     */
+    private void uncountUnread(List<Message> counted) {
+        for (Message message : counted) {
+            unreadCounterStore.subtract(message.getReceiverId(), message.getSenderId(), 1);
+        }
+        counted.clear();
+    }
+
+    private void fail(List<PendingMessage> batch, Exception e) {
+        System.err.println("消息批量写入失败，批次大小: " + batch.size() + "，原因: " + e.getMessage());
+        for (PendingMessage pending : batch) {
+            pending.future.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * 按(发送者ID, 客户端消息ID)查出已经写入过的消息，标记为重复并从待插入列表中剔除
+     */
+    private List<PendingMessage> resolveDuplicates(Connection connection, List<PendingMessage> batch) throws SQLException {
+        Map<String, PendingMessage> keyed = new HashMap<>();
+        StringBuilder sql = new StringBuilder(FIND_BY_CLIENT_ID_SQL).append('(');
+        for (PendingMessage pending : batch) {
+            Message message = pending.message;
+            if (message.getClientMessageId() != null) {
+                sql.append(keyed.isEmpty() ? "(?, ?)" : ", (?, ?)");
+                keyed.put(message.getSenderId() + ":" + message.getClientMessageId(), pending);
+            }
+        }
+        if (keyed.isEmpty()) {
+            return batch;
+        }
+        sql.append(')');
+        try (PreparedStatement ps = connection.prepareStatement(sql.toString())) {
+            int index = 1;
+            for (PendingMessage pending : batch) {
+                if (pending.message.getClientMessageId() != null) {
+                    ps.setLong(index++, pending.message.getSenderId());
+                    ps.setLong(index++, pending.message.getClientMessageId());
+                }
+            }
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    PendingMessage pending = keyed.get(rs.getLong("sender_id") + ":" + rs.getLong("client_message_id"));
+                    if (pending != null) {
+                        pending.duplicateOf = mapMessage(rs);
+                    }
+                }
+            }
+        }
+        List<PendingMessage> toInsert = new ArrayList<>(batch.size());
+        for (PendingMessage pending : batch) {
+            if (pending.duplicateOf == null) {
+                toInsert.add(pending);
+            }
+        }
+        return toInsert;
+    }
+
+    private void insert(Connection connection, List<PendingMessage> batch) throws SQLException {
+        if (batch.isEmpty()) {
+            return;
+        }
+        try (PreparedStatement ps = connection.prepareStatement(INSERT_SQL)) {
+            for (PendingMessage pending : batch) {
+                Message message = pending.message;
+                ps.setLong(1, message.getId());
+                ps.setLong(2, message.getSenderId());
+                ps.setLong(3, message.getReceiverId());
+                ps.setString(4, message.getContent());
+                ps.setString(5, message.getType().name());
+                ps.setBoolean(6, Boolean.TRUE.equals(message.getIsRead()));
+                ps.setTimestamp(7, Timestamp.valueOf(message.getSentTime()));
+                if (message.getClientMessageId() != null) {
+                    ps.setLong(8, message.getClientMessageId());
+                } else {
+                    ps.setNull(8, Types.BIGINT);
+                }
+                ps.addBatch();
+            }
+            ps.executeBatch();
+        }
+    }
+
+    /**
+     * 更新批次涉及的会话摘要
+     * 先在内存中按(所属用户, 对方)合并，每个会话只保留批次内最新的消息并累计未读数，每个会话只写一行
+     */
+    private void upsertConversations(Connection connection, List<PendingMessage> inserted) throws SQLException {
+        if (inserted.isEmpty()) {
+            return;
+        }
+        Map<Conversation.ConversationId, ConversationDelta> deltas = new TreeMap<>(CONVERSATION_ORDER);
+        for (PendingMessage pending : inserted) {
+            Message message = pending.message;
+            // 发送者一侧只更新最新消息，接收者一侧同时累加未读数；发给自己的消息两侧合并为同一行
+            deltas.computeIfAbsent(new Conversation.ConversationId(message.getSenderId(), message.getReceiverId()),
+                    key -> new ConversationDelta()).apply(message, 0);
+            deltas.computeIfAbsent(new Conversation.ConversationId(message.getReceiverId(), message.getSenderId()),
+                    key -> new ConversationDelta()).apply(message, 1);
+        }
+        try (PreparedStatement ps = connection.prepareStatement(UPSERT_CONVERSATION_SQL)) {
+            for (Map.Entry<Conversation.ConversationId, ConversationDelta> entry : deltas.entrySet()) {
+                Message last = entry.getValue().last;
+                ps.setLong(1, entry.getKey().getOwnerId());
+                ps.setLong(2, entry.getKey().getPeerId());
+                ps.setLong(3, last.getId());
+                ps.setLong(4, last.getSenderId());
+                ps.setString(5, ConversationService.preview(last.getContent()));
+                ps.setString(6, last.getType().name());
+                ps.setTimestamp(7, Timestamp.valueOf(last.getSentTime()));
+                ps.setInt(8, entry.getValue().unread);
+                ps.addBatch();
+            }
+            ps.executeBatch();
+        }
+    }
+
+    private static Message mapMessage(ResultSet rs) throws SQLException {
+        Message message = new Message();
+        message.setId(rs.getLong("id"));
+        message.setSenderId(rs.getLong("sender_id"));
+        message.setReceiverId(rs.getLong("receiver_id"));
+        message.setContent(rs.getString("content"));
+        message.setType(Message.MessageType.valueOf(rs.getString("type")));
+        message.setIsRead(rs.getBoolean("is_read"));
+        Timestamp sentTime = rs.getTimestamp("sent_time");
+        message.setSentTime(sentTime != null ? sentTime.toLocalDateTime() : null);
+        message.setClientMessageId(rs.getLong("client_message_id"));
+        return message;
+    }
+
+    /**
+     * 按主键顺序写入会话摘要，与其他事务（如标记已读）以相同顺序加锁
+     */
+    private static final Comparator<Conversation.ConversationId> CONVERSATION_ORDER =
+            Comparator.comparing(Conversation.ConversationId::getOwnerId).thenComparing(Conversation.ConversationId::getPeerId);
+
+    private static class ConversationDelta {
+        private Message last;
+        private int unread;
+
+        private void apply(Message message, int unreadIncrement) {
+            if (last == null || message.getId() > last.getId()) {
+                last = message;
+            }
+            unread += unreadIncrement;
+        }
+    }
+
+    private static class PendingMessage {
+        private final Message message;
+        private final CompletableFuture<Message> future = new CompletableFuture<>();
+        /**
+         * 数据库中已存在的相同客户端消息ID的消息
+         */
+        private Message duplicateOf;
+
+        private PendingMessage(Message message) {
+            this.message = message;
+        }
+    }
+}
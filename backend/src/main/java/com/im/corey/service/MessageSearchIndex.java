@@ -0,0 +1,826 @@
+package com.im.corey.service;
+
+import com.im.corey.model.Message;
+import com.im.corey.repository.MessageRepository;
+import com.im.corey.util.MessageTokenizer;
+import com.im.corey.util.PostingsSegment;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 进程内消息全文倒排索引
+ * 键为(用户ID, 词)，每条消息分别为发送者和接收者建立倒排，查询天然限定在当前用户参与的会话内；
+ * 倒排中同时保存会话对方ID，按聊天对象过滤时无需回表。
+ * 新消息先写入内存段，达到阈值或时间间隔后由后台线程写成只读段文件，段文件过多时合并较小的段；
+ * 当前有效的段和连续索引水位记录在清单文件中：ID不大于水位的消息都已写入段文件。
+ * 索引线程从水位开始按ID顺序尾随读取数据库（启动时补建，之后按间隔持续读取），只读到已提交水位为止，
+ * 集群中其他节点写入的消息也由此进入本节点的索引；水位只随尾随读取的进度推进，
+ * 中途退出时下次启动从中断处继续，不会因本节点保存路径写入的较大ID而跳过尚未读到的消息
+ */
+@Component
+public class MessageSearchIndex {
+
+    private static final String MANIFEST = "segments";
+
+    /**
+     * 清单格式版本，分词规则或清单格式变化时递增，旧版本的索引在启动时丢弃并从数据库重建
+     */
+    private static final String MANIFEST_VERSION = "version 2";
+
+    private static final String WATERMARK_PREFIX = "indexed-up-to ";
+
+    private static final String SEGMENT_PREFIX = "seg-";
+
+    private static final String SEGMENT_SUFFIX = ".idx";
+
+    @Value("${im.search.enabled:true}")
+    private boolean enabled;
+
+    @Value("${im.search.directory:data/search}")
+    private String directory;
+
+    @Value("${im.search.flush-threshold:1000000}")
+    private int flushThreshold;
+
+    @Value("${im.search.flush-interval-ms:60000}")
+    private long flushIntervalMs;
+
+    @Value("${im.search.max-segments:8}")
+    private int maxSegments;
+
+    @Value("${im.search.max-segment-mb:1024}")
+    private long maxSegmentMb;
+
+    @Value("${im.search.sparse-interval:64}")
+    private int sparseInterval;
+
+    @Value("${im.search.catch-up-batch-size:1000}")
+    private int catchUpBatchSize;
+
+    @Value("${im.search.tail-interval-ms:1000}")
+    private long tailIntervalMs;
+
+    @Autowired
+    private MessageRepository messageRepository;
+
+    @Autowired
+    private MessageCommitWatermark messageCommitWatermark;
+
+    private Path root;
+
+    private volatile MemorySegment active = new MemorySegment();
+
+    /**
+     * 正在写成段文件的内存段，写完并发布后置空；查询期间仍然可见
+     */
+    private volatile MemorySegment flushing;
+
+    private volatile List<PostingsSegment> segments = Collections.emptyList();
+
+    private final AtomicLong segmentSequence = new AtomicLong();
+
+    /**
+     * 连续索引水位，与清单文件一致，只由索引线程修改
+     */
+    private volatile long indexedUpTo;
+
+    /**
+     * 尾随读取已读到的最大消息ID，只由索引线程访问
+     */
+    private long catchUpCursor;
+
+    /**
+     * 启动补建是否已追上数据库
+     */
+    private volatile boolean caughtUp;
+
+    /**
+     * 保存路径已写入索引、尾随读取尚未读到的消息ID，尾随读取读到时跳过，不重复写入内存段
+     */
+    private final ConcurrentSkipListSet<Long> indexedAhead = new ConcurrentSkipListSet<>();
+
+    private final Object flushSignal = new Object();
+
+    private Thread indexerThread;
+
+    private volatile boolean running;
+
+    @PostConstruct
+    public void start() throws IOException {
+        if (!enabled) {
+            return;
+        }
+        root = Paths.get(directory).toAbsolutePath();
+        Files.createDirectories(root);
+        segments = loadSegments();
+        // 水位之下的消息都已提交并写入段文件，从水位继续读取即可
+        catchUpCursor = indexedUpTo;
+        running = true;
+        indexerThread = new Thread(this::indexLoop, "message-indexer");
+        indexerThread.setDaemon(true);
+        indexerThread.start();
+    }
+
+    @PreDestroy
+    public void stop() throws InterruptedException {
+        if (indexerThread == null) {
+            return;
+        }
+        // 停止后索引线程会把内存段写出再退出，未写出的部分在下次启动时从数据库补建
+        running = false;
+        synchronized (flushSignal) {
+            flushSignal.notifyAll();
+        }
+        indexerThread.join(TimeUnit.SECONDS.toMillis(10));
+    }
+
+    /**
+     * 为已保存的消息建立索引，由消息保存路径在写入提交后调用
+     */
+    public void index(Message message) {
+        if (!enabled || message.getId() == null) {
+            return;
+        }
+        // 先写入内存段再登记，尾随读取跳过时该消息一定已在活动段或更早的段中
+        add(message);
+        indexedAhead.add(message.getId());
+    }
+
+    private void add(Message message) {
+        Set<String> tokens = MessageTokenizer.tokenize(message.getContent());
+        if (tokens.isEmpty()) {
+            return;
+        }
+        while (!active.add(message, tokens)) {
+            // 内存段刚被冻结，改写新的内存段
+        }
+        if (active.postings >= flushThreshold) {
+            synchronized (flushSignal) {
+                flushSignal.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * 查找用户参与的会话中同时包含查询中所有词的消息
+     * 结果只是候选，分词为二元词后可能有误匹配，调用方需要按消息内容再做校验。
+     * 每个段的倒排先二分定位到before，再按ID倒序惰性归并，调用方取够一页即可停止
+     *
+     * @param userId 当前用户ID
+     * @param query 查询文本
+     * @param peerId 只查与该用户的会话，为空时查全部会话
+     * @param before 只返回ID小于该值的消息
+     * @return 按消息ID倒序逐个产生的候选消息ID及其会话对方ID
+     */
+    public Candidates search(Long userId, String query, Long peerId, long before) {
+        Set<String> tokens = MessageTokenizer.tokenizeQuery(query);
+        if (!enabled || tokens.isEmpty()) {
+            return new Candidates(Collections.emptyList(), peerId);
+        }
+        // 依次读取活动段、待写出段、段文件，与flush的发布顺序相反，保证不会漏掉正在写出的内存段
+        MemorySegment current = active;
+        MemorySegment pending = flushing;
+        List<PostingsSegment> files = segments;
+
+        List<TermPostings> terms = new ArrayList<>(tokens.size());
+        for (String token : tokens) {
+            TermPostings postings = new TermPostings(before);
+            for (PostingsSegment segment : files) {
+                postings.add(segment.lookup(userId, token));
+            }
+            if (pending != null) {
+                postings.add(pending.get(userId, token));
+            }
+            postings.add(current.get(userId, token));
+            if (postings.remaining == 0) {
+                return new Candidates(Collections.emptyList(), peerId);
+            }
+            terms.add(postings);
+        }
+        // 遍历最短的倒排，其余倒排用二分查找判断是否包含
+        terms.sort(Comparator.comparingInt(postings -> postings.remaining));
+        return new Candidates(terms, peerId);
+    }
+
+    /**
+     * 按消息ID倒序逐个产生的候选结果
+     */
+    public static final class Candidates {
+        private final TermPostings driver;
+        private final List<TermPostings> others;
+        private final Long peerId;
+        private long id;
+        private long peer;
+
+        private Candidates(List<TermPostings> terms, Long peerId) {
+            this.driver = terms.isEmpty() ? null : terms.get(0);
+            this.others = terms.isEmpty() ? Collections.emptyList() : terms.subList(1, terms.size());
+            this.peerId = peerId;
+        }
+
+        /**
+         * 前进到下一个候选，没有更多候选时返回false
+         */
+        public boolean next() {
+            if (driver == null) {
+                return false;
+            }
+            while (driver.advance()) {
+                if (peerId != null && driver.peer != peerId) {
+                    continue;
+                }
+                boolean matched = true;
+                for (int j = 0; j < others.size() && matched; j++) {
+                    matched = others.get(j).contains(driver.id);
+                }
+                if (matched) {
+                    id = driver.id;
+                    peer = driver.peer;
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        public long getPeerId() {
+            return peer;
+        }
+    }
+
+    /**
+     * 一个词在各段中的倒排，只保留ID小于before的部分，按ID倒序归并
+     */
+    private static final class TermPostings {
+        private final long before;
+        private final List<PostingsSegment.Entry> parts = new ArrayList<>();
+        /**
+         * 各段下一个待读取的位置，倒序递减
+         */
+        private int[] positions = new int[4];
+        /**
+         * 尚未读取的倒排数，用于选择最短的倒排
+         */
+        private int remaining;
+        private long id;
+        private long peer;
+        private boolean started;
+
+        private TermPostings(long before) {
+            this.before = before;
+        }
+
+        private void add(PostingsSegment.Entry entry) {
+            if (entry == null || entry.getSize() == 0) {
+                return;
+            }
+            int end = lowerBound(entry.getIds(), entry.getSize(), before);
+            if (end == 0) {
+                return;
+            }
+            if (parts.size() == positions.length) {
+                positions = Arrays.copyOf(positions, positions.length * 2);
+            }
+            positions[parts.size()] = end - 1;
+            parts.add(entry);
+            remaining += end;
+        }
+
+        /**
+         * 取出各段中剩余的最大ID，多个段中重复的ID只产生一次
+         */
+        private boolean advance() {
+            while (true) {
+                int best = -1;
+                long bestId = Long.MIN_VALUE;
+                for (int p = 0; p < parts.size(); p++) {
+                    if (positions[p] >= 0 && parts.get(p).getIds()[positions[p]] > bestId) {
+                        best = p;
+                        bestId = parts.get(p).getIds()[positions[p]];
+                    }
+                }
+                if (best < 0) {
+                    return false;
+                }
+                long nextPeer = parts.get(best).getPeers()[positions[best]];
+                positions[best]--;
+                remaining--;
+                if (started && bestId == id) {
+                    continue;
+                }
+                started = true;
+                id = bestId;
+                peer = nextPeer;
+                return true;
+            }
+        }
+
+        private boolean contains(long id) {
+            for (PostingsSegment.Entry part : parts) {
+                if (Arrays.binarySearch(part.getIds(), 0, part.getSize(), id) >= 0) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * 有序数组中第一个不小于value的位置
+         */
+        private static int lowerBound(long[] values, int size, long value) {
+            int low = 0;
+            int high = size;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (values[mid] < value) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+    }
+
+    private void indexLoop() {
+        tryCatchUp();
+        long lastFlush = System.currentTimeMillis();
+        long lastTail = lastFlush;
+        while (running) {
+            try {
+                synchronized (flushSignal) {
+                    if (running && active.postings < flushThreshold) {
+                        flushSignal.wait(Math.max(1L, Math.min(tailIntervalMs, flushIntervalMs)));
+                    }
+                }
+                if (System.currentTimeMillis() - lastTail >= tailIntervalMs) {
+                    // 读取失败（如数据库暂时不可用）时下个间隔从中断处继续
+                    tryCatchUp();
+                    lastTail = System.currentTimeMillis();
+                }
+                boolean due = System.currentTimeMillis() - lastFlush >= flushIntervalMs;
+                if (active.postings >= flushThreshold || (due && active.postings > 0)) {
+                    flush();
+                    mergeIfNeeded();
+                    lastFlush = System.currentTimeMillis();
+                } else if (due) {
+                    lastFlush = System.currentTimeMillis();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                running = false;
+            } catch (Exception e) {
+                System.err.println("消息索引写出失败: " + e.getMessage());
+            }
+        }
+        try {
+            flush();
+        } catch (Exception e) {
+            System.err.println("消息索引写出失败: " + e.getMessage());
+        }
+    }
+
+    private void tryCatchUp() {
+        try {
+            catchUp();
+        } catch (Exception e) {
+            System.err.println("消息索引补建失败: " + e.getMessage());
+        }
+    }
+
+    /**
+     * 从游标开始按ID顺序读取数据库中已提交的消息并写入索引，读到已提交水位为止；
+     * 只读到已提交水位，游标不会越过仍在写入的较小ID
+     */
+    private void catchUp() throws IOException {
+        int indexed = 0;
+        long maxId = messageCommitWatermark.committedWatermark();
+        boolean reachedEnd = false;
+        while (running) {
+            List<Message> batch = messageRepository.findRange(catchUpCursor, maxId,
+                    PageRequest.of(0, catchUpBatchSize));
+            for (Message message : batch) {
+                // 保存路径已经写入的消息不再重复写入内存段
+                if (!indexedAhead.remove(message.getId())) {
+                    add(message);
+                    indexed++;
+                }
+            }
+            if (!batch.isEmpty()) {
+                catchUpCursor = batch.get(batch.size() - 1).getId();
+            }
+            if (batch.size() < catchUpBatchSize) {
+                reachedEnd = true;
+                break;
+            }
+            if (active.postings >= flushThreshold) {
+                flush();
+                mergeIfNeeded();
+            }
+        }
+        // 保存路径在游标越过之后才写入的ID不会再被读到，不再保留
+        indexedAhead.headSet(catchUpCursor, true).clear();
+        if (!reachedEnd) {
+            return;
+        }
+        // 没有待写出的倒排时（如读到的消息都没有可索引的内容）也要记录推进后的水位
+        if (active.postings == 0) {
+            flush();
+        }
+        if (!caughtUp) {
+            caughtUp = true;
+            System.out.println("消息索引补建完成，消息数: " + indexed);
+        }
+    }
+
+    /**
+     * 把活动内存段写成段文件
+     */
+    private void flush() throws IOException {
+        MemorySegment frozen = active;
+        if (frozen.postings == 0) {
+            if (catchUpCursor > indexedUpTo) {
+                publish(segments, catchUpCursor);
+            }
+            return;
+        }
+        flushing = frozen;
+        active = new MemorySegment();
+        frozen.freeze();
+        // 内存段中较大的ID可能来自保存路径，与尾随读取的进度之间可能有空洞，水位只能取尾随读取的游标
+        long watermark = Math.max(indexedUpTo, catchUpCursor);
+        Path path = writeSegment(frozen.maxMessageId, frozen.sortedEntries().iterator());
+        List<PostingsSegment> updated = new ArrayList<>(segments);
+        updated.add(PostingsSegment.open(path));
+        publish(updated, watermark);
+        flushing = null;
+    }
+
+    /**
+     * 段文件数超过上限时，把最小的若干个段合并为一个，合并结果不超过单段大小上限
+     */
+    private void mergeIfNeeded() throws IOException {
+        List<PostingsSegment> current = segments;
+        if (current.size() <= maxSegments) {
+            return;
+        }
+        List<PostingsSegment> bySize = new ArrayList<>(current);
+        bySize.sort(Comparator.comparingLong(PostingsSegment::getSizeInBytes));
+        long limit = maxSegmentMb * 1024 * 1024;
+        List<PostingsSegment> toMerge = new ArrayList<>();
+        long total = 0;
+        long maxMessageId = 0;
+        // 只合并恢复到上限所需的最小段数，避免每次都重写大段
+        int mergeCount = Math.max(2, current.size() - maxSegments + 1);
+        for (PostingsSegment segment : bySize) {
+            if (toMerge.size() >= mergeCount || (toMerge.size() >= 2 && total + segment.getSizeInBytes() > limit)) {
+                break;
+            }
+            toMerge.add(segment);
+            total += segment.getSizeInBytes();
+            maxMessageId = Math.max(maxMessageId, segment.getMaxMessageId());
+        }
+        if (total > limit) {
+            // 最小的两个段合并后也超过上限，保持现状
+            return;
+        }
+        Path path = writeSegment(maxMessageId, new MergingIterator(toMerge));
+        List<PostingsSegment> updated = new ArrayList<>(current);
+        updated.removeAll(toMerge);
+        updated.add(PostingsSegment.open(path));
+        publish(updated, indexedUpTo);
+        for (PostingsSegment segment : toMerge) {
+            deleteQuietly(segment.getPath());
+        }
+    }
+
+    private Path writeSegment(long maxMessageId, Iterator<PostingsSegment.Entry> entries) throws IOException {
+        String name = SEGMENT_PREFIX + segmentSequence.incrementAndGet() + SEGMENT_SUFFIX;
+        Path temp = root.resolve(name + ".tmp");
+        PostingsSegment.write(temp, maxMessageId, entries, sparseInterval);
+        Path path = root.resolve(name);
+        Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE);
+        return path;
+    }
+
+    /**
+     * 先原子替换清单文件，再对查询发布新的段列表
+     */
+    private void publish(List<PostingsSegment> updated, long watermark) throws IOException {
+        StringBuilder manifest = new StringBuilder();
+        manifest.append(MANIFEST_VERSION).append('\n');
+        manifest.append(WATERMARK_PREFIX).append(watermark).append('\n');
+        for (PostingsSegment segment : updated) {
+            manifest.append(segment.getPath().getFileName()).append('\n');
+        }
+        Path temp = root.resolve(MANIFEST + ".tmp");
+        Files.write(temp, manifest.toString().getBytes(StandardCharsets.UTF_8));
+        Files.move(temp, root.resolve(MANIFEST), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        segments = Collections.unmodifiableList(updated);
+        indexedUpTo = watermark;
+    }
+
+    /**
+     * 加载清单中的段文件和水位，清理不在清单中的残留文件（写出或合并中途退出留下的）；
+     * 清单版本不一致时丢弃全部段文件，从头重建
+     */
+    private List<PostingsSegment> loadSegments() throws IOException {
+        Set<String> live = new HashSet<>();
+        long watermark = 0L;
+        Path manifest = root.resolve(MANIFEST);
+        if (Files.exists(manifest)) {
+            List<String> lines = Files.readAllLines(manifest, StandardCharsets.UTF_8);
+            if (!lines.isEmpty() && MANIFEST_VERSION.equals(lines.get(0).trim())) {
+                for (String line : lines.subList(1, lines.size())) {
+                    String name = line.trim();
+                    if (name.startsWith(WATERMARK_PREFIX)) {
+                        watermark = Long.parseLong(name.substring(WATERMARK_PREFIX.length()).trim());
+                    } else if (!name.isEmpty()) {
+                        live.add(name);
+                    }
+                }
+            } else {
+                System.out.println("消息索引格式已变更，将从数据库重建索引");
+            }
+        }
+        List<PostingsSegment> loaded = new ArrayList<>();
+        long maxSequence = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(root, SEGMENT_PREFIX + "*")) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                if (!live.contains(name)) {
+                    deleteQuietly(file);
+                    continue;
+                }
+                loaded.add(PostingsSegment.open(file));
+                String sequence = name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length());
+                maxSequence = Math.max(maxSequence, Long.parseLong(sequence));
+            }
+        }
+        segmentSequence.set(maxSequence);
+        indexedUpTo = watermark;
+        return Collections.unmodifiableList(loaded);
+    }
+
+    private static void deleteQuietly(Path path) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            // 段文件仍被映射时部分系统不允许删除，留待下次启动时清理
+            System.err.println("删除索引段文件失败: " + path + "，原因: " + e.getMessage());
+        }
+    }
+
+    /**
+     * 合并两个按ID升序、不重复的倒排，任一为null时返回另一个
+     */
+    private static PostingsSegment.Entry union(PostingsSegment.Entry a, PostingsSegment.Entry b) {
+        if (a == null || a.getSize() == 0) {
+            return b;
+        }
+        if (b == null || b.getSize() == 0) {
+            return a;
+        }
+        long[] ids = new long[a.getSize() + b.getSize()];
+        long[] peers = new long[ids.length];
+        int i = 0;
+        int j = 0;
+        int size = 0;
+        while (i < a.getSize() || j < b.getSize()) {
+            long next;
+            long peer;
+            if (j >= b.getSize() || (i < a.getSize() && a.getIds()[i] <= b.getIds()[j])) {
+                next = a.getIds()[i];
+                peer = a.getPeers()[i++];
+            } else {
+                next = b.getIds()[j];
+                peer = b.getPeers()[j++];
+            }
+            if (size == 0 || ids[size - 1] != next) {
+                ids[size] = next;
+                peers[size] = peer;
+                size++;
+            }
+        }
+        return new PostingsSegment.Entry(a.getUserId(), a.getToken(), ids, peers, size);
+    }
+
+    /**
+     * 多个段文件按键归并，相同键的倒排合并去重
+     */
+    private static final class MergingIterator implements Iterator<PostingsSegment.Entry> {
+        private final PriorityQueue<Cursor> queue = new PriorityQueue<>((x, y) -> PostingsSegment.compare(
+                x.current.getUserId(), x.current.getToken(), y.current.getUserId(), y.current.getToken()));
+
+        private MergingIterator(List<PostingsSegment> segments) {
+            for (PostingsSegment segment : segments) {
+                Cursor cursor = new Cursor(segment.iterator());
+                if (cursor.advance()) {
+                    queue.add(cursor);
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !queue.isEmpty();
+        }
+
+        @Override
+        public PostingsSegment.Entry next() {
+            if (queue.isEmpty()) {
+                throw new NoSuchElementException();
+            }
+            Cursor head = queue.poll();
+            PostingsSegment.Entry merged = head.current;
+            if (head.advance()) {
+                queue.add(head);
+            }
+            while (!queue.isEmpty() && PostingsSegment.compare(queue.peek().current.getUserId(),
+                    queue.peek().current.getToken(), merged.getUserId(), merged.getToken()) == 0) {
+                Cursor same = queue.poll();
+                merged = union(merged, same.current);
+                if (same.advance()) {
+                    queue.add(same);
+                }
+            }
+            return merged;
+        }
+
+        private static final class Cursor {
+            private final Iterator<PostingsSegment.Entry> iterator;
+            private PostingsSegment.Entry current;
+
+            private Cursor(Iterator<PostingsSegment.Entry> iterator) {
+                this.iterator = iterator;
+            }
+
+            private boolean advance() {
+                current = iterator.hasNext() ? iterator.next() : null;
+                return current != null;
+            }
+        }
+    }
+
+    /**
+     * 内存中的可写段，冻结后不再接受写入
+     */
+    private static final class MemorySegment {
+        private final Map<TermKey, PostingBuffer> postingsByKey = new HashMap<>();
+        private volatile int postings;
+        private long maxMessageId;
+        private boolean frozen;
+
+        /**
+         * @return 段已冻结时返回false，调用方应改写新的活动段
+         */
+        private synchronized boolean add(Message message, Set<String> tokens) {
+            if (frozen) {
+                return false;
+            }
+            long id = message.getId();
+            long senderId = message.getSenderId();
+            long receiverId = message.getReceiverId();
+            for (String token : tokens) {
+                postingsByKey.computeIfAbsent(new TermKey(senderId, token), k -> new PostingBuffer()).add(id, receiverId);
+                if (senderId != receiverId) {
+                    postingsByKey.computeIfAbsent(new TermKey(receiverId, token), k -> new PostingBuffer()).add(id, senderId);
+                }
+            }
+            postings += senderId != receiverId ? tokens.size() * 2 : tokens.size();
+            maxMessageId = Math.max(maxMessageId, id);
+            return true;
+        }
+
+        private synchronized void freeze() {
+            frozen = true;
+        }
+
+        private synchronized PostingsSegment.Entry get(long userId, String token) {
+            PostingBuffer buffer = postingsByKey.get(new TermKey(userId, token));
+            return buffer != null ? buffer.toEntry(userId, token) : null;
+        }
+
+        /**
+         * 按键排序后的全部条目，只在冻结后调用
+         */
+        private synchronized List<PostingsSegment.Entry> sortedEntries() {
+            List<TermKey> keys = new ArrayList<>(postingsByKey.keySet());
+            keys.sort((x, y) -> PostingsSegment.compare(x.userId, x.token, y.userId, y.token));
+            List<PostingsSegment.Entry> entries = new ArrayList<>(keys.size());
+            for (TermKey key : keys) {
+                entries.add(postingsByKey.get(key).toEntry(key.userId, key.token));
+            }
+            return entries;
+        }
+    }
+
+    private static final class TermKey {
+        private final long userId;
+        private final String token;
+
+        private TermKey(long userId, String token) {
+            this.userId = userId;
+            this.token = token;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof TermKey)) {
+                return false;
+            }
+            TermKey other = (TermKey) o;
+            return userId == other.userId && token.equals(other.token);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * Long.hashCode(userId) + token.hashCode();
+        }
+    }
+
+    /**
+     * 单个键在内存段中的倒排，按写入顺序追加，读取时排序去重
+     */
+    private static final class PostingBuffer {
+        private long[] ids = new long[4];
+        private long[] peers = new long[4];
+        private int size;
+        private boolean sorted = true;
+
+        private void add(long id, long peer) {
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+                peers = Arrays.copyOf(peers, size * 2);
+            }
+            if (size > 0 && id <= ids[size - 1]) {
+                sorted = false;
+            }
+            ids[size] = id;
+            peers[size] = peer;
+            size++;
+        }
+
+        private PostingsSegment.Entry toEntry(long userId, String token) {
+            if (!sorted) {
+                // 写入基本按ID递增，插入排序接近线性
+                for (int i = 1; i < size; i++) {
+                    long id = ids[i];
+                    long peer = peers[i];
+                    int j = i - 1;
+                    while (j >= 0 && ids[j] > id) {
+                        ids[j + 1] = ids[j];
+                        peers[j + 1] = peers[j];
+                        j--;
+                    }
+                    ids[j + 1] = id;
+                    peers[j + 1] = peer;
+                }
+                int unique = 0;
+                for (int i = 0; i < size; i++) {
+                    if (unique == 0 || ids[unique - 1] != ids[i]) {
+                        ids[unique] = ids[i];
+                        peers[unique] = peers[i];
+                        unique++;
+                    }
+                }
+                size = unique;
+                sorted = true;
+            }
+            return new PostingsSegment.Entry(userId, token, Arrays.copyOf(ids, size), Arrays.copyOf(peers, size), size);
+        }
+    }
+}
@@ -1,13 +1,27 @@
 package com.im.corey.service;
 
+import com.im.corey.dto.MessagePageDTO;
 import com.im.corey.model.Message;
+import com.im.corey.model.ReadWatermark;
 import com.im.corey.repository.MessageRepository;
+import com.im.corey.repository.ReadWatermarkRepository;
+import com.im.corey.util.MessageTokenizer;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
 
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 @Service
 public class MessageService {
@@ -15,54 +29,449 @@ public class MessageService {
     @Autowired
     private MessageRepository messageRepository;
 
+    @Autowired
+    private MessagePersistenceService messagePersistenceService;
+
+    @Autowired
+    private ReadWatermarkRepository readWatermarkRepository;
+
+    @Autowired
+    private UnreadCounterStore unreadCounterStore;
+
+    @Autowired
+    private MessageDedupTable messageDedupTable;
+
+    @Autowired
+    private MessageCommitWatermark messageCommitWatermark;
+
+    @Autowired
+    private ConversationService conversationService;
+
+    @Autowired
+    private MessageArchiveStore messageArchiveStore;
+
+    @Autowired
+    private MessageSearchIndex messageSearchIndex;
+
+    @Value("${im.message.page.default-size:20}")
+    private int defaultPageSize;
+
+    @Value("${im.message.page.max-size:100}")
+    private int maxPageSize;
+
+    /**
+     * 同步保存消息，重复发送时返回首次保存的消息
+     */
     public Message saveMessage(Message message) {
+        try {
+            return saveMessageAsync(message).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof DuplicateMessageException) {
+                return ((DuplicateMessageException) e.getCause()).getOriginal();
+            }
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * 异步保存消息，消息所在批次提交后Future完成
+     * 消息ID在入队前分配，返回时message中已带有最终的ID
+     * 带客户端消息ID的消息按(发送者ID, 客户端消息ID)去重：重复发送不会再次写入，
+     * Future以携带首次保存消息的DuplicateMessageException异常完成
+     */
+    public CompletableFuture<Message> saveMessageAsync(Message message) {
+        message.setId(messageCommitWatermark.assign());
         message.setSentTime(LocalDateTime.now());
         message.setIsRead(false);
-        return messageRepository.save(message);
+        if (message.getType() == null) {
+            message.setType(Message.MessageType.TEXT);
+        }
+        Long senderId = message.getSenderId();
+        Long clientMessageId = message.getClientMessageId();
+        if (clientMessageId == null) {
+            return persist(message);
+        }
+
+        CompletableFuture<Message> result = new CompletableFuture<>();
+        CompletableFuture<Message> existing = messageDedupTable.putIfAbsent(senderId, clientMessageId, result);
+        if (existing != null) {
+            // 重复发送不会写入，分配的ID随即放弃
+            messageCommitWatermark.release(message.getId());
+            return existing.thenApply(original -> {
+                throw new DuplicateMessageException(original);
+            });
+        }
+        try {
+            persist(message).whenComplete((saved, ex) -> {
+                if (ex == null) {
+                    result.complete(saved);
+                    return;
+                }
+                Throwable cause = ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() : ex;
+                if (!(cause instanceof DuplicateMessageException)) {
+                    // 保存失败，允许客户端以相同的ID重试
+                    messageDedupTable.remove(senderId, clientMessageId, result);
+                }
+                result.completeExceptionally(cause);
+            });
+        } catch (RuntimeException e) {
+            messageDedupTable.remove(senderId, clientMessageId, result);
+            throw e;
+        }
+        return result;
+    }
+
+    private CompletableFuture<Message> persist(Message message) {
+        CompletableFuture<Message> submitted;
+        try {
+            submitted = messagePersistenceService.submit(message);
+        } catch (RuntimeException e) {
+            messageCommitWatermark.release(message.getId());
+            throw e;
+        }
+        // 无论提交成功、失败还是判定为重复，这个ID此后都不会再出现在未提交的状态
+        return submitted.whenComplete((saved, ex) -> messageCommitWatermark.release(message.getId())).thenApply(saved -> {
+            // 消息已经落库（未读计数已由写线程在提交前计入），索引失败不能让发送方收到失败而重试
+            try {
+                messageSearchIndex.index(saved);
+            } catch (RuntimeException e) {
+                // 未写入索引的消息由索引线程尾随读取数据库时补上
+                System.err.println("消息索引失败，消息ID: " + saved.getId() + "，原因: " + e.getMessage());
+            }
+            return saved;
+        });
     }
 
     public List<Message> getMessagesBetweenUsers(Long senderId, Long receiverId) {
-        return messageRepository.findMessagesBetweenUsers(senderId, receiverId);
+        return applyReadState(messageRepository.findMessagesBetweenUsers(senderId, receiverId));
+    }
+
+    /**
+     * 按游标分页获取两个用户之间的消息
+     * 两个方向各自走(sender_id, receiver_id, id)索引取出size+1条后归并，
+     * 因此每页的开销只与页大小有关，与会话总消息数无关；
+     * 游标越过热数据范围后透明地从归档段文件读取；
+     * 最新一页和向后翻页只返回不超过已提交水位的消息，游标不会越过仍在写入的消息
+     *
+     * @param userId 会话一方的用户ID
+     * @param peerId 会话另一方的用户ID
+     * @param before 只返回ID小于该值的消息（向前翻历史），与after同时为空时返回最新一页
+     * @param after 只返回ID大于该值的消息（向后拉取新消息）
+     * @param size 页大小，超过上限时按上限处理
+     * @return 按ID升序排列的一页消息
+     */
+    public MessagePageDTO getMessagesBetweenUsers(Long userId, Long peerId, Long before, Long after, Integer size) {
+        int pageSize = size == null || size <= 0 ? defaultPageSize : Math.min(size, maxPageSize);
+
+        if (after != null) {
+            List<Message> merged = readAfter(userId, peerId, after, messageCommitWatermark.committedWatermark(),
+                    pageSize + 1);
+            boolean hasMore = merged.size() > pageSize;
+            List<Message> page = hasMore ? merged.subList(0, pageSize) : merged;
+            Long nextCursor = page.isEmpty() ? after : page.get(page.size() - 1).getId();
+            return new MessagePageDTO(applyReadState(new ArrayList<>(page)), hasMore, nextCursor);
+        }
+
+        // 最新一页的最大ID会被客户端用作向后翻页的游标
+        long beforeId = before != null ? before : messageCommitWatermark.committedWatermark() + 1;
+        List<Message> merged = readBefore(userId, peerId, beforeId, pageSize + 1);
+        boolean hasMore = merged.size() > pageSize;
+        List<Message> page = new ArrayList<>(hasMore ? merged.subList(0, pageSize) : merged);
+        // 倒序取出的页转换为升序返回
+        Collections.reverse(page);
+        Long nextCursor = page.isEmpty() ? before : page.get(0).getId();
+        return new MessagePageDTO(applyReadState(page), hasMore, nextCursor);
+    }
+
+    /**
+     * 按ID倒序读取会话中ID小于before的消息，最多limit条
+     * 会话中热表消息的ID都大于已归档的最大ID，先读热表，不足一页时再从归档段文件接着读；
+     * 归档后尚未从热表删除的消息以归档为准
+     */
+    private List<Message> readBefore(Long userId, Long peerId, long before, int limit) {
+        long archivedUpTo = messageArchiveStore.lastArchivedId(userId, peerId);
+        List<Message> result = new ArrayList<>(limit);
+        if (before > archivedUpTo + 1) {
+            PageRequest pageRequest = PageRequest.of(0, limit);
+            // 与自己的会话只有一个方向，两次查询会得到相同的行
+            List<Message> hot = mergeById(
+                    messageRepository.findDirectionalBefore(userId, peerId, before, pageRequest),
+                    userId.equals(peerId) ? Collections.emptyList()
+                            : messageRepository.findDirectionalBefore(peerId, userId, before, pageRequest),
+                    limit, true);
+            for (Message message : hot) {
+                if (message.getId() <= archivedUpTo) {
+                    break;
+                }
+                result.add(message);
+            }
+            if (result.size() >= limit) {
+                return result;
+            }
+        }
+        if (archivedUpTo > 0) {
+            long archiveBefore = Math.min(before, archivedUpTo + 1);
+            result.addAll(messageArchiveStore.readBefore(userId, peerId, archiveBefore, limit - result.size()));
+        }
+        return result;
+    }
+
+    /**
+     * 按ID升序读取会话中ID在(after, maxId]之间的消息，最多limit条
+     * 游标落在归档范围内时先从归档段文件读取，读完归档后再接着读热表
+     */
+    private List<Message> readAfter(Long userId, Long peerId, long after, long maxId, int limit) {
+        long archivedUpTo = messageArchiveStore.lastArchivedId(userId, peerId);
+        List<Message> result = new ArrayList<>(limit);
+        long hotAfter = after;
+        if (after < archivedUpTo) {
+            result.addAll(messageArchiveStore.readAfter(userId, peerId, after, limit));
+            if (result.size() >= limit) {
+                return result;
+            }
+            hotAfter = archivedUpTo;
+        }
+        PageRequest pageRequest = PageRequest.of(0, limit - result.size());
+        result.addAll(mergeById(
+                messageRepository.findDirectionalAfter(userId, peerId, hotAfter, maxId, pageRequest),
+                userId.equals(peerId) ? Collections.emptyList()
+                        : messageRepository.findDirectionalAfter(peerId, userId, hotAfter, maxId, pageRequest),
+                limit - result.size(), false));
+        return result;
+    }
+
+    /**
+     * 增量同步：返回用户在所有会话中收发的、ID大于游标的消息
+     * 收、发两个方向各自走(receiver_id, id)和(sender_id, id)索引取出size+1条后归并，
+     * 重连时的开销只与错过的消息数有关，与账号的历史消息总量无关；
+     * 只返回不超过已提交水位的消息，乱序提交时游标不会越过仍在写入的较小ID
+     *
+     * @param userId 当前用户ID
+     * @param after 客户端已见到的最大消息ID，为空时从头同步
+     * @param size 页大小，超过上限时按上限处理
+     * @return 按ID升序排列的一页消息，hasMore为true时以nextCursor继续同步
+     */
+    public MessagePageDTO syncMessages(Long userId, Long after, Integer size) {
+        int pageSize = size == null || size <= 0 ? defaultPageSize : Math.min(size, maxPageSize);
+        long afterId = after != null ? after : 0L;
+        long maxId = messageCommitWatermark.committedWatermark();
+        PageRequest limit = PageRequest.of(0, pageSize + 1);
+        List<Message> merged = mergeById(
+                messageRepository.findReceivedAfter(userId, afterId, maxId, limit),
+                messageRepository.findSentAfter(userId, afterId, maxId, limit),
+                pageSize + 1, false);
+        boolean hasMore = merged.size() > pageSize;
+        List<Message> page = new ArrayList<>(hasMore ? merged.subList(0, pageSize) : merged);
+        Long nextCursor = page.isEmpty() ? afterId : page.get(page.size() - 1).getId();
+        return new MessagePageDTO(applyReadState(page), hasMore, nextCursor);
+    }
+
+    /**
+     * 在用户参与的会话中搜索消息内容
+     * 先从倒排索引取出按ID倒序的候选消息，再分批回表（已归档的从归档段文件读取）并校验内容包含全部关键词，
+     * 凑满一页即停止，每页的开销与页大小和误匹配数有关，与消息总量无关
+     *
+     * @param userId 当前用户ID
+     * @param query 搜索文本，按空白分隔的多个关键词需要同时命中
+     * @param peerId 只搜索与该用户的会话，为空时搜索全部会话
+     * @param before 只返回ID小于该值的消息，翻页时传入上一页的nextCursor
+     * @param size 页大小，超过上限时按上限处理
+     * @return 按ID倒序排列的一页消息
+     */
+    public MessagePageDTO searchMessages(Long userId, String query, Long peerId, Long before, Integer size) {
+        int pageSize = size == null || size <= 0 ? defaultPageSize : Math.min(size, maxPageSize);
+        // 最新一页的最大ID会被客户端用作向后翻页的游标
+        long beforeId = before != null ? before : messageCommitWatermark.committedWatermark() + 1;
+        List<String> terms = MessageTokenizer.terms(query);
+        MessageSearchIndex.Candidates candidates = messageSearchIndex.search(userId, query, peerId, beforeId);
+
+        List<Message> matched = new ArrayList<>(pageSize + 1);
+        List<Long> ids = new ArrayList<>(pageSize + 1);
+        long[] peerIds = new long[pageSize + 1];
+        while (matched.size() <= pageSize) {
+            // 每批只从索引取出一页所需数量的候选
+            ids.clear();
+            while (ids.size() <= pageSize && candidates.next()) {
+                peerIds[ids.size()] = candidates.getPeerId();
+                ids.add(candidates.getId());
+            }
+            if (ids.isEmpty()) {
+                break;
+            }
+            Map<Long, Message> found = new HashMap<>();
+            for (Message message : messageRepository.findAllById(ids)) {
+                found.put(message.getId(), message);
+            }
+            for (int i = 0; i < ids.size() && matched.size() <= pageSize; i++) {
+                long id = ids.get(i);
+                Message message = found.get(id);
+                if (message == null) {
+                    message = readArchived(userId, peerIds[i], id);
+                }
+                if (message != null && containsAll(message.getContent(), terms)) {
+                    matched.add(message);
+                }
+            }
+        }
+
+        boolean hasMore = matched.size() > pageSize;
+        List<Message> page = new ArrayList<>(hasMore ? matched.subList(0, pageSize) : matched);
+        Long nextCursor = page.isEmpty() ? before : page.get(page.size() - 1).getId();
+        return new MessagePageDTO(applyReadState(page), hasMore, nextCursor);
+    }
+
+    /**
+     * 从归档段文件读取指定ID的消息，已删除或未归档时返回null
+     */
+    private Message readArchived(Long userId, Long peerId, long id) {
+        if (id > messageArchiveStore.lastArchivedId(userId, peerId)) {
+            return null;
+        }
+        List<Message> archived = messageArchiveStore.readAfter(userId, peerId, id - 1, 1);
+        return !archived.isEmpty() && archived.get(0).getId() == id ? archived.get(0) : null;
+    }
+
+    private static boolean containsAll(String content, List<String> terms) {
+        if (content == null) {
+            return false;
+        }
+        String normalized = content.toLowerCase(Locale.ROOT);
+        for (String term : terms) {
+            if (!normalized.contains(term)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 归并两个已按ID排序的列表，最多取limit条
+     */
+    private List<Message> mergeById(List<Message> first, List<Message> second, int limit, boolean descending) {
+        List<Message> merged = new ArrayList<>(Math.min(limit, first.size() + second.size()));
+        int i = 0;
+        int j = 0;
+        while (merged.size() < limit && (i < first.size() || j < second.size())) {
+            if (j >= second.size()) {
+                merged.add(first.get(i++));
+            } else if (i >= first.size()) {
+                merged.add(second.get(j++));
+            } else {
+                int cmp = Long.compare(first.get(i).getId(), second.get(j).getId());
+                merged.add((descending ? cmp > 0 : cmp < 0) ? first.get(i++) : second.get(j++));
+            }
+        }
+        return merged;
     }
 
     public List<Message> getUnreadMessages(Long userId) {
-        return messageRepository.findByReceiverIdAndIsReadFalse(userId);
+        return messageRepository.findUnreadByReceiverId(userId);
     }
 
+    @Transactional
     public void markMessageAsRead(Long messageId) {
         Optional<Message> optionalMessage = messageRepository.findById(messageId);
-        if (optionalMessage.isPresent()) {
+        if (optionalMessage.isPresent() && isUnread(optionalMessage.get())) {
             Message message = optionalMessage.get();
             message.setIsRead(true);
             messageRepository.save(message);
+            conversationService.onMessageRead(message);
+            unreadCounterStore.decrement(message.getReceiverId(), message.getSenderId());
         }
     }
 
+    /**
+     * 将发送者发给接收者的消息全部标记为已读
+     * 只把接收者在该会话上的已读水位推进到当前最新消息，单行写入，与未读消息数量无关；
+     * 接收者的会话摘要在同一事务中更新未读数。
+     * 水位行加锁后读取原水位，未读计数只扣除(原水位, 最新消息ID]之间的未读消息，
+     * 读取最新消息ID之后才提交的新消息仍然保留在计数中；同一会话的并发调用在行锁上串行，不会重复扣除
+     */
+    @Transactional
     public void markAllMessagesAsRead(Long senderId, Long receiverId) {
-        List<Message> unreadMessages = messageRepository.findBySenderIdAndReceiverIdAndIsReadFalse(senderId, receiverId);
-        for (Message message : unreadMessages) {
-            message.setIsRead(true);
+        Long latestMessageId = messageRepository.findLatestMessageId(senderId, receiverId);
+        if (latestMessageId == null) {
+            return;
+        }
+        readWatermarkRepository.ensureExists(receiverId, senderId);
+        Long previous = readWatermarkRepository.lockWatermark(receiverId, senderId);
+        long previousWatermark = previous != null ? previous : 0L;
+        if (previousWatermark >= latestMessageId) {
+            return;
         }
-        messageRepository.saveAll(unreadMessages);
+        long cleared = messageRepository.countUnreadInRange(senderId, receiverId, previousWatermark, latestMessageId);
+        readWatermarkRepository.advance(receiverId, senderId, latestMessageId);
+        conversationService.onConversationRead(receiverId, senderId, latestMessageId);
+        unreadCounterStore.subtract(receiverId, senderId, cleared);
     }
 
     public List<Message> getMessageHistory(Long userId) {
-        return messageRepository.findByReceiverIdOrSenderIdOrderBySentTimeDesc(userId, userId);
+        return applyReadState(messageRepository.findByReceiverIdOrSenderIdOrderBySentTimeDesc(userId, userId));
     }
 
     public long getUnreadMessageCount(Long userId) {
-        return messageRepository.countByReceiverIdAndIsReadFalse(userId);
+        return unreadCounterStore.getTotal(userId);
     }
 
     public long getUnreadMessageCountBetweenUsers(Long senderId, Long receiverId) {
-        return messageRepository.countBySenderIdAndReceiverIdAndIsReadFalse(senderId, receiverId);
+        return unreadCounterStore.get(receiverId, senderId);
     }
 
+    @Transactional
     public boolean deleteMessage(Long messageId) {
-        if (messageRepository.existsById(messageId)) {
-            messageRepository.deleteById(messageId);
+        Optional<Message> optionalMessage = messageRepository.findById(messageId);
+        if (optionalMessage.isPresent()) {
+            Message message = optionalMessage.get();
+            boolean unread = isUnread(message);
+            messageRepository.delete(message);
+            messageRepository.flush();
+            conversationService.onMessageDeleted(message, unread);
+            if (unread) {
+                unreadCounterStore.decrement(message.getReceiverId(), message.getSenderId());
+            }
             return true;
         }
         return false;
     }
+
+    /**
+     * 消息是否未读：未单独标记已读，且ID高于接收者在该会话上的已读水位
+     */
+    private boolean isUnread(Message message) {
+        if (Boolean.TRUE.equals(message.getIsRead())) {
+            return false;
+        }
+        return message.getId() > getWatermark(message.getReceiverId(), message.getSenderId());
+    }
+
+    private long getWatermark(Long readerId, Long peerId) {
+        return readWatermarkRepository.findById(new ReadWatermark.ReadWatermarkId(readerId, peerId))
+                .map(ReadWatermark::getLastReadMessageId)
+                .orElse(0L);
+    }
+
+    /**
+     * 根据已读水位补全消息的已读状态，每个会话方向只查询一次水位
+     */
+    private List<Message> applyReadState(List<Message> messages) {
+        Map<ReadWatermark.ReadWatermarkId, Long> watermarks = new HashMap<>();
+        for (Message message : messages) {
+            if (Boolean.TRUE.equals(message.getIsRead())) {
+                continue;
+            }
+            ReadWatermark.ReadWatermarkId key = new ReadWatermark.ReadWatermarkId(message.getReceiverId(), message.getSenderId());
+            Long watermark = watermarks.get(key);
+            if (watermark == null) {
+                watermark = getWatermark(message.getReceiverId(), message.getSenderId());
+                watermarks.put(key, watermark);
+            }
+            if (message.getId() <= watermark) {
+                message.setIsRead(true);
+            }
+        }
+        return messages;
+    }
 }
@@ -0,0 +1,268 @@
+package com.im.corey.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.im.corey.dto.PresenceDeltaDTO;
+import com.im.corey.dto.PresenceNodeReport;
+import com.im.corey.dto.PresenceSnapshotDTO;
+import com.im.corey.event.PresenceChangedEvent;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationContext;
+import org.springframework.context.event.EventListener;
+import org.springframework.messaging.MessageHandler;
+import org.springframework.messaging.simp.SimpMessagingTemplate;
+import org.springframework.messaging.simp.stomp.StompBrokerRelayMessageHandler;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * 集群模式下的在线状态汇总
+ * 每个节点按广播窗口把本地在线用户的变化上报到/topic/presence-nodes，并定期上报全量，纠正丢失的上报；
+ * 汇总节点（im.presence.cluster.sequencer）按节点维护在线用户，用户在第一个节点上线、在最后一个节点下线时
+ * 才形成全局状态转换，交给PresenceFeedService统一编号广播并写入users表，超过3个上报间隔没有上报的节点视为已下线；
+ * 其余节点跟随/topic/online-users的增量和汇总节点定期发布的快照，维护本节点可查询的已广播状态
+ */
+@Service
+public class PresenceClusterService {
+
+    static final String NODE_TOPIC = "/topic/presence-nodes";
+
+    static final String SNAPSHOT_TOPIC = "/topic/presence-snapshots";
+
+    private static final String RELAY_BEAN_NAME = "stompBrokerRelayMessageHandler";
+
+    @Value("${im.cluster.enabled:false}")
+    private boolean clusterEnabled;
+
+    @Value("${im.presence.cluster.sequencer:false}")
+    private boolean sequencer;
+
+    @Value("${im.presence.cluster.report-interval-ms:5000}")
+    private long reportIntervalMs;
+
+    @Value("${im.id.node-id:0}")
+    private int nodeId;
+
+    @Autowired
+    private SimpMessagingTemplate messagingTemplate;
+
+    @Autowired
+    private PresenceRegistry presenceRegistry;
+
+    @Autowired
+    private PresenceFeedService presenceFeedService;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Autowired
+    private ApplicationContext applicationContext;
+
+    /**
+     * 本节点尚未上报的状态变化，同一用户只保留最后一次
+     */
+    private final Map<Long, Boolean> pendingChanges = new HashMap<>();
+
+    /**
+     * 汇总节点使用：节点号 -> 该节点上报的在线用户
+     */
+    private final Map<Integer, NodePresence> nodes = new HashMap<>();
+
+    /**
+     * 汇总节点使用：用户ID -> 该用户在线的节点数，与nodes一起在nodes的锁内修改
+     */
+    private final Map<Long, Integer> onlineNodeCounts = new HashMap<>();
+
+    @PostConstruct
+    public void init() {
+        if (!clusterEnabled) {
+            return;
+        }
+        Object relay = applicationContext.getBean(RELAY_BEAN_NAME);
+        if (relay instanceof StompBrokerRelayMessageHandler) {
+            subscribe((StompBrokerRelayMessageHandler) relay);
+        }
+    }
+
+    /**
+     * 在代理中继的系统会话上订阅集群内部的在线状态主题，须在中继启动前调用
+     */
+    public void subscribe(StompBrokerRelayMessageHandler relay) {
+        Map<String, MessageHandler> subscriptions = new HashMap<>();
+        if (relay.getSystemSubscriptions() != null) {
+            subscriptions.putAll(relay.getSystemSubscriptions());
+        }
+        if (sequencer) {
+            subscriptions.put(NODE_TOPIC, handler(PresenceNodeReport.class, this::onNodeReport));
+        } else {
+            subscriptions.put(PresenceFeedService.PRESENCE_TOPIC,
+                    handler(PresenceDeltaDTO.class, presenceFeedService::follow));
+            subscriptions.put(SNAPSHOT_TOPIC, handler(PresenceSnapshotDTO.class, presenceFeedService::follow));
+        }
+        relay.setSystemSubscriptions(subscriptions);
+    }
+
+    @EventListener
+    public void onPresenceChanged(PresenceChangedEvent event) {
+        if (!clusterEnabled) {
+            return;
+        }
+        synchronized (pendingChanges) {
+            for (Long userId : event.getUserIds()) {
+                pendingChanges.put(userId, event.isOnline());
+            }
+        }
+    }
+
+    /**
+     * 每个广播窗口上报一次本节点的状态变化
+     */
+    @Scheduled(fixedDelayString = "${im.presence.broadcast-window-ms:250}")
+    public void reportChanges() {
+        if (!clusterEnabled) {
+            return;
+        }
+        synchronized (pendingChanges) {
+            if (pendingChanges.isEmpty()) {
+                return;
+            }
+            List<Long> online = new ArrayList<>();
+            List<Long> offline = new ArrayList<>();
+            pendingChanges.forEach((userId, isOnline) -> (isOnline ? online : offline).add(userId));
+            pendingChanges.clear();
+            messagingTemplate.convertAndSend(NODE_TOPIC, new PresenceNodeReport(nodeId, false, online, offline));
+        }
+    }
+
+    /**
+     * 定期上报本节点的全部在线用户；汇总节点同时清理失联的节点并发布快照
+     */
+    @Scheduled(fixedRateString = "${im.presence.cluster.report-interval-ms:5000}")
+    public void reportState() {
+        if (!clusterEnabled) {
+            return;
+        }
+        synchronized (pendingChanges) {
+            // 先清空再读取注册表：清空前发生的变化已包含在全量中，之后的变化留待下次上报
+            pendingChanges.clear();
+            messagingTemplate.convertAndSend(NODE_TOPIC, new PresenceNodeReport(nodeId, true,
+                    presenceRegistry.getOnlineUserIds(), Collections.emptyList()));
+        }
+        if (sequencer) {
+            expireNodes();
+            messagingTemplate.convertAndSend(SNAPSHOT_TOPIC, presenceFeedService.snapshot());
+        }
+    }
+
+    /**
+     * 汇总节点处理一个节点的上报
+     */
+    void onNodeReport(PresenceNodeReport report) {
+        List<Long> cameOnline = new ArrayList<>();
+        List<Long> wentOffline = new ArrayList<>();
+        synchronized (nodes) {
+            NodePresence node = nodes.computeIfAbsent(report.getNodeId(), id -> new NodePresence());
+            node.lastReportMillis = System.currentTimeMillis();
+            if (report.isFull()) {
+                Set<Long> reported = new HashSet<>(report.getOnline());
+                for (Iterator<Long> iterator = node.onlineUsers.iterator(); iterator.hasNext(); ) {
+                    Long userId = iterator.next();
+                    if (!reported.contains(userId)) {
+                        iterator.remove();
+                        leave(userId, wentOffline);
+                    }
+                }
+                join(node, reported, cameOnline);
+            } else {
+                join(node, report.getOnline(), cameOnline);
+                for (Long userId : report.getOffline()) {
+                    if (node.onlineUsers.remove(userId)) {
+                        leave(userId, wentOffline);
+                    }
+                }
+            }
+            // 在锁内提交，保证全局转换按发生的顺序进入广播
+            publish(cameOnline, wentOffline);
+        }
+    }
+
+    /**
+     * 汇总节点移除超过3个上报间隔没有上报的节点，其上的用户按下线处理
+     */
+    void expireNodes() {
+        long deadline = System.currentTimeMillis() - 3 * reportIntervalMs;
+        List<Long> wentOffline = new ArrayList<>();
+        synchronized (nodes) {
+            for (Iterator<Map.Entry<Integer, NodePresence>> iterator = nodes.entrySet().iterator(); iterator.hasNext(); ) {
+                Map.Entry<Integer, NodePresence> entry = iterator.next();
+                if (entry.getValue().lastReportMillis >= deadline) {
+                    continue;
+                }
+                iterator.remove();
+                for (Long userId : entry.getValue().onlineUsers) {
+                    leave(userId, wentOffline);
+                }
+                System.out.println("节点 " + entry.getKey() + " 超过 " + 3 * reportIntervalMs
+                        + "ms 未上报在线状态，其上的 " + entry.getValue().onlineUsers.size() + " 个用户按下线处理");
+            }
+            publish(Collections.emptyList(), wentOffline);
+        }
+    }
+
+    private void join(NodePresence node, Collection<Long> userIds, List<Long> cameOnline) {
+        for (Long userId : userIds) {
+            if (node.onlineUsers.add(userId) && onlineNodeCounts.merge(userId, 1, Integer::sum) == 1) {
+                cameOnline.add(userId);
+            }
+        }
+    }
+
+    private void leave(Long userId, List<Long> wentOffline) {
+        Integer remaining = onlineNodeCounts.merge(userId, -1, (count, delta) -> count + delta > 0 ? count + delta : null);
+        if (remaining == null) {
+            wentOffline.add(userId);
+        }
+    }
+
+    private void publish(List<Long> cameOnline, List<Long> wentOffline) {
+        if (!cameOnline.isEmpty()) {
+            presenceFeedService.record(cameOnline, true);
+            presenceRegistry.persistTransitions(cameOnline, true);
+        }
+        if (!wentOffline.isEmpty()) {
+            presenceFeedService.record(wentOffline, false);
+            presenceRegistry.persistTransitions(wentOffline, false);
+        }
+    }
+
+    private <T> MessageHandler handler(Class<T> type, Consumer<T> consumer) {
+        return message -> {
+            T payload;
+            try {
+                payload = objectMapper.readValue((byte[]) message.getPayload(), type);
+            } catch (IOException | ClassCastException e) {
+                System.err.println("无法解析集群在线状态消息 " + type.getSimpleName() + ": " + e.getMessage());
+                return;
+            }
+            consumer.accept(payload);
+        };
+    }
+
+    private static class NodePresence {
+        private final Set<Long> onlineUsers = new HashSet<>();
+        private long lastReportMillis;
+    }
+}
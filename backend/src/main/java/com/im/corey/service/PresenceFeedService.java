@@ -0,0 +1,208 @@
+package com.im.corey.service;
+
+import com.im.corey.dto.PresenceDeltaDTO;
+import com.im.corey.dto.PresenceSnapshotDTO;
+import com.im.corey.event.PresenceChangedEvent;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.EventListener;
+import org.springframework.messaging.simp.SimpMessagingTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 带版本号的在线状态广播
+ * 状态转换先在刷新窗口内合并，每个窗口最多广播一次增量，窗口内来回变化的用户不产生事件；
+ * 客户端依据版本号判断是否漏收，漏收时拉取快照重新同步。
+ * 集群模式下版本号必须全局唯一：各节点的本地状态变化由PresenceClusterService汇总到一个汇总节点，
+ * 只有汇总节点在这里合并并编号广播，其余节点跟随广播的增量维护已广播的状态，用于提供快照
+ */
+@Service
+public class PresenceFeedService {
+
+    static final String PRESENCE_TOPIC = "/topic/online-users";
+
+    @Autowired
+    private SimpMessagingTemplate messagingTemplate;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Value("${im.cluster.enabled:false}")
+    private boolean clusterEnabled;
+
+    @Value("${im.presence.cluster.sequencer:false}")
+    private boolean sequencer;
+
+    /**
+     * 当前窗口内尚未广播的状态变化，按用户合并
+     */
+    private final Map<Long, PendingChange> pendingChanges = new HashMap<>();
+
+    /**
+     * 已广播给客户端的在线用户集合，与version一一对应
+     */
+    private final Set<Long> publishedOnline = new HashSet<>();
+
+    /**
+     * 最近一次广播的版本号
+     */
+    private long version;
+
+    private Counter receivedCounter;
+
+    private Counter emittedCounter;
+
+    private Counter broadcastCounter;
+
+    private Timer flushLatency;
+
+    @PostConstruct
+    public void initMetrics() {
+        if (clusterEnabled && sequencer) {
+            // 汇总节点重启后版本号仍需大于重启前已广播的版本，否则仍连接在其他节点上的客户端会忽略新的增量
+            version = System.currentTimeMillis();
+        }
+        receivedCounter = meterRegistry.counter("im.presence.changes.received");
+        emittedCounter = meterRegistry.counter("im.presence.changes.emitted");
+        broadcastCounter = meterRegistry.counter("im.presence.broadcasts");
+        flushLatency = Timer.builder("im.presence.flush.latency")
+                .description("状态变化发生到广播出去的延迟")
+                .register(meterRegistry);
+        Gauge.builder("im.presence.merge.ratio", this, PresenceFeedService::mergeRatio)
+                .description("合并后实际广播的变化数与收到的变化数之比")
+                .register(meterRegistry);
+    }
+
+    /**
+     * 本节点的状态变化，集群模式下改由PresenceClusterService汇总后通过record提交
+     */
+    @EventListener
+    public void onPresenceChanged(PresenceChangedEvent event) {
+        if (!clusterEnabled) {
+            record(event.getUserIds(), event.isOnline());
+        }
+    }
+
+    /**
+     * 记录一批用户的状态变化，在下一个刷新窗口合并广播
+     */
+    public synchronized void record(Collection<Long> userIds, boolean online) {
+        long now = System.nanoTime();
+        for (Long userId : userIds) {
+            receivedCounter.increment();
+            PendingChange change = pendingChanges.get(userId);
+            if (change == null) {
+                pendingChanges.put(userId, new PendingChange(publishedOnline.contains(userId), online, now));
+            } else {
+                change.online = online;
+            }
+        }
+    }
+
+    /**
+     * 每个刷新窗口结束时合并广播一次增量
+     */
+    @Scheduled(fixedDelayString = "${im.presence.broadcast-window-ms:250}")
+    public synchronized void flush() {
+        if (pendingChanges.isEmpty()) {
+            return;
+        }
+        long now = System.nanoTime();
+        List<Long> online = new ArrayList<>();
+        List<Long> offline = new ArrayList<>();
+        for (Map.Entry<Long, PendingChange> entry : pendingChanges.entrySet()) {
+            PendingChange change = entry.getValue();
+            flushLatency.record(now - change.firstChangeNanos, TimeUnit.NANOSECONDS);
+            // 窗口内状态又变回了已广播的状态，不需要通知
+            if (change.online == change.publishedOnline) {
+                continue;
+            }
+            if (change.online) {
+                online.add(entry.getKey());
+                publishedOnline.add(entry.getKey());
+            } else {
+                offline.add(entry.getKey());
+                publishedOnline.remove(entry.getKey());
+            }
+        }
+        pendingChanges.clear();
+        if (online.isEmpty() && offline.isEmpty()) {
+            return;
+        }
+        version++;
+        emittedCounter.increment(online.size() + offline.size());
+        broadcastCounter.increment();
+        messagingTemplate.convertAndSend(PRESENCE_TOPIC, new PresenceDeltaDTO(version, online, offline));
+    }
+
+    /**
+     * 获取已广播的在线用户快照，返回的版本号之后的增量可以直接应用在快照上
+     */
+    public synchronized PresenceSnapshotDTO snapshot() {
+        return new PresenceSnapshotDTO(version, new ArrayList<>(publishedOnline));
+    }
+
+    /**
+     * 用户在已广播的状态中是否在线
+     */
+    public synchronized boolean isPublishedOnline(Long userId) {
+        return publishedOnline.contains(userId);
+    }
+
+    /**
+     * 非汇总节点跟随广播的增量，只接受紧接当前版本的增量；
+     * 版本不连续时保持原状态，等待汇总节点下一次发布的快照
+     */
+    public synchronized void follow(PresenceDeltaDTO delta) {
+        if (delta.getVersion() != version + 1) {
+            return;
+        }
+        publishedOnline.addAll(delta.getOnline());
+        publishedOnline.removeAll(delta.getOffline());
+        version = delta.getVersion();
+    }
+
+    /**
+     * 非汇总节点用汇总节点发布的快照校正状态，汇总节点重启后版本号更大，同样会被接受
+     */
+    public synchronized void follow(PresenceSnapshotDTO snapshot) {
+        if (snapshot.getVersion() < version) {
+            return;
+        }
+        publishedOnline.clear();
+        publishedOnline.addAll(snapshot.getOnlineUserIds());
+        version = snapshot.getVersion();
+    }
+
+    private double mergeRatio() {
+        double received = receivedCounter.count();
+        return received == 0 ? 1.0 : emittedCounter.count() / received;
+    }
+
+    private static class PendingChange {
+        private final boolean publishedOnline;
+        private boolean online;
+        private final long firstChangeNanos;
+
+        private PendingChange(boolean publishedOnline, boolean online, long firstChangeNanos) {
+            this.publishedOnline = publishedOnline;
+            this.online = online;
+            this.firstChangeNanos = firstChangeNanos;
+        }
+    }
+}
@@ -0,0 +1,269 @@
+package com.im.corey.service;
+
+import com.im.corey.event.PresenceChangedEvent;
+import com.im.corey.util.HashedTimingWheel;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 在线状态注册表
+ * 在内存中按用户ID维护在线会话，心跳只更新内存；
+ * 会话存活由时间轮跟踪，心跳把会话的到期槽位后移，到期的会话按刻度批量处理；
+ * 只有用户真正上线或下线时才记录状态转换，并由定时任务批量异步写入users表；
+ * 集群模式下本节点的转换不代表用户的整体状态，users表只由汇总节点按全局转换写入
+ */
+@Service
+public class PresenceRegistry {
+
+    private final ConcurrentHashMap<Long, Presence> presences = new ConcurrentHashMap<>();
+
+    /**
+     * 会话ID到用户ID的映射，用于处理时间轮上到期的会话
+     */
+    private final ConcurrentHashMap<String, Long> sessionOwners = new ConcurrentHashMap<>();
+
+    /**
+     * 等待写入数据库的状态转换，同一用户只保留最后一次
+     */
+    private final ConcurrentHashMap<Long, Transition> pendingTransitions = new ConcurrentHashMap<>();
+
+    @Value("${im.cluster.enabled:false}")
+    private boolean clusterEnabled;
+
+    @Value("${im.presence.heartbeat-timeout-ms:120000}")
+    private long heartbeatTimeoutMillis;
+
+    @Value("${im.presence.tick-ms:1000}")
+    private long tickMillis;
+
+    private HashedTimingWheel<String> livenessWheel;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @Autowired
+    private ApplicationEventPublisher eventPublisher;
+
+    @Autowired
+    private UserCache userCache;
+
+    @PostConstruct
+    public void init() {
+        livenessWheel = new HashedTimingWheel<>(tickMillis, heartbeatTimeoutMillis);
+        // 集群模式下其他节点仍持有在线会话，不能整体重置
+        if (!clusterEnabled) {
+            resetOnlineFlags();
+        }
+    }
+
+    /**
+     * 启动时内存中没有任何会话，清除上次运行遗留的在线标记
+     */
+    private void resetOnlineFlags() {
+        int updated = jdbcTemplate.update("UPDATE users SET is_online = false WHERE is_online = true");
+        if (updated > 0) {
+            System.out.println("已重置 " + updated + " 个遗留的在线状态");
+        }
+    }
+
+    /**
+     * 用户的一个WebSocket会话上线
+     *
+     * @return 用户是否由离线变为在线
+     */
+    public boolean connect(Long userId, String sessionId) {
+        boolean[] becameOnline = new boolean[1];
+        presences.compute(userId, (id, presence) -> {
+            if (presence == null) {
+                presence = new Presence();
+            }
+            becameOnline[0] = presence.sessionIds.isEmpty();
+            presence.sessionIds.add(sessionId);
+            return presence;
+        });
+        sessionOwners.put(sessionId, userId);
+        livenessWheel.schedule(sessionId, heartbeatTimeoutMillis);
+        if (becameOnline[0]) {
+            recordTransition(Collections.singletonList(userId), true);
+        }
+        return becameOnline[0];
+    }
+
+    /**
+     * 用户的一个WebSocket会话断开
+     *
+     * @return 用户是否因最后一个会话断开而变为离线
+     */
+    public boolean disconnect(Long userId, String sessionId) {
+        sessionOwners.remove(sessionId);
+        livenessWheel.cancel(sessionId);
+        boolean becameOffline = removeSession(userId, sessionId);
+        if (becameOffline) {
+            recordTransition(Collections.singletonList(userId), false);
+        }
+        return becameOffline;
+    }
+
+    private boolean removeSession(Long userId, String sessionId) {
+        boolean[] becameOffline = new boolean[1];
+        presences.computeIfPresent(userId, (id, presence) -> {
+            presence.sessionIds.remove(sessionId);
+            becameOffline[0] = presence.sessionIds.isEmpty();
+            return becameOffline[0] ? null : presence;
+        });
+        return becameOffline[0];
+    }
+
+    /**
+     * 记录用户心跳，只把会话在时间轮上的到期时间后移；
+     * 如果会话此前已因超时被移除，则视为重新上线
+     *
+     * @return 用户是否由离线变为在线
+     */
+    public boolean touch(Long userId, String sessionId) {
+        Presence presence = presences.get(userId);
+        if (presence != null && presence.sessionIds.contains(sessionId)) {
+            livenessWheel.schedule(sessionId, heartbeatTimeoutMillis);
+            return false;
+        }
+        return connect(userId, sessionId);
+    }
+
+    /**
+     * 强制用户下线，移除其全部会话
+     *
+     * @return 用户此前是否在线
+     */
+    public boolean forceOffline(Long userId) {
+        Presence presence = presences.remove(userId);
+        if (presence != null) {
+            for (String sessionId : presence.sessionIds) {
+                sessionOwners.remove(sessionId);
+                livenessWheel.cancel(sessionId);
+            }
+            recordTransition(Collections.singletonList(userId), false);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * 推进会话存活时间轮，移除到期的会话
+     * 本刻度内因此下线的用户合并为一次状态转换
+     */
+    @Scheduled(fixedRateString = "${im.presence.tick-ms:1000}")
+    public void expireSessions() {
+        List<String> expiredSessions = livenessWheel.advance();
+        if (expiredSessions.isEmpty()) {
+            return;
+        }
+        List<Long> offlineUsers = new ArrayList<>();
+        for (String sessionId : expiredSessions) {
+            Long userId = sessionOwners.remove(sessionId);
+            if (userId != null && removeSession(userId, sessionId)) {
+                offlineUsers.add(userId);
+            }
+        }
+        if (!offlineUsers.isEmpty()) {
+            recordTransition(offlineUsers, false);
+        }
+    }
+
+    public boolean isOnline(Long userId) {
+        return presences.containsKey(userId);
+    }
+
+    public Set<Long> getOnlineUserIds() {
+        return new HashSet<>(presences.keySet());
+    }
+
+    private void recordTransition(List<Long> userIds, boolean online) {
+        if (!clusterEnabled) {
+            persistTransitions(userIds, online);
+        }
+        eventPublisher.publishEvent(new PresenceChangedEvent(userIds, online));
+    }
+
+    /**
+     * 登记待写入users表的状态转换
+     */
+    public void persistTransitions(Collection<Long> userIds, boolean online) {
+        LocalDateTime now = LocalDateTime.now();
+        for (Long userId : userIds) {
+            pendingTransitions.put(userId, new Transition(online, now));
+        }
+    }
+
+    /**
+     * 批量写入待持久化的状态转换
+     */
+    @Scheduled(fixedDelayString = "${im.presence.flush-interval-ms:1000}")
+    public void flushTransitions() {
+        if (pendingTransitions.isEmpty()) {
+            return;
+        }
+        Map<Long, Transition> batch = new HashMap<>();
+        List<Object[]> onlineArgs = new ArrayList<>();
+        List<Object[]> offlineArgs = new ArrayList<>();
+        for (Long userId : pendingTransitions.keySet()) {
+            Transition transition = pendingTransitions.remove(userId);
+            if (transition == null) {
+                continue;
+            }
+            batch.put(userId, transition);
+            if (transition.online) {
+                onlineArgs.add(new Object[]{userId});
+            } else {
+                offlineArgs.add(new Object[]{Timestamp.valueOf(transition.time), userId});
+            }
+        }
+        try {
+            if (!onlineArgs.isEmpty()) {
+                jdbcTemplate.batchUpdate("UPDATE users SET is_online = true WHERE id = ?", onlineArgs);
+            }
+            if (!offlineArgs.isEmpty()) {
+                jdbcTemplate.batchUpdate("UPDATE users SET is_online = false, last_login_time = ? WHERE id = ?", offlineArgs);
+            }
+            // 缓存中的在线标记和最后登录时间已过时
+            userCache.invalidateAll(batch.keySet());
+        } catch (Exception e) {
+            System.err.println("在线状态批量写入失败: " + e.getMessage());
+            // 放回队列等待下次重试，期间产生的更新的转换优先
+            batch.forEach(pendingTransitions::putIfAbsent);
+        }
+    }
+
+    private static class Presence {
+        /**
+         * 只在presences.compute内修改，读取可以在任意线程进行
+         */
+        private final Set<String> sessionIds = ConcurrentHashMap.newKeySet();
+    }
+
+    private static class Transition {
+        private final boolean online;
+        private final LocalDateTime time;
+
+        private Transition(boolean online, LocalDateTime time) {
+            this.online = online;
+            this.time = time;
+        }
+    }
+}
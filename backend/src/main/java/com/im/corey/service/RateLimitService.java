@@ -0,0 +1,95 @@
+package com.im.corey.service;
+
+import com.im.corey.util.TokenBucketLimiter;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * 按用户的令牌桶限流
+ * STOMP入站消息和REST写接口共用同一组令牌桶，同一用户通过两种方式发送消息时合并计算
+ */
+@Service
+public class RateLimitService {
+
+    /**
+     * 限流的操作类别，每类使用独立的速率配置
+     */
+    public enum Action {
+        SEND_MESSAGE, MARK_READ, DEFAULT
+    }
+
+    @Value("${im.rate-limit.enabled:true}")
+    private boolean enabled;
+
+    @Value("${im.rate-limit.send-message.permits-per-second:10}")
+    private double sendMessageRate;
+
+    @Value("${im.rate-limit.send-message.burst:20}")
+    private int sendMessageBurst;
+
+    @Value("${im.rate-limit.mark-read.permits-per-second:20}")
+    private double markReadRate;
+
+    @Value("${im.rate-limit.mark-read.burst:40}")
+    private int markReadBurst;
+
+    @Value("${im.rate-limit.default.permits-per-second:50}")
+    private double defaultRate;
+
+    @Value("${im.rate-limit.default.burst:100}")
+    private int defaultBurst;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    private final Map<Action, TokenBucketLimiter> limiters = new EnumMap<>(Action.class);
+
+    private final Map<Action, Counter> rejectedCounters = new EnumMap<>(Action.class);
+
+    @PostConstruct
+    public void init() {
+        int concurrency = Runtime.getRuntime().availableProcessors() * 4;
+        limiters.put(Action.SEND_MESSAGE, new TokenBucketLimiter(sendMessageRate, sendMessageBurst, concurrency));
+        limiters.put(Action.MARK_READ, new TokenBucketLimiter(markReadRate, markReadBurst, concurrency));
+        limiters.put(Action.DEFAULT, new TokenBucketLimiter(defaultRate, defaultBurst, concurrency));
+        for (Action action : Action.values()) {
+            rejectedCounters.put(action, meterRegistry.counter("im.rate-limit.rejected", "action", action.name()));
+        }
+    }
+
+    /**
+     * 根据STOMP应用目的地确定限流类别
+     */
+    public Action forDestination(String destination) {
+        if ("/app/chat.sendMessage".equals(destination)) {
+            return Action.SEND_MESSAGE;
+        }
+        if ("/app/chat.markAsRead".equals(destination)) {
+            return Action.MARK_READ;
+        }
+        return Action.DEFAULT;
+    }
+
+    /**
+     * 为用户获取一次操作许可
+     *
+     * @return 未超出速率返回true，超出时记录拒绝次数并返回false
+     */
+    public boolean tryAcquire(Long userId, Action action) {
+        if (!enabled || userId == null) {
+            return true;
+        }
+        if (limiters.get(action).tryAcquire(userId)) {
+            return true;
+        }
+        rejectedCounters.get(action).increment();
+        return false;
+    }
+}
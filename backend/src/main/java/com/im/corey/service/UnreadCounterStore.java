@@ -0,0 +1,88 @@
+package com.im.corey.service;
+
+import com.im.corey.repository.MessageRepository;
+import com.im.corey.util.LongPairCounterMap;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.List;
+
+/**
+ * 未读消息计数的内存索引
+ * 按(接收者, 发送者)记录未读数，并单独维护每个接收者的未读总数；
+ * 启动时通过一次分组聚合查询重建，之后由发送、已读、删除事件增量维护
+ */
+@Component
+public class UnreadCounterStore {
+
+    /**
+     * 未读总数表中第二个键固定使用的值
+     */
+    private static final long TOTAL_KEY = 0L;
+
+    private final LongPairCounterMap conversationCounters = new LongPairCounterMap(64);
+
+    private final LongPairCounterMap totalCounters = new LongPairCounterMap(64);
+
+    @Autowired
+    private MessageRepository messageRepository;
+
+    @PostConstruct
+    public void rebuild() {
+        conversationCounters.clear();
+        totalCounters.clear();
+        List<Object[]> rows = messageRepository.countUnreadGroupedByReceiverAndSender();
+        for (Object[] row : rows) {
+            long receiverId = ((Number) row[0]).longValue();
+            long senderId = ((Number) row[1]).longValue();
+            long count = ((Number) row[2]).longValue();
+            conversationCounters.put(receiverId, senderId, count);
+            totalCounters.add(receiverId, TOTAL_KEY, count);
+        }
+        System.out.println("未读计数索引已重建，会话数: " + rows.size());
+    }
+
+    /**
+     * 接收者收到一条新的未读消息
+     *
+     * @return 该会话更新后的未读数
+     */
+    public long increment(Long receiverId, Long senderId) {
+        totalCounters.add(receiverId, TOTAL_KEY, 1);
+        return conversationCounters.add(receiverId, senderId, 1);
+    }
+
+    /**
+     * 一条未读消息被标记为已读或被删除
+     * 会话计数的判断和减少是一次原子操作，只有会话计数确实减少时才减少总数，并发已读不会把计数减成负数
+     *
+     * @return 会话计数是否确实减少
+     */
+    public boolean decrement(Long receiverId, Long senderId) {
+        if (!conversationCounters.decrementIfPositive(receiverId, senderId)) {
+            return false;
+        }
+        totalCounters.add(receiverId, TOTAL_KEY, -1);
+        return true;
+    }
+
+    /**
+     * 接收者一次读完了来自发送者的count条消息
+     * 只扣除这些消息，之后新到达的消息仍然计入未读
+     */
+    public void subtract(Long receiverId, Long senderId, long count) {
+        long removed = conversationCounters.subtractAtMost(receiverId, senderId, count);
+        if (removed > 0) {
+            totalCounters.add(receiverId, TOTAL_KEY, -removed);
+        }
+    }
+
+    public long get(Long receiverId, Long senderId) {
+        return conversationCounters.get(receiverId, senderId);
+    }
+
+    public long getTotal(Long receiverId) {
+        return totalCounters.get(receiverId, TOTAL_KEY);
+    }
+}
@@ -0,0 +1,150 @@
+package com.im.corey.service;
+
+import com.im.corey.model.User;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * 进程内用户缓存
+ * 供认证、已读回执等高频路径按ID读取用户，条目在TTL到期或容量超限时淘汰；
+ * 修改用户信息的操作需要显式调用invalidate。
+ * 缓存保存的是独立副本，每次命中都返回新的副本，调用方修改返回的实体不会影响缓存和其他调用方
+ */
+@Component
+public class UserCache {
+
+    @Value("${im.user-cache.max-size:10000}")
+    private int maxSize;
+
+    @Value("${im.user-cache.ttl-seconds:300}")
+    private long ttlSeconds;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    private final ConcurrentHashMap<Long, CachedUser> users = new ConcurrentHashMap<>();
+
+    /**
+     * 失效代数，每次失效先加1再删除条目；加载前后代数不同时丢弃加载结果，
+     * 避免失效之前开始的加载在保存之后把旧数据重新放回缓存
+     */
+    private final AtomicLong generation = new AtomicLong();
+
+    private Counter hitCounter;
+
+    private Counter missCounter;
+
+    private Counter evictionCounter;
+
+    @PostConstruct
+    public void initMetrics() {
+        hitCounter = meterRegistry.counter("im.user.cache.hits");
+        missCounter = meterRegistry.counter("im.user.cache.misses");
+        evictionCounter = meterRegistry.counter("im.user.cache.evictions");
+        Gauge.builder("im.user.cache.size", users, Map::size).register(meterRegistry);
+    }
+
+    /**
+     * 按ID获取用户，缓存未命中或已过期时通过loader加载，加载结果为null时不缓存
+     */
+    public User get(Long userId, Function<Long, User> loader) {
+        long now = System.currentTimeMillis();
+        CachedUser cached = users.get(userId);
+        if (cached != null) {
+            if (cached.expiresAt > now) {
+                hitCounter.increment();
+                return copyOf(cached.user);
+            }
+            if (users.remove(userId, cached)) {
+                evictionCounter.increment();
+            }
+        }
+        missCounter.increment();
+        long loadGeneration = generation.get();
+        User user = loader.apply(userId);
+        if (user != null && generation.get() == loadGeneration) {
+            if (users.size() >= maxSize) {
+                evict(now);
+            }
+            CachedUser loaded = new CachedUser(copyOf(user), now + ttlSeconds * 1000);
+            users.put(userId, loaded);
+            // 放入期间发生了失效，加载到的可能是旧数据
+            if (generation.get() != loadGeneration) {
+                users.remove(userId, loaded);
+            }
+        }
+        return user;
+    }
+
+    public void invalidate(Long userId) {
+        if (userId != null) {
+            generation.incrementAndGet();
+            users.remove(userId);
+        }
+    }
+
+    public void invalidateAll(Collection<Long> userIds) {
+        generation.incrementAndGet();
+        for (Long userId : userIds) {
+            users.remove(userId);
+        }
+    }
+
+    private static User copyOf(User user) {
+        User copy = new User();
+        copy.setId(user.getId());
+        copy.setUsername(user.getUsername());
+        copy.setPassword(user.getPassword());
+        copy.setEmail(user.getEmail());
+        copy.setNickname(user.getNickname());
+        copy.setAvatar(user.getAvatar());
+        copy.setIsOnline(user.getIsOnline());
+        copy.setShowReadStatus(user.getShowReadStatus());
+        copy.setLastLoginTime(user.getLastLoginTime());
+        copy.setCreatedTime(user.getCreatedTime());
+        copy.setUpdatedTime(user.getUpdatedTime());
+        return copy;
+    }
+
+    /**
+     * 先清理已过期的条目，仍然超出容量时再淘汰任意一部分
+     */
+    private void evict(long now) {
+        Iterator<CachedUser> expired = users.values().iterator();
+        while (expired.hasNext()) {
+            if (expired.next().expiresAt <= now) {
+                expired.remove();
+                evictionCounter.increment();
+            }
+        }
+        Iterator<Long> iterator = users.keySet().iterator();
+        int toRemove = users.size() - maxSize * 3 / 4;
+        while (toRemove-- > 0 && iterator.hasNext()) {
+            iterator.next();
+            iterator.remove();
+            evictionCounter.increment();
+        }
+    }
+
+    private static class CachedUser {
+        private final User user;
+        private final long expiresAt;
+
+        private CachedUser(User user, long expiresAt) {
+            this.user = user;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
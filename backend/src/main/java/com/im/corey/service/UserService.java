@@ -4,15 +4,20 @@ import com.im.corey.dto.RegisterUserDTO;
 import com.im.corey.dto.UpdateUserDTO;
 import com.im.corey.model.User;
 import com.im.corey.repository.UserRepository;
+import com.im.corey.dto.UserProfileDTO;
 import com.im.corey.dto.UserWithUnreadCountDTO;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.Pageable;
 import org.springframework.security.crypto.bcrypt.BCryptPasswordEncoder;
 import org.springframework.stereotype.Service;
 
+import java.sql.Timestamp;
 import java.time.LocalDateTime;
+import java.util.Collection;
 import java.util.List;
 import java.util.Optional;
-import java.util.stream.Collectors;
 
 @Service
 public class UserService {
@@ -21,7 +26,16 @@ public class UserService {
     private UserRepository userRepository;
 
     @Autowired
-    private MessageService messageService;
+    private PresenceRegistry presenceRegistry;
+
+    @Autowired
+    private PresenceFeedService presenceFeedService;
+
+    @Autowired
+    private UserCache userCache;
+
+    @Value("${im.cluster.enabled:false}")
+    private boolean clusterEnabled;
 
     private BCryptPasswordEncoder passwordEncoder = new BCryptPasswordEncoder();
 
@@ -29,20 +43,54 @@ public class UserService {
         return userRepository.findAll();
     }
 
-    public List<UserWithUnreadCountDTO> getAllUsersWithUnreadCount(Long currentUserId) {
-        List<User> users = userRepository.findAll();
-        // 过滤掉当前登录用户
-        return users.stream()
-                .filter(user -> !user.getId().equals(currentUserId))
-                .map(user -> {
-                    Long unreadCount = messageService.getUnreadMessageCountBetweenUsers(user.getId(), currentUserId);
-                    return new UserWithUnreadCountDTO(user, unreadCount);
-                }).collect(Collectors.toList());
+    /**
+     * 分页获取除当前用户外的用户及其发给当前用户的未读消息数，用户信息和未读数由一条聚合查询得出
+     *
+     * @param currentUserId 当前登录用户ID
+     * @param pageable 分页参数，Pageable.unpaged()时返回全部用户
+     * @param unreadOnly 是否只返回有未读消息的用户
+     */
+    public Page<UserWithUnreadCountDTO> getAllUsersWithUnreadCount(Long currentUserId, Pageable pageable, boolean unreadOnly) {
+        Page<Object[]> rows = userRepository.findUsersWithUnreadCount(currentUserId, unreadOnly, pageable);
+        return rows.map(row -> {
+            UserProfileDTO profile = new UserProfileDTO();
+            profile.setId(((Number) row[0]).longValue());
+            profile.setUsername((String) row[1]);
+            profile.setEmail((String) row[2]);
+            profile.setNickname((String) row[3]);
+            profile.setAvatar((String) row[4]);
+            profile.setShowReadStatus(toBoolean(row[5]));
+            profile.setLastLoginTime(toLocalDateTime(row[6]));
+            profile.setCreatedTime(toLocalDateTime(row[7]));
+            profile.setUpdatedTime(toLocalDateTime(row[8]));
+            profile.setIsOnline(isOnline(profile.getId()));
+            return new UserWithUnreadCountDTO(profile, ((Number) row[9]).longValue());
+        });
+    }
+
+    /**
+     * 在线状态以内存为准；集群模式下本节点的注册表只有连接在本节点的会话，改用汇总后广播的状态
+     */
+    private boolean isOnline(Long userId) {
+        return clusterEnabled ? presenceFeedService.isPublishedOnline(userId) : presenceRegistry.isOnline(userId);
+    }
+
+    private static LocalDateTime toLocalDateTime(Object value) {
+        return value != null ? ((Timestamp) value).toLocalDateTime() : null;
+    }
+
+    private static Boolean toBoolean(Object value) {
+        if (value == null) {
+            return false;
+        }
+        if (value instanceof Boolean) {
+            return (Boolean) value;
+        }
+        return ((Number) value).intValue() != 0;
     }
 
     public User getUserById(Long id) {
-        Optional<User> user = userRepository.findById(id);
-        return user.orElse(null);
+        return userCache.get(id, userId -> userRepository.findById(userId).orElse(null));
     }
 
     public User getUserByUsername(String username) {
@@ -86,6 +134,7 @@ public class UserService {
             // 更新最后登录时间和在线状态
             user.setLastLoginTime(LocalDateTime.now());
             user.setIsOnline(true);
+            userCache.invalidate(user.getId());
             return userRepository.save(user);
         }
         return null;
@@ -107,7 +156,9 @@ public class UserService {
             }
 
             user.setUpdatedTime(LocalDateTime.now());
-            return userRepository.save(user);
+            User savedUser = userRepository.save(user);
+            userCache.invalidate(id);
+            return savedUser;
         }
         return null;
     }
@@ -128,7 +179,9 @@ public class UserService {
             }
 
             user.setUpdatedTime(LocalDateTime.now());
-            return userRepository.save(user);
+            User savedUser = userRepository.save(user);
+            userCache.invalidate(id);
+            return savedUser;
         }
         return null;
     }
@@ -136,25 +189,24 @@ public class UserService {
     public boolean deleteUser(Long id) {
         if (userRepository.existsById(id)) {
             userRepository.deleteById(id);
+            userCache.invalidate(id);
             return true;
         }
         return false;
     }
 
     public List<User> getOnlineUsers() {
-        return userRepository.findByIsOnlineTrue();
+        // 在线状态以内存为准，数据库中的is_online为异步写入，可能略有滞后
+        Collection<Long> onlineUserIds = clusterEnabled
+                ? presenceFeedService.snapshot().getOnlineUserIds()
+                : presenceRegistry.getOnlineUserIds();
+        List<User> onlineUsers = userRepository.findAllById(onlineUserIds);
+        onlineUsers.forEach(user -> user.setIsOnline(true));
+        return onlineUsers;
     }
 
-    public void setUserOnline(Long userId, boolean online) {
-        Optional<User> optionalUser = userRepository.findById(userId);
-        if (optionalUser.isPresent()) {
-            User user = optionalUser.get();
-            user.setIsOnline(online);
-            if (!online) {
-                user.setLastLoginTime(LocalDateTime.now());
-            }
-            userRepository.save(user);
-        }
+    public void setUserOffline(Long userId) {
+        presenceRegistry.forceOffline(userId);
     }
 
     /**
@@ -183,7 +235,9 @@ public class UserService {
         if (user != null && user.getEmail().equals(email)) {
             user.setPassword(passwordEncoder.encode(newPassword));
             user.setUpdatedTime(LocalDateTime.now());
-            return userRepository.save(user);
+            User savedUser = userRepository.save(user);
+            userCache.invalidate(user.getId());
+            return savedUser;
         }
         throw new RuntimeException("用户名或邮箱不正确");
     }
@@ -205,7 +259,9 @@ public class UserService {
                 user.setPassword(passwordEncoder.encode(newPassword));
                 user.setEmail(email);
                 user.setUpdatedTime(LocalDateTime.now());
-                return userRepository.save(user);
+                User savedUser = userRepository.save(user);
+                userCache.invalidate(id);
+                return savedUser;
             } else {
                 throw new RuntimeException("旧密码不正确");
             }
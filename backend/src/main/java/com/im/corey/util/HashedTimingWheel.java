@@ -0,0 +1,98 @@
+package com.im.corey.util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 哈希时间轮
+ * 每个键在轮上只占一个槽位，重新调度时从旧槽位移到新槽位，调度和取消都是O(1)；
+ * 由外部按tickMillis推进，每次推进只处理当前槽位中到期的键
+ *
+ * @param <K> 调度对象的键
+ */
+public class HashedTimingWheel<K> {
+
+    private final long tickMillis;
+
+    private final List<Set<K>> buckets;
+
+    private final Map<K, Integer> slots = new HashMap<>();
+
+    private final long startTime;
+
+    /**
+     * 已经处理过的刻度数
+     */
+    private long currentTick;
+
+    /**
+     * @param tickMillis 每个刻度的时长（毫秒）
+     * @param maxDelayMillis 支持的最大延迟（毫秒），决定时间轮的槽位数
+     */
+    public HashedTimingWheel(long tickMillis, long maxDelayMillis) {
+        this.tickMillis = tickMillis;
+        int wheelSize = (int) ((maxDelayMillis + tickMillis - 1) / tickMillis) + 1;
+        this.buckets = new ArrayList<>(wheelSize);
+        for (int i = 0; i < wheelSize; i++) {
+            buckets.add(new LinkedHashSet<>());
+        }
+        this.startTime = System.currentTimeMillis();
+    }
+
+    /**
+     * 调度或重新调度一个键，在delayMillis后到期，超过最大延迟时按最大延迟处理
+     */
+    public synchronized void schedule(K key, long delayMillis) {
+        long ticks = Math.max(1, (delayMillis + tickMillis - 1) / tickMillis);
+        ticks = Math.min(ticks, buckets.size() - 1);
+        int slot = (int) ((currentTick + ticks) % buckets.size());
+        Integer previous = slots.put(key, slot);
+        if (previous != null && previous != slot) {
+            buckets.get(previous).remove(key);
+        }
+        buckets.get(slot).add(key);
+    }
+
+    /**
+     * 取消一个键的调度
+     *
+     * @return 该键此前是否处于调度中
+     */
+    public synchronized boolean cancel(K key) {
+        Integer slot = slots.remove(key);
+        if (slot == null) {
+            return false;
+        }
+        buckets.get(slot).remove(key);
+        return true;
+    }
+
+    /**
+     * 将时间轮推进到当前时间，返回期间到期的全部键
+     */
+    public synchronized List<K> advance() {
+        long targetTick = (System.currentTimeMillis() - startTime) / tickMillis;
+        List<K> expired = new ArrayList<>();
+        while (currentTick < targetTick) {
+            currentTick++;
+            Set<K> bucket = buckets.get((int) (currentTick % buckets.size()));
+            if (bucket.isEmpty()) {
+                continue;
+            }
+            for (K key : bucket) {
+                slots.remove(key);
+                expired.add(key);
+            }
+            bucket.clear();
+        }
+        return expired;
+    }
+
+    public synchronized int size() {
+        return slots.size();
+    }
+}
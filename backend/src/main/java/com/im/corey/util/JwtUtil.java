@@ -1,14 +1,21 @@
 package com.im.corey.util;
 
 import io.jsonwebtoken.Claims;
+import io.jsonwebtoken.JwtException;
 import io.jsonwebtoken.Jwts;
 import io.jsonwebtoken.SignatureAlgorithm;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Function;
 
 @Component
@@ -20,6 +27,14 @@ public class JwtUtil {
     @Value("${jwt.expiration}")
     private Long expiration;
 
+    @Value("${jwt.cache.max-size:10000}")
+    private int cacheMaxSize;
+
+    /**
+     * 已验证token的缓存，以token的SHA-256摘要为键，缓存到token的过期时间为止
+     */
+    private final ConcurrentHashMap<String, VerifiedToken> verifiedTokens = new ConcurrentHashMap<>();
+
     public String generateToken(Long userId) {
         Map<String, Object> claims = new HashMap<>();
         return createToken(claims, userId.toString());
@@ -35,9 +50,42 @@ public class JwtUtil {
                 .compact();
     }
 
+    /**
+     * 验证token并返回其中的用户ID
+     * 同一个token验证通过后会被缓存到过期时间，期间重复请求不再做签名校验和解析
+     *
+     * @param token JWT
+     * @return 用户ID，token无效或已过期时返回null
+     */
+    public String resolveUserId(String token) {
+        String digest = digest(token);
+        long now = System.currentTimeMillis();
+        VerifiedToken cached = verifiedTokens.get(digest);
+        if (cached != null) {
+            if (cached.expiresAt > now) {
+                return cached.userId;
+            }
+            verifiedTokens.remove(digest, cached);
+            return null;
+        }
+
+        Claims claims;
+        try {
+            claims = getAllClaimsFromToken(token);
+        } catch (JwtException | IllegalArgumentException e) {
+            return null;
+        }
+        Date expirationDate = claims.getExpiration();
+        if (claims.getSubject() == null || expirationDate == null || expirationDate.getTime() <= now) {
+            return null;
+        }
+        cache(digest, new VerifiedToken(claims.getSubject(), expirationDate.getTime()));
+        return claims.getSubject();
+    }
+
     public Boolean validateToken(String token, Long userId) {
-        final String userIdFromToken = getUserIdFromToken(token);
-        return (userIdFromToken.equals(userId.toString()) && !isTokenExpired(token));
+        final String userIdFromToken = resolveUserId(token);
+        return userIdFromToken != null && userIdFromToken.equals(userId.toString());
     }
 
     public String getUserIdFromToken(String token) {
@@ -53,12 +101,47 @@ public class JwtUtil {
         return Jwts.parser().setSigningKey(secret).parseClaimsJws(token).getBody();
     }
 
-    private Boolean isTokenExpired(String token) {
-        final Date expiration = getExpirationDateFromToken(token);
-        return expiration.before(new Date());
-    }
-
     public Date getExpirationDateFromToken(String token) {
         return getClaimFromToken(token, Claims::getExpiration);
     }
-}
\ No newline at end of file
+
+    private void cache(String digest, VerifiedToken verifiedToken) {
+        if (verifiedTokens.size() >= cacheMaxSize) {
+            evict();
+        }
+        verifiedTokens.put(digest, verifiedToken);
+    }
+
+    /**
+     * 缓存已满时先清理已过期的token，仍然超出容量时再淘汰任意一部分
+     */
+    private void evict() {
+        long now = System.currentTimeMillis();
+        verifiedTokens.values().removeIf(verifiedToken -> verifiedToken.expiresAt <= now);
+        Iterator<String> iterator = verifiedTokens.keySet().iterator();
+        int toRemove = verifiedTokens.size() - cacheMaxSize * 3 / 4;
+        while (toRemove-- > 0 && iterator.hasNext()) {
+            iterator.next();
+            iterator.remove();
+        }
+    }
+
+    private static String digest(String token) {
+        try {
+            MessageDigest messageDigest = MessageDigest.getInstance("SHA-256");
+            return Base64.getEncoder().encodeToString(messageDigest.digest(token.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("当前JVM不支持SHA-256", e);
+        }
+    }
+
+    private static class VerifiedToken {
+        private final String userId;
+        private final long expiresAt;
+
+        private VerifiedToken(String userId, long expiresAt) {
+            this.userId = userId;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
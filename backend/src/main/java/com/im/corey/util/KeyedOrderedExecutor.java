@@ -0,0 +1,160 @@
+package com.im.corey.util;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 按键保序的并行执行器
+ * 由多个单线程分段组成，同一个键的任务总是进入同一个分段，因此严格按提交顺序执行；
+ * 不同键的任务分散在各个分段上并行执行。每个分段的队列有界，队列满时交给拒绝策略处理；
+ * 每个分段另有一段有界的溢出容量，只供不能丢弃的任务使用，这类任务仍排在同一分段的队列中保持顺序
+ */
+public class KeyedOrderedExecutor {
+
+    private final ThreadPoolExecutor[] stripes;
+
+    private final int stripeCapacity;
+
+    private final RejectedExecutionHandler rejectionHandler;
+
+    /**
+     * @param threadNamePrefix 分段线程名前缀
+     * @param stripeCount      分段数量，即最大并行度
+     * @param queueCapacity    所有分段队列容量之和
+     * @param rejectionHandler 分段队列已满时的拒绝策略
+     */
+    public KeyedOrderedExecutor(String threadNamePrefix, int stripeCount, int queueCapacity,
+                                RejectedExecutionHandler rejectionHandler) {
+        this(threadNamePrefix, stripeCount, queueCapacity, 0, rejectionHandler);
+    }
+
+    /**
+     * @param overflowCapacity 所有分段溢出容量之和，只供{@link #executeEssential}提交的任务使用
+     */
+    public KeyedOrderedExecutor(String threadNamePrefix, int stripeCount, int queueCapacity, int overflowCapacity,
+                                RejectedExecutionHandler rejectionHandler) {
+        int count = Math.max(1, stripeCount);
+        this.stripeCapacity = Math.max(1, queueCapacity / count);
+        this.rejectionHandler = rejectionHandler;
+        int stripeOverflow = overflowCapacity > 0 ? Math.max(1, overflowCapacity / count) : 0;
+        stripes = new ThreadPoolExecutor[count];
+        for (int i = 0; i < count; i++) {
+            String threadName = threadNamePrefix + i;
+            stripes[i] = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                    new LinkedBlockingQueue<>(stripeCapacity + stripeOverflow), runnable -> {
+                        Thread thread = new Thread(runnable, threadName);
+                        thread.setDaemon(true);
+                        return thread;
+                    }, rejectionHandler);
+        }
+    }
+
+    public void execute(Object key, Runnable task) {
+        submit(stripes[indexFor(key.hashCode())], task);
+    }
+
+    /**
+     * 以两个long组成的键提交任务，键无需装箱
+     */
+    public void execute(long first, long second, Runnable task) {
+        submit(stripes[indexFor(hash(first, second))], task);
+    }
+
+    /**
+     * 提交不能丢弃的任务：分段队列已满时占用溢出容量，仍排在该键之前提交的任务之后执行；
+     * 溢出容量也用完时交给拒绝策略处理
+     */
+    public void executeEssential(Object key, Runnable task) {
+        stripes[indexFor(key.hashCode())].execute(task);
+    }
+
+    public void executeEssential(long first, long second, Runnable task) {
+        stripes[indexFor(hash(first, second))].execute(task);
+    }
+
+    /**
+     * 下标不小于retainedStripes的分段线程空闲超过keepAliveSeconds后退出，有新任务时再创建
+     */
+    public void allowIdleTimeout(int retainedStripes, long keepAliveSeconds) {
+        if (keepAliveSeconds <= 0) {
+            return;
+        }
+        for (int i = Math.max(0, retainedStripes); i < stripes.length; i++) {
+            stripes[i].setKeepAliveTime(keepAliveSeconds, TimeUnit.SECONDS);
+            stripes[i].allowCoreThreadTimeOut(true);
+        }
+    }
+
+    /**
+     * 所有分段中排队等待的任务数
+     */
+    public int getQueueSize() {
+        int size = 0;
+        for (ThreadPoolExecutor stripe : stripes) {
+            size += stripe.getQueue().size();
+        }
+        return size;
+    }
+
+    /**
+     * 当前存活的分段线程数
+     */
+    public int getPoolSize() {
+        int size = 0;
+        for (ThreadPoolExecutor stripe : stripes) {
+            size += stripe.getPoolSize();
+        }
+        return size;
+    }
+
+    /**
+     * 正在执行任务的分段数
+     */
+    public int getActiveCount() {
+        int active = 0;
+        for (ThreadPoolExecutor stripe : stripes) {
+            active += stripe.getActiveCount();
+        }
+        return active;
+    }
+
+    /**
+     * 停止接收新任务，已排队的任务会继续执行完
+     */
+    public void shutdown() {
+        for (ThreadPoolExecutor stripe : stripes) {
+            stripe.shutdown();
+        }
+    }
+
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (ThreadPoolExecutor stripe : stripes) {
+            if (!stripe.awaitTermination(Math.max(0L, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void submit(ThreadPoolExecutor stripe, Runnable task) {
+        // 普通任务不能占用溢出容量
+        if (stripe.getQueue().size() >= stripeCapacity) {
+            rejectionHandler.rejectedExecution(task, stripe);
+            return;
+        }
+        stripe.execute(task);
+    }
+
+    private static int hash(long first, long second) {
+        long h = first * 0x9E3779B97F4A7C15L + second;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private int indexFor(int hash) {
+        hash ^= hash >>> 16;
+        return (hash & 0x7fffffff) % stripes.length;
+    }
+}
@@ -0,0 +1,232 @@
+package com.im.corey.util;
+
+import java.util.Arrays;
+
+/**
+ * 以两个long为键的计数器表
+ * 按键的哈希分段加锁，每段内部使用开放寻址的原始类型数组存储，避免装箱和节点对象分配；
+ * 计数归零的键会被直接移除，表的大小只与非零计数的数量相关
+ */
+public class LongPairCounterMap {
+
+    private static final int INITIAL_SEGMENT_CAPACITY = 16;
+
+    private final Segment[] segments;
+
+    private final int segmentMask;
+
+    /**
+     * @param concurrencyLevel 分段数量，会向上取整为2的幂
+     */
+    public LongPairCounterMap(int concurrencyLevel) {
+        int size = 1;
+        while (size < concurrencyLevel) {
+            size <<= 1;
+        }
+        segments = new Segment[size];
+        for (int i = 0; i < size; i++) {
+            segments[i] = new Segment();
+        }
+        segmentMask = size - 1;
+    }
+
+    public long get(long first, long second) {
+        int hash = hash(first, second);
+        return segmentFor(hash).get(first, second, hash);
+    }
+
+    /**
+     * 累加计数，结果小于0时按0处理
+     *
+     * @return 累加后的计数
+     */
+    public long add(long first, long second, long delta) {
+        int hash = hash(first, second);
+        return segmentFor(hash).add(first, second, hash, delta);
+    }
+
+    /**
+     * 计数大于0时减1，判断和修改在同一段锁内完成，并发减少时不会减到0以下
+     *
+     * @return 是否确实减少了计数
+     */
+    public boolean decrementIfPositive(long first, long second) {
+        int hash = hash(first, second);
+        return segmentFor(hash).decrementIfPositive(first, second, hash);
+    }
+
+    /**
+     * 计数减少amount，最多减到0，判断和修改在同一段锁内完成
+     *
+     * @return 实际减少的数量
+     */
+    public long subtractAtMost(long first, long second, long amount) {
+        int hash = hash(first, second);
+        return segmentFor(hash).subtractAtMost(first, second, hash, amount);
+    }
+
+    /**
+     * 直接设置计数
+     *
+     * @return 设置前的计数
+     */
+    public long put(long first, long second, long value) {
+        int hash = hash(first, second);
+        return segmentFor(hash).put(first, second, hash, value);
+    }
+
+    public void clear() {
+        for (Segment segment : segments) {
+            segment.clear();
+        }
+    }
+
+    private Segment segmentFor(int hash) {
+        return segments[(hash >>> 16) & segmentMask];
+    }
+
+    private static int hash(long first, long second) {
+        long h = first * 0x9E3779B97F4A7C15L + second;
+        h ^= h >>> 32;
+        h *= 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 29));
+    }
+
+    private static final class Segment {
+        private long[] firstKeys = new long[INITIAL_SEGMENT_CAPACITY];
+        private long[] secondKeys = new long[INITIAL_SEGMENT_CAPACITY];
+        private long[] values = new long[INITIAL_SEGMENT_CAPACITY];
+        private boolean[] used = new boolean[INITIAL_SEGMENT_CAPACITY];
+        private int size;
+
+        synchronized long get(long first, long second, int hash) {
+            int index = find(first, second, hash);
+            return index >= 0 ? values[index] : 0L;
+        }
+
+        synchronized long add(long first, long second, int hash, long delta) {
+            int index = find(first, second, hash);
+            long current = index >= 0 ? values[index] : 0L;
+            long updated = Math.max(0L, current + delta);
+            store(first, second, hash, index, updated);
+            return updated;
+        }
+
+        synchronized boolean decrementIfPositive(long first, long second, int hash) {
+            int index = find(first, second, hash);
+            if (index < 0 || values[index] <= 0L) {
+                return false;
+            }
+            store(first, second, hash, index, values[index] - 1);
+            return true;
+        }
+
+        synchronized long subtractAtMost(long first, long second, int hash, long amount) {
+            int index = find(first, second, hash);
+            if (index < 0 || amount <= 0L) {
+                return 0L;
+            }
+            long removed = Math.min(values[index], amount);
+            store(first, second, hash, index, values[index] - removed);
+            return removed;
+        }
+
+        synchronized long put(long first, long second, int hash, long value) {
+            int index = find(first, second, hash);
+            long previous = index >= 0 ? values[index] : 0L;
+            store(first, second, hash, index, Math.max(0L, value));
+            return previous;
+        }
+
+        synchronized void clear() {
+            Arrays.fill(used, false);
+            size = 0;
+        }
+
+        private void store(long first, long second, int hash, int index, long value) {
+            if (index >= 0) {
+                if (value == 0L) {
+                    remove(index);
+                } else {
+                    values[index] = value;
+                }
+                return;
+            }
+            if (value == 0L) {
+                return;
+            }
+            if ((size + 1) * 4 > used.length * 3) {
+                resize();
+            }
+            int slot = hash & (used.length - 1);
+            while (used[slot]) {
+                slot = (slot + 1) & (used.length - 1);
+            }
+            firstKeys[slot] = first;
+            secondKeys[slot] = second;
+            values[slot] = value;
+            used[slot] = true;
+            size++;
+        }
+
+        private int find(long first, long second, int hash) {
+            int mask = used.length - 1;
+            int slot = hash & mask;
+            while (used[slot]) {
+                if (firstKeys[slot] == first && secondKeys[slot] == second) {
+                    return slot;
+                }
+                slot = (slot + 1) & mask;
+            }
+            return -1;
+        }
+
+        /**
+         * 线性探测下的回移删除，保证后续键仍然可以被探测到
+         */
+        private void remove(int index) {
+            int mask = used.length - 1;
+            int hole = index;
+            int slot = (index + 1) & mask;
+            while (used[slot]) {
+                int home = hash(firstKeys[slot], secondKeys[slot]) & mask;
+                // 当home不在(hole, slot]区间内时，该元素可以回移到空洞处
+                boolean movable = hole <= slot ? (home <= hole || home > slot) : (home <= hole && home > slot);
+                if (movable) {
+                    firstKeys[hole] = firstKeys[slot];
+                    secondKeys[hole] = secondKeys[slot];
+                    values[hole] = values[slot];
+                    hole = slot;
+                }
+                slot = (slot + 1) & mask;
+            }
+            used[hole] = false;
+            size--;
+        }
+
+        private void resize() {
+            long[] oldFirst = firstKeys;
+            long[] oldSecond = secondKeys;
+            long[] oldValues = values;
+            boolean[] oldUsed = used;
+            int capacity = oldUsed.length << 1;
+            firstKeys = new long[capacity];
+            secondKeys = new long[capacity];
+            values = new long[capacity];
+            used = new boolean[capacity];
+            int mask = capacity - 1;
+            for (int i = 0; i < oldUsed.length; i++) {
+                if (oldUsed[i]) {
+                    int slot = hash(oldFirst[i], oldSecond[i]) & mask;
+                    while (used[slot]) {
+                        slot = (slot + 1) & mask;
+                    }
+                    firstKeys[slot] = oldFirst[i];
+                    secondKeys[slot] = oldSecond[i];
+                    values[slot] = oldValues[i];
+                    used[slot] = true;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package com.im.corey.util;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * 消息全文检索分词器
+ * 中日韩文字没有空格分词，建索引时连续的中日韩字符同时切分为单字和相邻两字的二元词，
+ * 单字查询也能命中；查询时连续两字以上只用二元词（单独一个字时用该字），不必读取庞大的单字倒排。
+ * 其余字母和数字按连续片段切分为小写单词
+ */
+public final class MessageTokenizer {
+
+    /**
+     * 单词的最大长度，更长的片段截断后索引
+     */
+    private static final int MAX_WORD_LENGTH = 32;
+
+    private MessageTokenizer() {
+    }
+
+    /**
+     * 切分消息内容用于建索引，返回去重后的词，保持首次出现的顺序
+     */
+    public static Set<String> tokenize(String text) {
+        return tokenize(text, true);
+    }
+
+    /**
+     * 切分查询文本，返回的词都是tokenize对包含该查询的内容所产生的词
+     */
+    public static Set<String> tokenizeQuery(String query) {
+        return tokenize(query, false);
+    }
+
+    private static Set<String> tokenize(String text, boolean unigrams) {
+        Set<String> tokens = new LinkedHashSet<>();
+        if (text == null || text.isEmpty()) {
+            return tokens;
+        }
+        List<String> cjkRun = new ArrayList<>();
+        StringBuilder word = new StringBuilder();
+        int i = 0;
+        while (i < text.length()) {
+            int codePoint = text.codePointAt(i);
+            i += Character.charCount(codePoint);
+            if (isCjk(codePoint)) {
+                flushWord(word, tokens);
+                cjkRun.add(new String(Character.toChars(codePoint)));
+            } else if (Character.isLetterOrDigit(codePoint)) {
+                flushCjk(cjkRun, tokens, unigrams);
+                word.appendCodePoint(Character.toLowerCase(codePoint));
+            } else {
+                flushWord(word, tokens);
+                flushCjk(cjkRun, tokens, unigrams);
+            }
+        }
+        flushWord(word, tokens);
+        flushCjk(cjkRun, tokens, unigrams);
+        return tokens;
+    }
+
+    /**
+     * 把查询拆成用于校验命中的关键词：按空白分隔并转为小写，消息内容需要包含全部关键词
+     */
+    public static List<String> terms(String query) {
+        List<String> terms = new ArrayList<>();
+        if (query == null) {
+            return terms;
+        }
+        for (String term : query.trim().toLowerCase(Locale.ROOT).split("\\s+")) {
+            if (!term.isEmpty()) {
+                terms.add(term);
+            }
+        }
+        return terms;
+    }
+
+    private static void flushWord(StringBuilder word, Set<String> tokens) {
+        if (word.length() > 0) {
+            tokens.add(word.length() > MAX_WORD_LENGTH ? word.substring(0, MAX_WORD_LENGTH) : word.toString());
+            word.setLength(0);
+        }
+    }
+
+    private static void flushCjk(List<String> run, Set<String> tokens, boolean unigrams) {
+        if (unigrams || run.size() == 1) {
+            tokens.addAll(run);
+        }
+        for (int j = 0; j + 1 < run.size(); j++) {
+            tokens.add(run.get(j) + run.get(j + 1));
+        }
+        run.clear();
+    }
+
+    private static boolean isCjk(int codePoint) {
+        Character.UnicodeScript script = Character.UnicodeScript.of(codePoint);
+        return script == Character.UnicodeScript.HAN
+                || script == Character.UnicodeScript.HIRAGANA
+                || script == Character.UnicodeScript.KATAKANA
+                || script == Character.UnicodeScript.HANGUL;
+    }
+}
@@ -0,0 +1,358 @@
+package com.im.corey.util;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * 只读的倒排索引段文件
+ * 键为(用户ID, 词)，按键有序存放，每个键的倒排表保存包含该词的消息ID及消息所在会话的对方ID，按消息ID升序、差值变长编码。
+ * 文件末尾是稀疏目录，每隔若干个键记录一次键的偏移；打开时只把稀疏目录读入内存，
+ * 查找时先二分稀疏目录，再在内存映射的文件中顺序扫描至多一个间隔内的键
+ *
+ * 文件格式：
+ * [magic int][version int][maxMessageId long][keyCount int][sparseInterval int]
+ * 键条目 × keyCount：[userId long][词长度 short][词 UTF-8][倒排数 int][倒排字节数 int][倒排]
+ * [稀疏目录条目数 int][键条目偏移 long × 条目数][稀疏目录偏移 long]
+ */
+public final class PostingsSegment {
+
+    private static final int MAGIC = 0x494D5358;
+
+    private static final int VERSION = 1;
+
+    private static final int HEADER_BYTES = 24;
+
+    /**
+     * 一个键及其倒排表，ids按升序排列且不重复，peers与ids一一对应
+     */
+    public static final class Entry {
+        private final long userId;
+        private final String token;
+        private final long[] ids;
+        private final long[] peers;
+        private final int size;
+
+        public Entry(long userId, String token, long[] ids, long[] peers, int size) {
+            this.userId = userId;
+            this.token = token;
+            this.ids = ids;
+            this.peers = peers;
+            this.size = size;
+        }
+
+        public long getUserId() {
+            return userId;
+        }
+
+        public String getToken() {
+            return token;
+        }
+
+        public long[] getIds() {
+            return ids;
+        }
+
+        public long[] getPeers() {
+            return peers;
+        }
+
+        public int getSize() {
+            return size;
+        }
+    }
+
+    private final Path path;
+    private final MappedByteBuffer buffer;
+    private final long maxMessageId;
+    private final int keyCount;
+    private final int sparseInterval;
+    private final long[] sparseUsers;
+    private final String[] sparseTokens;
+    private final int[] sparseOffsets;
+
+    private PostingsSegment(Path path, MappedByteBuffer buffer) {
+        this.path = path;
+        this.buffer = buffer;
+        if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+            throw new IllegalStateException("无效的索引段文件: " + path);
+        }
+        this.maxMessageId = buffer.getLong(8);
+        this.keyCount = buffer.getInt(16);
+        this.sparseInterval = buffer.getInt(20);
+        int directoryOffset = (int) buffer.getLong(buffer.capacity() - 8);
+        int sparseCount = buffer.getInt(directoryOffset);
+        sparseUsers = new long[sparseCount];
+        sparseTokens = new String[sparseCount];
+        sparseOffsets = new int[sparseCount];
+        ByteBuffer view = buffer.duplicate();
+        for (int i = 0; i < sparseCount; i++) {
+            int offset = (int) buffer.getLong(directoryOffset + 4 + i * 8);
+            view.position(offset);
+            sparseOffsets[i] = offset;
+            sparseUsers[i] = view.getLong();
+            sparseTokens[i] = readToken(view);
+        }
+    }
+
+    /**
+     * 打开段文件并映射到内存
+     */
+    public static PostingsSegment open(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("索引段文件超过2GB: " + path);
+            }
+            return new PostingsSegment(path, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    /**
+     * 按键的顺序写出段文件
+     *
+     * @param entries 按compare排序且键不重复的条目
+     * @param maxMessageId 段中包含的最大消息ID，用于启动时确定需要补建索引的起点
+     * @return 写入的字节数
+     */
+    public static long write(Path path, long maxMessageId, Iterator<Entry> entries, int sparseInterval) throws IOException {
+        int count = 0;
+        long written;
+        try (CountingOutputStream counter = new CountingOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(path), 1 << 16));
+             DataOutputStream out = new DataOutputStream(counter)) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(maxMessageId);
+            // 键数量在写完后回填
+            out.writeInt(0);
+            out.writeInt(sparseInterval);
+            LongArray sparse = new LongArray();
+            ByteArrayOutputStream postings = new ByteArrayOutputStream(1024);
+            while (entries.hasNext()) {
+                Entry entry = entries.next();
+                if (count % sparseInterval == 0) {
+                    sparse.add(counter.count);
+                }
+                postings.reset();
+                long previous = 0;
+                for (int i = 0; i < entry.size; i++) {
+                    writeVarLong(postings, entry.ids[i] - previous);
+                    writeVarLong(postings, entry.peers[i]);
+                    previous = entry.ids[i];
+                }
+                byte[] token = entry.token.getBytes(StandardCharsets.UTF_8);
+                out.writeLong(entry.userId);
+                out.writeShort(token.length);
+                out.write(token);
+                out.writeInt(entry.size);
+                out.writeInt(postings.size());
+                postings.writeTo(out);
+                count++;
+            }
+            long directoryOffset = counter.count;
+            out.writeInt(sparse.size());
+            for (int i = 0; i < sparse.size(); i++) {
+                out.writeLong(sparse.get(i));
+            }
+            out.writeLong(directoryOffset);
+            out.flush();
+            written = counter.count;
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.allocate(4).putInt(0, count), 16);
+            channel.force(true);
+        }
+        return written;
+    }
+
+    /**
+     * 查找键的倒排表，不存在时返回null
+     */
+    public Entry lookup(long userId, String token) {
+        int low = 0;
+        int high = sparseUsers.length - 1;
+        int start = -1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = compare(sparseUsers[mid], sparseTokens[mid], userId, token);
+            if (cmp <= 0) {
+                start = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        if (start < 0) {
+            return null;
+        }
+        ByteBuffer view = buffer.duplicate();
+        view.position(sparseOffsets[start]);
+        int remaining = Math.min(sparseInterval, keyCount - start * sparseInterval);
+        for (int i = 0; i < remaining; i++) {
+            long entryUser = view.getLong();
+            String entryToken = readToken(view);
+            int cmp = compare(entryUser, entryToken, userId, token);
+            if (cmp == 0) {
+                return readPostings(view, entryUser, entryToken);
+            }
+            if (cmp > 0) {
+                return null;
+            }
+            view.getInt();
+            int bytes = view.getInt();
+            view.position(view.position() + bytes);
+        }
+        return null;
+    }
+
+    /**
+     * 按键的顺序遍历全部条目，用于段合并
+     */
+    public Iterator<Entry> iterator() {
+        ByteBuffer view = buffer.duplicate();
+        view.position(HEADER_BYTES);
+        return new Iterator<Entry>() {
+            private int read;
+
+            @Override
+            public boolean hasNext() {
+                return read < keyCount;
+            }
+
+            @Override
+            public Entry next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                read++;
+                long userId = view.getLong();
+                String token = readToken(view);
+                return readPostings(view, userId, token);
+            }
+        };
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    public long getMaxMessageId() {
+        return maxMessageId;
+    }
+
+    public long getSizeInBytes() {
+        return buffer.capacity();
+    }
+
+    /**
+     * 键的顺序：先按用户ID，再按词
+     */
+    public static int compare(long userId1, String token1, long userId2, String token2) {
+        int cmp = Long.compare(userId1, userId2);
+        return cmp != 0 ? cmp : token1.compareTo(token2);
+    }
+
+    private static String readToken(ByteBuffer view) {
+        byte[] token = new byte[view.getShort() & 0xFFFF];
+        view.get(token);
+        return new String(token, StandardCharsets.UTF_8);
+    }
+
+    private static Entry readPostings(ByteBuffer view, long userId, String token) {
+        int size = view.getInt();
+        view.getInt();
+        long[] ids = new long[size];
+        long[] peers = new long[size];
+        long previous = 0;
+        for (int i = 0; i < size; i++) {
+            previous += readVarLong(view);
+            ids[i] = previous;
+            peers[i] = readVarLong(view);
+        }
+        return new Entry(userId, token, ids, peers, size);
+    }
+
+    private static void writeVarLong(OutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static long readVarLong(ByteBuffer view) {
+        long value = 0;
+        int shift = 0;
+        while (true) {
+            byte b = view.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+            shift += 7;
+        }
+    }
+
+    private static final class CountingOutputStream extends OutputStream {
+        private final OutputStream out;
+        private long count;
+
+        private CountingOutputStream(OutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+
+    private static final class LongArray {
+        private long[] values = new long[64];
+        private int size;
+
+        private void add(long value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        private long get(int index) {
+            return values[index];
+        }
+
+        private int size() {
+            return size;
+        }
+    }
+}
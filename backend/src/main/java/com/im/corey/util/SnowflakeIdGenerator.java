@@ -0,0 +1,130 @@
+package com.im.corey.util;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 按时间递增的消息ID生成器（Snowflake结构）
+ * ID由 41位毫秒时间戳 | 5位节点号 | 7位毫秒内序号 组成，共53位，
+ * 不超过JavaScript的安全整数范围，前端可以直接按数字处理；
+ * 时间戳在最高位，不同节点生成的ID整体按时间排序，且都大于此前数据库自增生成的ID。
+ * 时间戳和序号合并保存在一个AtomicLong中，通过CAS推进，生成ID时不加锁；
+ * 单个毫秒内序号用尽或系统时钟回拨时等待时钟追上，不预支未来的时间戳，
+ * 因此生成的ID不会超前于当前时间，快速重启后也不会重复发出重启前已用过的ID；
+ * 时钟回拨超过允许的等待时间时拒绝生成
+ */
+@Component
+public class SnowflakeIdGenerator {
+
+    /**
+     * 自定义纪元：2024-01-01T00:00:00Z，41位时间戳可用约69年
+     */
+    private static final long EPOCH = 1704067200000L;
+
+    private static final int NODE_BITS = 5;
+
+    private static final int SEQUENCE_BITS = 7;
+
+    private static final int MAX_NODE_ID = (1 << NODE_BITS) - 1;
+
+    private static final long SEQUENCE_MASK = (1L << SEQUENCE_BITS) - 1;
+
+    private static final int TIMESTAMP_SHIFT = NODE_BITS + SEQUENCE_BITS;
+
+    @Value("${im.id.node-id:0}")
+    private int nodeId;
+
+    @Value("${im.id.max-clock-backward-ms:1000}")
+    private long maxClockBackwardMs;
+
+    /**
+     * 上次生成ID时的 (时间戳 << SEQUENCE_BITS) | 序号
+     */
+    private final AtomicLong state = new AtomicLong();
+
+    @PostConstruct
+    public void init() {
+        if (nodeId < 0 || nodeId > MAX_NODE_ID) {
+            throw new IllegalArgumentException("im.id.node-id必须在0到" + MAX_NODE_ID + "之间，当前值: " + nodeId);
+        }
+    }
+
+    /**
+     * 生成下一个ID
+     */
+    public long nextId() {
+        while (true) {
+            long last = state.get();
+            long lastTimestamp = last >>> SEQUENCE_BITS;
+            long now = currentTimeMillis() - EPOCH;
+            long next;
+            if (now > lastTimestamp) {
+                // 新的毫秒从序号0开始
+                next = now << SEQUENCE_BITS;
+            } else if (now == lastTimestamp && (last & SEQUENCE_MASK) < SEQUENCE_MASK) {
+                next = last + 1;
+            } else {
+                // 序号用尽或时钟回拨，等待时钟走到下一个毫秒
+                awaitClock(lastTimestamp - now);
+                continue;
+            }
+            if (state.compareAndSet(last, next)) {
+                return toId(next);
+            }
+        }
+    }
+
+    /**
+     * 此后本节点调用nextId()可能返回的最小ID，不改变生成器的状态
+     */
+    public long lowestNextId() {
+        long last = state.get();
+        long now = currentTimeMillis() - EPOCH;
+        // 序号用尽时last + 1进位到下一个毫秒，与nextId()等待时钟的结果一致
+        return toId(now > last >>> SEQUENCE_BITS ? now << SEQUENCE_BITS : last + 1);
+    }
+
+    private long toId(long timestampAndSequence) {
+        long timestamp = timestampAndSequence >>> SEQUENCE_BITS;
+        return (timestamp << TIMESTAMP_SHIFT) | ((long) nodeId << SEQUENCE_BITS) | (timestampAndSequence & SEQUENCE_MASK);
+    }
+
+    long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    private void awaitClock(long behindMillis) {
+        if (behindMillis <= 0) {
+            // 同一毫秒内序号用尽，下一毫秒很快到来
+            Thread.yield();
+            return;
+        }
+        if (behindMillis > maxClockBackwardMs) {
+            throw new IllegalStateException("系统时钟回拨" + behindMillis + "毫秒，超过允许的"
+                    + maxClockBackwardMs + "毫秒，拒绝生成ID");
+        }
+        try {
+            Thread.sleep(behindMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("等待时钟追上时被中断", e);
+        }
+    }
+
+    /**
+     * 指定时间之后生成的ID都不小于返回值，用于按时间换算ID范围
+     */
+    public static long minIdAt(long epochMillis) {
+        return Math.max(0L, epochMillis - EPOCH) << TIMESTAMP_SHIFT;
+    }
+
+    /**
+     * 从ID中解析生成时间（毫秒时间戳），改用本生成器之前由数据库自增的ID会得到接近纪元的时间
+     */
+    public static long timestampOf(long id) {
+        return (id >>> TIMESTAMP_SHIFT) + EPOCH;
+    }
+}
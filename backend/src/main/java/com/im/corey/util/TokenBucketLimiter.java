@@ -0,0 +1,166 @@
+package com.im.corey.util;
+
+/**
+ * 以long为键的令牌桶限流器
+ * 按键的哈希分段加锁，每段用开放寻址的原始类型数组保存令牌数和上次补充时间，获取令牌时不分配对象；
+ * 令牌已补满的桶与不存在的桶等价，段内空间不足时会先清理这些空闲桶再考虑扩容
+ */
+public class TokenBucketLimiter {
+
+    /**
+     * 令牌数以百万分之一个令牌为单位保存，避免浮点运算
+     */
+    private static final long SCALE = 1_000_000L;
+
+    private static final int INITIAL_SEGMENT_CAPACITY = 16;
+
+    private final Segment[] segments;
+
+    private final int segmentMask;
+
+    /**
+     * 每秒补充的令牌数（按SCALE放大）
+     */
+    private final long refillPerSecond;
+
+    private final long capacity;
+
+    /**
+     * 空桶补满所需的纳秒数，超过该时长的间隔按补满处理，防止溢出
+     */
+    private final long fullRefillNanos;
+
+    /**
+     * @param permitsPerSecond 每秒补充的令牌数
+     * @param burst            桶容量，即允许的突发请求数
+     * @param concurrencyLevel 分段数量，会向上取整为2的幂
+     */
+    public TokenBucketLimiter(double permitsPerSecond, int burst, int concurrencyLevel) {
+        if (permitsPerSecond <= 0 || burst <= 0) {
+            throw new IllegalArgumentException("令牌桶速率和容量必须大于0");
+        }
+        this.refillPerSecond = Math.max(1L, (long) (permitsPerSecond * SCALE));
+        this.capacity = burst * SCALE;
+        this.fullRefillNanos = (long) Math.ceil(capacity * 1_000_000_000.0 / refillPerSecond);
+        int size = 1;
+        while (size < concurrencyLevel) {
+            size <<= 1;
+        }
+        segments = new Segment[size];
+        for (int i = 0; i < size; i++) {
+            segments[i] = new Segment();
+        }
+        segmentMask = size - 1;
+    }
+
+    /**
+     * 尝试为指定键获取一个令牌
+     *
+     * @return 获取成功返回true，令牌不足返回false
+     */
+    public boolean tryAcquire(long key) {
+        return tryAcquire(key, System.nanoTime());
+    }
+
+    /**
+     * 以给定的时间（System.nanoTime()的取值）获取令牌
+     */
+    boolean tryAcquire(long key, long nowNanos) {
+        int hash = hash(key);
+        return segments[(hash >>> 16) & segmentMask].tryAcquire(key, hash, nowNanos);
+    }
+
+    private static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private final class Segment {
+        private long[] keys = new long[INITIAL_SEGMENT_CAPACITY];
+        private long[] tokens = new long[INITIAL_SEGMENT_CAPACITY];
+        private long[] stamps = new long[INITIAL_SEGMENT_CAPACITY];
+        private boolean[] used = new boolean[INITIAL_SEGMENT_CAPACITY];
+        private int size;
+
+        synchronized boolean tryAcquire(long key, int hash, long now) {
+            int mask = used.length - 1;
+            int slot = hash & mask;
+            while (used[slot]) {
+                if (keys[slot] == key) {
+                    long available = refill(tokens[slot], now - stamps[slot]);
+                    stamps[slot] = now;
+                    if (available < SCALE) {
+                        tokens[slot] = available;
+                        return false;
+                    }
+                    tokens[slot] = available - SCALE;
+                    return true;
+                }
+                slot = (slot + 1) & mask;
+            }
+            if ((size + 1) * 4 > used.length * 3) {
+                rebuild(now);
+                mask = used.length - 1;
+                slot = hash & mask;
+                while (used[slot]) {
+                    slot = (slot + 1) & mask;
+                }
+            }
+            // 新的桶视为已补满，直接扣除一个令牌
+            keys[slot] = key;
+            tokens[slot] = capacity - SCALE;
+            stamps[slot] = now;
+            used[slot] = true;
+            size++;
+            return true;
+        }
+
+        private long refill(long current, long elapsedNanos) {
+            if (elapsedNanos >= fullRefillNanos) {
+                return capacity;
+            }
+            long added = elapsedNanos <= 0 ? 0L : elapsedNanos * (refillPerSecond / 1000) / 1_000_000L
+                    + elapsedNanos * (refillPerSecond % 1000) / 1_000_000_000L;
+            return Math.min(capacity, current + added);
+        }
+
+        /**
+         * 丢弃已补满的空闲桶，剩余的桶仍超过一半容量时扩容
+         */
+        private void rebuild(long now) {
+            int live = 0;
+            for (int i = 0; i < used.length; i++) {
+                if (used[i] && refill(tokens[i], now - stamps[i]) < capacity) {
+                    live++;
+                }
+            }
+            int newCapacity = used.length;
+            while ((live + 1) * 2 > newCapacity) {
+                newCapacity <<= 1;
+            }
+            long[] oldKeys = keys;
+            long[] oldTokens = tokens;
+            long[] oldStamps = stamps;
+            boolean[] oldUsed = used;
+            keys = new long[newCapacity];
+            tokens = new long[newCapacity];
+            stamps = new long[newCapacity];
+            used = new boolean[newCapacity];
+            size = 0;
+            int mask = newCapacity - 1;
+            for (int i = 0; i < oldUsed.length; i++) {
+                if (oldUsed[i] && refill(oldTokens[i], now - oldStamps[i]) < capacity) {
+                    int slot = hash(oldKeys[i]) & mask;
+                    while (used[slot]) {
+                        slot = (slot + 1) & mask;
+                    }
+                    keys[slot] = oldKeys[i];
+                    tokens[slot] = oldTokens[i];
+                    stamps[slot] = oldStamps[i];
+                    used[slot] = true;
+                    size++;
+                }
+            }
+        }
+    }
+}
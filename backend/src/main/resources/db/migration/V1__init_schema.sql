@@ -1,9 +1,6 @@
--- 创建数据库
-CREATE DATABASE IF NOT EXISTS im_chat CHARACTER SET utf8mb4 COLLATE utf8mb4_unicode_ci;
+-- 初始表结构，与引入Flyway之前的schema.sql一致
+-- 已按schema.sql建好表的数据库会以版本1为基线，跳过本脚本，从V2开始升级
 
-USE im_chat;
-
--- 创建用户表
 CREATE TABLE IF NOT EXISTS users (
     id BIGINT AUTO_INCREMENT PRIMARY KEY COMMENT '用户ID',
     username VARCHAR(50) UNIQUE NOT NULL COMMENT '用户名',
@@ -18,7 +15,6 @@ CREATE TABLE IF NOT EXISTS users (
     updated_time DATETIME DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP COMMENT '更新时间'
 );
 
--- 创建消息表
 CREATE TABLE IF NOT EXISTS messages (
     id BIGINT AUTO_INCREMENT PRIMARY KEY COMMENT '消息ID',
     sender_id BIGINT NOT NULL COMMENT '发送者ID',
@@ -0,0 +1,34 @@
+-- 在基线表结构上增加应用生成的消息ID、重发去重、已读水位以及与查询对应的复合索引
+
+-- 消息ID由应用按时间递增生成，不再自增；
+-- 消息类型统一为VARCHAR，与实体的@Enumerated(EnumType.STRING)映射一致，便于启动时做结构校验；
+-- 所有变更合并在一条ALTER中，只重建一次表
+ALTER TABLE messages
+    MODIFY id BIGINT NOT NULL COMMENT '消息ID，应用按时间递增生成',
+    MODIFY type VARCHAR(20) DEFAULT 'TEXT' COMMENT '消息类型：TEXT, IMAGE, FILE, VOICE, VIDEO',
+    ADD COLUMN client_message_id BIGINT COMMENT '客户端消息ID，用于重发去重',
+    ADD UNIQUE KEY uk_sender_client_message (sender_id, client_message_id),
+    -- 未读查询：findUnreadByReceiverId 以及用户列表中按发送者分组的未读数，
+    -- receiver_id = ? AND is_read = false 之后按sender_id分组、按id与已读水位比较，均可在索引内完成
+    ADD INDEX idx_receiver_unread_sender (receiver_id, is_read, sender_id, id),
+    -- 按用户的历史与增量同步：findReceivedAfter/findSentAfter，
+    -- 以及findByReceiverIdOrSenderIdOrderBySentTimeDesc（两个索引合并扫描）
+    ADD INDEX idx_receiver_id (receiver_id, id),
+    ADD INDEX idx_sender_id (sender_id, id),
+    -- 会话查询：findDirectionalBefore/findDirectionalAfter/findLatestMessageId/findMessagesBetweenUsers，
+    -- 显式写出id列，不依赖二级索引末尾隐含的主键；取代基线中的idx_sender_receiver
+    ADD INDEX idx_sender_receiver_id (sender_id, receiver_id, id),
+    DROP INDEX idx_sender_receiver,
+    -- 基线中的(receiver_id, is_read)是idx_receiver_unread_sender的前缀，只增加写入开销；
+    -- receiver_id外键改由idx_receiver_id支撑
+    DROP INDEX idx_receiver_unread;
+
+CREATE TABLE read_watermarks (
+    reader_id BIGINT NOT NULL COMMENT '读者ID',
+    peer_id BIGINT NOT NULL COMMENT '会话对方ID',
+    last_read_message_id BIGINT NOT NULL COMMENT '已读到的最后一条消息ID',
+    updated_time DATETIME DEFAULT CURRENT_TIMESTAMP COMMENT '更新时间',
+    PRIMARY KEY (reader_id, peer_id),
+    FOREIGN KEY (reader_id) REFERENCES users(id) ON DELETE CASCADE,
+    FOREIGN KEY (peer_id) REFERENCES users(id) ON DELETE CASCADE
+);
@@ -0,0 +1,30 @@
+-- 会话摘要表：每个用户与每个聊天对象一行，保存最新消息预览和未读数
+CREATE TABLE conversations (
+    owner_id BIGINT NOT NULL COMMENT '会话所属用户ID',
+    peer_id BIGINT NOT NULL COMMENT '会话对方ID',
+    last_message_id BIGINT NOT NULL COMMENT '最新一条消息ID',
+    last_sender_id BIGINT NOT NULL COMMENT '最新一条消息的发送者ID',
+    last_message_preview VARCHAR(100) COMMENT '最新一条消息的内容预览',
+    last_message_type VARCHAR(20) COMMENT '最新一条消息的类型',
+    last_activity_time DATETIME COMMENT '最近活动时间',
+    unread_count INT NOT NULL DEFAULT 0 COMMENT '对方发来的未读消息数',
+    PRIMARY KEY (owner_id, peer_id),
+    INDEX idx_owner_last_message (owner_id, last_message_id),
+    FOREIGN KEY (owner_id) REFERENCES users(id) ON DELETE CASCADE,
+    FOREIGN KEY (peer_id) REFERENCES users(id) ON DELETE CASCADE
+);
+
+-- 由已有消息回填：每个(用户, 对方)取最新一条消息，未读数与已读水位的判定一致
+INSERT INTO conversations (owner_id, peer_id, last_message_id, last_sender_id, last_message_preview,
+                           last_message_type, last_activity_time, unread_count)
+SELECT p.owner_id, p.peer_id, m.id, m.sender_id, LEFT(m.content, 100), m.type, m.sent_time,
+       (SELECT COUNT(*) FROM messages u
+            LEFT JOIN read_watermarks w ON w.reader_id = u.receiver_id AND w.peer_id = u.sender_id
+        WHERE u.receiver_id = p.owner_id AND u.sender_id = p.peer_id AND u.is_read = false
+          AND u.id > COALESCE(w.last_read_message_id, 0))
+FROM (SELECT owner_id, peer_id, MAX(id) AS last_id
+      FROM (SELECT sender_id AS owner_id, receiver_id AS peer_id, id FROM messages
+            UNION ALL
+            SELECT receiver_id AS owner_id, sender_id AS peer_id, id FROM messages) t
+      GROUP BY owner_id, peer_id) p
+JOIN messages m ON m.id = p.last_id;
@@ -0,0 +1,501 @@
+package com.im.corey.config;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.im.corey.dto.PresenceDeltaDTO;
+import com.im.corey.event.PresenceChangedEvent;
+import com.im.corey.service.PresenceClusterService;
+import com.im.corey.service.PresenceFeedService;
+import com.im.corey.service.PresenceRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageHandler;
+import org.springframework.messaging.converter.MappingJackson2MessageConverter;
+import org.springframework.messaging.simp.SimpMessagingTemplate;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.messaging.simp.config.MessageBrokerRegistry;
+import org.springframework.messaging.simp.stomp.StompBrokerRelayMessageHandler;
+import org.springframework.messaging.simp.stomp.StompCommand;
+import org.springframework.messaging.simp.stomp.StompHeaderAccessor;
+import org.springframework.messaging.support.ExecutorSubscribableChannel;
+import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * 集群模式下两个节点通过同一个STOMP代理中继互相投递
+ * 用一个最小的进程内STOMP代理代替RabbitMQ/ActiveMQ，两个节点的中继均由WebSocketConfig的集群配置创建
+ */
+class ClusterRelayFanOutTest {
+
+    private FakeStompBroker broker;
+
+    private final List<StompBrokerRelayMessageHandler> nodes = new ArrayList<>();
+
+    @BeforeEach
+    void startBroker() throws IOException {
+        broker = new FakeStompBroker();
+    }
+
+    @AfterEach
+    void stop() throws IOException {
+        for (StompBrokerRelayMessageHandler node : nodes) {
+            node.stop();
+        }
+        broker.close();
+    }
+
+    @Test
+    void topicMessagePublishedOnOneNodeReachesSessionOnAnother() throws Exception {
+        BlockingQueue<Message<?>> nodeAOutbound = new LinkedBlockingQueue<>();
+        StompBrokerRelayMessageHandler nodeA = startNode(nodeAOutbound, Collections.emptyMap());
+        StompBrokerRelayMessageHandler nodeB = startNode(new LinkedBlockingQueue<>(), Collections.emptyMap());
+
+        nodeA.handleMessage(clientFrame(StompCommand.CONNECT, "session-a", null, null));
+        Message<?> connected = nodeAOutbound.poll(5, TimeUnit.SECONDS);
+        assertThat(connected).isNotNull();
+        assertThat(StompHeaderAccessor.wrap(connected).getCommand()).isEqualTo(StompCommand.CONNECTED);
+
+        nodeA.handleMessage(clientFrame(StompCommand.SUBSCRIBE, "session-a", "sub-0", "/topic/room"));
+        awaitTrue(() -> broker.subscriptionCount("/topic/room") == 1);
+
+        nodeB.handleMessage(send("/topic/room", "hello from node B"));
+
+        Message<?> delivered = nodeAOutbound.poll(5, TimeUnit.SECONDS);
+        assertThat(delivered).isNotNull();
+        StompHeaderAccessor headers = StompHeaderAccessor.wrap(delivered);
+        assertThat(headers.getCommand()).isEqualTo(StompCommand.MESSAGE);
+        assertThat(headers.getSessionId()).isEqualTo("session-a");
+        assertThat(headers.getSubscriptionId()).isEqualTo("sub-0");
+        assertThat(new String((byte[]) delivered.getPayload(), StandardCharsets.UTF_8)).isEqualTo("hello from node B");
+    }
+
+    @Test
+    void unresolvedUserDestinationIsBroadcastToOtherNodes() throws Exception {
+        BlockingQueue<Message<?>> broadcasts = new LinkedBlockingQueue<>();
+        String broadcastDestination = new ExposedRegistry(clusterConfig()).userDestinationBroadcast();
+        assertThat(broadcastDestination).isEqualTo("/topic/unresolved-user-destination");
+
+        // 节点A的系统会话订阅广播目的地，转交给本节点的用户目的地处理器（此处以队列代替）
+        startNode(new LinkedBlockingQueue<>(), Collections.singletonMap(broadcastDestination, broadcasts::add));
+        StompBrokerRelayMessageHandler nodeB = startNode(new LinkedBlockingQueue<>(), Collections.emptyMap());
+        awaitTrue(() -> broker.subscriptionCount(broadcastDestination) == 1);
+
+        nodeB.handleMessage(send(broadcastDestination, "frame for a user on node A"));
+
+        Message<?> received = broadcasts.poll(5, TimeUnit.SECONDS);
+        assertThat(received).isNotNull();
+        assertThat(new String((byte[]) received.getPayload(), StandardCharsets.UTF_8))
+                .isEqualTo("frame for a user on node A");
+    }
+
+    @Test
+    void presenceIsSequencedByOneNodeAndFollowedByTheOthers() throws Exception {
+        Set<Long> onlineOnA = ConcurrentHashMap.newKeySet();
+        Set<Long> onlineOnB = ConcurrentHashMap.newKeySet();
+        PresenceNode a = presenceNode(1, true, onlineOnA);
+        PresenceNode b = presenceNode(2, false, onlineOnB);
+        BlockingQueue<Message<?>> nodeBOutbound = new LinkedBlockingQueue<>();
+        a.start(new LinkedBlockingQueue<>());
+        StompBrokerRelayMessageHandler relayB = b.start(nodeBOutbound);
+        awaitTrue(() -> broker.subscriptionCount("/topic/presence-nodes") == 1
+                && broker.subscriptionCount("/topic/presence-snapshots") == 1);
+
+        // 节点B上的客户端订阅在线状态广播
+        relayB.handleMessage(clientFrame(StompCommand.CONNECT, "session-b", null, null));
+        assertThat(nodeBOutbound.poll(5, TimeUnit.SECONDS)).isNotNull();
+        relayB.handleMessage(clientFrame(StompCommand.SUBSCRIBE, "session-b", "sub-0", "/topic/online-users"));
+        awaitTrue(() -> broker.subscriptionCount("/topic/online-users") == 2);
+
+        // 汇总节点发布快照后，其余节点与它的版本一致
+        a.cluster.reportState();
+        awaitTrue(() -> b.feed.snapshot().getVersion() == a.feed.snapshot().getVersion());
+
+        // 用户7连接在节点B上
+        b.change(onlineOnB, 7L, true);
+        awaitTrue(() -> a.flushUntil(() -> a.feed.isPublishedOnline(7L)));
+        Message<?> delivered = nodeBOutbound.poll(5, TimeUnit.SECONDS);
+        assertThat(delivered).isNotNull();
+        PresenceDeltaDTO delta = new ObjectMapper().readValue((byte[]) delivered.getPayload(), PresenceDeltaDTO.class);
+        assertThat(delta.getVersion()).isEqualTo(a.feed.snapshot().getVersion());
+        assertThat(delta.getOnline()).containsExactly(7L);
+        awaitTrue(() -> b.feed.isPublishedOnline(7L) && b.feed.snapshot().getVersion() == delta.getVersion());
+        verify(a.registry).persistTransitions(Collections.singletonList(7L), true);
+
+        // 用户7又连接到节点A，随后断开节点B上的会话：仍在线，不广播下线
+        a.change(onlineOnA, 7L, true);
+        awaitTrue(() -> a.onlineNodeCount(7L) == 2);
+        b.change(onlineOnB, 7L, false);
+        b.change(onlineOnB, 8L, true);
+        awaitTrue(() -> a.flushUntil(() -> a.feed.isPublishedOnline(8L)));
+        assertThat(a.feed.isPublishedOnline(7L)).isTrue();
+        verify(a.registry, never()).persistTransitions(Collections.singletonList(7L), false);
+
+        // 节点B失联：其上的用户8下线，只连接在节点A上的用户7不受影响
+        ReflectionTestUtils.setField(a.cluster, "reportIntervalMs", 50L);
+        Thread.sleep(200);
+        a.change(onlineOnA, 9L, true);
+        awaitTrue(() -> a.flushUntil(() -> a.feed.isPublishedOnline(9L)));
+        ReflectionTestUtils.invokeMethod(a.cluster, "expireNodes");
+        awaitTrue(() -> a.flushUntil(() -> !a.feed.isPublishedOnline(8L)));
+        assertThat(a.feed.snapshot().getOnlineUserIds()).containsExactlyInAnyOrder(7L, 9L);
+        verify(a.registry).persistTransitions(Collections.singletonList(8L), false);
+        awaitTrue(() -> b.feed.snapshot().equals(a.feed.snapshot()));
+    }
+
+    private StompBrokerRelayMessageHandler startNode(BlockingQueue<Message<?>> outbound,
+                                                     Map<String, MessageHandler> systemSubscriptions)
+            throws InterruptedException {
+        return startNode(outbound, relay -> relay.setSystemSubscriptions(systemSubscriptions));
+    }
+
+    private StompBrokerRelayMessageHandler startNode(BlockingQueue<Message<?>> outbound,
+                                                     Consumer<StompBrokerRelayMessageHandler> beforeStart)
+            throws InterruptedException {
+        ExecutorSubscribableChannel outboundChannel = new ExecutorSubscribableChannel();
+        outboundChannel.subscribe(outbound::add);
+        ExposedRegistry registry = new ExposedRegistry(clusterConfig(), new ExecutorSubscribableChannel(), outboundChannel);
+        StompBrokerRelayMessageHandler relay = registry.relay();
+        assertThat(relay).isNotNull();
+        assertThat(relay.getDestinationPrefixes()).containsExactlyInAnyOrder("/topic", "/queue");
+        beforeStart.accept(relay);
+        relay.start();
+        nodes.add(relay);
+        awaitTrue(relay::isBrokerAvailable);
+        return relay;
+    }
+
+    /**
+     * 一个节点的在线状态组件：本地注册表以集合模拟，广播和汇总使用真实实现，经由本节点的中继收发
+     */
+    private PresenceNode presenceNode(int nodeId, boolean sequencer, Set<Long> localOnline) {
+        PresenceNode node = new PresenceNode();
+        node.registry = mock(PresenceRegistry.class);
+        when(node.registry.getOnlineUserIds()).thenAnswer(invocation -> new HashSet<>(localOnline));
+        SimpMessagingTemplate template = new SimpMessagingTemplate((message, timeout) -> {
+            node.relay.handleMessage(message);
+            return true;
+        });
+        template.setMessageConverter(new MappingJackson2MessageConverter());
+
+        node.feed = new PresenceFeedService();
+        ReflectionTestUtils.setField(node.feed, "messagingTemplate", template);
+        ReflectionTestUtils.setField(node.feed, "meterRegistry", new SimpleMeterRegistry());
+        ReflectionTestUtils.setField(node.feed, "clusterEnabled", true);
+        ReflectionTestUtils.setField(node.feed, "sequencer", sequencer);
+        node.feed.initMetrics();
+
+        node.cluster = new PresenceClusterService();
+        ReflectionTestUtils.setField(node.cluster, "clusterEnabled", true);
+        ReflectionTestUtils.setField(node.cluster, "sequencer", sequencer);
+        ReflectionTestUtils.setField(node.cluster, "reportIntervalMs", 5000L);
+        ReflectionTestUtils.setField(node.cluster, "nodeId", nodeId);
+        ReflectionTestUtils.setField(node.cluster, "messagingTemplate", template);
+        ReflectionTestUtils.setField(node.cluster, "presenceRegistry", node.registry);
+        ReflectionTestUtils.setField(node.cluster, "presenceFeedService", node.feed);
+        ReflectionTestUtils.setField(node.cluster, "objectMapper", new ObjectMapper());
+        return node;
+    }
+
+    private final class PresenceNode {
+        private PresenceRegistry registry;
+        private PresenceFeedService feed;
+        private PresenceClusterService cluster;
+        private volatile StompBrokerRelayMessageHandler relay;
+
+        private StompBrokerRelayMessageHandler start(BlockingQueue<Message<?>> outbound) throws InterruptedException {
+            return startNode(outbound, created -> {
+                relay = created;
+                cluster.subscribe(created);
+            });
+        }
+
+        /**
+         * 本节点的注册表发生一次状态转换，并立即上报
+         */
+        private void change(Set<Long> localOnline, Long userId, boolean online) {
+            if (online) {
+                localOnline.add(userId);
+            } else {
+                localOnline.remove(userId);
+            }
+            cluster.onPresenceChanged(new PresenceChangedEvent(Collections.singletonList(userId), online));
+            cluster.reportChanges();
+        }
+
+        private boolean flushUntil(BooleanSupplier condition) {
+            feed.flush();
+            return condition.getAsBoolean();
+        }
+
+        private int onlineNodeCount(Long userId) {
+            Map<?, ?> counts = (Map<?, ?>) ReflectionTestUtils.getField(cluster, "onlineNodeCounts");
+            synchronized (ReflectionTestUtils.getField(cluster, "nodes")) {
+                Object count = counts.get(userId);
+                return count != null ? (Integer) count : 0;
+            }
+        }
+    }
+
+    private WebSocketConfig clusterConfig() {
+        WebSocketConfig config = new WebSocketConfig();
+        ReflectionTestUtils.setField(config, "clusterEnabled", true);
+        ReflectionTestUtils.setField(config, "relayHost", "127.0.0.1");
+        ReflectionTestUtils.setField(config, "relayPort", broker.getPort());
+        ReflectionTestUtils.setField(config, "relayClientLogin", "guest");
+        ReflectionTestUtils.setField(config, "relayClientPasscode", "guest");
+        ReflectionTestUtils.setField(config, "relaySystemLogin", "guest");
+        ReflectionTestUtils.setField(config, "relaySystemPasscode", "guest");
+        ReflectionTestUtils.setField(config, "relayVirtualHost", "");
+        return config;
+    }
+
+    private static Message<byte[]> clientFrame(StompCommand command, String sessionId, String subscriptionId,
+                                               String destination) {
+        StompHeaderAccessor accessor = StompHeaderAccessor.create(command);
+        accessor.setSessionId(sessionId);
+        if (command == StompCommand.CONNECT) {
+            accessor.setAcceptVersion("1.2");
+            accessor.setHeartbeat(0, 0);
+        }
+        if (subscriptionId != null) {
+            accessor.setSubscriptionId(subscriptionId);
+        }
+        if (destination != null) {
+            accessor.setDestination(destination);
+        }
+        accessor.setLeaveMutable(true);
+        return MessageBuilder.createMessage(new byte[0], accessor.getMessageHeaders());
+    }
+
+    private static Message<byte[]> send(String destination, String body) {
+        SimpMessageHeaderAccessor accessor = SimpMessageHeaderAccessor.create();
+        accessor.setDestination(destination);
+        accessor.setLeaveMutable(true);
+        return MessageBuilder.createMessage(body.getBytes(StandardCharsets.UTF_8), accessor.getMessageHeaders());
+    }
+
+    private static void awaitTrue(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.getAsBoolean()) {
+            assertThat(System.currentTimeMillis()).as("等待条件超时").isLessThan(deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * 按WebSocketConfig的配置构建代理注册表，并暴露中继处理器
+     */
+    private static final class ExposedRegistry extends MessageBrokerRegistry {
+
+        private ExposedRegistry(WebSocketConfig config) {
+            this(config, new ExecutorSubscribableChannel(), new ExecutorSubscribableChannel());
+        }
+
+        private ExposedRegistry(WebSocketConfig config, ExecutorSubscribableChannel inbound,
+                                ExecutorSubscribableChannel outbound) {
+            super(inbound, outbound);
+            config.configureMessageBroker(this);
+        }
+
+        private StompBrokerRelayMessageHandler relay() {
+            return getStompBrokerRelay(new ExecutorSubscribableChannel());
+        }
+
+        private String userDestinationBroadcast() {
+            return getUserDestinationBroadcast();
+        }
+    }
+
+    /**
+     * 最小的STOMP 1.2代理：处理CONNECT、SUBSCRIBE、UNSUBSCRIBE、SEND、DISCONNECT，
+     * 按目的地把SEND扇出给所有连接上的订阅，不支持心跳和事务
+     */
+    private static final class FakeStompBroker {
+
+        private final ServerSocket serverSocket;
+
+        private final List<Subscription> subscriptions = new CopyOnWriteArrayList<>();
+
+        private final List<Socket> connections = new CopyOnWriteArrayList<>();
+
+        private final AtomicLong messageIds = new AtomicLong();
+
+        private FakeStompBroker() throws IOException {
+            serverSocket = new ServerSocket(0);
+            Thread acceptor = new Thread(this::acceptLoop, "fake-stomp-acceptor");
+            acceptor.setDaemon(true);
+            acceptor.start();
+        }
+
+        private int getPort() {
+            return serverSocket.getLocalPort();
+        }
+
+        private int subscriptionCount(String destination) {
+            int count = 0;
+            for (Subscription subscription : subscriptions) {
+                if (subscription.destination.equals(destination)) {
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        private void close() throws IOException {
+            serverSocket.close();
+            for (Socket connection : connections) {
+                connection.close();
+            }
+        }
+
+        private void acceptLoop() {
+            while (!serverSocket.isClosed()) {
+                try {
+                    Socket socket = serverSocket.accept();
+                    connections.add(socket);
+                    Thread reader = new Thread(() -> readLoop(socket), "fake-stomp-connection");
+                    reader.setDaemon(true);
+                    reader.start();
+                } catch (IOException e) {
+                    return;
+                }
+            }
+        }
+
+        private void readLoop(Socket socket) {
+            try {
+                InputStream in = socket.getInputStream();
+                OutputStream out = socket.getOutputStream();
+                ByteArrayOutputStream frame = new ByteArrayOutputStream();
+                int b;
+                while ((b = in.read()) != -1) {
+                    if (b != 0) {
+                        frame.write(b);
+                        continue;
+                    }
+                    handleFrame(socket, out, new String(frame.toByteArray(), StandardCharsets.UTF_8));
+                    frame.reset();
+                }
+            } catch (IOException e) {
+                // 连接关闭
+            } finally {
+                subscriptions.removeIf(subscription -> subscription.socket == socket);
+            }
+        }
+
+        private void handleFrame(Socket socket, OutputStream out, String raw) throws IOException {
+            // 去掉帧之间的心跳换行
+            String text = raw.replaceFirst("^[\\r\\n]+", "");
+            if (text.isEmpty()) {
+                return;
+            }
+            int headerEnd = text.indexOf("\n\n");
+            String head = headerEnd >= 0 ? text.substring(0, headerEnd) : text;
+            String body = headerEnd >= 0 ? text.substring(headerEnd + 2) : "";
+            String[] lines = head.split("\n");
+            String command = lines[0].trim();
+            Map<String, String> headers = new LinkedHashMap<>();
+            for (int i = 1; i < lines.length; i++) {
+                int colon = lines[i].indexOf(':');
+                if (colon > 0) {
+                    headers.putIfAbsent(lines[i].substring(0, colon), lines[i].substring(colon + 1));
+                }
+            }
+            switch (command) {
+                case "CONNECT":
+                case "STOMP":
+                    write(out, "CONNECTED\nversion:1.2\nheart-beat:0,0\n\n");
+                    break;
+                case "SUBSCRIBE":
+                    subscriptions.add(new Subscription(socket, out, headers.get("id"), headers.get("destination")));
+                    break;
+                case "UNSUBSCRIBE":
+                    subscriptions.removeIf(s -> s.socket == socket && s.id.equals(headers.get("id")));
+                    break;
+                case "SEND":
+                    deliver(headers, body);
+                    break;
+                case "DISCONNECT":
+                    if (headers.containsKey("receipt")) {
+                        write(out, "RECEIPT\nreceipt-id:" + headers.get("receipt") + "\n\n");
+                    }
+                    socket.close();
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        private void deliver(Map<String, String> headers, String body) throws IOException {
+            String destination = headers.get("destination");
+            byte[] payload = body.getBytes(StandardCharsets.UTF_8);
+            for (Subscription subscription : subscriptions) {
+                if (!subscription.destination.equals(destination)) {
+                    continue;
+                }
+                StringBuilder frame = new StringBuilder("MESSAGE\n")
+                        .append("subscription:").append(subscription.id).append('\n')
+                        .append("message-id:").append(messageIds.incrementAndGet()).append('\n')
+                        .append("destination:").append(destination).append('\n');
+                if (headers.containsKey("content-type")) {
+                    frame.append("content-type:").append(headers.get("content-type")).append('\n');
+                }
+                frame.append("content-length:").append(payload.length).append("\n\n").append(body);
+                write(subscription.out, frame.toString());
+            }
+        }
+
+        private static void write(OutputStream out, String frame) throws IOException {
+            synchronized (out) {
+                out.write(frame.getBytes(StandardCharsets.UTF_8));
+                out.write(0);
+                out.flush();
+            }
+        }
+
+        private static final class Subscription {
+            private final Socket socket;
+            private final OutputStream out;
+            private final String id;
+            private final String destination;
+
+            private Subscription(Socket socket, OutputStream out, String id, String destination) {
+                this.socket = socket;
+                this.out = out;
+                this.id = id;
+                this.destination = destination;
+            }
+        }
+    }
+}
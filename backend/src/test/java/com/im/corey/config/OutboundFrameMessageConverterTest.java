@@ -0,0 +1,149 @@
+package com.im.corey.config;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.databind.CBORMapper;
+import com.im.corey.dto.EncodedChatMessage;
+import com.im.corey.dto.UnreadCountFrame;
+import com.im.corey.model.Message;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+import org.springframework.messaging.MessageHeaders;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.messaging.simp.SimpMessageType;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.util.MimeType;
+
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class OutboundFrameMessageConverterTest {
+
+    private final ObjectMapper json = Jackson2ObjectMapperBuilder.json().build();
+
+    private final CBORMapper cbor = new CBORMapper();
+
+    private OutboundFrameMessageConverter converter;
+
+    @BeforeEach
+    void setUp() {
+        converter = new OutboundFrameMessageConverter(json);
+    }
+
+    @Test
+    void cborSessionsGetCborEncodedDirectlyFromTheFrame() throws Exception {
+        LocalDateTime sentTime = LocalDateTime.of(2024, 5, 1, 12, 30, 15);
+        EncodedChatMessage encoded = converter.encode(message(sentTime));
+
+        byte[] body = (byte[]) converter.toMessage(encoded, headers(OutboundFrameMessageConverter.CBOR_CONTENT_TYPE))
+                .getPayload();
+
+        // CBOR映射的头部字节，不是JSON的'{'
+        assertThat(body[0] & 0xE0).isEqualTo(0xA0);
+        JsonNode decoded = cbor.readTree(body);
+        assertThat(decoded.get("id").asLong()).isEqualTo(42L);
+        assertThat(decoded.get("senderId").asLong()).isEqualTo(1L);
+        assertThat(decoded.get("receiverId").asLong()).isEqualTo(2L);
+        assertThat(decoded.get("content").asText()).isEqualTo("你好 CBOR");
+        assertThat(decoded.get("type").asText()).isEqualTo("TEXT");
+        assertThat(decoded.get("isRead").asBoolean()).isFalse();
+        assertThat(decoded.get("sentTime").isIntegralNumber()).isTrue();
+        assertThat(decoded.get("sentTime").asLong())
+                .isEqualTo(sentTime.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli());
+        assertThat(encoded.getBodies().get(false)).as("CBOR会话不应产生JSON").isNull();
+    }
+
+    @Test
+    void cborConfirmationAppendsStatusToTheSharedBody() throws Exception {
+        EncodedChatMessage encoded = converter.encode(message(LocalDateTime.now()));
+        MessageHeaders headers = headers(OutboundFrameMessageConverter.CBOR_CONTENT_TYPE);
+
+        byte[] delivery = (byte[]) converter.toMessage(encoded, headers).getPayload();
+        byte[] confirmation = (byte[]) converter.toMessage(encoded.deliveredConfirmation(7L), headers).getPayload();
+
+        JsonNode decoded = cbor.readTree(confirmation);
+        assertThat(decoded.get("id").asLong()).isEqualTo(42L);
+        assertThat(decoded.get("content").asText()).isEqualTo("你好 CBOR");
+        assertThat(decoded.get("clientMessageId").asLong()).isEqualTo(7L);
+        assertThat(decoded.get("status").asText()).isEqualTo(EncodedChatMessage.STATUS_DELIVERED);
+        assertThat(cbor.readTree(delivery).has("status")).isFalse();
+    }
+
+    @Test
+    void jsonRemainsTheDefaultAndMatchesCborFieldForField() throws Exception {
+        EncodedChatMessage encoded = converter.encode(message(LocalDateTime.now()));
+
+        byte[] jsonBody = (byte[]) converter.toMessage(encoded.deliveredConfirmation(7L),
+                headers(null)).getPayload();
+        byte[] cborBody = (byte[]) converter.toMessage(encoded.deliveredConfirmation(7L),
+                headers(OutboundFrameMessageConverter.CBOR_CONTENT_TYPE)).getPayload();
+
+        JsonNode fromJson = json.readTree(jsonBody);
+        JsonNode fromCbor = cbor.readTree(cborBody);
+        assertThat(fromJson.get("status").asText()).isEqualTo(EncodedChatMessage.STATUS_DELIVERED);
+        assertThat(fromJson.get("clientMessageId").asLong()).isEqualTo(7L);
+        assertThat(fieldNames(fromCbor)).isEqualTo(fieldNames(fromJson));
+    }
+
+    @Test
+    void jsonMessageCarriesItsOwnFrameForCborSessions() throws Exception {
+        org.springframework.messaging.Message<?> first = converter.toMessage(new UnreadCountFrame(3L, 5L), headers(null));
+        org.springframework.messaging.Message<?> second = converter.toMessage(new UnreadCountFrame(4L, 6L), headers(null));
+
+        // 先转换的消息在后一条转换之后仍能得到自己的CBOR
+        Object source = first.getHeaders().get(OutboundFrameMessageConverter.SOURCE_FRAME_HEADER);
+        byte[] cborBody = converter.toCbor(source);
+
+        JsonNode decoded = cbor.readTree(cborBody);
+        assertThat(decoded.get("senderId").asLong()).isEqualTo(3L);
+        assertThat(decoded.get("unreadCount").asLong()).isEqualTo(5L);
+        assertThat(converter.toCbor(source)).as("同一条消息只序列化一次").isSameAs(cborBody);
+        assertThat(cbor.readTree(converter.toCbor(second.getHeaders().get(OutboundFrameMessageConverter.SOURCE_FRAME_HEADER)))
+                .get("senderId").asLong()).isEqualTo(4L);
+        assertThat(converter.toCbor(null)).isNull();
+        assertThat(SimpMessageHeaderAccessor.wrap(first)
+                .getFirstNativeHeader(OutboundFrameMessageConverter.DATETIME_FIELDS_HEADER)).isNull();
+    }
+
+    @Test
+    void clusterJsonNamesTheDateTimeFieldsForTheReceivingNode() {
+        ReflectionTestUtils.setField(converter, "clusterEnabled", true);
+
+        org.springframework.messaging.Message<?> chat = converter.toMessage(converter.encode(message(LocalDateTime.now())),
+                headers(null));
+        org.springframework.messaging.Message<?> unread = converter.toMessage(new UnreadCountFrame(3L, 5L), headers(null));
+
+        assertThat(SimpMessageHeaderAccessor.wrap(chat)
+                .getFirstNativeHeader(OutboundFrameMessageConverter.DATETIME_FIELDS_HEADER)).isEqualTo("sentTime");
+        assertThat(SimpMessageHeaderAccessor.wrap(unread)
+                .getFirstNativeHeader(OutboundFrameMessageConverter.DATETIME_FIELDS_HEADER)).isNull();
+    }
+
+    private static String fieldNames(JsonNode node) {
+        StringBuilder names = new StringBuilder();
+        node.fieldNames().forEachRemaining(name -> names.append(name).append(','));
+        return names.toString();
+    }
+
+    private static MessageHeaders headers(MimeType contentType) {
+        SimpMessageHeaderAccessor accessor = SimpMessageHeaderAccessor.create(SimpMessageType.MESSAGE);
+        if (contentType != null) {
+            accessor.setContentType(contentType);
+        }
+        accessor.setLeaveMutable(true);
+        return accessor.getMessageHeaders();
+    }
+
+    private static Message message(LocalDateTime sentTime) {
+        Message message = new Message();
+        message.setId(42L);
+        message.setSenderId(1L);
+        message.setReceiverId(2L);
+        message.setContent("你好 CBOR");
+        message.setSentTime(sentTime);
+        return message;
+    }
+}
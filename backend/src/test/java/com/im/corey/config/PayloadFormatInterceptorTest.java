@@ -0,0 +1,135 @@
+package com.im.corey.config;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.dataformat.cbor.databind.CBORMapper;
+import com.im.corey.dto.UnreadCountFrame;
+import com.im.corey.model.Message;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+import org.springframework.messaging.MessageHeaders;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.messaging.simp.SimpMessageType;
+import org.springframework.messaging.simp.stomp.StompCommand;
+import org.springframework.messaging.simp.stomp.StompHeaderAccessor;
+import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.util.MimeTypeUtils;
+
+import java.time.LocalDateTime;
+import java.util.HashMap;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class PayloadFormatInterceptorTest {
+
+    private static final LocalDateTime SENT_TIME = LocalDateTime.of(2024, 5, 1, 12, 30, 15);
+
+    /**
+     * 与Spring Boot自动配置一致，时间写为ISO字符串
+     */
+    private final ObjectMapper json = Jackson2ObjectMapperBuilder.json()
+            .featuresToDisable(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS)
+            .build();
+
+    private final CBORMapper cbor = new CBORMapper();
+
+    private OutboundFrameMessageConverter converter;
+
+    private PayloadFormatInterceptor interceptor;
+
+    @BeforeEach
+    void setUp() {
+        converter = new OutboundFrameMessageConverter(json);
+        interceptor = new PayloadFormatInterceptor();
+        ReflectionTestUtils.setField(interceptor, "cborEnabled", true);
+        ReflectionTestUtils.setField(interceptor, "outboundFrameMessageConverter", converter);
+        StompHeaderAccessor connect = StompHeaderAccessor.create(StompCommand.CONNECT);
+        connect.setSessionId("cbor-session");
+        connect.setSessionAttributes(new HashMap<>());
+        connect.setNativeHeader(PayloadFormatInterceptor.PAYLOAD_FORMAT_HEADER, PayloadFormatInterceptor.FORMAT_CBOR);
+        interceptor.inbound().preSend(MessageBuilder.createMessage(new byte[0], connect.getMessageHeaders()), null);
+    }
+
+    @Test
+    void broadcastIsEncodedFromItsOwnFrameWhateverWasConvertedSince() throws Exception {
+        org.springframework.messaging.Message<?> chat = converter.toMessage(converter.encode(message()), headers());
+        org.springframework.messaging.Message<?> unread = converter.toMessage(new UnreadCountFrame(3L, 5L), headers());
+
+        org.springframework.messaging.Message<?> chatOut = interceptor.preSend(fanOut(chat, "cbor-session"), null);
+        org.springframework.messaging.Message<?> unreadOut = interceptor.preSend(fanOut(unread, "cbor-session"), null);
+
+        assertThat(cbor.readTree((byte[]) chatOut.getPayload())).isEqualTo(directCbor());
+        assertThat(cbor.readTree((byte[]) unreadOut.getPayload()).get("senderId").asLong()).isEqualTo(3L);
+        assertThat(StompHeaderAccessor.wrap(chatOut).getContentType())
+                .isEqualTo(OutboundFrameMessageConverter.CBOR_CONTENT_TYPE);
+    }
+
+    @Test
+    void relayedFrameIsTranscodedToTheSameSchemaAsDirectCbor() throws Exception {
+        ReflectionTestUtils.setField(converter, "clusterEnabled", true);
+        org.springframework.messaging.Message<?> sent = converter.toMessage(converter.encode(message()), headers());
+        // 经过外部代理后只剩负载和STOMP头，原始帧不在消息头中
+        StompHeaderAccessor relayed = StompHeaderAccessor.create(StompCommand.MESSAGE);
+        relayed.setSessionId("cbor-session");
+        relayed.setContentType(MimeTypeUtils.APPLICATION_JSON);
+        relayed.setNativeHeader(OutboundFrameMessageConverter.DATETIME_FIELDS_HEADER,
+                SimpMessageHeaderAccessor.wrap(sent).getFirstNativeHeader(OutboundFrameMessageConverter.DATETIME_FIELDS_HEADER));
+
+        org.springframework.messaging.Message<?> out = interceptor.preSend(
+                MessageBuilder.createMessage(sent.getPayload(), relayed.getMessageHeaders()), null);
+
+        JsonNode decoded = cbor.readTree((byte[]) out.getPayload());
+        assertThat(decoded).isEqualTo(directCbor());
+        assertThat(decoded.get("sentTime").isIntegralNumber()).isTrue();
+        // 只转换列出的字段，内容恰好是时间格式的字符串保持原样
+        assertThat(decoded.get("content").asText()).isEqualTo("2024-05-01T12:30:15");
+    }
+
+    @Test
+    void jsonSessionsKeepTheJsonPayload() {
+        org.springframework.messaging.Message<?> chat = converter.toMessage(converter.encode(message()), headers());
+        org.springframework.messaging.Message<?> delivered = fanOut(chat, "json-session");
+
+        assertThat(interceptor.preSend(delivered, null)).isSameAs(delivered);
+    }
+
+    private JsonNode directCbor() throws Exception {
+        SimpMessageHeaderAccessor accessor = SimpMessageHeaderAccessor.create(SimpMessageType.MESSAGE);
+        accessor.setContentType(OutboundFrameMessageConverter.CBOR_CONTENT_TYPE);
+        return cbor.readTree((byte[]) converter.toMessage(converter.encode(message()), accessor.getMessageHeaders())
+                .getPayload());
+    }
+
+    /**
+     * 按简单代理的方式为订阅会话复制一条广播消息
+     */
+    private static org.springframework.messaging.Message<?> fanOut(org.springframework.messaging.Message<?> message,
+                                                                   String sessionId) {
+        SimpMessageHeaderAccessor accessor = SimpMessageHeaderAccessor.create(SimpMessageType.MESSAGE);
+        accessor.setSessionId(sessionId);
+        accessor.setSubscriptionId("sub-0");
+        accessor.copyHeadersIfAbsent(message.getHeaders());
+        return MessageBuilder.createMessage(message.getPayload(), accessor.getMessageHeaders());
+    }
+
+    private static MessageHeaders headers() {
+        SimpMessageHeaderAccessor accessor = SimpMessageHeaderAccessor.create(SimpMessageType.MESSAGE);
+        accessor.setLeaveMutable(true);
+        return accessor.getMessageHeaders();
+    }
+
+    private static Message message() {
+        Message message = new Message();
+        message.setId(42L);
+        message.setSenderId(1L);
+        message.setReceiverId(2L);
+        message.setContent("2024-05-01T12:30:15");
+        message.setType(Message.MessageType.TEXT);
+        message.setIsRead(false);
+        message.setSentTime(SENT_TIME);
+        return message;
+    }
+}
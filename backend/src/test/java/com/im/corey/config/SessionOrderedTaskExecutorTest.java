@@ -0,0 +1,177 @@
+package com.im.corey.config;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageHandler;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.messaging.simp.SimpMessageType;
+import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.messaging.support.MessageHandlingRunnable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class SessionOrderedTaskExecutorTest {
+
+    private final List<String> executed = new CopyOnWriteArrayList<>();
+
+    private final List<String> rejected = new CopyOnWriteArrayList<>();
+
+    private SessionOrderedTaskExecutor executor;
+
+    @BeforeEach
+    void setUp() {
+        executor = new SessionOrderedTaskExecutor();
+        executor.setThreadNamePrefix("test-inbound-");
+        executor.setCorePoolSize(1);
+        executor.setMaxPoolSize(1);
+        executor.setQueueCapacity(2);
+        executor.setLifecycleOverflowCapacity(2);
+        executor.setRejectedExecutionHandler((task, pool) -> rejected.add(((FrameTask) task).name));
+        executor.initialize();
+    }
+
+    @AfterEach
+    void tearDown() {
+        executor.shutdown();
+    }
+
+    @Test
+    void lifecycleFramesQueueBehindEarlierFramesWhenTheStripeIsFull() throws Exception {
+        CountDownLatch blocker = new CountDownLatch(1);
+        CountDownLatch started = new CountDownLatch(1);
+        executor.execute(new FrameTask("s1", SimpMessageType.MESSAGE, "m0", () -> {
+            started.countDown();
+            await(blocker);
+        }));
+        assertThat(started.await(5, TimeUnit.SECONDS)).isTrue();
+
+        executor.execute(frame(SimpMessageType.MESSAGE, "m1"));
+        executor.execute(frame(SimpMessageType.MESSAGE, "m2"));
+        // 分段队列已满，应用消息被拒绝
+        executor.execute(frame(SimpMessageType.MESSAGE, "m3"));
+        // 生命周期帧占用溢出容量，不在提交线程上执行
+        executor.execute(frame(SimpMessageType.UNSUBSCRIBE, "unsubscribe"));
+        executor.execute(frame(SimpMessageType.DISCONNECT, "disconnect"));
+        // 溢出容量也已用完
+        executor.execute(frame(SimpMessageType.DISCONNECT, "extra-disconnect"));
+
+        assertThat(executed).isEmpty();
+        assertThat(rejected).containsExactly("m3", "extra-disconnect");
+
+        blocker.countDown();
+        waitFor(() -> executed.size() == 4);
+        assertThat(executed).containsExactly("m1", "m2", "unsubscribe", "disconnect");
+    }
+
+    @Test
+    void framesOfEachSessionKeepTheirOrderAndThreadsStayWithinMaxPoolSize() throws Exception {
+        int sessions = 64;
+        int framesPerSession = 500;
+        SessionOrderedTaskExecutor pool = new SessionOrderedTaskExecutor();
+        pool.setThreadNamePrefix("test-stress-");
+        pool.setCorePoolSize(2);
+        pool.setMaxPoolSize(4);
+        pool.setQueueCapacity(sessions * framesPerSession);
+        pool.initialize();
+        Map<String, List<Integer>> delivered = new ConcurrentHashMap<>();
+        Set<Thread> workers = ConcurrentHashMap.newKeySet();
+        CountDownLatch done = new CountDownLatch(sessions * framesPerSession);
+        try {
+            List<Thread> producers = new ArrayList<>();
+            for (int p = 0; p < 4; p++) {
+                int producer = p;
+                Thread thread = new Thread(() -> {
+                    for (int seq = 0; seq < framesPerSession; seq++) {
+                        for (int s = producer; s < sessions; s += 4) {
+                            String sessionId = "session-" + s;
+                            int value = seq;
+                            pool.execute(new FrameTask(sessionId, SimpMessageType.MESSAGE, sessionId, () -> {
+                                workers.add(Thread.currentThread());
+                                delivered.computeIfAbsent(sessionId, ignored -> new ArrayList<>()).add(value);
+                                done.countDown();
+                            }));
+                        }
+                    }
+                });
+                producers.add(thread);
+                thread.start();
+            }
+            for (Thread thread : producers) {
+                thread.join();
+            }
+
+            assertThat(done.await(30, TimeUnit.SECONDS)).isTrue();
+            for (Map.Entry<String, List<Integer>> entry : delivered.entrySet()) {
+                for (int i = 0; i < framesPerSession; i++) {
+                    assertThat(entry.getValue().get(i)).as(entry.getKey() + " 第" + i + "帧").isEqualTo(i);
+                }
+            }
+            assertThat(delivered).hasSize(sessions);
+            // 分段就是全部工作线程，不会在最大线程数之外再创建线程
+            assertThat(workers.size()).isLessThanOrEqualTo(4);
+            assertThat(pool.getPoolSize()).isLessThanOrEqualTo(4);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private FrameTask frame(SimpMessageType type, String name) {
+        return new FrameTask("s1", type, name, () -> executed.add(name));
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!condition.getAsBoolean() && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+
+    private static class FrameTask implements MessageHandlingRunnable {
+        private final Message<byte[]> message;
+        private final String name;
+        private final Runnable body;
+
+        private FrameTask(String sessionId, SimpMessageType type, String name, Runnable body) {
+            SimpMessageHeaderAccessor accessor = SimpMessageHeaderAccessor.create(type);
+            accessor.setSessionId(sessionId);
+            this.message = MessageBuilder.createMessage(new byte[0], accessor.getMessageHeaders());
+            this.name = name;
+            this.body = body;
+        }
+
+        @Override
+        public Message<?> getMessage() {
+            return message;
+        }
+
+        @Override
+        public MessageHandler getMessageHandler() {
+            return msg -> body.run();
+        }
+
+        @Override
+        public void run() {
+            body.run();
+        }
+    }
+}
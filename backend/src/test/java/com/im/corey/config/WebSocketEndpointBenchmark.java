@@ -0,0 +1,372 @@
+package com.im.corey.config;
+
+import com.im.corey.model.Message;
+import com.im.corey.service.RateLimitService;
+import com.im.corey.util.JwtUtil;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.actuate.autoconfigure.security.servlet.ManagementWebSecurityAutoConfiguration;
+import org.springframework.boot.autoconfigure.EnableAutoConfiguration;
+import org.springframework.boot.autoconfigure.flyway.FlywayAutoConfiguration;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceAutoConfiguration;
+import org.springframework.boot.autoconfigure.orm.jpa.HibernateJpaAutoConfiguration;
+import org.springframework.boot.autoconfigure.security.servlet.SecurityAutoConfiguration;
+import org.springframework.boot.autoconfigure.security.servlet.SecurityFilterAutoConfiguration;
+import org.springframework.boot.autoconfigure.security.servlet.UserDetailsServiceAutoConfiguration;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.web.servlet.context.ServletWebServerApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Import;
+import org.springframework.messaging.simp.stomp.StompFrameHandler;
+import org.springframework.messaging.simp.stomp.StompHeaders;
+import org.springframework.messaging.simp.stomp.StompSession;
+import org.springframework.messaging.simp.stomp.StompSessionHandlerAdapter;
+import org.springframework.messaging.simp.user.SimpUserRegistry;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskScheduler;
+import org.springframework.security.core.userdetails.User;
+import org.springframework.security.core.userdetails.UserDetailsService;
+import org.springframework.web.socket.WebSocketExtension;
+import org.springframework.web.socket.WebSocketHttpHeaders;
+import org.springframework.web.socket.client.WebSocketClient;
+import org.springframework.web.socket.client.standard.StandardWebSocketClient;
+import org.springframework.web.socket.messaging.WebSocketStompClient;
+import org.springframework.web.socket.sockjs.client.SockJsClient;
+import org.springframework.web.socket.sockjs.client.WebSocketTransport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Type;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * /ws（SockJS的websocket传输）与/ws-native端点的实际连接对比：每条聊天消息的线上字节数和服务端CPU耗时
+ * 服务端按线上配置启动WebSocketConfig，消息经OutboundFrameSender发往用户队列；
+ * 客户端经过一个计数的TCP转发连接服务端，线上字节数是转发中服务端发往客户端的字节，包含WebSocket和SockJS分帧，
+ * 分别在协商和不协商permessage-deflate时测量。
+ * 服务端CPU为发送线程和出站通道线程的CPU时间之和，包含序列化、STOMP编码、SockJS分帧和压缩。
+ * 使用 mvn test -Pbenchmark 运行
+ */
+class WebSocketEndpointBenchmark {
+
+    private static final int WARM_UP = 5000;
+
+    private static final int MESSAGES = 20000;
+
+    /**
+     * 每批发送的消息数，等客户端收完一批再发下一批，避免超出会话的发送缓冲区限制
+     */
+    private static final int BATCH = 200;
+
+    /**
+     * 消息内容从常用字中随机组成，避免重复的内容让压缩结果好于实际
+     */
+    private static final String CHARACTERS = "的一是在不了有和人这中大为上个国我以要他时来用们生到作地于出就分对成会可主发年动同工也能下过子"
+            + "说产种面而方后多定行学法所民得经十三之进着等部度家电力里如水化高自二理起小物现实加量都两体制机当使点从业本去把性好应"
+            + "开它合还因由其些然前外天政四日那社义事平形相全表间样与关各重新线内数正心反你明看原又么利比或但质气第向道命此变条只没"
+            + "结解问意建月公无系军很情者最立代想已通并提直题程展五果料象员位入常文总次品式活设及管特件长求老头基资边流路级少图山"
+            + "统接知较将组见计别手角期根论运农指几九区强放决西被干做必先回则任取据处，。？！";
+
+    private static final Random RANDOM = new Random(42);
+
+    private static ConfigurableApplicationContext server;
+
+    private static ThreadPoolTaskScheduler heartbeatScheduler;
+
+    private static OutboundFrameSender sender;
+
+    private static OutboundFrameMessageConverter converter;
+
+    private static JwtUtil jwtUtil;
+
+    private static int port;
+
+    private long nextUserId = 1000;
+
+    private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+    @BeforeAll
+    static void startServer() {
+        server = new SpringApplicationBuilder(BenchmarkServer.class)
+                .properties("server.port=0", "im.cluster.enabled=false", "im.websocket.cbor-enabled=true",
+                        "spring.main.banner-mode=off", "logging.level.root=WARN",
+                        "logging.level.org.springframework.web.socket=WARN", "logging.level.org.apache.catalina=ERROR")
+                .run();
+        port = ((ServletWebServerApplicationContext) server).getWebServer().getPort();
+        sender = server.getBean(OutboundFrameSender.class);
+        converter = server.getBean(OutboundFrameMessageConverter.class);
+        jwtUtil = server.getBean(JwtUtil.class);
+        heartbeatScheduler = new ThreadPoolTaskScheduler();
+        heartbeatScheduler.initialize();
+    }
+
+    @AfterAll
+    static void stopServer() {
+        heartbeatScheduler.shutdown();
+        server.close();
+    }
+
+    @Test
+    void compareEndpoints() throws Exception {
+        System.out.printf("%-12s %-8s %-6s %12s %16s%n", "端点", "格式", "压缩", "字节/条", "服务端CPU(μs/条)");
+        Result sockJs = run("/ws", "JSON", false);
+        Result sockJsDeflate = run("/ws", "JSON", true);
+        Result nativeJson = run("/ws-native", "JSON", false);
+        Result nativeJsonDeflate = run("/ws-native", "JSON", true);
+        Result nativeCbor = run("/ws-native", "CBOR", false);
+        Result nativeCborDeflate = run("/ws-native", "CBOR", true);
+
+        assertThat(nativeJson.bytesPerMessage).isLessThan(sockJs.bytesPerMessage);
+        assertThat(nativeCbor.bytesPerMessage).isLessThan(nativeJson.bytesPerMessage);
+        assertThat(sockJsDeflate.bytesPerMessage).isLessThan(sockJs.bytesPerMessage);
+        assertThat(nativeJsonDeflate.bytesPerMessage).isLessThan(nativeJson.bytesPerMessage);
+        assertThat(nativeCborDeflate.bytesPerMessage).isLessThan(nativeCbor.bytesPerMessage);
+    }
+
+    private Result run(String endpoint, String format, boolean deflate) throws Exception {
+        // 每次使用新用户，用户目的地只解析到本次的会话
+        long userId = nextUserId++;
+        String user = String.valueOf(userId);
+        CountingProxy proxy = new CountingProxy(port);
+        WebSocketStompClient client = client(endpoint);
+        Receiver receiver = new Receiver();
+        try {
+            WebSocketHttpHeaders handshake = new WebSocketHttpHeaders();
+            if (deflate) {
+                handshake.setSecWebSocketExtensions(
+                        Collections.singletonList(new WebSocketExtension("permessage-deflate")));
+            }
+            StompHeaders connect = new StompHeaders();
+            connect.set("Authorization", "Bearer " + jwtUtil.generateToken(userId));
+            if ("CBOR".equals(format)) {
+                connect.set(PayloadFormatInterceptor.PAYLOAD_FORMAT_HEADER, PayloadFormatInterceptor.FORMAT_CBOR);
+            }
+            StompSession session = client.connect("ws://localhost:" + proxy.getPort() + endpoint, handshake, connect,
+                    new StompSessionHandlerAdapter() {
+                    }).get(10, TimeUnit.SECONDS);
+            session.subscribe("/user/queue/messages", receiver);
+            awaitSubscription(user);
+
+            send(user, receiver, 0, WARM_UP);
+            assertThat(proxy.isDeflateNegotiated()).as(endpoint + " " + format).isEqualTo(deflate);
+
+            long bytesBefore = proxy.getServerBytes();
+            long cpuBefore = serverCpuNanos();
+            send(user, receiver, WARM_UP, MESSAGES);
+            long cpuNanos = serverCpuNanos() - cpuBefore;
+            long bytes = proxy.getServerBytes() - bytesBefore;
+            session.disconnect();
+
+            Result result = new Result(bytes / MESSAGES, cpuNanos / MESSAGES);
+            System.out.printf("%-12s %-8s %-6s %12d %16.1f%n", endpoint, format, deflate ? "是" : "否",
+                    result.bytesPerMessage, result.cpuNanosPerMessage / 1000.0);
+            return result;
+        } finally {
+            client.stop();
+            proxy.close();
+        }
+    }
+
+    private void awaitSubscription(String user) throws InterruptedException {
+        SimpUserRegistry registry = server.getBean(SimpUserRegistry.class);
+        long deadline = System.currentTimeMillis() + 10000;
+        while (registry.findSubscriptions(subscription -> subscription.getSession().getUser().getName().equals(user))
+                .isEmpty()) {
+            assertThat(System.currentTimeMillis()).as("订阅生效").isLessThan(deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    private void send(String user, Receiver receiver, int from, int count) throws InterruptedException {
+        for (int i = 0; i < count; i++) {
+            sender.sendToUser(user, "/queue/messages", converter.encode(message(from + i)));
+            if ((i + 1) % BATCH == 0 || i == count - 1) {
+                receiver.await(i % BATCH + 1);
+            }
+        }
+    }
+
+    /**
+     * 发送线程（当前线程，经同步的代理通道）和出站通道线程累计的CPU时间
+     */
+    private long serverCpuNanos() {
+        long total = threads.getCurrentThreadCpuTime();
+        for (ThreadInfo info : threads.getThreadInfo(threads.getAllThreadIds())) {
+            if (info != null && info.getThreadName().toLowerCase(Locale.ROOT).contains("outbound")) {
+                total += Math.max(0, threads.getThreadCpuTime(info.getThreadId()));
+            }
+        }
+        return total;
+    }
+
+    private WebSocketStompClient client(String endpoint) {
+        WebSocketClient webSocketClient = new StandardWebSocketClient();
+        if ("/ws".equals(endpoint)) {
+            webSocketClient = new SockJsClient(Collections.singletonList(new WebSocketTransport(webSocketClient)));
+        }
+        WebSocketStompClient client = new WebSocketStompClient(webSocketClient);
+        client.setTaskScheduler(heartbeatScheduler);
+        client.setDefaultHeartbeat(new long[]{0, 0});
+        return client;
+    }
+
+    private static Message message(long id) {
+        Message message = new Message();
+        message.setId(1790000000000000000L + id);
+        message.setSenderId(1001L);
+        message.setReceiverId(1002L);
+        message.setContent(content(4 + RANDOM.nextInt(57)));
+        message.setType(Message.MessageType.TEXT);
+        message.setIsRead(false);
+        message.setSentTime(LocalDateTime.of(2024, 5, 1, 12, 30).plusSeconds(id));
+        return message;
+    }
+
+    private static String content(int length) {
+        StringBuilder content = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            content.append(CHARACTERS.charAt(RANDOM.nextInt(CHARACTERS.length())));
+        }
+        return content.toString();
+    }
+
+    private static class Result {
+        private final long bytesPerMessage;
+        private final long cpuNanosPerMessage;
+
+        Result(long bytesPerMessage, long cpuNanosPerMessage) {
+            this.bytesPerMessage = bytesPerMessage;
+            this.cpuNanosPerMessage = cpuNanosPerMessage;
+        }
+    }
+
+    private static class Receiver implements StompFrameHandler {
+        private final Semaphore received = new Semaphore(0);
+
+        @Override
+        public Type getPayloadType(StompHeaders headers) {
+            return byte[].class;
+        }
+
+        @Override
+        public void handleFrame(StompHeaders headers, Object payload) {
+            received.release();
+        }
+
+        void await(int count) throws InterruptedException {
+            assertThat(received.tryAcquire(count, 30, TimeUnit.SECONDS)).as("收到 %d 条消息", count).isTrue();
+        }
+    }
+
+    /**
+     * 转发客户端与服务端之间的TCP连接，统计服务端发往客户端的字节数，并从升级响应中读取协商的扩展
+     */
+    private static class CountingProxy implements AutoCloseable {
+        private final ServerSocket serverSocket = new ServerSocket(0);
+        private final AtomicLong serverBytes = new AtomicLong();
+        private final StringBuffer responseHeads = new StringBuffer();
+
+        CountingProxy(int targetPort) throws IOException {
+            Thread acceptor = new Thread(() -> {
+                while (!serverSocket.isClosed()) {
+                    try {
+                        Socket client = serverSocket.accept();
+                        Socket target = new Socket("localhost", targetPort);
+                        pump(client.getInputStream(), target.getOutputStream(), false);
+                        pump(target.getInputStream(), client.getOutputStream(), true);
+                    } catch (IOException e) {
+                        return;
+                    }
+                }
+            }, "benchmark-proxy");
+            acceptor.setDaemon(true);
+            acceptor.start();
+        }
+
+        int getPort() {
+            return serverSocket.getLocalPort();
+        }
+
+        long getServerBytes() {
+            return serverBytes.get();
+        }
+
+        boolean isDeflateNegotiated() {
+            String heads = responseHeads.toString().toLowerCase(Locale.ROOT);
+            return heads.contains("sec-websocket-extensions: permessage-deflate");
+        }
+
+        private void pump(InputStream in, OutputStream out, boolean fromServer) {
+            Thread thread = new Thread(() -> {
+                byte[] buffer = new byte[16384];
+                boolean head = fromServer;
+                try {
+                    int read;
+                    while ((read = in.read(buffer)) > 0) {
+                        if (head) {
+                            // 每个连接的第一段响应包含HTTP响应头
+                            responseHeads.append(new String(buffer, 0, read, StandardCharsets.ISO_8859_1));
+                            head = false;
+                        }
+                        if (fromServer) {
+                            serverBytes.addAndGet(read);
+                        }
+                        out.write(buffer, 0, read);
+                        out.flush();
+                    }
+                } catch (IOException ignored) {
+                    // 连接关闭
+                } finally {
+                    try {
+                        out.close();
+                    } catch (IOException ignored) {
+                        // 已关闭
+                    }
+                }
+            }, "benchmark-proxy-pump");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        @Override
+        public void close() throws IOException {
+            serverSocket.close();
+        }
+    }
+
+    /**
+     * 只包含WebSocket消息链路的服务端，不连接数据库；
+     * 认证和限流拦截器与线上相同，用户信息不查询数据库，直接按token中的用户ID构造
+     */
+    @Configuration
+    @EnableAutoConfiguration(exclude = {DataSourceAutoConfiguration.class, HibernateJpaAutoConfiguration.class,
+            FlywayAutoConfiguration.class, SecurityAutoConfiguration.class, SecurityFilterAutoConfiguration.class,
+            UserDetailsServiceAutoConfiguration.class, ManagementWebSecurityAutoConfiguration.class})
+    @Import({WebSocketConfig.class, OutboundFrameMessageConverter.class, PayloadFormatInterceptor.class,
+            OutboundFrameSender.class, ChannelExecutorFactory.class, WebSocketAuthenticationInterceptor.class,
+            RateLimitInterceptor.class, RateLimitService.class, JwtUtil.class})
+    static class BenchmarkServer {
+
+        @Bean
+        UserDetailsService userDetailsService() {
+            return userId -> new User(userId, "", Collections.emptyList());
+        }
+    }
+}
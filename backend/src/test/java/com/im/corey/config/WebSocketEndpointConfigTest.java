@@ -0,0 +1,73 @@
+package com.im.corey.config;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.messaging.support.ExecutorSubscribableChannel;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskScheduler;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.web.servlet.handler.SimpleUrlHandlerMapping;
+import org.springframework.web.socket.config.annotation.WebMvcStompEndpointRegistry;
+import org.springframework.web.socket.config.annotation.WebSocketTransportRegistration;
+import org.springframework.web.socket.messaging.SubProtocolWebSocketHandler;
+import org.springframework.web.socket.server.standard.ServletServerContainerFactoryBean;
+import org.springframework.web.socket.server.support.WebSocketHttpRequestHandler;
+import org.springframework.web.socket.sockjs.support.SockJsHttpRequestHandler;
+
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class WebSocketEndpointConfigTest {
+
+    private WebSocketConfig config;
+
+    private ThreadPoolTaskScheduler scheduler;
+
+    @BeforeEach
+    void setUp() {
+        config = new WebSocketConfig();
+        ReflectionTestUtils.setField(config, "messageSizeLimit", 65536);
+        ReflectionTestUtils.setField(config, "sendTimeLimitMs", 10000);
+        ReflectionTestUtils.setField(config, "sendBufferSizeLimit", 524288);
+        ReflectionTestUtils.setField(config, "maxTextMessageBufferSize", 32768);
+        ReflectionTestUtils.setField(config, "maxBinaryMessageBufferSize", 16384);
+        scheduler = new ThreadPoolTaskScheduler();
+        scheduler.initialize();
+    }
+
+    @AfterEach
+    void tearDown() {
+        scheduler.shutdown();
+    }
+
+    @Test
+    void nativeEndpointIsRegisteredWithoutSockJs() {
+        WebSocketTransportRegistration transport = new WebSocketTransportRegistration();
+        SubProtocolWebSocketHandler handler = new SubProtocolWebSocketHandler(
+                new ExecutorSubscribableChannel(), new ExecutorSubscribableChannel());
+        WebMvcStompEndpointRegistry registry = new WebMvcStompEndpointRegistry(handler, transport, scheduler);
+
+        config.registerStompEndpoints(registry);
+
+        Map<String, ?> urlMap = ((SimpleUrlHandlerMapping) registry.getHandlerMapping()).getUrlMap();
+        assertThat(urlMap.get("/ws-native")).isInstanceOf(WebSocketHttpRequestHandler.class);
+        assertThat(urlMap.get("/ws/**")).isInstanceOf(SockJsHttpRequestHandler.class);
+        assertThat(urlMap).doesNotContainKey("/ws-native/**");
+    }
+
+    @Test
+    void transportAndContainerLimitsComeFromConfiguration() {
+        WebSocketTransportRegistration transport = new WebSocketTransportRegistration();
+
+        config.configureWebSocketTransport(transport);
+        ServletServerContainerFactoryBean container = config.webSocketContainer();
+
+        assertThat((Integer) ReflectionTestUtils.invokeMethod(transport, "getMessageSizeLimit")).isEqualTo(65536);
+        assertThat((Integer) ReflectionTestUtils.invokeMethod(transport, "getSendTimeLimit")).isEqualTo(10000);
+        assertThat((Integer) ReflectionTestUtils.invokeMethod(transport, "getSendBufferSizeLimit"))
+                .isEqualTo(524288);
+        assertThat(ReflectionTestUtils.getField(container, "maxTextMessageBufferSize")).isEqualTo(32768);
+        assertThat(ReflectionTestUtils.getField(container, "maxBinaryMessageBufferSize")).isEqualTo(16384);
+    }
+}
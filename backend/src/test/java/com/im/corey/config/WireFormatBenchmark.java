@@ -0,0 +1,113 @@
+package com.im.corey.config;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.dataformat.cbor.databind.CBORMapper;
+import com.im.corey.dto.PresenceDeltaDTO;
+import com.im.corey.dto.UnreadCountFrame;
+import com.im.corey.model.Message;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+import org.springframework.messaging.MessageHeaders;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.messaging.simp.SimpMessageType;
+import org.springframework.util.MimeType;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Supplier;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * JSON与CBOR出站帧的对比基准：每帧字节数、编码耗时、解码耗时
+ * 编码经过OutboundFrameMessageConverter，与线上路径一致；解码按客户端的方式读成通用树。
+ * 使用 mvn test -Pbenchmark 运行
+ */
+class WireFormatBenchmark {
+
+    private static final int WARM_UP = 50000;
+
+    private static final int ITERATIONS = 200000;
+
+    private final ObjectMapper json = Jackson2ObjectMapperBuilder.json()
+            .featuresToDisable(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS)
+            .build();
+
+    private final CBORMapper cbor = new CBORMapper();
+
+    private final OutboundFrameMessageConverter converter = new OutboundFrameMessageConverter(json);
+
+    @Test
+    void compareJsonAndCbor() throws Exception {
+        List<Long> online = new ArrayList<>();
+        List<Long> offline = new ArrayList<>();
+        for (long userId = 1000; userId < 1020; userId++) {
+            online.add(userId);
+        }
+        for (long userId = 2000; userId < 2005; userId++) {
+            offline.add(userId);
+        }
+        Message message = message();
+
+        System.out.printf("%-10s %-5s %8s %12s %12s%n", "帧", "格式", "字节", "编码(ns)", "解码(ns)");
+        // 聊天消息每次重新包装，避免命中EncodedChatMessage内的编码结果
+        compare("消息", () -> converter.encode(message));
+        compare("未读数", () -> new UnreadCountFrame(7L, 12L));
+        compare("在线状态", () -> new PresenceDeltaDTO(1714566615000L, online, offline));
+    }
+
+    private void compare(String name, Supplier<Object> frames) throws Exception {
+        int jsonBytes = measure(name, "JSON", frames, null, json);
+        int cborBytes = measure(name, "CBOR", frames, OutboundFrameMessageConverter.CBOR_CONTENT_TYPE, cbor);
+        assertThat(cborBytes).as(name).isLessThan(jsonBytes);
+    }
+
+    private int measure(String name, String format, Supplier<Object> frames, MimeType contentType,
+                        ObjectMapper reader) throws Exception {
+        byte[] body = encode(frames.get(), contentType);
+        long sink = 0;
+        for (int i = 0; i < WARM_UP; i++) {
+            sink += encode(frames.get(), contentType).length;
+            sink += reader.readTree(body).size();
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            sink += encode(frames.get(), contentType).length;
+        }
+        long encodeNanos = (System.nanoTime() - start) / ITERATIONS;
+        start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            sink += reader.readTree(body).size();
+        }
+        long decodeNanos = (System.nanoTime() - start) / ITERATIONS;
+
+        assertThat(sink).isPositive();
+        System.out.printf("%-10s %-5s %8d %12d %12d%n", name, format, body.length, encodeNanos, decodeNanos);
+        return body.length;
+    }
+
+    private byte[] encode(Object frame, MimeType contentType) {
+        SimpMessageHeaderAccessor accessor = SimpMessageHeaderAccessor.create(SimpMessageType.MESSAGE);
+        if (contentType != null) {
+            accessor.setContentType(contentType);
+        }
+        accessor.setLeaveMutable(true);
+        MessageHeaders headers = accessor.getMessageHeaders();
+        return (byte[]) converter.toMessage(frame, headers).getPayload();
+    }
+
+    private static Message message() {
+        Message message = new Message();
+        message.setId(1790000000000000000L);
+        message.setSenderId(1001L);
+        message.setReceiverId(1002L);
+        message.setContent("明天下午三点在三楼会议室讨论下季度的预算，记得带上材料");
+        message.setType(Message.MessageType.TEXT);
+        message.setIsRead(false);
+        message.setSentTime(LocalDateTime.of(2024, 5, 1, 12, 30, 15));
+        return message;
+    }
+}
@@ -0,0 +1,266 @@
+package com.im.corey.model;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.springframework.core.io.Resource;
+import org.springframework.core.io.support.PathMatchingResourcePatternResolver;
+import org.springframework.util.StreamUtils;
+
+import javax.persistence.Column;
+import javax.persistence.Enumerated;
+import javax.persistence.Index;
+import javax.persistence.Table;
+import javax.persistence.Transient;
+import javax.persistence.UniqueConstraint;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * 不依赖数据库的迁移脚本校验：按Flyway的顺序回放db/migration下的DDL得到最终表结构，
+ * 再与实体映射比对，相当于启动时Flyway validate加Hibernate ddl-auto: validate的离线版本
+ */
+class FlywayMigrationTest {
+
+    private static final Pattern MIGRATION_NAME = Pattern.compile("V(\\d+)__\\w+\\.sql");
+
+    private static final Class<?>[] ENTITIES = {User.class, Message.class, ReadWatermark.class, Conversation.class};
+
+    private static final Map<Integer, String> migrations = new TreeMap<>();
+
+    /**
+     * 表名 -> (列名 -> 类型)
+     */
+    private static final Map<String, Map<String, String>> tables = new HashMap<>();
+
+    /**
+     * 表名 -> (索引名 -> 列)
+     */
+    private static final Map<String, Map<String, String>> indexes = new HashMap<>();
+
+    @BeforeAll
+    static void replayMigrations() throws Exception {
+        Resource[] resources = new PathMatchingResourcePatternResolver().getResources("classpath:db/migration/*.sql");
+        for (Resource resource : resources) {
+            Matcher matcher = MIGRATION_NAME.matcher(resource.getFilename());
+            assertThat(matcher.matches()).as("Flyway迁移脚本命名: " + resource.getFilename()).isTrue();
+            String previous = migrations.put(Integer.valueOf(matcher.group(1)),
+                    StreamUtils.copyToString(resource.getInputStream(), StandardCharsets.UTF_8));
+            assertThat(previous).as("重复的版本号: " + resource.getFilename()).isNull();
+        }
+        for (String script : migrations.values()) {
+            for (String statement : statements(script)) {
+                apply(statement);
+            }
+        }
+    }
+
+    @Test
+    void versionsStartAtOneAndAreContiguous() {
+        assertThat(migrations).isNotEmpty();
+        int expected = 1;
+        for (Integer version : migrations.keySet()) {
+            assertThat(version).isEqualTo(expected++);
+        }
+    }
+
+    @Test
+    void baselineMatchesTheOriginalSchemaAndKeepsSeedUsers() {
+        String baseline = migrations.get(1);
+        assertThat(baseline).contains("type ENUM('TEXT', 'IMAGE', 'FILE', 'VOICE', 'VIDEO')");
+        assertThat(baseline).contains("id BIGINT AUTO_INCREMENT PRIMARY KEY COMMENT '消息ID'");
+        assertThat(baseline).doesNotContain("read_watermarks", "client_message_id");
+        assertThat(baseline).contains("'admin'", "'user1'", "'user2'");
+    }
+
+    @Test
+    void finalIndexesAreExactlyTheDeclaredEntityIndexes() {
+        for (Class<?> entity : ENTITIES) {
+            Table table = entity.getAnnotation(Table.class);
+            List<String> declared = new ArrayList<>();
+            for (Index index : table.indexes()) {
+                declared.add(index.name());
+            }
+            for (UniqueConstraint constraint : table.uniqueConstraints()) {
+                declared.add(constraint.name());
+            }
+            // 被取代的索引应在迁移中删除，不能留在表上只增加写入开销
+            assertThat(indexes.getOrDefault(table.name(), new HashMap<>()).keySet()).as("表 " + table.name())
+                    .containsExactlyInAnyOrderElementsOf(declared);
+        }
+    }
+
+    @Test
+    void everyMappedColumnExistsAfterAllMigrations() {
+        for (Class<?> entity : ENTITIES) {
+            String table = entity.getAnnotation(Table.class).name();
+            Map<String, String> columns = tables.get(table);
+            assertThat(columns).as("表 " + table).isNotNull();
+            for (Field field : entity.getDeclaredFields()) {
+                if (Modifier.isStatic(field.getModifiers()) || field.isAnnotationPresent(Transient.class)) {
+                    continue;
+                }
+                String column = columnName(field);
+                assertThat(columns).as(table + "." + column).containsKey(column);
+                if (field.isAnnotationPresent(Enumerated.class)) {
+                    // @Enumerated(EnumType.STRING)映射为VARCHAR，ENUM列在ddl-auto: validate下会校验失败
+                    assertThat(columns.get(column)).as(table + "." + column).startsWith("VARCHAR");
+                }
+            }
+        }
+    }
+
+    @Test
+    void everyDeclaredEntityIndexExistsAfterAllMigrations() {
+        for (Class<?> entity : ENTITIES) {
+            Table table = entity.getAnnotation(Table.class);
+            Map<String, String> tableIndexes = indexes.getOrDefault(table.name(), new HashMap<>());
+            for (Index index : table.indexes()) {
+                assertThat(tableIndexes.get(index.name())).as(table.name() + "." + index.name())
+                        .isEqualTo(normalizeColumns(index.columnList()));
+            }
+        }
+    }
+
+    private static void apply(String statement) {
+        String upper = statement.toUpperCase(Locale.ROOT);
+        if (upper.startsWith("CREATE TABLE")) {
+            Matcher matcher = Pattern.compile("CREATE TABLE (?:IF NOT EXISTS )?(\\w+)\\s*\\((.*)\\)",
+                    Pattern.CASE_INSENSITIVE | Pattern.DOTALL).matcher(statement);
+            assertThat(matcher.find()).as(statement).isTrue();
+            String table = matcher.group(1);
+            tables.put(table, new LinkedHashMap<>());
+            for (String item : splitTopLevel(matcher.group(2))) {
+                applyDefinition(table, item, false);
+            }
+        } else if (upper.startsWith("ALTER TABLE")) {
+            Matcher matcher = Pattern.compile("ALTER TABLE (\\w+)\\s+(.*)", Pattern.CASE_INSENSITIVE | Pattern.DOTALL)
+                    .matcher(statement);
+            assertThat(matcher.find()).as(statement).isTrue();
+            for (String clause : splitTopLevel(matcher.group(2))) {
+                applyDefinition(matcher.group(1), clause, true);
+            }
+        } else if (upper.startsWith("CREATE INDEX") || upper.startsWith("CREATE UNIQUE INDEX")) {
+            Matcher matcher = Pattern.compile("INDEX (\\w+) ON (\\w+)\\s*\\(([^)]*)\\)", Pattern.CASE_INSENSITIVE)
+                    .matcher(statement);
+            assertThat(matcher.find()).as(statement).isTrue();
+            addIndex(matcher.group(2), matcher.group(1), matcher.group(3));
+        } else if (upper.startsWith("DROP INDEX")) {
+            Matcher matcher = Pattern.compile("DROP INDEX (\\w+) ON (\\w+)", Pattern.CASE_INSENSITIVE).matcher(statement);
+            assertThat(matcher.find()).as(statement).isTrue();
+            dropIndex(matcher.group(2), matcher.group(1));
+        }
+    }
+
+    /**
+     * 处理CREATE TABLE中的一项或ALTER TABLE中的一个子句
+     */
+    private static void applyDefinition(String table, String definition, boolean alter) {
+        String text = definition.trim();
+        String upper = text.toUpperCase(Locale.ROOT);
+        if (alter) {
+            if (upper.startsWith("DROP INDEX") || upper.startsWith("DROP KEY")) {
+                dropIndex(table, text.split("\\s+")[2]);
+                return;
+            }
+            if (upper.startsWith("ADD COLUMN ") || upper.startsWith("MODIFY ")) {
+                text = text.substring(text.indexOf(' ') + 1).trim();
+                if (text.toUpperCase(Locale.ROOT).startsWith("COLUMN ")) {
+                    text = text.substring(7).trim();
+                }
+                upper = text.toUpperCase(Locale.ROOT);
+            } else if (upper.startsWith("ADD ")) {
+                text = text.substring(4).trim();
+                upper = text.toUpperCase(Locale.ROOT);
+            }
+        }
+        Matcher index = Pattern.compile("^(?:UNIQUE )?(?:INDEX|KEY) (\\w+)\\s*\\(([^)]*)\\)", Pattern.CASE_INSENSITIVE)
+                .matcher(text);
+        if (index.find()) {
+            addIndex(table, index.group(1), index.group(2));
+            return;
+        }
+        if (upper.startsWith("PRIMARY KEY") || upper.startsWith("FOREIGN KEY") || upper.startsWith("CONSTRAINT")) {
+            return;
+        }
+        String[] tokens = text.split("\\s+");
+        tables.get(table).put(tokens[0], tokens[1].toUpperCase(Locale.ROOT));
+    }
+
+    private static void addIndex(String table, String name, String columns) {
+        String previous = indexes.computeIfAbsent(table, key -> new HashMap<>()).put(name, normalizeColumns(columns));
+        assertThat(previous).as("重复创建索引 " + table + "." + name).isNull();
+    }
+
+    private static void dropIndex(String table, String name) {
+        String previous = indexes.getOrDefault(table, new HashMap<>()).remove(name);
+        assertThat(previous).as("删除不存在的索引 " + table + "." + name).isNotNull();
+    }
+
+    private static String normalizeColumns(String columns) {
+        return String.join(",", Arrays.stream(columns.split(",")).map(String::trim).toArray(String[]::new));
+    }
+
+    private static String columnName(Field field) {
+        Column column = field.getAnnotation(Column.class);
+        if (column != null && !column.name().isEmpty()) {
+            return column.name();
+        }
+        return field.getName().replaceAll("([a-z])([A-Z])", "$1_$2").toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * 去掉注释后按分号拆分语句，不处理字符串中的分号（迁移脚本中没有）
+     */
+    private static List<String> statements(String script) {
+        StringBuilder sql = new StringBuilder();
+        for (String line : script.split("\n")) {
+            int comment = line.indexOf("--");
+            sql.append(comment >= 0 ? line.substring(0, comment) : line).append('\n');
+        }
+        List<String> result = new ArrayList<>();
+        for (String statement : sql.toString().split(";")) {
+            if (!statement.trim().isEmpty()) {
+                result.add(statement.trim());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 按顶层逗号拆分，括号和引号内的逗号不拆
+     */
+    private static List<String> splitTopLevel(String body) {
+        List<String> parts = new ArrayList<>();
+        int depth = 0;
+        boolean quoted = false;
+        int start = 0;
+        for (int i = 0; i < body.length(); i++) {
+            char c = body.charAt(i);
+            if (c == '\'') {
+                quoted = !quoted;
+            } else if (!quoted && c == '(') {
+                depth++;
+            } else if (!quoted && c == ')') {
+                depth--;
+            } else if (!quoted && depth == 0 && c == ',') {
+                parts.add(body.substring(start, i));
+                start = i + 1;
+            }
+        }
+        parts.add(body.substring(start));
+        return parts;
+    }
+}
@@ -0,0 +1,160 @@
+package com.im.corey.repository;
+
+import org.flywaydb.core.Flyway;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+import org.testcontainers.DockerClientFactory;
+import org.testcontainers.containers.MySQLContainer;
+
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * 在真实MySQL上检查消息查询的执行计划：Testcontainers启动MySQL，Flyway执行全部迁移，
+ * 写入一批分布接近线上的消息并更新统计信息后，对各个查询做EXPLAIN，确认走到为其建立的索引。
+ * SQL与仓库中的JPQL/原生查询逐条对应，修改查询或索引时同步修改这里；本机没有Docker时跳过
+ */
+class MessageQueryPlanTest {
+
+    private static final int USERS = 100;
+
+    private static final int MESSAGES = 20000;
+
+    private static final LocalDateTime FIRST_SENT_TIME = LocalDateTime.of(2024, 1, 1, 0, 0);
+
+    private static MySQLContainer<?> mysql;
+
+    private static JdbcTemplate jdbcTemplate;
+
+    @BeforeAll
+    static void migrateAndLoad() {
+        assumeTrue(DockerClientFactory.instance().isDockerAvailable(), "没有可用的Docker，跳过执行计划检查");
+        mysql = new MySQLContainer<>("mysql:8.0.33");
+        mysql.start();
+        DriverManagerDataSource dataSource = new DriverManagerDataSource(mysql.getJdbcUrl(), mysql.getUsername(),
+                mysql.getPassword());
+        assertThat(Flyway.configure().dataSource(dataSource).load().migrate().migrationsExecuted).isEqualTo(3);
+        jdbcTemplate = new JdbcTemplate(dataSource);
+
+        // V1已插入3个用户
+        List<Object[]> users = new ArrayList<>();
+        for (int id = 4; id <= USERS; id++) {
+            users.add(new Object[]{"user" + id, "password", "user" + id + "@example.com"});
+        }
+        jdbcTemplate.batchUpdate("INSERT INTO users (username, password, email) VALUES (?, ?, ?)", users);
+
+        Random random = new Random(42);
+        List<Object[]> messages = new ArrayList<>();
+        for (int id = 1; id <= MESSAGES; id++) {
+            long sender = 1 + random.nextInt(USERS);
+            long receiver = 1 + random.nextInt(USERS);
+            messages.add(new Object[]{id, sender, receiver, "消息" + id, random.nextInt(10) < 8,
+                    Timestamp.valueOf(FIRST_SENT_TIME.plusSeconds(id))});
+        }
+        jdbcTemplate.batchUpdate("INSERT INTO messages (id, sender_id, receiver_id, content, is_read, sent_time) "
+                + "VALUES (?, ?, ?, ?, ?, ?)", messages);
+        jdbcTemplate.update("INSERT INTO read_watermarks (reader_id, peer_id, last_read_message_id) "
+                + "SELECT receiver_id, sender_id, MAX(id) DIV 2 FROM messages GROUP BY receiver_id, sender_id");
+        jdbcTemplate.update("INSERT INTO conversations (owner_id, peer_id, last_message_id, last_sender_id) "
+                + "SELECT receiver_id, sender_id, MAX(id), sender_id FROM messages GROUP BY receiver_id, sender_id");
+        jdbcTemplate.execute("ANALYZE TABLE users, messages, read_watermarks, conversations");
+    }
+
+    @AfterAll
+    static void stop() {
+        if (mysql != null) {
+            mysql.stop();
+        }
+    }
+
+    @Test
+    void conversationPagesUseTheSenderReceiverIdIndex() {
+        assertThat(key(explain("SELECT * FROM messages m WHERE m.sender_id = ? AND m.receiver_id = ? "
+                + "AND m.id < ? ORDER BY m.id DESC LIMIT 21", 2, 3, MESSAGES), "m"))
+                .isEqualTo("idx_sender_receiver_id");
+        assertThat(key(explain("SELECT * FROM messages m WHERE m.sender_id = ? AND m.receiver_id = ? "
+                + "AND m.id > ? AND m.id <= ? ORDER BY m.id ASC LIMIT 21", 2, 3, MESSAGES / 2, MESSAGES), "m"))
+                .isEqualTo("idx_sender_receiver_id");
+        // MAX(id)由索引直接取得，不访问表
+        assertThat(explain("SELECT MAX(m.id) FROM messages m WHERE m.sender_id = ? AND m.receiver_id = ?", 2, 3)
+                .get(0).get("Extra")).isEqualTo("Select tables optimized away");
+    }
+
+    @Test
+    void deltaSyncUsesTheReceiverAndSenderIdIndexes() {
+        assertThat(key(explain("SELECT * FROM messages m WHERE m.receiver_id = ? AND m.id > ? AND m.id <= ? "
+                + "ORDER BY m.id ASC LIMIT 101", 2, MESSAGES / 2, MESSAGES), "m"))
+                .isEqualTo("idx_receiver_id");
+        assertThat(key(explain("SELECT * FROM messages m WHERE m.sender_id = ? AND m.receiver_id <> ? "
+                + "AND m.id > ? AND m.id <= ? ORDER BY m.id ASC LIMIT 101", 2, 2, MESSAGES / 2, MESSAGES), "m"))
+                .isEqualTo("idx_sender_id");
+    }
+
+    @Test
+    void watermarkBasedUnreadQueriesUseTheUnreadIndex() {
+        List<Map<String, Object>> unread = explain("SELECT m.* FROM messages m WHERE m.receiver_id = ? "
+                + "AND m.is_read = false AND NOT EXISTS (SELECT 1 FROM read_watermarks w WHERE w.reader_id = m.receiver_id "
+                + "AND w.peer_id = m.sender_id AND w.last_read_message_id >= m.id)", 2);
+        assertThat(key(unread, "m")).isEqualTo("idx_receiver_unread_sender");
+        assertThat(key(unread, "w")).isEqualTo("PRIMARY");
+
+        List<Map<String, Object>> grouped = explain("SELECT m.receiver_id, m.sender_id, COUNT(*) FROM messages m "
+                + "WHERE m.is_read = false AND NOT EXISTS (SELECT 1 FROM read_watermarks w WHERE w.reader_id = m.receiver_id "
+                + "AND w.peer_id = m.sender_id AND w.last_read_message_id >= m.id) GROUP BY m.receiver_id, m.sender_id");
+        assertThat(key(grouped, "m")).isEqualTo("idx_receiver_unread_sender");
+        assertThat(key(grouped, "w")).isEqualTo("PRIMARY");
+
+        List<Map<String, Object>> userList = explain("SELECT m.sender_id, COUNT(*) AS unread_count FROM messages m "
+                + "LEFT JOIN read_watermarks w ON w.reader_id = m.receiver_id AND w.peer_id = m.sender_id "
+                + "WHERE m.receiver_id = ? AND m.is_read = false AND m.id > COALESCE(w.last_read_message_id, 0) "
+                + "GROUP BY m.sender_id", 2);
+        assertThat(key(userList, "m")).isEqualTo("idx_receiver_unread_sender");
+        assertThat(key(userList, "w")).isEqualTo("PRIMARY");
+
+        // 两个索引都能以等值前缀加id范围定位，任选其一
+        assertThat(key(explain("SELECT COUNT(*) FROM messages m WHERE m.receiver_id = ? AND m.is_read = false "
+                + "AND m.sender_id = ? AND m.id > ? AND m.id <= ?", 2, 3, MESSAGES / 2, MESSAGES), "m"))
+                .isIn("idx_receiver_unread_sender", "idx_sender_receiver_id");
+        List<Map<String, Object>> reset = explain("UPDATE conversations c SET c.unread_count = ("
+                + "SELECT COUNT(*) FROM messages m WHERE m.sender_id = c.peer_id AND m.receiver_id = c.owner_id "
+                + "AND m.id > ? AND m.is_read = false) WHERE c.owner_id = ? AND c.peer_id = ?", MESSAGES / 2, 2, 3);
+        assertThat(key(reset, "c")).isEqualTo("PRIMARY");
+        assertThat(key(reset, "m")).isIn("idx_receiver_unread_sender", "idx_sender_receiver_id");
+    }
+
+    @Test
+    void archiveAndIndexCatchUpUseTheSentTimeIndexAndThePrimaryKey() {
+        assertThat(key(explain("SELECT MAX(m.id) FROM messages m WHERE m.sent_time < ?",
+                Timestamp.valueOf(FIRST_SENT_TIME.plusSeconds(MESSAGES / 20))), "m"))
+                .isEqualTo("idx_sent_time");
+        assertThat(key(explain("SELECT * FROM messages m WHERE m.id > ? AND m.id <= ? ORDER BY m.id ASC LIMIT 1000",
+                MESSAGES / 2, MESSAGES), "m"))
+                .isEqualTo("PRIMARY");
+    }
+
+    private static List<Map<String, Object>> explain(String sql, Object... args) {
+        return jdbcTemplate.queryForList("EXPLAIN " + sql, args);
+    }
+
+    /**
+     * 执行计划中某个表别名所在行使用的索引
+     */
+    private static String key(List<Map<String, Object>> plan, String table) {
+        for (Map<String, Object> row : plan) {
+            if (table.equals(row.get("table"))) {
+                return (String) row.get("key");
+            }
+        }
+        throw new AssertionError("执行计划中没有表 " + table + ": " + plan);
+    }
+}
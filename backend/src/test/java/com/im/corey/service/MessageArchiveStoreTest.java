@@ -0,0 +1,120 @@
+package com.im.corey.service;
+
+import com.im.corey.model.Message;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class MessageArchiveStoreTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void appendedMessagesReadBackInBothDirections() throws Exception {
+        MessageArchiveStore store = store(true);
+        store.append(1L, 2L, messages(1, 200));
+
+        assertThat(store.lastArchivedId(2L, 1L)).isEqualTo(200L);
+        List<Message> before = store.readBefore(1L, 2L, 131, 5);
+        assertThat(before).extracting(Message::getId).containsExactly(130L, 129L, 128L, 127L, 126L);
+        List<Message> after = store.readAfter(2L, 1L, 62, 4);
+        assertThat(after).extracting(Message::getId).containsExactly(63L, 64L, 65L, 66L);
+        assertThat(after.get(0).getContent()).isEqualTo("消息63");
+        assertThat(after.get(0).getIsRead()).isTrue();
+    }
+
+    @Test
+    void disabledStoreSkipsLookupsEvenWhenSegmentsExist() throws Exception {
+        store(true).append(1L, 2L, messages(1, 10));
+
+        MessageArchiveStore disabled = store(false);
+
+        assertThat(disabled.lastArchivedId(1L, 2L)).isZero();
+        assertThat(disabled.readAfter(1L, 2L, 0, 10)).isEmpty();
+        assertThat(disabled.readBefore(1L, 2L, Long.MAX_VALUE, 10)).isEmpty();
+        assertThat(segments(disabled)).isEmpty();
+    }
+
+    @Test
+    void conversationsWithoutArchiveAreNotCached() throws Exception {
+        MessageArchiveStore store = store(true);
+        for (long peer = 2; peer < 1000; peer++) {
+            assertThat(store.lastArchivedId(1L, peer)).isZero();
+        }
+        assertThat(segments(store)).isEmpty();
+
+        store.append(1L, 2L, messages(1, 3));
+        assertThat(segments(store)).hasSize(1);
+    }
+
+    @Test
+    void appendsFromAnotherNodeAreVisibleWithoutRestart() throws Exception {
+        MessageArchiveStore writer = store(true);
+        MessageArchiveStore reader = store(true);
+        writer.append(1L, 2L, messages(1, 100));
+        assertThat(reader.lastArchivedId(1L, 2L)).isEqualTo(100L);
+        assertThat(reader.readAfter(1L, 2L, 95, 10)).hasSize(5);
+
+        writer.append(1L, 2L, messages(101, 150));
+
+        assertThat(reader.lastArchivedId(1L, 2L)).isEqualTo(150L);
+        assertThat(reader.readAfter(1L, 2L, 95, 100)).extracting(Message::getId).endsWith(149L, 150L).hasSize(55);
+    }
+
+    @Test
+    void deletedArchiveDropsTheCachedSnapshot() throws Exception {
+        MessageArchiveStore store = store(true);
+        store.append(1L, 2L, messages(1, 10));
+        assertThat(store.lastArchivedId(1L, 2L)).isEqualTo(10L);
+
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path file : (Iterable<Path>) files.filter(Files::isRegularFile)::iterator) {
+                Files.delete(file);
+            }
+        }
+
+        assertThat(store.lastArchivedId(1L, 2L)).isZero();
+        assertThat(segments(store)).isEmpty();
+    }
+
+    private MessageArchiveStore store(boolean enabled) {
+        MessageArchiveStore store = new MessageArchiveStore();
+        ReflectionTestUtils.setField(store, "enabled", enabled);
+        ReflectionTestUtils.setField(store, "directory", directory.toString());
+        ReflectionTestUtils.setField(store, "blockSize", 16);
+        store.init();
+        return store;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, ?> segments(MessageArchiveStore store) {
+        return (Map<String, ?>) ReflectionTestUtils.getField(store, "segments");
+    }
+
+    private static List<Message> messages(long fromId, long toId) {
+        List<Message> messages = new ArrayList<>();
+        for (long id = fromId; id <= toId; id++) {
+            Message message = new Message();
+            message.setId(id);
+            message.setSenderId(id % 2 == 0 ? 1L : 2L);
+            message.setReceiverId(id % 2 == 0 ? 2L : 1L);
+            message.setContent("消息" + id);
+            message.setType(Message.MessageType.TEXT);
+            message.setSentTime(LocalDateTime.of(2024, 1, 1, 0, 0).plusSeconds(id));
+            message.setIsRead(true);
+            messages.add(message);
+        }
+        return messages;
+    }
+}
@@ -0,0 +1,66 @@
+package com.im.corey.service;
+
+import com.im.corey.dto.CommitWatermarkReport;
+import com.im.corey.util.SnowflakeIdGenerator;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class MessageCommitWatermarkTest {
+
+    private MessageCommitWatermark watermark;
+
+    @BeforeEach
+    void setUp() {
+        watermark = new MessageCommitWatermark();
+        ReflectionTestUtils.setField(watermark, "idGenerator", new SnowflakeIdGenerator());
+        ReflectionTestUtils.setField(watermark, "reportIntervalMs", 20L);
+    }
+
+    @Test
+    void localWatermarkStaysBelowTheLowestUncommittedId() {
+        SnowflakeIdGenerator idGenerator = mock(SnowflakeIdGenerator.class);
+        when(idGenerator.nextId()).thenReturn(10L, 11L, 12L);
+        when(idGenerator.lowestNextId()).thenReturn(13L);
+        ReflectionTestUtils.setField(watermark, "idGenerator", idGenerator);
+        watermark.assign();
+        watermark.assign();
+        watermark.assign();
+
+        // 11先提交，10仍在写入
+        watermark.release(11L);
+        assertThat(watermark.committedWatermark()).isEqualTo(9L);
+
+        watermark.release(10L);
+        assertThat(watermark.committedWatermark()).isEqualTo(11L);
+
+        // 写入失败的ID同样释放，不会一直挡住水位
+        watermark.release(12L);
+        assertThat(watermark.committedWatermark()).isEqualTo(12L);
+    }
+
+    @Test
+    void clusterWatermarkIsTheLowestRecentNodeReport() throws InterruptedException {
+        ReflectionTestUtils.setField(watermark, "clusterEnabled", true);
+        long now = System.currentTimeMillis();
+        // 没有其他节点的上报时，最多到3个上报间隔之前
+        assertThat(watermark.committedWatermark()).isLessThan(SnowflakeIdGenerator.minIdAt(now));
+
+        long behind = SnowflakeIdGenerator.minIdAt(now - 60000);
+        watermark.onReport(new CommitWatermarkReport(1, behind));
+        watermark.onReport(new CommitWatermarkReport(2, behind + 1000));
+        assertThat(watermark.committedWatermark()).isEqualTo(behind);
+
+        // 本节点的广播回到自己时不参与计算
+        watermark.onReport(new CommitWatermarkReport(0, behind - 1000));
+        assertThat(watermark.committedWatermark()).isEqualTo(behind);
+
+        // 超过3个上报间隔没有上报的节点不再挡住水位
+        Thread.sleep(100);
+        assertThat(watermark.committedWatermark()).isGreaterThan(behind + 1000);
+    }
+}
@@ -0,0 +1,86 @@
+package com.im.corey.service;
+
+import com.im.corey.model.Message;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class MessageDedupTableTest {
+
+    private MessageDedupTable table;
+
+    @BeforeEach
+    void setUp() {
+        table = new MessageDedupTable();
+        ReflectionTestUtils.setField(table, "windowSeconds", 300L);
+        ReflectionTestUtils.setField(table, "maxSize", 8);
+    }
+
+    @Test
+    void retryWithinTheWindowGetsTheFirstSend() {
+        CompletableFuture<Message> first = new CompletableFuture<>();
+
+        assertThat(table.putIfAbsent(1L, 100L, first)).isNull();
+
+        assertThat(table.putIfAbsent(1L, 100L, new CompletableFuture<>())).isSameAs(first);
+        // 键由发送者和客户端消息ID共同组成
+        assertThat(table.putIfAbsent(2L, 100L, new CompletableFuture<>())).isNull();
+        assertThat(table.putIfAbsent(1L, 101L, new CompletableFuture<>())).isNull();
+    }
+
+    @Test
+    void expiredEntryIsReplacedByTheRetry() {
+        ReflectionTestUtils.setField(table, "windowSeconds", 0L);
+        CompletableFuture<Message> first = new CompletableFuture<>();
+        table.putIfAbsent(1L, 100L, first);
+        ReflectionTestUtils.setField(table, "windowSeconds", 300L);
+
+        // 首次登记时窗口为0，条目已过期
+        CompletableFuture<Message> retry = new CompletableFuture<>();
+        assertThat(table.putIfAbsent(1L, 100L, retry)).isNull();
+
+        assertThat(table.putIfAbsent(1L, 100L, new CompletableFuture<>())).isSameAs(retry);
+    }
+
+    @Test
+    void entriesBeyondTheCapacityAreEvicted() {
+        for (long clientMessageId = 1; clientMessageId <= 9; clientMessageId++) {
+            table.putIfAbsent(1L, clientMessageId, new CompletableFuture<>());
+        }
+
+        // 超出容量后淘汰到容量的3/4
+        assertThat(entries()).hasSize(6);
+        ReflectionTestUtils.setField(table, "maxSize", 100);
+        int hits = 0;
+        for (long clientMessageId = 1; clientMessageId <= 9; clientMessageId++) {
+            if (table.putIfAbsent(1L, clientMessageId, new CompletableFuture<>()) != null) {
+                hits++;
+            }
+        }
+        // 被淘汰的键不再命中，重发由数据库唯一约束识别
+        assertThat(hits).isEqualTo(6);
+    }
+
+    @Test
+    void failedSendRemovesOnlyItsOwnEntry() {
+        CompletableFuture<Message> failed = new CompletableFuture<>();
+        table.putIfAbsent(1L, 100L, failed);
+
+        table.remove(1L, 100L, failed);
+
+        CompletableFuture<Message> retry = new CompletableFuture<>();
+        assertThat(table.putIfAbsent(1L, 100L, retry)).isNull();
+        // 迟到的移除不会删掉重试登记的条目
+        table.remove(1L, 100L, failed);
+        assertThat(table.putIfAbsent(1L, 100L, new CompletableFuture<>())).isSameAs(retry);
+    }
+
+    private Map<?, ?> entries() {
+        return (Map<?, ?>) ReflectionTestUtils.getField(table, "entries");
+    }
+}
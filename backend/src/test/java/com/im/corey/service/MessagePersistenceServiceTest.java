@@ -0,0 +1,442 @@
+package com.im.corey.service;
+
+import com.im.corey.model.Message;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.dao.DeadlockLoserDataAccessException;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionSystemException;
+import org.springframework.transaction.support.SimpleTransactionStatus;
+
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLIntegrityConstraintViolationException;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class MessagePersistenceServiceTest {
+
+    /**
+     * 内容为该值的消息在插入时违反约束
+     */
+    private static final String VIOLATING = "违反约束";
+
+    /**
+     * 已提交的消息，按插入顺序
+     */
+    private final List<Message> committed = new CopyOnWriteArrayList<>();
+
+    /**
+     * 每次执行的插入批次大小
+     */
+    private final List<Integer> insertBatches = new CopyOnWriteArrayList<>();
+
+    private final UnreadCounterStore unreadCounterStore = new UnreadCounterStore();
+
+    private PlatformTransactionManager transactionManager;
+
+    private MessagePersistenceService service;
+
+    private long nextId = 1;
+
+    /**
+     * 接下来这么多次批次事务在写完后被数据库选为死锁回滚方
+     */
+    private int deadlocks;
+
+    @BeforeEach
+    void setUp() {
+        JdbcTemplate jdbcTemplate = mock(JdbcTemplate.class);
+        when(jdbcTemplate.execute(any(ConnectionCallback.class))).thenAnswer(invocation -> {
+            List<Message> pending = new ArrayList<>();
+            try {
+                Object result = invocation.<ConnectionCallback<?>>getArgument(0).doInConnection(connection(pending));
+                if (deadlocks > 0) {
+                    deadlocks--;
+                    throw new DeadlockLoserDataAccessException("Deadlock found when trying to get lock",
+                            new SQLException("Deadlock found when trying to get lock", "40001", 1213));
+                }
+                committed.addAll(pending);
+                return result;
+            } catch (SQLIntegrityConstraintViolationException e) {
+                throw new DataIntegrityViolationException(e.getMessage(), e);
+            }
+        });
+        transactionManager = mock(PlatformTransactionManager.class);
+        when(transactionManager.getTransaction(any())).thenReturn(new SimpleTransactionStatus());
+
+        service = new MessagePersistenceService();
+        ReflectionTestUtils.setField(service, "jdbcTemplate", jdbcTemplate);
+        ReflectionTestUtils.setField(service, "transactionManager", transactionManager);
+        ReflectionTestUtils.setField(service, "unreadCounterStore", unreadCounterStore);
+        ReflectionTestUtils.setField(service, "queueCapacity", 1000);
+        ReflectionTestUtils.setField(service, "batchSize", 5);
+        ReflectionTestUtils.setField(service, "flushIntervalMs", 500L);
+        ReflectionTestUtils.setField(service, "offerTimeoutMs", 100L);
+        ReflectionTestUtils.setField(service, "lockRetries", 3);
+    }
+
+    @AfterEach
+    void tearDown() throws InterruptedException {
+        service.stop();
+    }
+
+    @Test
+    void messagesSubmittedWithinTheWindowAreWrittenAsOneBatch() throws Exception {
+        service.start();
+        List<CompletableFuture<Message>> futures = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            futures.add(service.submit(message("消息" + i)));
+        }
+
+        for (CompletableFuture<Message> future : futures) {
+            assertThat(future.get(5, TimeUnit.SECONDS).getContent()).startsWith("消息");
+        }
+        assertThat(insertBatches).containsExactly(5);
+        assertThat(committed).hasSize(5);
+    }
+
+    @Test
+    void constraintViolationFallsBackToSingleInsertsAndOnlyFailsTheOffendingMessage() throws Exception {
+        service.start();
+        CompletableFuture<Message> first = service.submit(message("第一条"));
+        CompletableFuture<Message> violating = service.submit(message(VIOLATING));
+        CompletableFuture<Message> last = service.submit(message("最后一条"));
+
+        assertThat(first.get(5, TimeUnit.SECONDS).getContent()).isEqualTo("第一条");
+        assertThat(last.get(5, TimeUnit.SECONDS).getContent()).isEqualTo("最后一条");
+        assertThatThrownBy(() -> violating.get(5, TimeUnit.SECONDS))
+                .isInstanceOf(ExecutionException.class)
+                .hasCauseInstanceOf(DataIntegrityViolationException.class);
+        // 整批失败一次后逐条重写
+        assertThat(insertBatches).containsExactly(3, 1, 1, 1);
+        assertThat(committed).extracting(Message::getContent).containsExactly("第一条", "最后一条");
+        assertThat(unreadCounterStore.get(2L, 1L)).isEqualTo(2L);
+    }
+
+    @Test
+    void alreadyStoredClientMessageIdCompletesAsDuplicateWithoutInsert() throws Exception {
+        service.start();
+        Message original = service.submit(message("首次发送", 77L)).get(5, TimeUnit.SECONDS);
+
+        // 去重表中的条目已过期或被淘汰，重发到达写线程，按唯一键查出首次保存的消息
+        CompletableFuture<Message> retry = service.submit(message("首次发送", 77L));
+
+        assertThatThrownBy(() -> retry.get(5, TimeUnit.SECONDS))
+                .hasCauseInstanceOf(DuplicateMessageException.class)
+                .satisfies(e -> assertThat(((DuplicateMessageException) e.getCause()).getOriginal().getId())
+                        .isEqualTo(original.getId()));
+        assertThat(committed).hasSize(1);
+        assertThat(insertBatches).containsExactly(1);
+        assertThat(unreadCounterStore.get(2L, 1L)).isEqualTo(1L);
+    }
+
+    @Test
+    void concurrentRetryInTheSameBatchHitsTheUniqueKeyAndCompletesAsDuplicate() throws Exception {
+        service.start();
+        CompletableFuture<Message> first = service.submit(message("首次发送", 77L));
+        CompletableFuture<Message> retry = service.submit(message("首次发送", 77L));
+
+        Message saved = first.get(5, TimeUnit.SECONDS);
+
+        assertThatThrownBy(() -> retry.get(5, TimeUnit.SECONDS))
+                .hasCauseInstanceOf(DuplicateMessageException.class)
+                .satisfies(e -> assertThat(((DuplicateMessageException) e.getCause()).getOriginal().getId())
+                        .isEqualTo(saved.getId()));
+        // 整批违反唯一约束后逐条重写，第二条在查重时命中第一条
+        assertThat(insertBatches).containsExactly(2, 1);
+        assertThat(committed).extracting(Message::getId).containsExactly(saved.getId());
+        assertThat(unreadCounterStore.get(2L, 1L)).isEqualTo(1L);
+    }
+
+    @Test
+    void unreadCountIsRecordedBeforeTheSenderIsNotified() throws Exception {
+        service.start();
+
+        CompletableFuture<Long> countSeenOnCompletion = service.submit(message("你好"))
+                .thenApply(saved -> unreadCounterStore.get(2L, 1L));
+
+        assertThat(countSeenOnCompletion.get(5, TimeUnit.SECONDS)).isEqualTo(1L);
+    }
+
+    @Test
+    void markReadRacingTheCommitLeavesNoPhantomUnread() throws Exception {
+        // 提交的同时接收者读完了会话：标记已读的事务看到这批消息并扣除相同数量
+        doAnswer(invocation -> {
+            unreadCounterStore.subtract(2L, 1L, 3);
+            return null;
+        }).when(transactionManager).commit(any());
+        service.start();
+        List<CompletableFuture<Message>> futures = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            futures.add(service.submit(message("消息" + i)));
+        }
+        for (CompletableFuture<Message> future : futures) {
+            future.get(5, TimeUnit.SECONDS);
+        }
+
+        assertThat(unreadCounterStore.get(2L, 1L)).isZero();
+        assertThat(unreadCounterStore.getTotal(2L)).isZero();
+    }
+
+    @Test
+    void failedCommitTakesBackTheUnreadCount() throws Exception {
+        doThrow(new TransactionSystemException("提交失败")).when(transactionManager).commit(any());
+        service.start();
+
+        CompletableFuture<Message> future = service.submit(message("你好"));
+
+        assertThatThrownBy(() -> future.get(5, TimeUnit.SECONDS)).hasCauseInstanceOf(TransactionSystemException.class);
+        assertThat(unreadCounterStore.get(2L, 1L)).isZero();
+        assertThat(unreadCounterStore.getTotal(2L)).isZero();
+    }
+
+    @Test
+    void batchChosenAsDeadlockVictimIsRewrittenWhole() throws Exception {
+        deadlocks = 2;
+        service.start();
+        List<CompletableFuture<Message>> futures = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            futures.add(service.submit(message("消息" + i, 100L + i)));
+        }
+
+        for (CompletableFuture<Message> future : futures) {
+            assertThat(future.get(5, TimeUnit.SECONDS).getContent()).startsWith("消息");
+        }
+        // 回滚的批次不逐条拆分，查重也不会命中自己上次未提交的写入
+        assertThat(insertBatches).containsExactly(3, 3, 3);
+        assertThat(committed).hasSize(3);
+        assertThat(unreadCounterStore.get(2L, 1L)).isEqualTo(3L);
+    }
+
+    @Test
+    void batchFailsAfterTheLockRetriesRunOut() throws Exception {
+        deadlocks = 4;
+        service.start();
+
+        CompletableFuture<Message> future = service.submit(message("你好"));
+
+        assertThatThrownBy(() -> future.get(5, TimeUnit.SECONDS))
+                .hasCauseInstanceOf(DeadlockLoserDataAccessException.class);
+        assertThat(insertBatches).containsExactly(1, 1, 1, 1);
+        assertThat(committed).isEmpty();
+        assertThat(unreadCounterStore.get(2L, 1L)).isZero();
+        assertThat(unreadCounterStore.getTotal(2L)).isZero();
+    }
+
+    @Test
+    void stopDrainsEverythingThatWasQueued() throws Exception {
+        service.start();
+        List<CompletableFuture<Message>> futures = new ArrayList<>();
+        for (int i = 0; i < 103; i++) {
+            futures.add(service.submit(message("消息" + i)));
+        }
+
+        service.stop();
+
+        for (CompletableFuture<Message> future : futures) {
+            assertThat(future).isCompleted();
+            assertThat(future.get()).isNotNull();
+        }
+        assertThat(committed).hasSize(103);
+        assertThatThrownBy(() -> service.submit(message("停止之后")))
+                .isInstanceOf(RejectedExecutionException.class);
+    }
+
+    @Test
+    void interruptWhileCollectingStillWritesTheCollectedBatch() throws Exception {
+        ReflectionTestUtils.setField(service, "flushIntervalMs", TimeUnit.SECONDS.toMillis(30));
+        service.start();
+        List<CompletableFuture<Message>> futures = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            futures.add(service.submit(message("消息" + i)));
+        }
+        Thread writer = (Thread) ReflectionTestUtils.getField(service, "writerThread");
+        // 等写线程取到第一条消息、进入时间窗口内的等待
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (service.getQueueSize() > 0 && System.nanoTime() < deadline) {
+            Thread.sleep(5);
+        }
+
+        writer.interrupt();
+        writer.join(TimeUnit.SECONDS.toMillis(5));
+
+        assertThat(writer.isAlive()).isFalse();
+        for (CompletableFuture<Message> future : futures) {
+            assertThat(future.get(1, TimeUnit.SECONDS)).isNotNull();
+        }
+        assertThat(committed).hasSize(3);
+    }
+
+    private Message message(String content) {
+        return message(content, null);
+    }
+
+    private Message message(String content, Long clientMessageId) {
+        Message message = new Message();
+        message.setId(nextId++);
+        message.setSenderId(1L);
+        message.setReceiverId(2L);
+        message.setContent(content);
+        message.setType(Message.MessageType.TEXT);
+        message.setIsRead(false);
+        message.setSentTime(LocalDateTime.now());
+        message.setClientMessageId(clientMessageId);
+        return message;
+    }
+
+    /**
+     * 只实现写入路径用到的JDBC调用：插入语句按批记录消息，执行批次时校验约束（包括(发送者ID, 客户端消息ID)唯一键）；
+     * 按客户端消息ID查重的语句查询已提交的消息；会话摘要语句直接成功
+     */
+    private Connection connection(List<Message> pending) {
+        return proxy(Connection.class, (method, args) -> {
+            if (!method.equals("prepareStatement")) {
+                return null;
+            }
+            String sql = (String) args[0];
+            if (sql.startsWith("SELECT")) {
+                return findByClientIdStatement();
+            }
+            return sql.startsWith("INSERT INTO messages") ? insertStatement(pending) : proxy(PreparedStatement.class,
+                    (statementMethod, statementArgs) -> statementMethod.equals("executeBatch") ? new int[0] : null);
+        });
+    }
+
+    private PreparedStatement findByClientIdStatement() {
+        List<Long> parameters = new ArrayList<>();
+        return proxy(PreparedStatement.class, (method, args) -> {
+            if (method.equals("setLong")) {
+                parameters.add((Long) args[1]);
+                return null;
+            }
+            if (!method.equals("executeQuery")) {
+                return null;
+            }
+            List<Message> found = new ArrayList<>();
+            for (int i = 0; i < parameters.size(); i += 2) {
+                Message row = findCommitted(parameters.get(i), parameters.get(i + 1));
+                if (row != null) {
+                    found.add(row);
+                }
+            }
+            return resultSet(found);
+        });
+    }
+
+    private Message findCommitted(Long senderId, Long clientMessageId) {
+        for (Message message : committed) {
+            if (clientMessageId.equals(message.getClientMessageId()) && senderId.equals(message.getSenderId())) {
+                return message;
+            }
+        }
+        return null;
+    }
+
+    private static ResultSet resultSet(List<Message> rows) {
+        int[] position = {-1};
+        return proxy(ResultSet.class, (method, args) -> {
+            Message row = position[0] >= 0 && position[0] < rows.size() ? rows.get(position[0]) : null;
+            switch (method) {
+                case "next":
+                    return ++position[0] < rows.size();
+                case "getLong":
+                    switch ((String) args[0]) {
+                        case "id":
+                            return row.getId();
+                        case "sender_id":
+                            return row.getSenderId();
+                        case "receiver_id":
+                            return row.getReceiverId();
+                        default:
+                            return row.getClientMessageId();
+                    }
+                case "getString":
+                    return "type".equals(args[0]) ? Message.MessageType.TEXT.name() : row.getContent();
+                case "getBoolean":
+                    return false;
+                default:
+                    return null;
+            }
+        });
+    }
+
+    private PreparedStatement insertStatement(List<Message> pending) {
+        Map<Integer, Object> parameters = new HashMap<>();
+        List<Message> rows = new ArrayList<>();
+        return proxy(PreparedStatement.class, (method, args) -> {
+            switch (method) {
+                case "setLong":
+                case "setString":
+                    parameters.put((Integer) args[0], args[1]);
+                    return null;
+                case "setNull":
+                    parameters.remove(args[0]);
+                    return null;
+                case "addBatch":
+                    Message row = new Message();
+                    row.setId((Long) parameters.get(1));
+                    row.setSenderId((Long) parameters.get(2));
+                    row.setReceiverId((Long) parameters.get(3));
+                    row.setContent((String) parameters.get(4));
+                    row.setClientMessageId((Long) parameters.get(8));
+                    rows.add(row);
+                    return null;
+                case "executeBatch":
+                    insertBatches.add(rows.size());
+                    Set<String> clientKeys = new HashSet<>();
+                    for (Message message : rows) {
+                        if (VIOLATING.equals(message.getContent())) {
+                            throw new SQLIntegrityConstraintViolationException("Duplicate entry");
+                        }
+                        if (message.getClientMessageId() != null && (!clientKeys.add(message.getSenderId() + ":"
+                                + message.getClientMessageId())
+                                || findCommitted(message.getSenderId(), message.getClientMessageId()) != null)) {
+                            throw new SQLIntegrityConstraintViolationException(
+                                    "Duplicate entry for key 'uk_sender_client_message'");
+                        }
+                    }
+                    pending.addAll(rows);
+                    return new int[rows.size()];
+                default:
+                    return null;
+            }
+        });
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T proxy(Class<T> type, JdbcCall call) {
+        return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type},
+                (proxy, method, args) -> call.invoke(method.getName(), args));
+    }
+
+    private interface JdbcCall {
+        Object invoke(String method, Object[] args) throws SQLException;
+    }
+}
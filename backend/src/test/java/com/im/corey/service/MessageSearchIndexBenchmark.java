@@ -0,0 +1,154 @@
+package com.im.corey.service;
+
+import com.im.corey.model.Message;
+import com.im.corey.repository.MessageRepository;
+import com.im.corey.util.SnowflakeIdGenerator;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.data.domain.Pageable;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * 全文索引查询延迟基准：一个用户与100个聊天对象共有1000万条消息，全部命中常用词，
+ * 内存段按与线上相同的方式写出并合并段文件，预热后统计取一页候选的平均和P99耗时。
+ * 使用 mvn test -Pbenchmark -Dtest=MessageSearchIndexBenchmark 运行
+ */
+class MessageSearchIndexBenchmark {
+
+    private static final long BASE_ID = SnowflakeIdGenerator.minIdAt(System.currentTimeMillis());
+
+    private static final int MESSAGES = 10_000_000;
+
+    /**
+     * 每写入这么多条消息写出一次内存段
+     */
+    private static final int FLUSH_EVERY = 500_000;
+
+    private static final int WARM_UP = 200;
+
+    private static final int ITERATIONS = 500;
+
+    private static final int PAGE_SIZE = 20;
+
+    @TempDir
+    Path directory;
+
+    private MessageSearchIndex index;
+
+    @AfterEach
+    void tearDown() throws InterruptedException {
+        if (index != null) {
+            index.stop();
+        }
+    }
+
+    @Test
+    void firstPageLatencyWithManyMatches() throws Exception {
+        index = start();
+        long buildStart = System.nanoTime();
+        for (int i = 1; i <= MESSAGES; i++) {
+            index.index(message(i, i % 50 == 0 ? "会议纪要 预算" : "会议纪要"));
+            if (i % FLUSH_EVERY == 0) {
+                ReflectionTestUtils.invokeMethod(index, "flush");
+                ReflectionTestUtils.invokeMethod(index, "mergeIfNeeded");
+            }
+        }
+        List<?> segments = (List<?>) ReflectionTestUtils.getField(index, "segments");
+        System.out.printf("%d条消息写入%d个段，耗时%ds%n", MESSAGES, segments.size(),
+                TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - buildStart));
+
+        System.out.printf("%-10s %10s %10s%n", "查询", "平均(μs)", "P99(μs)");
+        measure("单词", () -> firstPage(index.search(1L, "会议", null, Long.MAX_VALUE)));
+        measure("两个词", () -> firstPage(index.search(1L, "会议 预算", null, Long.MAX_VALUE)));
+        measure("指定会话", () -> firstPage(index.search(1L, "会议", 7L, Long.MAX_VALUE)));
+        measure("翻到中间", () -> firstPage(index.search(1L, "会议", null, BASE_ID + MESSAGES / 2)));
+
+        assertThat(firstPage(index.search(1L, "会议", null, Long.MAX_VALUE))).isEqualTo(BASE_ID + MESSAGES);
+    }
+
+    private static void measure(String name, Supplier<Long> query) {
+        long sink = 0;
+        for (int i = 0; i < WARM_UP; i++) {
+            sink += query.get();
+        }
+        long[] nanos = new long[ITERATIONS];
+        for (int i = 0; i < ITERATIONS; i++) {
+            long start = System.nanoTime();
+            sink += query.get();
+            nanos[i] = System.nanoTime() - start;
+        }
+        assertThat(sink).isPositive();
+        Arrays.sort(nanos);
+        long total = 0;
+        for (long value : nanos) {
+            total += value;
+        }
+        System.out.printf("%-10s %10d %10d%n", name, total / ITERATIONS / 1000,
+                nanos[ITERATIONS * 99 / 100] / 1000);
+    }
+
+    /**
+     * 取一页候选，返回第一条的ID
+     */
+    private static long firstPage(MessageSearchIndex.Candidates candidates) {
+        long first = 0;
+        for (int i = 0; i <= PAGE_SIZE && candidates.next(); i++) {
+            if (i == 0) {
+                first = candidates.getId();
+            }
+        }
+        assertThat(first).isPositive();
+        return first;
+    }
+
+    private MessageSearchIndex start() throws Exception {
+        MessageRepository repository = mock(MessageRepository.class);
+        when(repository.findRange(anyLong(), anyLong(), any(Pageable.class))).thenReturn(Collections.emptyList());
+        MessageCommitWatermark commitWatermark = mock(MessageCommitWatermark.class);
+        when(commitWatermark.committedWatermark()).thenReturn(Long.MAX_VALUE);
+        MessageSearchIndex searchIndex = new MessageSearchIndex();
+        ReflectionTestUtils.setField(searchIndex, "enabled", true);
+        ReflectionTestUtils.setField(searchIndex, "directory", directory.toString());
+        ReflectionTestUtils.setField(searchIndex, "flushThreshold", Integer.MAX_VALUE);
+        ReflectionTestUtils.setField(searchIndex, "flushIntervalMs", TimeUnit.HOURS.toMillis(1));
+        ReflectionTestUtils.setField(searchIndex, "maxSegments", 8);
+        ReflectionTestUtils.setField(searchIndex, "maxSegmentMb", 1024L);
+        ReflectionTestUtils.setField(searchIndex, "sparseInterval", 64);
+        ReflectionTestUtils.setField(searchIndex, "catchUpBatchSize", 1000);
+        ReflectionTestUtils.setField(searchIndex, "tailIntervalMs", TimeUnit.HOURS.toMillis(1));
+        ReflectionTestUtils.setField(searchIndex, "messageRepository", repository);
+        ReflectionTestUtils.setField(searchIndex, "messageCommitWatermark", commitWatermark);
+        searchIndex.start();
+        // 等启动补建结束，之后只在测试线程上写出内存段
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!Boolean.TRUE.equals(ReflectionTestUtils.getField(searchIndex, "caughtUp"))
+                && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        return searchIndex;
+    }
+
+    private static Message message(long offset, String content) {
+        Message message = new Message();
+        message.setId(BASE_ID + offset);
+        message.setSenderId(1L);
+        message.setReceiverId(2L + offset % 100);
+        message.setContent(content);
+        message.setType(Message.MessageType.TEXT);
+        return message;
+    }
+}
@@ -0,0 +1,290 @@
+package com.im.corey.service;
+
+import com.im.corey.model.Message;
+import com.im.corey.repository.MessageRepository;
+import com.im.corey.util.SnowflakeIdGenerator;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.data.domain.Pageable;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class MessageSearchIndexTest {
+
+    private static final long BASE_ID = SnowflakeIdGenerator.minIdAt(System.currentTimeMillis());
+
+    @TempDir
+    Path directory;
+
+    private final List<MessageSearchIndex> started = new ArrayList<>();
+
+    /**
+     * 模拟的数据库，按ID升序
+     */
+    private final List<Message> database = new CopyOnWriteArrayList<>();
+
+    /**
+     * 补建时每次查询的起点
+     */
+    private final List<Long> catchUpCursors = new CopyOnWriteArrayList<>();
+
+    private volatile boolean databaseDown;
+
+    private volatile long committedWatermark = Long.MAX_VALUE;
+
+    private long tailIntervalMs = TimeUnit.HOURS.toMillis(1);
+
+    @AfterEach
+    void tearDown() throws InterruptedException {
+        for (MessageSearchIndex index : started) {
+            index.stop();
+        }
+    }
+
+    @Test
+    void messagesAreFoundInMemoryAndFlushedSegments() throws Exception {
+        MessageSearchIndex index = start();
+        Message cat = message(1, 1L, 2L, "我的猫很可爱");
+        Message food = message(2, 2L, 1L, "猫粮买好了");
+        Message meeting = message(3, 1L, 3L, "今天开会");
+        index.index(cat);
+        index.index(food);
+        index.index(meeting);
+        flush(index);
+        Message kitten = message(4, 3L, 1L, "小猫");
+        index.index(kitten);
+
+        assertThat(collect(index.search(1L, "猫", null, Long.MAX_VALUE)))
+                .containsExactly(kitten.getId(), food.getId(), cat.getId());
+        assertThat(collect(index.search(1L, "猫很", null, Long.MAX_VALUE))).containsExactly(cat.getId());
+        assertThat(collect(index.search(1L, "猫", 2L, Long.MAX_VALUE))).containsExactly(food.getId(), cat.getId());
+        assertThat(collect(index.search(1L, "猫", null, food.getId()))).containsExactly(cat.getId());
+        assertThat(collect(index.search(2L, "开会", null, Long.MAX_VALUE))).isEmpty();
+        assertThat(collect(index.search(1L, "开会 猫", null, Long.MAX_VALUE))).isEmpty();
+
+        MessageSearchIndex.Candidates candidates = index.search(3L, "小猫", null, Long.MAX_VALUE);
+        assertThat(candidates.next()).isTrue();
+        assertThat(candidates.getId()).isEqualTo(kitten.getId());
+        assertThat(candidates.getPeerId()).isEqualTo(1L);
+        assertThat(candidates.next()).isFalse();
+    }
+
+    @Test
+    void messagesIndexedInSeveralSegmentsAreReturnedOnce() throws Exception {
+        MessageSearchIndex index = start();
+        for (int i = 1; i <= 10; i++) {
+            index.index(message(i, 1L, 2L, "周报"));
+        }
+        flush(index);
+        // 重启后水位之上的消息会被尾随读取再次写入新的段
+        for (int i = 6; i <= 15; i++) {
+            index.index(message(i, 1L, 2L, "周报"));
+        }
+
+        List<Long> ids = collect(index.search(1L, "周报", null, Long.MAX_VALUE));
+
+        assertThat(ids).hasSize(15).doesNotHaveDuplicates().isSortedAccordingTo(Comparator.reverseOrder());
+    }
+
+    @Test
+    void restartResumesCatchUpFromTheContiguousWatermark() throws Exception {
+        // 保留期内较早的消息，上次运行时补建还没读到它
+        Message old = message(SnowflakeIdGenerator.minIdAt(System.currentTimeMillis() - TimeUnit.HOURS.toMillis(2)),
+                1L, 2L, "旧的会议记录");
+        Message live = message(1, 2L, 1L, "新的会议记录");
+        database.add(old);
+        database.add(live);
+
+        // 第一次运行：补建一直失败，期间实时写入的消息照常写出
+        databaseDown = true;
+        MessageSearchIndex first = start();
+        first.index(live);
+        first.stop();
+        assertThat(manifest()).contains("indexed-up-to 0");
+
+        // 第二次运行：不能因为段中有较大的ID而跳过较早的消息
+        databaseDown = false;
+        MessageSearchIndex second = start();
+        waitFor(() -> caughtUp(second));
+        assertThat(collect(second.search(1L, "旧的", null, Long.MAX_VALUE))).containsExactly(old.getId());
+        second.stop();
+        assertThat(manifest()).contains("indexed-up-to " + live.getId());
+
+        // 第三次运行：从水位开始补建
+        catchUpCursors.clear();
+        MessageSearchIndex third = start();
+        waitFor(() -> caughtUp(third));
+        assertThat(catchUpCursors.get(0)).isEqualTo(live.getId());
+        assertThat(collect(third.search(1L, "会议", null, Long.MAX_VALUE))).containsExactly(live.getId(), old.getId());
+    }
+
+    @Test
+    void tailIndexesMessagesFromOtherNodesUpToTheCommittedWatermark() throws Exception {
+        tailIntervalMs = 20;
+        MessageSearchIndex index = start();
+        waitFor(() -> caughtUp(index));
+        // 其他节点写入的消息，中间一条的批次还没有提交
+        Message first = message(1, 1L, 2L, "第一份周报");
+        Message second = message(2, 1L, 2L, "第二份周报");
+        Message third = message(3, 1L, 2L, "第三份周报");
+        database.add(first);
+        database.add(third);
+        committedWatermark = first.getId();
+
+        waitFor(() -> collect(index.search(2L, "周报", null, Long.MAX_VALUE)).contains(first.getId()));
+        assertThat(collect(index.search(2L, "周报", null, Long.MAX_VALUE))).containsExactly(first.getId());
+
+        database.add(1, second);
+        committedWatermark = Long.MAX_VALUE;
+        // 本节点保存路径写入的消息，尾随读取读到时不再重复写入
+        Message local = message(4, 2L, 1L, "收到周报");
+        index.index(local);
+        database.add(local);
+
+        waitFor(() -> collect(index.search(2L, "周报", null, Long.MAX_VALUE)).size() == 4);
+        assertThat(collect(index.search(2L, "周报", null, Long.MAX_VALUE)))
+                .containsExactly(local.getId(), third.getId(), second.getId(), first.getId());
+        waitFor(() -> ((Set<?>) ReflectionTestUtils.getField(index, "indexedAhead")).isEmpty());
+        index.stop();
+        assertThat(manifest()).contains("indexed-up-to " + local.getId());
+    }
+
+    @Test
+    void indexFromAnOlderManifestFormatIsRebuilt() throws Exception {
+        Files.write(directory.resolve("segments"), "seg-1.idx\n".getBytes(StandardCharsets.UTF_8));
+        Files.write(directory.resolve("seg-1.idx"), new byte[]{1, 2, 3});
+        Message message = message(1, 1L, 2L, "我的猫很可爱");
+        database.add(message);
+
+        MessageSearchIndex index = start();
+        waitFor(() -> caughtUp(index));
+
+        assertThat(directory.resolve("seg-1.idx")).doesNotExist();
+        assertThat(collect(index.search(2L, "猫", null, Long.MAX_VALUE))).containsExactly(message.getId());
+    }
+
+    @Test
+    void firstPageWithManyMatchesAcrossSegments() throws Exception {
+        MessageSearchIndex index = start();
+        int messages = 100000;
+        int segments = 4;
+        for (int i = 1; i <= messages; i++) {
+            index.index(message(i, 1L, 2L + i % 100, i % 50 == 0 ? "项目会议纪要 预算" : "项目会议纪要"));
+            if (i % (messages / segments) == 0) {
+                flush(index);
+            }
+        }
+        int pageSize = 20;
+
+        assertThat(collect(index.search(1L, "会议", null, Long.MAX_VALUE), pageSize + 1))
+                .hasSize(pageSize + 1).first().isEqualTo(BASE_ID + messages);
+        assertThat(collect(index.search(1L, "会议 预算", null, Long.MAX_VALUE), pageSize + 1))
+                .hasSize(pageSize + 1).allMatch(id -> (id - BASE_ID) % 50 == 0);
+        assertThat(collect(index.search(1L, "会议", 7L, Long.MAX_VALUE), pageSize + 1))
+                .hasSize(pageSize + 1).allMatch(id -> (id - BASE_ID) % 100 == 5);
+        assertThat(collect(index.search(1L, "会议", null, BASE_ID + messages / 2), pageSize + 1))
+                .hasSize(pageSize + 1).first().isEqualTo(BASE_ID + messages / 2 - 1);
+    }
+
+    private MessageSearchIndex start() throws Exception {
+        MessageRepository repository = mock(MessageRepository.class);
+        when(repository.findRange(anyLong(), anyLong(), any(Pageable.class))).thenAnswer(invocation -> {
+            if (databaseDown) {
+                throw new IllegalStateException("数据库不可用");
+            }
+            long afterId = invocation.getArgument(0);
+            long maxId = invocation.getArgument(1);
+            Pageable pageable = invocation.getArgument(2);
+            catchUpCursors.add(afterId);
+            return database.stream()
+                    .filter(message -> message.getId() > afterId && message.getId() <= maxId)
+                    .sorted(Comparator.comparing(Message::getId))
+                    .limit(pageable.getPageSize())
+                    .collect(Collectors.toList());
+        });
+        MessageCommitWatermark commitWatermark = mock(MessageCommitWatermark.class);
+        when(commitWatermark.committedWatermark()).thenAnswer(invocation -> committedWatermark);
+        MessageSearchIndex index = new MessageSearchIndex();
+        ReflectionTestUtils.setField(index, "enabled", true);
+        ReflectionTestUtils.setField(index, "directory", directory.toString());
+        ReflectionTestUtils.setField(index, "flushThreshold", Integer.MAX_VALUE);
+        ReflectionTestUtils.setField(index, "flushIntervalMs", TimeUnit.HOURS.toMillis(1));
+        ReflectionTestUtils.setField(index, "maxSegments", 8);
+        ReflectionTestUtils.setField(index, "maxSegmentMb", 1024L);
+        ReflectionTestUtils.setField(index, "sparseInterval", 16);
+        ReflectionTestUtils.setField(index, "catchUpBatchSize", 100);
+        ReflectionTestUtils.setField(index, "tailIntervalMs", tailIntervalMs);
+        ReflectionTestUtils.setField(index, "messageRepository", repository);
+        ReflectionTestUtils.setField(index, "messageCommitWatermark", commitWatermark);
+        index.start();
+        started.add(index);
+        return index;
+    }
+
+    /**
+     * 在测试线程上写出内存段，先等启动补建结束，避免与索引线程同时写出；写出内存段的测试不开启持续的尾随读取
+     */
+    private static void flush(MessageSearchIndex index) throws InterruptedException {
+        waitFor(() -> caughtUp(index));
+        ReflectionTestUtils.invokeMethod(index, "flush");
+    }
+
+    private static boolean caughtUp(MessageSearchIndex index) {
+        return Boolean.TRUE.equals(ReflectionTestUtils.getField(index, "caughtUp"));
+    }
+
+    private String manifest() throws Exception {
+        return new String(Files.readAllBytes(directory.resolve("segments")), StandardCharsets.UTF_8);
+    }
+
+    private static List<Long> collect(MessageSearchIndex.Candidates candidates) {
+        return collect(candidates, Integer.MAX_VALUE);
+    }
+
+    private static List<Long> collect(MessageSearchIndex.Candidates candidates, int limit) {
+        List<Long> ids = new ArrayList<>();
+        while (ids.size() < limit && candidates.next()) {
+            ids.add(candidates.getId());
+        }
+        return ids;
+    }
+
+    private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!condition.getAsBoolean() && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertThat(condition.getAsBoolean()).isTrue();
+    }
+
+    /**
+     * @param id 小于2^20时视为相对于BASE_ID的偏移
+     */
+    private static Message message(long id, Long senderId, Long receiverId, String content) {
+        Message message = new Message();
+        message.setId(id < (1 << 20) ? BASE_ID + id : id);
+        message.setSenderId(senderId);
+        message.setReceiverId(receiverId);
+        message.setContent(content);
+        message.setType(Message.MessageType.TEXT);
+        return message;
+    }
+}
@@ -0,0 +1,301 @@
+package com.im.corey.service;
+
+import com.im.corey.dto.MessagePageDTO;
+import com.im.corey.model.Message;
+import com.im.corey.repository.MessageRepository;
+import com.im.corey.util.SnowflakeIdGenerator;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.domain.Pageable;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongPredicate;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyIterable;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class MessageServiceTest {
+
+    private final MessageRepository messageRepository = mock(MessageRepository.class);
+
+    private final Map<Long, Message> stored = new HashMap<>();
+
+    private MessageService service;
+
+    private MessageSearchIndex searchIndex;
+
+    private MessageCommitWatermark commitWatermark;
+
+    @BeforeEach
+    void setUp() {
+        searchIndex = new MessageSearchIndex();
+        ReflectionTestUtils.setField(searchIndex, "enabled", true);
+        when(messageRepository.findAllById(anyIterable())).thenAnswer(invocation -> {
+            List<Message> found = new ArrayList<>();
+            for (Long id : invocation.<Iterable<Long>>getArgument(0)) {
+                if (stored.containsKey(id)) {
+                    found.add(stored.get(id));
+                }
+            }
+            return found;
+        });
+
+        commitWatermark = new MessageCommitWatermark();
+        ReflectionTestUtils.setField(commitWatermark, "idGenerator", new SnowflakeIdGenerator());
+
+        service = new MessageService();
+        ReflectionTestUtils.setField(service, "messageCommitWatermark", commitWatermark);
+        ReflectionTestUtils.setField(service, "messageRepository", messageRepository);
+        ReflectionTestUtils.setField(service, "messageSearchIndex", searchIndex);
+        ReflectionTestUtils.setField(service, "messageArchiveStore", new MessageArchiveStore());
+        ReflectionTestUtils.setField(service, "defaultPageSize", 20);
+        ReflectionTestUtils.setField(service, "maxPageSize", 100);
+    }
+
+    @Test
+    void savedMessageIsReturnedEvenWhenIndexingFails() {
+        SnowflakeIdGenerator idGenerator = mock(SnowflakeIdGenerator.class);
+        when(idGenerator.nextId()).thenReturn(42L);
+        MessagePersistenceService persistence = mock(MessagePersistenceService.class);
+        when(persistence.submit(any(Message.class)))
+                .thenAnswer(invocation -> CompletableFuture.completedFuture(invocation.getArgument(0)));
+        MessageSearchIndex failingIndex = mock(MessageSearchIndex.class);
+        doThrow(new IllegalStateException("索引失败")).when(failingIndex).index(any(Message.class));
+        ReflectionTestUtils.setField(commitWatermark, "idGenerator", idGenerator);
+        ReflectionTestUtils.setField(service, "messagePersistenceService", persistence);
+        ReflectionTestUtils.setField(service, "messageSearchIndex", failingIndex);
+        Message message = new Message();
+        message.setSenderId(1L);
+        message.setReceiverId(2L);
+        message.setContent("你好");
+
+        Message saved = service.saveMessage(message);
+
+        assertThat(saved.getId()).isEqualTo(42L);
+    }
+
+    @Test
+    void retryWithinTheDedupWindowReturnsTheFirstSaveWithoutWritingAgain() {
+        MessagePersistenceService persistence = dedupService(new MessageDedupTable(), 300L);
+
+        Message first = service.saveMessage(chat(100L));
+        Message retry = service.saveMessage(chat(100L));
+
+        assertThat(retry.getId()).isEqualTo(first.getId());
+        verify(persistence, times(1)).submit(any(Message.class));
+    }
+
+    @Test
+    void retryAfterTheEntryExpiredFallsBackToTheUniqueKey() {
+        MessagePersistenceService persistence = dedupService(new MessageDedupTable(), 0L);
+
+        Message first = service.saveMessage(chat(100L));
+        Message retry = service.saveMessage(chat(100L));
+
+        // 去重表已不记得这次发送，重发到达写线程，由唯一键查出首次保存的消息
+        assertThat(retry.getId()).isEqualTo(first.getId());
+        verify(persistence, times(2)).submit(any(Message.class));
+    }
+
+    @Test
+    void failedSendIsRemovedFromTheDedupTableSoTheRetryIsWritten() {
+        MessageDedupTable dedupTable = new MessageDedupTable();
+        MessagePersistenceService persistence = dedupService(dedupTable, 300L);
+        CompletableFuture<Message> failed = new CompletableFuture<>();
+        failed.completeExceptionally(new IllegalStateException("写入失败"));
+        when(persistence.submit(any(Message.class))).thenReturn(failed).thenAnswer(invocation ->
+                CompletableFuture.completedFuture(invocation.getArgument(0)));
+
+        assertThatThrownBy(() -> service.saveMessage(chat(100L))).isInstanceOf(IllegalStateException.class);
+        assertThat((Map<?, ?>) ReflectionTestUtils.getField(dedupTable, "entries")).isEmpty();
+
+        Message retry = service.saveMessage(chat(100L));
+
+        assertThat(retry.getClientMessageId()).isEqualTo(100L);
+        verify(persistence, times(2)).submit(any(Message.class));
+    }
+
+    @Test
+    void singleCharacterQueryMatchesLongerText() {
+        store(1, 1L, 2L, "我的猫很可爱");
+        store(2, 2L, 1L, "今天开会");
+
+        MessagePageDTO page = service.searchMessages(1L, "猫", null, null, 10);
+
+        assertThat(page.getMessages()).extracting(Message::getId).containsExactly(1L);
+    }
+
+    @Test
+    void pagesSkipBigramFalsePositivesAndContinueFromTheCursor() {
+        for (long id = 1; id <= 6; id++) {
+            store(id, 1L, 2L, "猫很可爱" + id);
+        }
+        // 包含查询的全部二元词，但不包含完整的查询文本
+        store(7, 1L, 2L, "猫很好，很可惜");
+        store(8, 1L, 2L, "猫很可爱8");
+
+        MessagePageDTO first = service.searchMessages(1L, "猫很可", null, null, 3);
+        MessagePageDTO second = service.searchMessages(1L, "猫很可", null, first.getNextCursor(), 3);
+        MessagePageDTO last = service.searchMessages(1L, "猫很可", null, second.getNextCursor(), 3);
+
+        assertThat(first.getMessages()).extracting(Message::getId).containsExactly(8L, 6L, 5L);
+        assertThat(first.isHasMore()).isTrue();
+        assertThat(second.getMessages()).extracting(Message::getId).containsExactly(4L, 3L, 2L);
+        assertThat(second.isHasMore()).isTrue();
+        assertThat(last.getMessages()).extracting(Message::getId).containsExactly(1L);
+        assertThat(last.isHasMore()).isFalse();
+    }
+
+    @Test
+    void selfConversationPagesListEachMessageOnce() {
+        when(messageRepository.findDirectionalBefore(anyLong(), anyLong(), anyLong(), any(Pageable.class)))
+                .thenAnswer(invocation -> directional(invocation.getArgument(0), invocation.getArgument(1),
+                        id -> id < invocation.<Long>getArgument(2), true));
+        when(messageRepository.findDirectionalAfter(anyLong(), anyLong(), anyLong(), anyLong(), any(Pageable.class)))
+                .thenAnswer(invocation -> directional(invocation.getArgument(0), invocation.getArgument(1),
+                        id -> id > invocation.<Long>getArgument(2) && id <= invocation.<Long>getArgument(3), false));
+        for (long id = 1; id <= 5; id++) {
+            store(id, 1L, 1L, "备忘" + id);
+        }
+
+        MessagePageDTO latest = service.getMessagesBetweenUsers(1L, 1L, null, null, 3);
+        MessagePageDTO older = service.getMessagesBetweenUsers(1L, 1L, latest.getNextCursor(), null, 3);
+        MessagePageDTO newer = service.getMessagesBetweenUsers(1L, 1L, null, 2L, 10);
+
+        assertThat(latest.getMessages()).extracting(Message::getId).containsExactly(3L, 4L, 5L);
+        assertThat(latest.isHasMore()).isTrue();
+        assertThat(older.getMessages()).extracting(Message::getId).containsExactly(1L, 2L);
+        assertThat(older.isHasMore()).isFalse();
+        assertThat(newer.getMessages()).extracting(Message::getId).containsExactly(3L, 4L, 5L);
+    }
+
+    @Test
+    void cursorsDoNotPassAMessageThatCommitsOutOfOrder() {
+        SnowflakeIdGenerator idGenerator = mock(SnowflakeIdGenerator.class);
+        when(idGenerator.nextId()).thenReturn(101L, 102L, 103L);
+        when(idGenerator.lowestNextId()).thenReturn(104L);
+        Map<Long, CompletableFuture<Message>> writes = new HashMap<>();
+        MessagePersistenceService persistence = mock(MessagePersistenceService.class);
+        when(persistence.submit(any(Message.class))).thenAnswer(invocation -> {
+            CompletableFuture<Message> write = new CompletableFuture<>();
+            writes.put(invocation.<Message>getArgument(0).getId(), write);
+            return write;
+        });
+        ReflectionTestUtils.setField(commitWatermark, "idGenerator", idGenerator);
+        ReflectionTestUtils.setField(service, "messagePersistenceService", persistence);
+        when(messageRepository.findReceivedAfter(anyLong(), anyLong(), anyLong(), any(Pageable.class)))
+                .thenAnswer(invocation -> directional(1L, invocation.getArgument(0),
+                        id -> id > invocation.<Long>getArgument(1) && id <= invocation.<Long>getArgument(2), false));
+        when(messageRepository.findSentAfter(anyLong(), anyLong(), anyLong(), any(Pageable.class)))
+                .thenReturn(Collections.emptyList());
+        when(messageRepository.findDirectionalBefore(anyLong(), anyLong(), anyLong(), any(Pageable.class)))
+                .thenAnswer(invocation -> directional(invocation.getArgument(0), invocation.getArgument(1),
+                        id -> id < invocation.<Long>getArgument(2), true));
+        when(messageRepository.findDirectionalAfter(anyLong(), anyLong(), anyLong(), anyLong(), any(Pageable.class)))
+                .thenAnswer(invocation -> directional(invocation.getArgument(0), invocation.getArgument(1),
+                        id -> id > invocation.<Long>getArgument(2) && id <= invocation.<Long>getArgument(3), false));
+        for (int i = 0; i < 3; i++) {
+            service.saveMessageAsync(chat(null));
+        }
+
+        // 102所在的批次最后提交，103已经可以从数据库读到
+        commit(writes, 101L);
+        commit(writes, 103L);
+        MessagePageDTO synced = service.syncMessages(2L, 0L, 10);
+        MessagePageDTO latest = service.getMessagesBetweenUsers(2L, 1L, null, null, 10);
+
+        assertThat(synced.getMessages()).extracting(Message::getId).containsExactly(101L);
+        assertThat(synced.getNextCursor()).isEqualTo(101L);
+        assertThat(latest.getMessages()).extracting(Message::getId).containsExactly(101L);
+
+        commit(writes, 102L);
+
+        assertThat(service.syncMessages(2L, synced.getNextCursor(), 10).getMessages())
+                .extracting(Message::getId).containsExactly(102L, 103L);
+        assertThat(service.getMessagesBetweenUsers(2L, 1L, null, 101L, 10).getMessages())
+                .extracting(Message::getId).containsExactly(102L, 103L);
+    }
+
+    private void commit(Map<Long, CompletableFuture<Message>> writes, long id) {
+        store(id, 1L, 2L, "消息" + id);
+        writes.get(id).complete(stored.get(id));
+    }
+
+    /**
+     * 模拟单方向会话查询：按发送者和接收者过滤，按ID排序
+     */
+    private List<Message> directional(Long senderId, Long receiverId, LongPredicate idFilter, boolean descending) {
+        Comparator<Message> order = Comparator.comparing(Message::getId);
+        return stored.values().stream()
+                .filter(message -> message.getSenderId().equals(senderId) && message.getReceiverId().equals(receiverId))
+                .filter(message -> idFilter.test(message.getId()))
+                .sorted(descending ? order.reversed() : order)
+                .collect(Collectors.toList());
+    }
+
+    private void store(long id, Long senderId, Long receiverId, String content) {
+        Message message = new Message();
+        message.setId(id);
+        message.setSenderId(senderId);
+        message.setReceiverId(receiverId);
+        message.setContent(content);
+        message.setIsRead(true);
+        stored.put(id, message);
+        searchIndex.index(message);
+    }
+
+    /**
+     * 使用真实去重表保存消息；写入按(发送者ID, 客户端消息ID)唯一键查重，
+     * 已写入过的消息与写线程一样以携带首次保存消息的DuplicateMessageException完成
+     */
+    private MessagePersistenceService dedupService(MessageDedupTable dedupTable, long windowSeconds) {
+        ReflectionTestUtils.setField(dedupTable, "windowSeconds", windowSeconds);
+        ReflectionTestUtils.setField(dedupTable, "maxSize", 100);
+        SnowflakeIdGenerator idGenerator = mock(SnowflakeIdGenerator.class);
+        AtomicLong nextId = new AtomicLong(1);
+        when(idGenerator.nextId()).thenAnswer(invocation -> nextId.getAndIncrement());
+        Map<String, Message> written = new HashMap<>();
+        MessagePersistenceService persistence = mock(MessagePersistenceService.class);
+        when(persistence.submit(any(Message.class))).thenAnswer(invocation -> {
+            Message message = invocation.getArgument(0);
+            Message original = written.putIfAbsent(message.getSenderId() + ":" + message.getClientMessageId(), message);
+            CompletableFuture<Message> future = new CompletableFuture<>();
+            if (original != null) {
+                future.completeExceptionally(new DuplicateMessageException(original));
+            } else {
+                future.complete(message);
+            }
+            return future;
+        });
+        ReflectionTestUtils.setField(commitWatermark, "idGenerator", idGenerator);
+        ReflectionTestUtils.setField(service, "messagePersistenceService", persistence);
+        ReflectionTestUtils.setField(service, "messageDedupTable", dedupTable);
+        return persistence;
+    }
+
+    private static Message chat(Long clientMessageId) {
+        Message message = new Message();
+        message.setSenderId(1L);
+        message.setReceiverId(2L);
+        message.setContent("你好");
+        message.setClientMessageId(clientMessageId);
+        return message;
+    }
+}
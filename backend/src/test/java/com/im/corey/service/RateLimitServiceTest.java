@@ -0,0 +1,65 @@
+package com.im.corey.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class RateLimitServiceTest {
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    private RateLimitService rateLimitService;
+
+    @BeforeEach
+    void setUp() {
+        rateLimitService = new RateLimitService();
+        ReflectionTestUtils.setField(rateLimitService, "enabled", true);
+        ReflectionTestUtils.setField(rateLimitService, "sendMessageRate", 1.0);
+        ReflectionTestUtils.setField(rateLimitService, "sendMessageBurst", 2);
+        ReflectionTestUtils.setField(rateLimitService, "markReadRate", 1.0);
+        ReflectionTestUtils.setField(rateLimitService, "markReadBurst", 5);
+        ReflectionTestUtils.setField(rateLimitService, "defaultRate", 1.0);
+        ReflectionTestUtils.setField(rateLimitService, "defaultBurst", 5);
+        ReflectionTestUtils.setField(rateLimitService, "meterRegistry", meterRegistry);
+        rateLimitService.init();
+    }
+
+    @Test
+    void rejectionsAreCountedPerAction() {
+        assertThat(rateLimitService.tryAcquire(7L, RateLimitService.Action.SEND_MESSAGE)).isTrue();
+        assertThat(rateLimitService.tryAcquire(7L, RateLimitService.Action.SEND_MESSAGE)).isTrue();
+        assertThat(rateLimitService.tryAcquire(7L, RateLimitService.Action.SEND_MESSAGE)).isFalse();
+        assertThat(rateLimitService.tryAcquire(7L, RateLimitService.Action.SEND_MESSAGE)).isFalse();
+        // 各类操作使用独立的令牌桶
+        assertThat(rateLimitService.tryAcquire(7L, RateLimitService.Action.MARK_READ)).isTrue();
+
+        assertThat(rejected(RateLimitService.Action.SEND_MESSAGE)).isEqualTo(2.0);
+        assertThat(rejected(RateLimitService.Action.MARK_READ)).isZero();
+        assertThat(rejected(RateLimitService.Action.DEFAULT)).isZero();
+    }
+
+    @Test
+    void disabledLimiterAllowsEverything() {
+        ReflectionTestUtils.setField(rateLimitService, "enabled", false);
+
+        for (int i = 0; i < 10; i++) {
+            assertThat(rateLimitService.tryAcquire(7L, RateLimitService.Action.SEND_MESSAGE)).isTrue();
+        }
+        assertThat(rejected(RateLimitService.Action.SEND_MESSAGE)).isZero();
+    }
+
+    @Test
+    void stompDestinationsMapToActions() {
+        assertThat(rateLimitService.forDestination("/app/chat.sendMessage"))
+                .isEqualTo(RateLimitService.Action.SEND_MESSAGE);
+        assertThat(rateLimitService.forDestination("/app/chat.markAsRead")).isEqualTo(RateLimitService.Action.MARK_READ);
+        assertThat(rateLimitService.forDestination("/app/chat.typing")).isEqualTo(RateLimitService.Action.DEFAULT);
+    }
+
+    private double rejected(RateLimitService.Action action) {
+        return meterRegistry.counter("im.rate-limit.rejected", "action", action.name()).count();
+    }
+}
@@ -0,0 +1,41 @@
+package com.im.corey.service;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class UnreadCounterStoreTest {
+
+    private final UnreadCounterStore store = new UnreadCounterStore();
+
+    @Test
+    void subtractKeepsMessagesThatArrivedAfterTheReadPoint() {
+        store.increment(1L, 2L);
+        store.increment(1L, 2L);
+        store.increment(1L, 3L);
+        // 全部已读覆盖了前两条，此后又到达一条
+        store.increment(1L, 2L);
+        store.subtract(1L, 2L, 2);
+
+        assertThat(store.get(1L, 2L)).isEqualTo(1);
+        assertThat(store.getTotal(1L)).isEqualTo(2);
+    }
+
+    @Test
+    void subtractNeverGoesBelowZero() {
+        store.increment(1L, 2L);
+        store.subtract(1L, 2L, 5);
+
+        assertThat(store.get(1L, 2L)).isZero();
+        assertThat(store.getTotal(1L)).isZero();
+    }
+
+    @Test
+    void decrementOnlyAffectsTotalWhenConversationHadUnread() {
+        store.increment(1L, 2L);
+
+        assertThat(store.decrement(1L, 2L)).isTrue();
+        assertThat(store.decrement(1L, 2L)).isFalse();
+        assertThat(store.getTotal(1L)).isZero();
+    }
+}
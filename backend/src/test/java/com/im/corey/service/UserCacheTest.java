@@ -0,0 +1,63 @@
+package com.im.corey.service;
+
+import com.im.corey.model.User;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class UserCacheTest {
+
+    private UserCache cache;
+
+    @BeforeEach
+    void setUp() {
+        cache = new UserCache();
+        ReflectionTestUtils.setField(cache, "maxSize", 100);
+        ReflectionTestUtils.setField(cache, "ttlSeconds", 300L);
+        ReflectionTestUtils.setField(cache, "meterRegistry", new SimpleMeterRegistry());
+        cache.initMetrics();
+    }
+
+    @Test
+    void callersCannotMutateTheCachedEntry() {
+        User first = cache.get(1L, id -> user(id, "alice"));
+        first.setNickname("changed");
+
+        User second = cache.get(1L, id -> user(id, "never loaded"));
+        second.setNickname("changed again");
+
+        assertThat(cache.get(1L, id -> user(id, "never loaded")).getNickname()).isEqualTo("alice");
+    }
+
+    @Test
+    void loadThatOverlapsAnInvalidationIsNotCached() {
+        User stale = cache.get(1L, id -> {
+            // 加载期间用户被修改并失效
+            cache.invalidate(id);
+            return user(id, "stale");
+        });
+        assertThat(stale.getNickname()).isEqualTo("stale");
+
+        AtomicInteger loads = new AtomicInteger();
+        User fresh = cache.get(1L, id -> {
+            loads.incrementAndGet();
+            return user(id, "fresh");
+        });
+
+        assertThat(loads.get()).isEqualTo(1);
+        assertThat(fresh.getNickname()).isEqualTo("fresh");
+    }
+
+    private static User user(Long id, String nickname) {
+        User user = new User();
+        user.setId(id);
+        user.setUsername("user" + id);
+        user.setNickname(nickname);
+        return user;
+    }
+}
@@ -0,0 +1,86 @@
+package com.im.corey.util;
+
+import io.jsonwebtoken.Jwts;
+import io.jsonwebtoken.SignatureAlgorithm;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class JwtUtilTest {
+
+    private static final String SECRET = "imchatsecret";
+
+    private JwtUtil jwtUtil;
+
+    @BeforeEach
+    void setUp() {
+        jwtUtil = new JwtUtil();
+        ReflectionTestUtils.setField(jwtUtil, "secret", SECRET);
+        ReflectionTestUtils.setField(jwtUtil, "expiration", 3600L);
+        ReflectionTestUtils.setField(jwtUtil, "cacheMaxSize", 8);
+    }
+
+    @Test
+    void verifiedTokenIsServedFromTheCache() {
+        String token = jwtUtil.generateToken(7L);
+        assertThat(jwtUtil.resolveUserId(token)).isEqualTo("7");
+
+        // 换掉密钥后签名校验必然失败，仍能解析说明命中了缓存
+        ReflectionTestUtils.setField(jwtUtil, "secret", "othersecret");
+
+        assertThat(jwtUtil.resolveUserId(token)).isEqualTo("7");
+        assertThat(jwtUtil.validateToken(token, 7L)).isTrue();
+        assertThat(jwtUtil.resolveUserId(jwtUtil.generateToken(8L) + "x")).isNull();
+        assertThat(cache()).hasSize(1);
+    }
+
+    @Test
+    void cachedTokenStopsResolvingAtItsExpiration() throws InterruptedException {
+        // exp以秒为单位，取下一个整秒之后的一秒，保证签发时尚未过期
+        long expiresAt = (System.currentTimeMillis() / 1000 + 2) * 1000;
+        String token = Jwts.builder()
+                .setSubject("7")
+                .setExpiration(new Date(expiresAt))
+                .signWith(SignatureAlgorithm.HS512, SECRET)
+                .compact();
+        assertThat(jwtUtil.resolveUserId(token)).isEqualTo("7");
+        assertThat(cache()).hasSize(1);
+
+        Thread.sleep(Math.max(0, expiresAt - System.currentTimeMillis()) + 50);
+
+        assertThat(jwtUtil.resolveUserId(token)).isNull();
+        assertThat(cache()).isEmpty();
+        // 过期的token也不会重新写入缓存
+        assertThat(jwtUtil.resolveUserId(token)).isNull();
+        assertThat(cache()).isEmpty();
+    }
+
+    @Test
+    void cacheStaysWithinItsMaximumSize() {
+        List<String> tokens = new ArrayList<>();
+        for (long userId = 1; userId <= 50; userId++) {
+            String token = jwtUtil.generateToken(userId);
+            tokens.add(token);
+            assertThat(jwtUtil.resolveUserId(token)).isEqualTo(String.valueOf(userId));
+            assertThat(cache().size()).isLessThanOrEqualTo(8);
+        }
+
+        // 被淘汰的token重新校验后照常解析
+        for (int i = 0; i < tokens.size(); i++) {
+            assertThat(jwtUtil.resolveUserId(tokens.get(i))).isEqualTo(String.valueOf(i + 1));
+        }
+        assertThat(cache().size()).isLessThanOrEqualTo(8);
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, ?> cache() {
+        return (Map<String, ?>) ReflectionTestUtils.getField(jwtUtil, "verifiedTokens");
+    }
+}
@@ -0,0 +1,101 @@
+package com.im.corey.util;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class KeyedOrderedExecutorTest {
+
+    private KeyedOrderedExecutor executor;
+
+    @AfterEach
+    void tearDown() throws InterruptedException {
+        if (executor != null) {
+            executor.shutdown();
+            executor.awaitTermination(5, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    void tasksForTheSameKeyRunInSubmissionOrderUnderConcurrency() throws Exception {
+        int producers = 8;
+        int keysPerProducer = 25;
+        int messagesPerKey = 400;
+        executor = new KeyedOrderedExecutor("ordering-test-", 4, producers * keysPerProducer * messagesPerKey,
+                new ThreadPoolExecutor.AbortPolicy());
+
+        Map<String, List<Integer>> delivered = new ConcurrentHashMap<>();
+        CountDownLatch done = new CountDownLatch(producers * keysPerProducer * messagesPerKey);
+        CyclicBarrier start = new CyclicBarrier(producers);
+        List<Thread> threads = new ArrayList<>();
+        for (int p = 0; p < producers; p++) {
+            int producer = p;
+            Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+                // 每个生产者交替向自己的多个键提交，与其他生产者的提交并发交错
+                for (int seq = 0; seq < messagesPerKey; seq++) {
+                    for (int k = 0; k < keysPerProducer; k++) {
+                        String key = "session-" + producer + "-" + k;
+                        int value = seq;
+                        executor.execute(key, () -> {
+                            delivered.computeIfAbsent(key, ignored -> new ArrayList<>()).add(value);
+                            done.countDown();
+                        });
+                    }
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertThat(done.await(30, TimeUnit.SECONDS)).isTrue();
+        assertThat(delivered).hasSize(producers * keysPerProducer);
+        for (Map.Entry<String, List<Integer>> entry : delivered.entrySet()) {
+            List<Integer> values = entry.getValue();
+            assertThat(values).as(entry.getKey()).hasSize(messagesPerKey);
+            for (int i = 0; i < messagesPerKey; i++) {
+                assertThat(values.get(i)).as(entry.getKey() + " 第" + i + "条").isEqualTo(i);
+            }
+        }
+    }
+
+    @Test
+    void longKeysAndEssentialTasksShareTheSameStripe() throws Exception {
+        executor = new KeyedOrderedExecutor("long-key-test-", 4, 16, 4, new ThreadPoolExecutor.AbortPolicy());
+        List<String> order = new ArrayList<>();
+        CountDownLatch done = new CountDownLatch(3);
+
+        executor.execute(3L, 7L, () -> {
+            order.add("first");
+            done.countDown();
+        });
+        executor.executeEssential(3L, 7L, () -> {
+            order.add("essential");
+            done.countDown();
+        });
+        executor.execute(3L, 7L, () -> {
+            order.add("last");
+            done.countDown();
+        });
+
+        assertThat(done.await(5, TimeUnit.SECONDS)).isTrue();
+        assertThat(order).containsExactly("first", "essential", "last");
+    }
+}
@@ -0,0 +1,69 @@
+package com.im.corey.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class LongPairCounterMapTest {
+
+    @Test
+    void decrementIfPositiveNeverGoesBelowZeroUnderContention() throws Exception {
+        LongPairCounterMap map = new LongPairCounterMap(4);
+        map.put(1L, 2L, 100);
+        int threads = 8;
+        int attemptsPerThread = 1000;
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<Integer>> results = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            results.add(pool.submit(() -> {
+                start.await();
+                int decremented = 0;
+                for (int i = 0; i < attemptsPerThread; i++) {
+                    if (map.decrementIfPositive(1L, 2L)) {
+                        decremented++;
+                    }
+                }
+                return decremented;
+            }));
+        }
+        start.countDown();
+        int total = 0;
+        for (Future<Integer> result : results) {
+            total += result.get(10, TimeUnit.SECONDS);
+        }
+        pool.shutdown();
+
+        assertThat(total).isEqualTo(100);
+        assertThat(map.get(1L, 2L)).isZero();
+    }
+
+    @Test
+    void decrementIfPositiveOnMissingKeyIsNoop() {
+        LongPairCounterMap map = new LongPairCounterMap(4);
+        assertThat(map.decrementIfPositive(3L, 4L)).isFalse();
+        assertThat(map.get(3L, 4L)).isZero();
+    }
+
+    @Test
+    void removedKeysDoNotBreakProbing() {
+        LongPairCounterMap map = new LongPairCounterMap(1);
+        for (long i = 0; i < 1000; i++) {
+            map.put(i, i + 1, i + 1);
+        }
+        for (long i = 0; i < 1000; i += 2) {
+            map.put(i, i + 1, 0);
+        }
+        for (long i = 0; i < 1000; i++) {
+            assertThat(map.get(i, i + 1)).isEqualTo(i % 2 == 0 ? 0 : i + 1);
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package com.im.corey.util;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class MessageTokenizerTest {
+
+    @Test
+    void contentIsIndexedAsUnigramsAndBigrams() {
+        assertThat(MessageTokenizer.tokenize("我的猫很可爱"))
+                .contains("我", "的", "猫", "很", "可", "爱")
+                .contains("我的", "的猫", "猫很", "很可", "可爱");
+    }
+
+    @Test
+    void queryUsesBigramsAndFallsBackToTheSingleCharacter() {
+        assertThat(MessageTokenizer.tokenizeQuery("猫很")).containsExactly("猫很");
+        assertThat(MessageTokenizer.tokenizeQuery("猫")).containsExactly("猫");
+        assertThat(MessageTokenizer.tokenize("我的猫很可爱")).containsAll(MessageTokenizer.tokenizeQuery("猫"));
+        assertThat(MessageTokenizer.tokenize("我的猫很可爱")).containsAll(MessageTokenizer.tokenizeQuery("猫很可爱"));
+    }
+
+    @Test
+    void wordsAreLowercasedAndSplitFromCjkRuns() {
+        assertThat(MessageTokenizer.tokenize("明天Review代码 PR-42"))
+                .contains("明天", "review", "代码", "pr", "42")
+                .doesNotContain("天r", "Review");
+        assertThat(MessageTokenizer.tokenizeQuery("REVIEW 代码")).containsExactly("review", "代码");
+    }
+
+    @Test
+    void blankTextHasNoTokens() {
+        assertThat(MessageTokenizer.tokenize(null)).isEmpty();
+        assertThat(MessageTokenizer.tokenizeQuery("  ，。 ")).isEmpty();
+    }
+}
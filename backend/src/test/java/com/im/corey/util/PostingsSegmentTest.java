@@ -0,0 +1,57 @@
+package com.im.corey.util;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class PostingsSegmentTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void everyWrittenKeyCanBeLookedUpAndIterated() throws Exception {
+        List<PostingsSegment.Entry> entries = new ArrayList<>();
+        for (long user = 1; user <= 20; user++) {
+            for (int t = 0; t < 30; t++) {
+                int size = (int) (user * t % 7) + 1;
+                long[] ids = new long[size];
+                long[] peers = new long[size];
+                for (int i = 0; i < size; i++) {
+                    ids[i] = (1L << 40) + user * 1000 + t * 10 + i;
+                    peers[i] = user + i + 1;
+                }
+                entries.add(new PostingsSegment.Entry(user, String.format("词%02d", t), ids, peers, size));
+            }
+        }
+        Path path = directory.resolve("seg-1.idx");
+        PostingsSegment.write(path, 12345L, entries.iterator(), 8);
+
+        PostingsSegment segment = PostingsSegment.open(path);
+
+        assertThat(segment.getMaxMessageId()).isEqualTo(12345L);
+        for (PostingsSegment.Entry expected : entries) {
+            PostingsSegment.Entry actual = segment.lookup(expected.getUserId(), expected.getToken());
+            assertThat(actual).as(expected.getUserId() + "/" + expected.getToken()).isNotNull();
+            assertThat(actual.getIds()).containsExactly(expected.getIds());
+            assertThat(actual.getPeers()).containsExactly(expected.getPeers());
+        }
+        assertThat(segment.lookup(0L, "词00")).isNull();
+        assertThat(segment.lookup(5L, "不存在")).isNull();
+        assertThat(segment.lookup(99L, "词00")).isNull();
+
+        Iterator<PostingsSegment.Entry> iterator = segment.iterator();
+        for (PostingsSegment.Entry expected : entries) {
+            PostingsSegment.Entry actual = iterator.next();
+            assertThat(actual.getUserId()).isEqualTo(expected.getUserId());
+            assertThat(actual.getToken()).isEqualTo(expected.getToken());
+        }
+        assertThat(iterator.hasNext()).isFalse();
+    }
+}
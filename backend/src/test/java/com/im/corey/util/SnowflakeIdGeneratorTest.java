@@ -0,0 +1,106 @@
+package com.im.corey.util;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class SnowflakeIdGeneratorTest {
+
+    private static final long START = 1735689600000L;
+
+    @Test
+    void exhaustedSequenceWaitsForTheNextMillisecondInsteadOfBorrowing() {
+        AtomicLong clock = new AtomicLong(START);
+        AtomicInteger reads = new AtomicInteger();
+        SnowflakeIdGenerator generator = generator(() -> {
+            // 每个毫秒最多能发128个ID，之后的读数推进时钟
+            if (reads.incrementAndGet() > 128) {
+                return clock.incrementAndGet();
+            }
+            return clock.get();
+        });
+
+        long previous = -1;
+        for (int i = 0; i < 128; i++) {
+            long id = generator.nextId();
+            assertThat(id).isGreaterThan(previous);
+            assertThat(SnowflakeIdGenerator.timestampOf(id)).isEqualTo(START);
+            previous = id;
+        }
+        long next = generator.nextId();
+
+        assertThat(next).isGreaterThan(previous);
+        // 时间戳来自真实的下一毫秒，没有超前于时钟
+        assertThat(SnowflakeIdGenerator.timestampOf(next)).isEqualTo(clock.get());
+    }
+
+    @Test
+    void restartAfterABurstDoesNotReissueIds() {
+        AtomicLong clock = new AtomicLong(START);
+        AtomicInteger reads = new AtomicInteger();
+        // 时钟每读300次才前进1毫秒，生成速度超过每毫秒的序号容量
+        LongSupplier slowClock = () -> reads.incrementAndGet() % 300 == 0 ? clock.incrementAndGet() : clock.get();
+        SnowflakeIdGenerator before = generator(slowClock);
+        long last = 0;
+        for (int i = 0; i < 1000; i++) {
+            last = before.nextId();
+            assertThat(SnowflakeIdGenerator.timestampOf(last)).isLessThanOrEqualTo(clock.get());
+        }
+
+        // 重启后的新实例只依赖当前时钟，下一毫秒起发出的ID都大于重启前的ID
+        clock.incrementAndGet();
+        SnowflakeIdGenerator after = generator(clock::get);
+
+        assertThat(after.nextId()).isGreaterThan(last);
+    }
+
+    @Test
+    void largeClockRegressionIsRejected() {
+        AtomicLong clock = new AtomicLong(START);
+        SnowflakeIdGenerator generator = generator(clock::get);
+        generator.nextId();
+
+        clock.addAndGet(-5000);
+
+        assertThatThrownBy(generator::nextId).isInstanceOf(IllegalStateException.class);
+    }
+
+    @Test
+    void lowestNextIdIsABoundForEveryLaterId() {
+        AtomicLong clock = new AtomicLong(START);
+        SnowflakeIdGenerator generator = generator(clock::get);
+
+        long bound = generator.lowestNextId();
+        assertThat(generator.nextId()).isEqualTo(bound);
+
+        for (int i = 0; i < 127; i++) {
+            bound = generator.lowestNextId();
+            assertThat(generator.nextId()).isEqualTo(bound);
+        }
+        // 本毫秒的序号已用尽，下一个ID只能来自下一毫秒
+        bound = generator.lowestNextId();
+        assertThat(SnowflakeIdGenerator.timestampOf(bound)).isEqualTo(START + 1);
+        clock.addAndGet(5);
+        assertThat(generator.nextId()).isGreaterThanOrEqualTo(bound);
+        assertThat(generator.lowestNextId()).isGreaterThan(bound);
+    }
+
+    private static SnowflakeIdGenerator generator(LongSupplier clock) {
+        SnowflakeIdGenerator generator = new SnowflakeIdGenerator() {
+            @Override
+            long currentTimeMillis() {
+                return clock.getAsLong();
+            }
+        };
+        ReflectionTestUtils.setField(generator, "nodeId", 1);
+        ReflectionTestUtils.setField(generator, "maxClockBackwardMs", 1000L);
+        generator.init();
+        return generator;
+    }
+}
@@ -0,0 +1,94 @@
+package com.im.corey.util;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class TokenBucketLimiterTest {
+
+    private static final long START = TimeUnit.SECONDS.toNanos(1000);
+
+    @Test
+    void burstIsAllowedThenRejected() {
+        TokenBucketLimiter limiter = new TokenBucketLimiter(10, 3, 1);
+
+        assertThat(limiter.tryAcquire(7L, START)).isTrue();
+        assertThat(limiter.tryAcquire(7L, START)).isTrue();
+        assertThat(limiter.tryAcquire(7L, START)).isTrue();
+        assertThat(limiter.tryAcquire(7L, START)).isFalse();
+        // 其他键有自己的桶
+        assertThat(limiter.tryAcquire(8L, START)).isTrue();
+    }
+
+    @Test
+    void tokensRefillOverTimeUpToTheBurst() {
+        TokenBucketLimiter limiter = new TokenBucketLimiter(10, 2, 1);
+        limiter.tryAcquire(7L, START);
+        limiter.tryAcquire(7L, START);
+        assertThat(limiter.tryAcquire(7L, START)).isFalse();
+
+        // 每秒10个令牌，100ms补充一个
+        assertThat(limiter.tryAcquire(7L, START + TimeUnit.MILLISECONDS.toNanos(50))).isFalse();
+        assertThat(limiter.tryAcquire(7L, START + TimeUnit.MILLISECONDS.toNanos(100))).isTrue();
+        assertThat(limiter.tryAcquire(7L, START + TimeUnit.MILLISECONDS.toNanos(100))).isFalse();
+
+        // 空闲再久也只补满到桶容量
+        long later = START + TimeUnit.MINUTES.toNanos(10);
+        assertThat(limiter.tryAcquire(7L, later)).isTrue();
+        assertThat(limiter.tryAcquire(7L, later)).isTrue();
+        assertThat(limiter.tryAcquire(7L, later)).isFalse();
+    }
+
+    @Test
+    void fractionalRateRefillsAcrossSeconds() {
+        TokenBucketLimiter limiter = new TokenBucketLimiter(0.5, 1, 1);
+        assertThat(limiter.tryAcquire(7L, START)).isTrue();
+
+        assertThat(limiter.tryAcquire(7L, START + TimeUnit.MILLISECONDS.toNanos(1000))).isFalse();
+        assertThat(limiter.tryAcquire(7L, START + TimeUnit.MILLISECONDS.toNanos(2000))).isTrue();
+    }
+
+    @Test
+    void rebuildDropsBucketsThatHaveRefilled() {
+        TokenBucketLimiter limiter = new TokenBucketLimiter(10, 2, 1);
+        for (long key = 1; key <= 12; key++) {
+            limiter.tryAcquire(key, START);
+        }
+
+        // 16个槽位的段在第13个桶时整理，此时前12个桶都已补满，全部丢弃，不需要扩容
+        long later = START + TimeUnit.SECONDS.toNanos(1);
+        assertThat(limiter.tryAcquire(13L, later)).isTrue();
+
+        assertThat(ReflectionTestUtils.getField(segment(limiter), "size")).isEqualTo(1);
+        assertThat(slots(limiter)).isEqualTo(16);
+        // 丢弃的桶再次出现时按补满处理
+        assertThat(limiter.tryAcquire(1L, later)).isTrue();
+        assertThat(limiter.tryAcquire(1L, later)).isTrue();
+        assertThat(limiter.tryAcquire(1L, later)).isFalse();
+    }
+
+    @Test
+    void rebuildKeepsBucketsStillRefilling() {
+        TokenBucketLimiter limiter = new TokenBucketLimiter(10, 2, 1);
+        for (long key = 1; key <= 13; key++) {
+            limiter.tryAcquire(key, START);
+        }
+
+        assertThat(slots(limiter)).isEqualTo(32);
+        assertThat(ReflectionTestUtils.getField(segment(limiter), "size")).isEqualTo(13);
+        // 保留的桶仍按剩余令牌计算
+        assertThat(limiter.tryAcquire(1L, START)).isTrue();
+        assertThat(limiter.tryAcquire(1L, START)).isFalse();
+    }
+
+    private static Object segment(TokenBucketLimiter limiter) {
+        return ((Object[]) ReflectionTestUtils.getField(limiter, "segments"))[0];
+    }
+
+    private static int slots(TokenBucketLimiter limiter) {
+        return ((boolean[]) ReflectionTestUtils.getField(segment(limiter), "used")).length;
+    }
+}
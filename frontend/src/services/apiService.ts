@@ -67,6 +67,9 @@ export const userApi = {
   
   // 获取在线用户
   getOnlineUsers: () => apiClient.get('/users/online'),
+
+  // 获取带版本号的在线状态快照
+  getOnlineSnapshot: () => apiClient.get('/users/online/snapshot'),
   
   // 获取带未读数量的用户列表
   getWithUnreadCount: () => apiClient.get('/users/with-unread-count'),
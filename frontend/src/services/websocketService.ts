@@ -3,6 +3,7 @@ import SockJS from 'sockjs-client'
 import { Client } from '@stomp/stompjs'
 import type { IMessage } from '@stomp/stompjs'
 import { flashBrowserTab, stopTabFlashing } from '../utils/tabFlashUtil'
+import { userApi } from './apiService'
 
 export class WebSocketService {
   private stompClient: Client | null = null
@@ -18,6 +19,7 @@ export class WebSocketService {
   private heartbeatCheckTimer: number | null = null // 心跳检查定时器
   private heartbeatMaxDelay = 90000 // 心跳最大延迟时间（90秒）
   private reconnectTimer: number | null = null // 重连定时器引用
+  private presenceVersion: number | null = null // 已应用的在线状态版本号，null表示尚未同步
   
   constructor(url: string) {
     this.url = url
@@ -28,6 +30,42 @@ export class WebSocketService {
     document.addEventListener('visibilitychange', this.handleVisibilityChange.bind(this))
   }
   
+  // 拉取在线状态快照并整体替换本地在线状态
+  private async syncPresenceSnapshot() {
+    try {
+      const response = await userApi.getOnlineSnapshot();
+      const snapshot = response.data;
+      if (this.presenceVersion !== null && snapshot.version <= this.presenceVersion) {
+        return;
+      }
+      this.presenceVersion = snapshot.version;
+      const onlineUserIds = new Set<number>(snapshot.onlineUserIds);
+      const chatStore = useChatStore();
+      chatStore.users = chatStore.users.map(user => ({
+        ...user,
+        isOnline: onlineUserIds.has(user.id)
+      }));
+    } catch (error) {
+      console.error('获取在线状态快照失败:', error);
+    }
+  }
+  
+  // 应用一次在线状态增量
+  private applyPresence(online: number[], offline: number[]) {
+    const onlineIds = new Set<number>(online);
+    const offlineIds = new Set<number>(offline);
+    const chatStore = useChatStore();
+    chatStore.users = chatStore.users.map(user => {
+      if (onlineIds.has(user.id)) {
+        return { ...user, isOnline: true };
+      }
+      if (offlineIds.has(user.id)) {
+        return { ...user, isOnline: false };
+      }
+      return user;
+    });
+  }
+  
   // 统一的登录状态检查方法
   private isLoggedIn(): boolean {
     const token = localStorage.getItem('token');
@@ -172,23 +210,25 @@ export class WebSocketService {
             }
           });
           
-          // 订阅在线用户状态变更
+          // 订阅在线用户状态增量
           this.stompClient?.subscribe('/topic/online-users', (message: IMessage) => {
             const data = JSON.parse(message.body);
-            const chatStore = useChatStore();
-            
-            // 确保data是一个数组
-            if (Array.isArray(data)) {
-              const onlineUserIds = new Set(data.map((user: any) => user.id));
-              const updatedUsers = chatStore.users.map(user => ({
-                ...user,
-                isOnline: onlineUserIds.has(user.id)
-              }));
-              chatStore.users = updatedUsers;
-            } else {
+            if (data.type !== 'PRESENCE_DELTA') {
               console.error('收到的在线用户数据格式不正确:', data);
+              return;
+            }
+            if (this.presenceVersion === null || data.version > this.presenceVersion + 1) {
+              // 尚未同步或漏收了增量，拉取快照重新同步
+              this.syncPresenceSnapshot();
+              return;
+            }
+            if (data.version <= this.presenceVersion) {
+              return;
             }
+            this.presenceVersion = data.version;
+            this.applyPresence(data.online, data.offline);
           });
+          this.syncPresenceSnapshot();
           
           // 订阅错误消息队列
           this.stompClient?.subscribe('/user/queue/errors', (message: IMessage) => {
@@ -247,6 +287,8 @@ export class WebSocketService {
         },
         onDisconnect: () => {
           console.log('STOMP连接已关闭')
+          // 重连后需要重新同步在线状态
+          this.presenceVersion = null
           // 在store中更新连接状态
           const chatStore = useChatStore()
           chatStore.setConnectionStatus(false)